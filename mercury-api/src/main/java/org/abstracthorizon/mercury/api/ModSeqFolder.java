@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.api;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+/**
+ * Folder that keeps mod-sequences of its messages (RFC 7162). Mod-sequence of a message
+ * grows each time message is changed and folder's highest mod-sequence grows with
+ * each change of the folder, including expunges.
+ *
+ * @author Daniel Sendula
+ */
+public interface ModSeqFolder extends UIDFolder {
+
+    /**
+     * Returns highest mod-sequence of the folder
+     * @return highest mod-sequence
+     * @throws MessagingException
+     */
+    long getHighestModSeq() throws MessagingException;
+
+    /**
+     * Returns mod-sequence of the message
+     * @param message message
+     * @return mod-sequence
+     * @throws MessagingException
+     */
+    long getModSeq(Message message) throws MessagingException;
+
+    /**
+     * Returns UIDs of folder's messages changed (or added) after given mod-sequence
+     * @param modSeq mod-sequence
+     * @return UIDs in ascending order
+     * @throws MessagingException
+     */
+    long[] getChangedUIDs(long modSeq) throws MessagingException;
+
+    /**
+     * Returns UIDs expunged after given mod-sequence. If expunges that old are no longer
+     * known all UIDs up to the highest are returned except those of folder's messages.
+     * @param modSeq mod-sequence
+     * @return pairs of first and last UID of expunged ranges in ascending order
+     * @throws MessagingException
+     */
+    long[] getExpungedUIDs(long modSeq) throws MessagingException;
+
+    /**
+     * Changes flags of messages whose mod-sequence is not greater than given one
+     * (<code>UNCHANGEDSINCE</code>). Mod-sequence of each message is compared and its flags
+     * changed atomically with regard to other changes of the message.
+     * @param msgs messages
+     * @param remove flags to be removed or <code>null</code>
+     * @param add flags to be added or <code>null</code>
+     * @param unchangedSince mod-sequence
+     * @return messages that are not changed as their mod-sequence is greater
+     * @throws MessagingException if flags or mod-sequences cannot be written
+     */
+    Message[] setFlags(Message[] msgs, Flags remove, Flags add, long unchangedSince) throws MessagingException;
+}
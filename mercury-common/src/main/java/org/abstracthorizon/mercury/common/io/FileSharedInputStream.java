@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.internet.SharedInputStream;
 
@@ -18,6 +19,7 @@ public class FileSharedInputStream extends InputStream implements SharedInputStr
     private long end;
     private File file;
     private RandomAccessFile raf;
+    private final ReentrantLock lock = new ReentrantLock();
 
     protected FileSharedInputStream(File file, long start, long end) {
         this.file = file;
@@ -93,7 +95,9 @@ public class FileSharedInputStream extends InputStream implements SharedInputStr
     }
 
     protected void checkOpen() throws IOException {
-        synchronized (this) {
+        // Not a monitor so virtual threads opening the file don't pin their carriers
+        lock.lock();
+        try {
             if (raf == null) {
                 raf = new RandomAccessFile(file, "r");
                 if (end == -1) {
@@ -103,6 +107,8 @@ public class FileSharedInputStream extends InputStream implements SharedInputStr
                     raf.seek(position);
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.common.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.abstracthorizon.danube.connection.ConnectionHandler;
+import org.abstracthorizon.danube.service.server.SocketConnection;
+import org.abstracthorizon.mercury.common.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Server socket service that runs each connection on its own virtual thread
+ * (see {@link VirtualThreads}). It can be used in place of danube's thread per
+ * connection services for any of mercury's connection handlers: blocking reads and
+ * writes of idle connections do not hold platform threads.
+ * </p>
+ * <p>If key store is set connections are accepted over SSL. If trust store is set
+ * as well clients have to authenticate and their certificates are available through
+ * connection's <code>adapt(Certificate[].class)</code>.
+ * </p>
+ * <p>It has the same life cycle as danube's server socket services: {@link #create()} binds
+ * the port, {@link #start()} starts accepting connections, {@link #stop()} stops and closes
+ * the port and {@link #destroy()}.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class VirtualThreadServerSocketService implements Runnable {
+
+    /** Logger */
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Service name */
+    protected String name;
+
+    /** Address to bind to or <code>null</code> for all addresses */
+    protected String address;
+
+    /** Port */
+    protected int port;
+
+    /** Socket timeout of new connections */
+    protected int newSocketTimeout = 60000;
+
+    /** Connection handler */
+    protected ConnectionHandler connectionHandler;
+
+    /** Key store URL */
+    protected URL keyStoreURL;
+
+    /** Key store password */
+    protected String keyStorePassword;
+
+    /** Trust store URL */
+    protected URL trustStoreURL;
+
+    /** Trust store password */
+    protected String trustStorePassword;
+
+    /** Server socket */
+    protected ServerSocket serverSocket;
+
+    /** Creates connections' threads */
+    protected ThreadFactory threadFactory;
+
+    /** Acceptor thread */
+    protected Thread thread;
+
+    /** Is service accepting connections */
+    protected volatile boolean running;
+
+    /** Number of open connections */
+    protected AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * Constructor
+     */
+    public VirtualThreadServerSocketService() {
+    }
+
+    /**
+     * Returns service name
+     * @return service name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets service name
+     * @param name service name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns address service is bound to
+     * @return address or <code>null</code> for all addresses
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sets address service is bound to
+     * @param address address or <code>null</code> for all addresses
+     */
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Returns port
+     * @return port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets port
+     * @param port port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Returns socket timeout of new connections
+     * @return socket timeout in milliseconds
+     */
+    public int getNewSocketTimeout() {
+        return newSocketTimeout;
+    }
+
+    /**
+     * Sets socket timeout of new connections
+     * @param newSocketTimeout socket timeout in milliseconds
+     */
+    public void setNewSocketTimeout(int newSocketTimeout) {
+        this.newSocketTimeout = newSocketTimeout;
+    }
+
+    /**
+     * Returns connection handler
+     * @return connection handler
+     */
+    public ConnectionHandler getConnectionHandler() {
+        return connectionHandler;
+    }
+
+    /**
+     * Sets connection handler
+     * @param connectionHandler connection handler
+     */
+    public void setConnectionHandler(ConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * Returns key store URL
+     * @return key store URL or <code>null</code>
+     */
+    public URL getKeyStoreURL() {
+        return keyStoreURL;
+    }
+
+    /**
+     * Sets key store URL. When set connections are accepted over SSL.
+     * @param keyStoreURL key store URL
+     */
+    public void setKeyStoreURL(URL keyStoreURL) {
+        this.keyStoreURL = keyStoreURL;
+    }
+
+    /**
+     * Returns key store password
+     * @return key store password
+     */
+    public String getKeyStorePassword() {
+        return keyStorePassword;
+    }
+
+    /**
+     * Sets key store password
+     * @param keyStorePassword key store password
+     */
+    public void setKeyStorePassword(String keyStorePassword) {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    /**
+     * Returns trust store URL
+     * @return trust store URL or <code>null</code>
+     */
+    public URL getTrustStoreURL() {
+        return trustStoreURL;
+    }
+
+    /**
+     * Sets trust store URL. When set clients must authenticate with certificates it trusts.
+     * @param trustStoreURL trust store URL
+     */
+    public void setTrustStoreURL(URL trustStoreURL) {
+        this.trustStoreURL = trustStoreURL;
+    }
+
+    /**
+     * Returns trust store password
+     * @return trust store password
+     */
+    public String getTrustStorePassword() {
+        return trustStorePassword;
+    }
+
+    /**
+     * Sets trust store password
+     * @param trustStorePassword trust store password
+     */
+    public void setTrustStorePassword(String trustStorePassword) {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+    /**
+     * Returns number of open connections
+     * @return number of open connections
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Binds the port
+     * @throws IOException if port cannot be bound or SSL cannot be set up
+     */
+    public void create() throws IOException {
+        if (keyStoreURL != null) {
+            SSLServerSocket sslServerSocket = (SSLServerSocket)createSSLContext().getServerSocketFactory().createServerSocket();
+            sslServerSocket.setNeedClientAuth(trustStoreURL != null);
+            serverSocket = sslServerSocket;
+        } else {
+            serverSocket = new ServerSocket();
+        }
+        serverSocket.setReuseAddress(true);
+        if (address != null) {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName(address), port), 1024);
+        } else {
+            serverSocket.bind(new InetSocketAddress(port), 1024);
+        }
+    }
+
+    /**
+     * Starts accepting connections
+     * @throws IOException if port cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket == null) {
+            create();
+        }
+        threadFactory = VirtualThreads.newThreadFactory(name);
+        running = true;
+        thread = new Thread(this, name + "-acceptor");
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections and closes the port. Open connections are left to finish.
+     * @throws IOException if port cannot be closed
+     */
+    public synchronized void stop() throws IOException {
+        if (running) {
+            running = false;
+            serverSocket.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * Closes the port if it is still open
+     */
+    public void destroy() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) {
+            }
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * Accepts connections and starts a thread for each
+     */
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout(newSocketTimeout);
+                socket.setTcpNoDelay(true);
+                final SocketConnection connection;
+                if (socket instanceof SSLSocket) {
+                    connection = new SSLSocketConnection((SSLSocket)socket);
+                } else {
+                    connection = new SocketConnection(socket);
+                }
+                threadFactory.newThread(new Runnable() {
+                    public void run() {
+                        connectionCount.incrementAndGet();
+                        try {
+                            connectionHandler.handleConnection(connection);
+                        } catch (Throwable t) {
+                            logger.error("Connection problem: ", t);
+                        } finally {
+                            connectionCount.decrementAndGet();
+                            connection.close();
+                        }
+                    }
+                }).start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Cannot accept connection: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates SSL context from key and trust stores
+     * @return SSL context
+     * @throws IOException if stores cannot be read
+     */
+    protected SSLContext createSSLContext() throws IOException {
+        try {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(loadKeyStore(keyStoreURL, keyStorePassword), toChars(keyStorePassword));
+
+            TrustManagerFactory trustManagerFactory = null;
+            if (trustStoreURL != null) {
+                trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagerFactory.init(loadKeyStore(trustStoreURL, trustStorePassword));
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(),
+                    trustManagerFactory != null ? trustManagerFactory.getTrustManagers() : null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up SSL for " + name, e);
+        }
+    }
+
+    /**
+     * Loads key store
+     * @param url key store URL
+     * @param password key store password
+     * @return key store
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    protected static KeyStore loadKeyStore(URL url, String password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream is = url.openStream();
+        try {
+            keyStore.load(is, toChars(password));
+        } finally {
+            is.close();
+        }
+        return keyStore;
+    }
+
+    /**
+     * Returns password as characters
+     * @param password password or <code>null</code>
+     * @return characters or <code>null</code>
+     */
+    protected static char[] toChars(String password) {
+        if (password != null) {
+            return password.toCharArray();
+        }
+        return null;
+    }
+
+    /**
+     * SSL socket connection that adapts to client's certificates
+     */
+    protected static class SSLSocketConnection extends SocketConnection {
+
+        /** SSL socket */
+        protected SSLSocket sslSocket;
+
+        /**
+         * Constructor
+         * @param socket SSL socket
+         */
+        public SSLSocketConnection(SSLSocket socket) {
+            super(socket);
+            this.sslSocket = socket;
+        }
+
+        /**
+         * Adapts to client's certificates when <code>Certificate[]</code> is asked for
+         * @param cls class
+         * @return adapted object or <code>null</code>
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T adapt(Class<T> cls) {
+            if (cls == Certificate[].class) {
+                try {
+                    return (T)sslSocket.getSession().getPeerCertificates();
+                } catch (SSLPeerUnverifiedException e) {
+                    return null;
+                }
+            }
+            return super.adapt(cls);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.common.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Creates threads for connections and tasks that block on I/O. When JVM supports
+ * virtual threads (Java 21 and later) they are used, otherwise daemon platform threads
+ * are created. Virtual threads are obtained through reflection so this class can be
+ * compiled and run with older JVMs.
+ * </p>
+ * <p>Code run on virtual threads should not block (on socket or file I/O) while holding
+ * a monitor since that pins the virtual thread to its carrier thread. Locks from
+ * <code>java.util.concurrent.locks</code> do not have that problem.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class VirtualThreads {
+
+    /** <code>Thread.ofVirtual()</code> or <code>null</code> if not supported */
+    protected static final Method OF_VIRTUAL;
+
+    /** <code>Thread.Builder.name(String, long)</code> */
+    protected static final Method NAME;
+
+    /** <code>Thread.Builder.factory()</code> */
+    protected static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            // Preview versions of virtual threads throw exception here
+            factory.invoke(ofVirtual.invoke(null));
+        } catch (Throwable ignore) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    /**
+     * Masked private constructor
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns <code>true</code> if JVM supports virtual threads
+     * @return <code>true</code> if virtual threads are going to be created
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns thread factory that creates virtual threads or daemon platform threads
+     * if virtual threads are not supported
+     * @param prefix thread name prefix. Threads are named prefix-1, prefix-2...
+     * @return thread factory
+     */
+    public static ThreadFactory newThreadFactory(final String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L);
+                return (ThreadFactory)FACTORY.invoke(builder);
+            } catch (Exception ignore) {
+            }
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns executor that runs each task on a new thread created by {@link #newThreadFactory(String)}
+     * @param prefix thread name prefix
+     * @return executor
+     */
+    public static Executor newExecutor(String prefix) {
+        final ThreadFactory threadFactory = newThreadFactory(prefix);
+        return new Executor() {
+            public void execute(Runnable task) {
+                threadFactory.newThread(task).start();
+            }
+        };
+    }
+}
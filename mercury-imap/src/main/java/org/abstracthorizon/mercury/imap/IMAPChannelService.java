@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.abstracthorizon.danube.connection.Connection;
+import org.abstracthorizon.danube.service.server.SocketConnection;
+import org.abstracthorizon.mercury.common.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>IMAP service that accepts connections through a server socket channel and serves them
+ * with a fixed number of worker threads. Sessions waiting for client's input, between
+ * commands and in IDLE, are parked with {@link IMAPSessionParker} so they do not hold
+ * a worker thread. Number of threads the service uses is number of workers plus acceptor
+ * and parker threads, regardless of number of connected clients.
+ * </p>
+ * <p>With {@link #setVirtualThreads(boolean)} set each connection runs on its own virtual
+ * thread instead (see {@link VirtualThreads}) and sessions simply block while they wait for
+ * input. Mailbox events are pushed from virtual threads, too, unless connection handler
+ * has its own thread pool.
+ * </p>
+ * <p>It has the same life cycle as danube's server socket services: {@link #create()} binds
+ * the port, {@link #start()} starts accepting connections, {@link #stop()} stops and closes
+ * the port and {@link #destroy()}.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class IMAPChannelService implements Runnable {
+
+    /** Default number of worker threads */
+    public static final int DEFAULT_WORKERS = 32;
+
+    /** Logger */
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Service name */
+    protected String name = "imap";
+
+    /** Port */
+    protected int port = 143;
+
+    /** Number of worker threads */
+    protected int workers = DEFAULT_WORKERS;
+
+    /** Socket timeout of new connections */
+    protected int newSocketTimeout = 60000;
+
+    /** Timeout of sessions in IDLE */
+    protected long idleTimeout = IMAPSessionParker.DEFAULT_IDLE_TIMEOUT;
+
+    /** Run each connection on its own virtual thread instead of parking sessions */
+    protected boolean virtualThreads;
+
+    /** Connection handler */
+    protected IMAPConnectionHandler connectionHandler;
+
+    /** Server socket channel */
+    protected ServerSocketChannel serverChannel;
+
+    /** Worker threads */
+    protected ExecutorService executor;
+
+    /** Starts connections' virtual threads */
+    protected Executor virtualThreadExecutor;
+
+    /** Is connection handler's thread pool set by this service */
+    protected boolean threadPoolSet;
+
+    /** Session parker */
+    protected IMAPSessionParker sessionParker;
+
+    /** Acceptor thread */
+    protected Thread thread;
+
+    /** Is service accepting connections */
+    protected volatile boolean running;
+
+    /**
+     * Constructor
+     */
+    public IMAPChannelService() {
+    }
+
+    /**
+     * Returns service name
+     * @return service name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets service name
+     * @param name service name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns port
+     * @return port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets port
+     * @param port port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Returns number of worker threads
+     * @return number of worker threads
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets number of worker threads
+     * @param workers number of worker threads
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Returns socket timeout of new connections
+     * @return socket timeout in milliseconds
+     */
+    public int getNewSocketTimeout() {
+        return newSocketTimeout;
+    }
+
+    /**
+     * Sets socket timeout of new connections. Sessions parked between commands expire after it.
+     * @param newSocketTimeout socket timeout in milliseconds
+     */
+    public void setNewSocketTimeout(int newSocketTimeout) {
+        this.newSocketTimeout = newSocketTimeout;
+    }
+
+    /**
+     * Returns timeout of sessions in IDLE
+     * @return timeout in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets timeout of sessions in IDLE
+     * @param idleTimeout timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns <code>true</code> if connections run on virtual threads
+     * @return <code>true</code> if connections run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets if each connection is to run on its own virtual thread. If JVM doesn't
+     * support virtual threads platform threads are used. Number of workers and idle
+     * timeout are not used in this mode.
+     * @param virtualThreads run connections on virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns connection handler
+     * @return connection handler
+     */
+    public IMAPConnectionHandler getConnectionHandler() {
+        return connectionHandler;
+    }
+
+    /**
+     * Sets connection handler
+     * @param connectionHandler connection handler
+     */
+    public void setConnectionHandler(IMAPConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * Returns session parker
+     * @return session parker or <code>null</code> if service is not started
+     */
+    public IMAPSessionParker getSessionParker() {
+        return sessionParker;
+    }
+
+    /**
+     * Binds the port
+     * @throws IOException if port cannot be bound
+     */
+    public void create() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+    }
+
+    /**
+     * Starts worker threads, session parker and accepting connections
+     * @throws IOException if parker cannot be started
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel == null) {
+            create();
+        }
+        if (virtualThreads) {
+            virtualThreadExecutor = VirtualThreads.newExecutor(name);
+            if (connectionHandler.threadPool == null) {
+                connectionHandler.setThreadPool(virtualThreadExecutor);
+                threadPoolSet = true;
+            }
+        } else {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-worker-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            sessionParker = new IMAPSessionParker(executor);
+            sessionParker.setIdleTimeout(idleTimeout);
+            sessionParker.start();
+            connectionHandler.setSessionParker(sessionParker);
+        }
+
+        running = true;
+        thread = new Thread(this, name + "-acceptor");
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections, closes parked sessions and stops worker threads.
+     * Connections on virtual threads are left to finish.
+     * @throws IOException if port cannot be closed
+     */
+    public synchronized void stop() throws IOException {
+        if (running) {
+            running = false;
+            serverChannel.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (sessionParker != null) {
+                sessionParker.stop();
+                connectionHandler.setSessionParker(null);
+                sessionParker = null;
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(newSocketTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executor = null;
+            }
+            if (threadPoolSet) {
+                connectionHandler.setThreadPool(null);
+                threadPoolSet = false;
+            }
+            virtualThreadExecutor = null;
+            serverChannel = null;
+        }
+    }
+
+    /**
+     * Closes the port if it is still open
+     */
+    public void destroy() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ignore) {
+            }
+            serverChannel = null;
+        }
+    }
+
+    /**
+     * Accepts connections and hands them to workers
+     */
+    public void run() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Socket socket = channel.socket();
+                socket.setSoTimeout(newSocketTimeout);
+                socket.setTcpNoDelay(true);
+                final Connection connection = new SocketConnection(socket);
+                Executor connectionExecutor = virtualThreads ? virtualThreadExecutor : executor;
+                connectionExecutor.execute(new Runnable() {
+                    public void run() {
+                        connectionHandler.handleConnection(connection);
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                // Service is stopped
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Cannot accept connection: ", e);
+                }
+            }
+        }
+    }
+}
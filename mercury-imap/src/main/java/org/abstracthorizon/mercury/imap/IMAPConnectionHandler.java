@@ -19,6 +19,10 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Session;
 import javax.mail.Store;
@@ -28,6 +32,7 @@ import org.abstracthorizon.danube.connection.ConnectionException;
 import org.abstracthorizon.danube.connection.ConnectionHandler;
 import org.abstracthorizon.mercury.common.StorageManager;
 import org.abstracthorizon.mercury.common.command.CommandException;
+import org.abstracthorizon.mercury.imap.cmd.IMAPCommand;
 import org.abstracthorizon.mercury.imap.cmd.IMAPCommandFactory;
 import org.abstracthorizon.mercury.imap.cmd.UIDCommand;
 import org.abstracthorizon.mercury.imap.response.BADResponse;
@@ -46,6 +51,9 @@ import org.slf4j.LoggerFactory;
  */
 public class IMAPConnectionHandler implements ConnectionHandler {
 
+    /** Default time mailbox changes are collected before they are sent to sessions in IDLE */
+    public static final long DEFAULT_NOTIFICATION_DELAY = 50;
+
     /** Logger */
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -70,6 +78,15 @@ public class IMAPConnectionHandler implements ConnectionHandler {
     /** Allow insecure connections */
     protected boolean allowInsecure = true;
 
+    /** Parks sessions waiting for input or <code>null</code> if sessions hold their threads */
+    protected IMAPSessionParker sessionParker;
+
+    /** Time mailbox changes are collected before they are sent to sessions in IDLE */
+    protected long notificationDelay = DEFAULT_NOTIFICATION_DELAY;
+
+    /** Runs delayed notifications */
+    protected ScheduledExecutorService notificationScheduler;
+
     /**
      * Constructor
      */
@@ -125,13 +142,34 @@ public class IMAPConnectionHandler implements ConnectionHandler {
     }
 
     /**
-     * Returns thread pool to be used for parallel tasks
+     * Returns thread pool to be used for parallel tasks. If it is not set
+     * executor of session parker is used.
      * @return thread pool to be used for parallel tasks
      */
     public Executor getThreadPool() {
+        if ((threadPool == null) && (sessionParker != null)) {
+            return sessionParker.getExecutor();
+        }
         return threadPool;
     }
 
+    /**
+     * Returns session parker
+     * @return session parker or <code>null</code>
+     */
+    public IMAPSessionParker getSessionParker() {
+        return sessionParker;
+    }
+
+    /**
+     * Sets session parker. With session parker, sessions that wait for client's input
+     * are parked instead of blocking the thread. It is set by {@link IMAPChannelService}.
+     * @param sessionParker session parker or <code>null</code>
+     */
+    public void setSessionParker(IMAPSessionParker sessionParker) {
+        this.sessionParker = sessionParker;
+    }
+
     /**
      * Returns keystore as an input stream
      * @return keystore as an input stream
@@ -172,24 +210,101 @@ public class IMAPConnectionHandler implements ConnectionHandler {
         this.allowInsecure = allowInsecure;
     }
 
+    /**
+     * Returns time mailbox changes are collected before they are sent to sessions in IDLE
+     * @return delay in milliseconds
+     */
+    public long getNotificationDelay() {
+        return notificationDelay;
+    }
+
+    /**
+     * Sets time mailbox changes are collected before they are sent to sessions in IDLE.
+     * With zero changes are sent straight away but are still merged while a send is pending.
+     * @param notificationDelay delay in milliseconds
+     */
+    public void setNotificationDelay(long notificationDelay) {
+        this.notificationDelay = notificationDelay;
+    }
+
+    /**
+     * Runs session's notification task on thread pool after notification delay
+     * @param task task
+     */
+    public void scheduleNotification(final Runnable task) {
+        if (notificationDelay <= 0) {
+            getThreadPool().execute(task);
+        } else {
+            getNotificationScheduler().schedule(new Runnable() {
+                public void run() {
+                    getThreadPool().execute(task);
+                }
+            }, notificationDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns scheduler of delayed notifications creating it if needed. It only hands tasks
+     * to thread pool so it needs one daemon thread.
+     * @return scheduler
+     */
+    protected synchronized ScheduledExecutorService getNotificationScheduler() {
+        if (notificationScheduler == null) {
+            notificationScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "imap-notifications");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return notificationScheduler;
+    }
+
     /**
      * Handles IMAP connection
      * @param connection connection
      */
     public void handleConnection(Connection connection) {
         IMAPSession imapConnection = new IMAPSession(connection, this);
+        serve(imapConnection, true);
+    }
 
+    /**
+     * Serves session's commands until session ends. If there is no input ready and session
+     * can be parked (see {@link #setSessionParker(IMAPSessionParker)}), session is parked and
+     * this method returns leaving the connection open. It is invoked again, on a worker
+     * thread, when input arrives.
+     * @param imapConnection imap connection
+     * @param greet should greeting be sent first; <code>false</code> when parked session is resumed
+     */
+    protected void serve(IMAPSession imapConnection, boolean greet) {
+        boolean parked = false;
         try {
             try {
                 try {
-                    new OKResponse(imapConnection, Response.UNTAGGED_RESPONSE, "Service Ready").submit();
+                    if (greet) {
+                        new OKResponse(imapConnection, Response.UNTAGGED_RESPONSE, "Service Ready").submit();
+                    } else if (imapConnection.isEndOfInput()) {
+                        throw new EOFException();
+                    }
+                    boolean resumed = !greet;
                     boolean persistConnection = true;
                     while (persistConnection) {
+                        if (!resumed && park(imapConnection)) {
+                            parked = true;
+                            return;
+                        }
+                        resumed = false;
                         IMAPScanner scanner = imapConnection.getScanner();
 
-                        processInput(imapConnection);
+                        if (imapConnection.getPendingCommand() != null) {
+                            resumeCommand(imapConnection);
+                        } else {
+                            processInput(imapConnection);
+                        }
 
-                        Socket socket = (Socket)connection.adapt(Socket.class);
+                        Socket socket = (Socket)imapConnection.adapt(Socket.class);
                         persistConnection = (socket != null) && !socket.isInputShutdown() && !socket.isOutputShutdown() && !socket.isClosed();
 
                         if (((socket == null) || socket.isConnected()) && !imapConnection.isCleanInput()) {
@@ -210,7 +325,7 @@ public class IMAPConnectionHandler implements ConnectionHandler {
             } catch (EOFException e) {
                 // Don't long sudden and proper stream closes.
             } catch (IOException e) {
-                Socket socket = (Socket)connection.adapt(Socket.class);
+                Socket socket = (Socket)imapConnection.adapt(Socket.class);
                 if ((socket != null) && socket.isConnected()) {
                     logger.error("End of session exception: ", e);
                 }
@@ -218,8 +333,45 @@ public class IMAPConnectionHandler implements ConnectionHandler {
                 logger.error("Got problem: ", t);
             }
         } finally {
-            imapConnection.close();
+            if (!parked) {
+                imapConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Parks session if it has session parker and there is no input ready
+     * @param imapConnection imap connection
+     * @return <code>true</code> if session is parked
+     * @throws IOException
+     */
+    protected boolean park(final IMAPSession imapConnection) throws IOException {
+        if ((sessionParker == null) || imapConnection.isInputAvailable()) {
+            return false;
         }
+        return sessionParker.park(imapConnection, new Runnable() {
+            public void run() {
+                serve(imapConnection, false);
+            }
+        }, new Runnable() {
+            public void run() {
+                imapConnection.setKeepLog(true);
+                imapConnection.writeLogMessage("Closing because of inactivity");
+                imapConnection.close();
+            }
+        });
+    }
+
+    /**
+     * Continues session's pending command (see {@link IMAPSession#getPendingCommand()})
+     * @param imapConnection imap connection
+     * @throws IOException
+     */
+    protected void resumeCommand(IMAPSession imapConnection) throws IOException {
+        imapConnection.setCleanInput(false);
+        IMAPCommand command = imapConnection.getPendingCommand();
+        imapConnection.setPendingCommand(null);
+        executeCommand(imapConnection, command, command.getMnemonic());
     }
 
     /**
@@ -299,15 +451,7 @@ public class IMAPConnectionHandler implements ConnectionHandler {
                 if (uid && (command instanceof UIDCommand)) {
                     ((UIDCommand)command).setAsUID();
                 }
-                command.handleConnection(imapConnection);
-            } catch (NOCommandException e) {
-                logger.debug("NO: ", e);
-                new NOResponse(imapConnection, name+" "+e.getMessage()).submit();
-                imapConnection.setKeepLog(true);
-            } catch (BADCommandException e) {
-                logger.error("BAD: ", e);
-                new BADResponse(imapConnection, name+" "+e.getMessage()).submit();
-                imapConnection.setKeepLog(true);
+                executeCommand(imapConnection, command, name);
             } catch (CommandException e) {
                 logger.error("UNEXPECTED: ", e);
                 new BADResponse(imapConnection, e.getMessage()).submit();
@@ -318,6 +462,31 @@ public class IMAPConnectionHandler implements ConnectionHandler {
         }
     }
 
+    /**
+     * Executes command and sends NO or BAD response if it fails
+     * @param imapConnection imap connection
+     * @param command command
+     * @param name command name
+     * @throws IOException
+     */
+    protected void executeCommand(IMAPSession imapConnection, ConnectionHandler command, String name) throws IOException {
+        try {
+            command.handleConnection(imapConnection);
+        } catch (NOCommandException e) {
+            logger.debug("NO: ", e);
+            new NOResponse(imapConnection, name+" "+e.getMessage()).submit();
+            imapConnection.setKeepLog(true);
+        } catch (BADCommandException e) {
+            logger.error("BAD: ", e);
+            new BADResponse(imapConnection, name+" "+e.getMessage()).submit();
+            imapConnection.setKeepLog(true);
+        } catch (CommandException e) {
+            logger.error("UNEXPECTED: ", e);
+            new BADResponse(imapConnection, e.getMessage()).submit();
+            imapConnection.setKeepLog(true);
+        }
+    }
+
     /**
      * Processes any command
      * @param imapConnection imap connection
@@ -374,6 +543,8 @@ public class IMAPConnectionHandler implements ConnectionHandler {
             invokeCommand(imapConnection, "CREATE");
         } else if (scanner.keyword("DELETE")) {
             invokeCommand(imapConnection, "DELETE");
+        } else if (scanner.keyword("ENABLE")) {
+            invokeCommand(imapConnection, "ENABLE");
         } else if (scanner.keyword("EXAMINE")) {
             invokeCommand(imapConnection, "EXAMINE");
         } else if (scanner.keyword("LIST")) {
@@ -20,7 +20,10 @@ import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.Folder;
 import javax.mail.MessagingException;
@@ -37,8 +40,7 @@ import org.abstracthorizon.danube.connection.Connection;
 import org.abstracthorizon.danube.connection.ConnectionWrapper;
 import org.abstracthorizon.danube.support.logging.LoggingConnection;
 import org.abstracthorizon.mercury.common.util.SSLUtil;
-import org.abstracthorizon.mercury.imap.response.ExistsResponse;
-import org.abstracthorizon.mercury.imap.response.RecentResponse;
+import org.abstracthorizon.mercury.imap.cmd.IMAPCommand;
 import org.abstracthorizon.mercury.imap.util.IMAPScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -93,6 +95,12 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
     /** Are we in IDLE mode */
     protected boolean idling = false;
 
+    /** Is CONDSTORE extension enabled */
+    protected boolean condStore = false;
+
+    /** Is QRESYNC extension enabled */
+    protected boolean qresync = false;
+
     /**
      * Clear flag is set to indicate that skip_line mustn't be called after command.
      * This was needed for STARTTLS command.
@@ -108,6 +116,21 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
     /** Default domain if not specified in username */
     protected String defaultDomain;
 
+    /** Buffered input stream scanner reads from */
+    protected BufferedInputStream inputStream;
+
+    /** Command that is continued when session gets more input (IDLE) */
+    protected IMAPCommand pendingCommand;
+
+    /** Set while session is parked. Guarded by output lock. */
+    protected IMAPSessionParker.Parked parked;
+
+    /** Lock held while writing responses. It is not a monitor so virtual threads writing to the socket don't pin their carriers. */
+    protected final ReentrantLock outputLock = new ReentrantLock();
+
+    /** Collects changes of selected folder sent to the client while in IDLE */
+    protected final NotificationCoalescer notificationCoalescer;
+
     /**
      * Constructor
      * @param connection connection
@@ -118,8 +141,9 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
         this.parent = parent;
         InputStream inputStream = (InputStream)connection.adapt(InputStream.class);
         OutputStream outputStream = (OutputStream)connection.adapt(OutputStream.class);
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-        scanner = new IMAPScanner(bufferedInputStream, outputStream);
+        this.inputStream = new BufferedInputStream(inputStream);
+        scanner = new IMAPScanner(this.inputStream, outputStream, outputLock);
+        notificationCoalescer = new NotificationCoalescer(this, parent);
 
         Properties props = new Properties();
         // We don't want strict headers parsing!
@@ -229,9 +253,9 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
      * @param folder selected Folder
      */
     public void setSelectedFolder(Folder folder) {
-        if (folder != null) {
-            logger.debug("Already selected folder "+folder.getName());
-            folder.removeMessageCountListener(this);
+        if (selectedFolder != null) {
+            logger.debug("Already selected folder "+selectedFolder.getName());
+            selectedFolder.removeMessageCountListener(this);
         }
         selectedFolder = folder;
         if (folder != null) {
@@ -290,6 +314,7 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
      */
     public synchronized void setIdling(boolean idling) {
         this.idling = idling;
+        notificationCoalescer.setNotifying(idling);
     }
 
     /**
@@ -300,6 +325,119 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
         return idling;
     }
 
+    /**
+     * Sets if CONDSTORE extension is enabled
+     * @param condStore is CONDSTORE extension enabled
+     */
+    public void setCondStore(boolean condStore) {
+        this.condStore = condStore;
+    }
+
+    /**
+     * Returns if CONDSTORE extension is enabled. It is enabled by ENABLE command or
+     * by first command that uses mod-sequences.
+     * @return is CONDSTORE extension enabled
+     */
+    public boolean isCondStore() {
+        return condStore;
+    }
+
+    /**
+     * Sets if QRESYNC extension is enabled. Enabling QRESYNC enables CONDSTORE as well.
+     * @param qresync is QRESYNC extension enabled
+     */
+    public void setQResync(boolean qresync) {
+        this.qresync = qresync;
+        if (qresync) {
+            condStore = true;
+        }
+    }
+
+    /**
+     * Returns if QRESYNC extension is enabled. When enabled expunged messages are reported
+     * with <code>VANISHED</code> responses instead of <code>EXPUNGE</code>.
+     * @return is QRESYNC extension enabled
+     */
+    public boolean isQResync() {
+        return qresync;
+    }
+
+    /**
+     * Returns command that is continued when session gets more input
+     * @return pending command or <code>null</code>
+     */
+    public IMAPCommand getPendingCommand() {
+        return pendingCommand;
+    }
+
+    /**
+     * Sets command that is continued when session gets more input. Command's
+     * <code>handleConnection</code> is invoked again instead of reading next command.
+     * @param pendingCommand pending command or <code>null</code>
+     */
+    public void setPendingCommand(IMAPCommand pendingCommand) {
+        this.pendingCommand = pendingCommand;
+    }
+
+    /**
+     * Returns <code>true</code> if session can be parked while it waits for input
+     * @return <code>true</code> if handler has session parker that can park this session
+     */
+    public boolean canPark() {
+        IMAPSessionParker sessionParker = parent.getSessionParker();
+        return (sessionParker != null) && sessionParker.canPark(this);
+    }
+
+    /**
+     * Returns channel of session's socket
+     * @return channel or <code>null</code> if socket has no channel or it is SSL socket
+     */
+    public SocketChannel getSocketChannel() {
+        Socket socket = (Socket)adapt(Socket.class);
+        if ((socket == null) || (socket instanceof SSLSocket)) {
+            return null;
+        }
+        return socket.getChannel();
+    }
+
+    /**
+     * Returns lock that must be held while writing to session's output stream
+     * @return output lock
+     */
+    public Lock getOutputLock() {
+        return outputLock;
+    }
+
+    /**
+     * Returns notification coalescer of selected folder
+     * @return notification coalescer
+     */
+    public NotificationCoalescer getNotificationCoalescer() {
+        return notificationCoalescer;
+    }
+
+    /**
+     * Returns <code>true</code> if there is input that can be read without blocking
+     * @return <code>true</code> if input is available
+     * @throws IOException
+     */
+    public boolean isInputAvailable() throws IOException {
+        return inputStream.available() > 0;
+    }
+
+    /**
+     * Returns <code>true</code> if client has closed its side of connection. It blocks
+     * if there is no input so it should be called only when input is known to be ready.
+     * @return <code>true</code> if there is no more input
+     * @throws IOException
+     */
+    public boolean isEndOfInput() throws IOException {
+        inputStream.mark(1);
+        int i = inputStream.read();
+        inputStream.reset();
+        return i < 0;
+    }
+
     /**
      * Returns if it is clean input
      * @return if it is clean input
@@ -441,26 +579,19 @@ public class IMAPSession extends ConnectionWrapper implements MessageCountListen
      * Notifies that new message is added
      * @param event message count event
      */
-    public synchronized void messagesAdded(MessageCountEvent event) {
-        if ((selectedFolder != null) && idling) {
-            parent.getThreadPool().execute(new Runnable(){
-                public void run() {
-                    try {
-                        new RecentResponse(IMAPSession.this, selectedFolder).submit();
-                        new ExistsResponse(IMAPSession.this, selectedFolder).submit();
-                    } catch (IOException ignore) {
-                    } catch (MessagingException ignore) {
-                    }
-                }
-            });
+    public void messagesAdded(MessageCountEvent event) {
+        if (selectedFolder != null) {
+            notificationCoalescer.messagesAdded(event.getMessages());
         }
     }
 
     /**
-     * NOtifies that message is removed
-     * @param even event
+     * Notifies that message is removed
+     * @param event message count event
      */
     public void messagesRemoved(MessageCountEvent event) {
-        messagesAdded(event);
+        if (selectedFolder != null) {
+            notificationCoalescer.messagesRemoved(event.getMessages());
+        }
     }
 }
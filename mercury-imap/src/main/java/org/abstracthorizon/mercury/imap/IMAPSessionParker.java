@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Keeps IMAP sessions that wait for client's input (between commands or in IDLE)
+ * off worker threads. Parked session's channel is registered with a selector shared by
+ * all parked sessions. When bytes arrive the session is switched back to blocking mode and
+ * resumed on the worker executor. When a mailbox event has to be pushed to the client
+ * (see {@link #wake(IMAPSession, Runnable)}) it is written from the executor and session
+ * is parked again.
+ * </p>
+ * <p>Only sessions whose socket has a channel (see {@link IMAPChannelService}) can be parked.
+ * Session parked longer than its socket's timeout, or longer than {@link #getIdleTimeout()}
+ * while in IDLE, is expired.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class IMAPSessionParker implements Runnable {
+
+    /** Default timeout of sessions parked in IDLE - 30 minutes as in RFC 2177 */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000;
+
+    /** How often expired sessions are looked for in milliseconds */
+    public static final long EXPIRY_CHECK_INTERVAL = 1000;
+
+    /** Logger */
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Executor sessions are resumed on */
+    protected Executor executor;
+
+    /** Selector */
+    protected Selector selector;
+
+    /** Selector thread */
+    protected Thread thread;
+
+    /** Is parker running */
+    protected volatile boolean running;
+
+    /** Sessions to be registered with the selector */
+    protected Queue<Parked> registrations = new ConcurrentLinkedQueue<Parked>();
+
+    /** Parked sessions that have to be resumed because of mailbox events */
+    protected Queue<Parked> wakeups = new ConcurrentLinkedQueue<Parked>();
+
+    /** Timeout of sessions parked in IDLE */
+    protected long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Number of parked sessions */
+    protected AtomicInteger parkedCount = new AtomicInteger();
+
+    /** Number of times sessions were resumed */
+    protected AtomicInteger resumedCount = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param executor executor sessions are resumed on
+     */
+    public IMAPSessionParker(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns executor sessions are resumed on
+     * @return executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns timeout of sessions parked in IDLE
+     * @return timeout in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets timeout of sessions parked in IDLE
+     * @param idleTimeout timeout in milliseconds; 0 for no timeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns number of currently parked sessions
+     * @return number of parked sessions
+     */
+    public int getParkedCount() {
+        return parkedCount.get();
+    }
+
+    /**
+     * Returns number of times sessions were resumed
+     * @return number of resumes
+     */
+    public int getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Starts selector thread
+     * @throws IOException if selector cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (!running) {
+            selector = Selector.open();
+            running = true;
+            thread = new Thread(this, "IMAP session parker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops selector thread. Parked sessions are closed.
+     */
+    public synchronized void stop() {
+        if (running) {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if session can be parked
+     * @param session session
+     * @return <code>true</code> if parker is running and session's socket has a channel
+     */
+    public boolean canPark(IMAPSession session) {
+        return running && (session.getSocketChannel() != null);
+    }
+
+    /**
+     * Parks session until its client sends something. Caller must not touch session's
+     * streams after session is parked.
+     * @param session session
+     * @param resume invoked on executor when input arrives
+     * @param expire invoked on executor instead of <code>resume</code> if session is parked for too long
+     * @return <code>true</code> if session is parked; <code>false</code> if it cannot be parked
+     */
+    public boolean park(IMAPSession session, Runnable resume, Runnable expire) {
+        SocketChannel channel = session.getSocketChannel();
+        if (!running || (channel == null)) {
+            return false;
+        }
+        long timeout;
+        if (session.isIdling()) {
+            timeout = idleTimeout;
+        } else {
+            try {
+                timeout = session.adapt(Socket.class).getSoTimeout();
+            } catch (IOException e) {
+                timeout = 0;
+            }
+        }
+        Parked parked = new Parked(session, channel, resume, expire);
+        if (timeout > 0) {
+            parked.deadline = System.currentTimeMillis() + timeout;
+        }
+        register(parked);
+        return true;
+    }
+
+    /**
+     * Parks session again after its tasks are run, keeping the original deadline
+     * @param previous session's previous parking
+     */
+    protected void repark(Parked previous) {
+        Parked parked = new Parked(previous.session, previous.channel, previous.resume, previous.expire);
+        parked.deadline = previous.deadline;
+        if (running) {
+            register(parked);
+        } else {
+            previous.session.close();
+        }
+    }
+
+    /**
+     * Marks session as parked and hands it to selector thread
+     * @param parked parked session
+     */
+    protected void register(Parked parked) {
+        parked.session.getOutputLock().lock();
+        try {
+            parked.session.parked = parked;
+        } finally {
+            parked.session.getOutputLock().unlock();
+        }
+        parkedCount.incrementAndGet();
+        registrations.add(parked);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs task for the session. If session is parked its task is run on executor and
+     * session is parked again unless input has arrived in the meantime.
+     * @param session session
+     * @param task task that writes to the session
+     * @return <code>true</code> if session was parked and task is scheduled; <code>false</code> if session is not parked
+     */
+    public boolean wake(IMAPSession session, Runnable task) {
+        session.getOutputLock().lock();
+        try {
+            Parked parked = session.parked;
+            if (parked == null) {
+                return false;
+            }
+            parked.tasks.add(task);
+            if (!parked.woken) {
+                parked.woken = true;
+                wakeups.add(parked);
+                selector.wakeup();
+            }
+            return true;
+        } finally {
+            session.getOutputLock().unlock();
+        }
+    }
+
+    /**
+     * Selector loop
+     */
+    public void run() {
+        long lastExpiryCheck = System.currentTimeMillis();
+        List<Parked> ready = new ArrayList<Parked>();
+        try {
+            while (running) {
+                try {
+                    selector.select(EXPIRY_CHECK_INTERVAL);
+
+                    Parked parked = registrations.poll();
+                    while (parked != null) {
+                        if (parked.woken) {
+                            release(parked, ready);
+                        } else {
+                            try {
+                                parked.channel.configureBlocking(false);
+                                parked.key = parked.channel.register(selector, SelectionKey.OP_READ, parked);
+                            } catch (IOException e) {
+                                // Resumed session is going to find out what is wrong with the channel
+                                release(parked, ready);
+                            }
+                        }
+                        parked = registrations.poll();
+                    }
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        parked = (Parked)key.attachment();
+                        parked.readable = true;
+                        release(parked, ready);
+                    }
+
+                    parked = wakeups.poll();
+                    while (parked != null) {
+                        release(parked, ready);
+                        parked = wakeups.poll();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastExpiryCheck >= EXPIRY_CHECK_INTERVAL) {
+                        lastExpiryCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            parked = (Parked)key.attachment();
+                            if (key.isValid() && (parked.deadline > 0) && (parked.deadline <= now)) {
+                                parked.expired = true;
+                                release(parked, ready);
+                            }
+                        }
+                    }
+
+                    if (ready.size() > 0) {
+                        resume(ready);
+                        ready.clear();
+                    }
+                } catch (IOException e) {
+                    logger.error("Selector problem: ", e);
+                }
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Adds parked session to the list of sessions to be resumed. Selector thread only.
+     * @param parked parked session
+     * @param ready sessions to be resumed
+     */
+    protected void release(Parked parked, List<Parked> ready) {
+        if (!parked.released) {
+            parked.released = true;
+            if (parked.key != null) {
+                parked.key.cancel();
+            }
+            ready.add(parked);
+        }
+    }
+
+    /**
+     * Switches channels of released sessions back to blocking mode and resumes sessions on executor.
+     * Selector thread only.
+     * @param ready released sessions
+     * @throws IOException
+     */
+    protected void resume(List<Parked> ready) throws IOException {
+        // Cancelled keys are deregistered only by next selection operation
+        selector.selectNow();
+        for (Parked parked : ready) {
+            parked.session.getOutputLock().lock();
+            try {
+                parked.session.parked = null;
+            } finally {
+                parked.session.getOutputLock().unlock();
+            }
+            parkedCount.decrementAndGet();
+            try {
+                parked.channel.configureBlocking(true);
+                resumedCount.incrementAndGet();
+                executor.execute(parked);
+            } catch (IOException e) {
+                logger.debug("Cannot resume session: ", e);
+                parked.session.close();
+            } catch (RejectedExecutionException e) {
+                parked.session.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all parked sessions and selector
+     */
+    protected void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            key.cancel();
+            ((Parked)key.attachment()).session.close();
+        }
+        Parked parked = registrations.poll();
+        while (parked != null) {
+            parked.session.close();
+            parked = registrations.poll();
+        }
+        parkedCount.set(0);
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Parked session
+     */
+    protected class Parked implements Runnable {
+
+        /** Session */
+        protected IMAPSession session;
+
+        /** Session's channel */
+        protected SocketChannel channel;
+
+        /** Invoked when input arrives */
+        protected Runnable resume;
+
+        /** Invoked when session is parked for too long */
+        protected Runnable expire;
+
+        /** Tasks to be run before session is resumed. Guarded by session's output lock. */
+        protected List<Runnable> tasks = new ArrayList<Runnable>();
+
+        /** Selection key */
+        protected SelectionKey key;
+
+        /** Time session expires at or 0 */
+        protected long deadline;
+
+        /** Is wakeup requested */
+        protected volatile boolean woken;
+
+        /** Has input arrived */
+        protected boolean readable;
+
+        /** Is session released from the selector. Selector thread only. */
+        protected boolean released;
+
+        /** Has session expired */
+        protected boolean expired;
+
+        /**
+         * Constructor
+         * @param session session
+         * @param channel session's channel
+         * @param resume invoked when input arrives
+         * @param expire invoked when session is parked for too long
+         */
+        protected Parked(IMAPSession session, SocketChannel channel, Runnable resume, Runnable expire) {
+            this.session = session;
+            this.channel = channel;
+            this.resume = resume;
+            this.expire = expire;
+        }
+
+        /**
+         * Runs pending tasks and then resumes session if input has arrived,
+         * expires it or parks it again
+         */
+        public void run() {
+            List<Runnable> pending;
+            session.getOutputLock().lock();
+            try {
+                pending = new ArrayList<Runnable>(tasks);
+                tasks.clear();
+            } finally {
+                session.getOutputLock().unlock();
+            }
+            for (Runnable task : pending) {
+                task.run();
+            }
+            if (expired) {
+                expire.run();
+            } else if (readable) {
+                resume.run();
+            } else {
+                repark(this);
+            }
+        }
+    }
+}
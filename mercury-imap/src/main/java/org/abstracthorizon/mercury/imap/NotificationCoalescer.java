@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.abstracthorizon.mercury.imap.response.ExistsResponse;
+import org.abstracthorizon.mercury.imap.response.ExpungeResponse;
+import org.abstracthorizon.mercury.imap.response.MnemonicResponse;
+import org.abstracthorizon.mercury.imap.response.RecentResponse;
+import org.abstracthorizon.mercury.imap.response.Response;
+import org.abstracthorizon.mercury.imap.util.MessageUtilities;
+
+/**
+ * <p>Merges mailbox changes of session's selected folder into unilateral
+ * <code>EXPUNGE</code>, <code>EXISTS</code> and <code>RECENT</code> responses. Number of messages
+ * and number of recent messages are kept up to date from message count events so they
+ * are never obtained by going through the folder again.
+ * </p>
+ * <p>While session is in IDLE changes are collected and only one flush is scheduled
+ * (see {@link IMAPConnectionHandler#scheduleNotification(Runnable)}) no matter how many
+ * events arrive before it runs. Flush sends <code>EXPUNGE</code> for each removed message
+ * client knows of (or single <code>VANISHED</code> when session has QRESYNC enabled),
+ * followed by single <code>EXISTS</code> and <code>RECENT</code> if those numbers changed.
+ * Messages added and removed before client is told about them are not reported at all.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class NotificationCoalescer {
+
+    /** Session */
+    protected IMAPSession session;
+
+    /** Connection handler */
+    protected IMAPConnectionHandler handler;
+
+    /** Number of messages in the folder */
+    protected int exists;
+
+    /** Number of recent messages in the folder */
+    protected int recent;
+
+    /** Number of messages client knows of, once it processes pending expunges */
+    protected int reportedExists;
+
+    /** Number of recent messages client knows of */
+    protected int reportedRecent;
+
+    /** Message numbers of pending expunges in order they are to be sent */
+    protected int[] expunged = new int[16];
+
+    /** Number of pending expunges */
+    protected int expungedCount;
+
+    /** UIDs of pending expunges when session has QRESYNC enabled */
+    protected long[] vanished = new long[16];
+
+    /** Number of UIDs of pending expunges */
+    protected int vanishedCount;
+
+    /** Are changes to be sent to the client */
+    protected boolean notifying;
+
+    /** Is flush scheduled */
+    protected boolean scheduled;
+
+    /** Writes pending changes. It is run while holding session's output lock. */
+    protected final Runnable writeTask = new Runnable() {
+        public void run() {
+            try {
+                flush();
+            } catch (IOException ignore) {
+            }
+        }
+    };
+
+    /** Scheduled flush */
+    protected final Runnable flushTask = new Runnable() {
+        public void run() {
+            // Session cannot be parked while output lock is held. If it is already
+            // parked responses are written once its channel is in blocking mode again.
+            Lock outputLock = session.getOutputLock();
+            outputLock.lock();
+            try {
+                IMAPSessionParker sessionParker = handler.getSessionParker();
+                if ((sessionParker == null) || !sessionParker.wake(session, writeTask)) {
+                    writeTask.run();
+                }
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     * @param session session
+     * @param handler connection handler
+     */
+    public NotificationCoalescer(IMAPSession session, IMAPConnectionHandler handler) {
+        this.session = session;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets numbers client is told about when folder is selected. Pending changes are dropped.
+     * @param exists number of messages
+     * @param recent number of recent messages
+     */
+    public synchronized void reset(int exists, int recent) {
+        this.exists = exists;
+        this.recent = recent;
+        reportedExists = exists;
+        reportedRecent = recent;
+        expungedCount = 0;
+        vanishedCount = 0;
+    }
+
+    /**
+     * Returns number of messages in the folder
+     * @return number of messages
+     */
+    public synchronized int getExists() {
+        return exists;
+    }
+
+    /**
+     * Returns number of recent messages in the folder
+     * @return number of recent messages
+     */
+    public synchronized int getRecent() {
+        return recent;
+    }
+
+    /**
+     * Sets if changes are to be sent to the client. When it is switched on, and nothing is
+     * waiting to be sent, current numbers are taken as what client knows of.
+     * @param notifying are changes to be sent to the client
+     */
+    public synchronized void setNotifying(boolean notifying) {
+        if (notifying && !this.notifying && !scheduled) {
+            reportedExists = exists;
+            reportedRecent = recent;
+            expungedCount = 0;
+            vanishedCount = 0;
+        }
+        this.notifying = notifying;
+    }
+
+    /**
+     * Records added messages
+     * @param msgs added messages
+     */
+    public void messagesAdded(Message[] msgs) {
+        int addedRecent = countRecent(msgs);
+        synchronized (this) {
+            exists = exists + msgs.length;
+            recent = recent + addedRecent;
+            if (notifying) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Records removed messages
+     * @param msgs removed messages with message numbers they had before removal
+     */
+    public void messagesRemoved(Message[] msgs) {
+        int removedRecent = countRecent(msgs);
+        int[] numbers = new int[msgs.length];
+        for (int i = 0; i < msgs.length; i++) {
+            numbers[i] = msgs[i].getMessageNumber();
+        }
+        Arrays.sort(numbers);
+        long[] uids = null;
+        if (session.isQResync()) {
+            uids = findUIDs(msgs, numbers);
+        }
+        synchronized (this) {
+            exists = Math.max(0, exists - msgs.length);
+            recent = Math.max(0, recent - removedRecent);
+            if (notifying) {
+                // Highest first so numbers of the others stay valid
+                for (int i = numbers.length - 1; i >= 0; i--) {
+                    int number = numbers[i];
+                    if ((number > 0) && (number <= reportedExists)) {
+                        if (uids != null) {
+                            if (vanishedCount == vanished.length) {
+                                vanished = Arrays.copyOf(vanished, vanishedCount * 2);
+                            }
+                            vanished[vanishedCount] = uids[i];
+                            vanishedCount++;
+                        } else {
+                            if (expungedCount == expunged.length) {
+                                expunged = Arrays.copyOf(expunged, expungedCount * 2);
+                            }
+                            expunged[expungedCount] = number;
+                            expungedCount++;
+                        }
+                        reportedExists--;
+                    }
+                }
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Schedules flush unless it is already scheduled. Must be called while holding this object's monitor.
+     */
+    protected void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.scheduleNotification(flushTask);
+        }
+    }
+
+    /**
+     * Sends pending changes to the client. Must be called while holding session's output lock.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        int[] numbers;
+        long[] uids;
+        int existsNow = -1;
+        int recentNow = -1;
+        synchronized (this) {
+            scheduled = false;
+            numbers = Arrays.copyOf(expunged, expungedCount);
+            expungedCount = 0;
+            uids = Arrays.copyOf(vanished, vanishedCount);
+            vanishedCount = 0;
+            if (exists != reportedExists) {
+                existsNow = exists;
+                reportedExists = exists;
+            }
+            if (recent != reportedRecent) {
+                recentNow = recent;
+                reportedRecent = recent;
+            }
+        }
+        for (int number : numbers) {
+            new ExpungeResponse(session, number).submit();
+        }
+        if (uids.length > 0) {
+            Arrays.sort(uids);
+            new MnemonicResponse(session, Response.UNTAGGED_RESPONSE, "VANISHED", MessageUtilities.toSequenceSet(uids)).submit();
+        }
+        if (existsNow >= 0) {
+            new ExistsResponse(session, existsNow).submit();
+        }
+        if (recentNow >= 0) {
+            new RecentResponse(session, recentNow).submit();
+        }
+    }
+
+    /**
+     * Finds UIDs of removed messages
+     * @param msgs removed messages
+     * @param numbers their message numbers in ascending order
+     * @return UIDs in the same order as message numbers
+     */
+    protected static long[] findUIDs(Message[] msgs, int[] numbers) {
+        long[] uids = new long[numbers.length];
+        for (Message msg : msgs) {
+            int i = Arrays.binarySearch(numbers, msg.getMessageNumber());
+            try {
+                if (i >= 0) {
+                    uids[i] = MessageUtilities.findUID(msg);
+                }
+            } catch (MessagingException ignore) {
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Counts messages with <code>RECENT</code> flag
+     * @param msgs messages
+     * @return number of recent messages
+     */
+    protected static int countRecent(Message[] msgs) {
+        int count = 0;
+        for (Message msg : msgs) {
+            try {
+                if (msg.isSet(Flags.Flag.RECENT)) {
+                    count++;
+                }
+            } catch (MessagingException ignore) {
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap.cmd;
+
+import java.io.IOException;
+
+import org.abstracthorizon.mercury.imap.IMAPSession;
+import org.abstracthorizon.mercury.imap.response.MnemonicResponse;
+import org.abstracthorizon.mercury.imap.response.Response;
+import org.abstracthorizon.mercury.imap.util.IMAPScanner;
+import org.abstracthorizon.mercury.imap.util.ParserException;
+
+/**
+ * Enable IMAP command (RFC 5161). Only <code>CONDSTORE</code> and <code>QRESYNC</code>
+ * can be enabled; other capabilities are ignored.
+ *
+ * @author Daniel Sendula
+ */
+public class Enable extends IMAPCommand {
+
+    /**
+     * Constructor
+     * @param mnemonic mnemonic
+     */
+    public Enable(String mnemonic) {
+        super(mnemonic);
+    }
+
+    /**
+     * Executes the command
+     * @param session
+     * @throws ParserException
+     * @throws IOException
+     */
+    protected void execute(IMAPSession session) throws IOException, ParserException {
+        IMAPScanner scanner = session.getScanner();
+        StringBuffer enabled = new StringBuffer();
+        do {
+            StringBuffer capability = new StringBuffer();
+            if (!scanner.atom(capability)) {
+                throw new ParserException("<capability>");
+            }
+            String name = capability.toString().toUpperCase();
+            if ("CONDSTORE".equals(name) && !session.isCondStore()) {
+                session.setCondStore(true);
+                enabled.append(' ').append(name);
+            } else if ("QRESYNC".equals(name) && !session.isQResync()) {
+                session.setQResync(true);
+                enabled.append(' ').append(name);
+            }
+        } while (scanner.is_char(' '));
+        checkEOL(session);
+
+        new MnemonicResponse(session, Response.UNTAGGED_RESPONSE, "ENABLED" + enabled).submit();
+        sendOK(session);
+    }
+}
@@ -13,12 +13,16 @@
 package org.abstracthorizon.mercury.imap.cmd;
 
 import java.io.IOException;
+import java.util.Arrays;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import org.abstracthorizon.mercury.imap.BADCommandException;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 import org.abstracthorizon.mercury.imap.response.ExpungeResponse;
+import org.abstracthorizon.mercury.imap.response.MnemonicResponse;
+import org.abstracthorizon.mercury.imap.response.Response;
+import org.abstracthorizon.mercury.imap.util.MessageUtilities;
 import org.abstracthorizon.mercury.imap.util.ParserException;
 
 /**
@@ -48,7 +52,26 @@ public class Expunge extends IMAPCommand {
         Folder f = session.getSelectedFolder();
         if (f != null) {
             Message[] msg = f.expunge();
-            new ExpungeResponse(session, msg.length).submit();
+            if (session.isQResync()) {
+                long[] uids = new long[msg.length];
+                for (int i = 0; i < msg.length; i++) {
+                    uids[i] = MessageUtilities.findUID(msg[i]);
+                }
+                Arrays.sort(uids);
+                if (uids.length > 0) {
+                    new MnemonicResponse(session, Response.UNTAGGED_RESPONSE, "VANISHED", MessageUtilities.toSequenceSet(uids)).submit();
+                }
+            } else {
+                int[] numbers = new int[msg.length];
+                for (int i = 0; i < msg.length; i++) {
+                    numbers[i] = msg[i].getMessageNumber();
+                }
+                Arrays.sort(numbers);
+                // Highest first so numbers of the others stay valid
+                for (int i = numbers.length - 1; i >= 0; i--) {
+                    new ExpungeResponse(session, numbers[i]).submit();
+                }
+            }
             sendOK(session);
         } else {
             throw new BADCommandException("Folder must be selected.");
@@ -23,9 +23,13 @@ import javax.mail.internet.MimeMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.common.command.CommandException;
+import org.abstracthorizon.mercury.imap.BADCommandException;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 import org.abstracthorizon.mercury.imap.response.FetchResponse;
+import org.abstracthorizon.mercury.imap.response.MnemonicResponse;
+import org.abstracthorizon.mercury.imap.response.Response;
 import org.abstracthorizon.mercury.imap.util.ComposedSequence;
 import org.abstracthorizon.mercury.imap.util.FlagUtilities;
 import org.abstracthorizon.mercury.imap.util.MessageUtilities;
@@ -37,6 +41,7 @@ import org.abstracthorizon.mercury.imap.util.section.Envelope;
 import org.abstracthorizon.mercury.imap.util.section.Flags;
 import org.abstracthorizon.mercury.imap.util.section.HeaderSection;
 import org.abstracthorizon.mercury.imap.util.section.Internaldate;
+import org.abstracthorizon.mercury.imap.util.section.ModSeq;
 import org.abstracthorizon.mercury.imap.util.section.RFC822Size;
 import org.abstracthorizon.mercury.imap.util.section.TextSection;
 import org.abstracthorizon.mercury.imap.util.section.UID;
@@ -149,14 +154,91 @@ public class Fetch extends UIDCommand {
                 attrs.add(0, UID.instance);
             }
         }
+
+        long changedSince = -1;
+        boolean vanished = false;
+        if (scanner.is_char(' ')) {
+            if (!scanner.is_char('(')) {
+                throw new ParserException("'('");
+            }
+            do {
+                if (scanner.keyword("CHANGEDSINCE")) {
+                    IMAPScanner.LongNumber modSeq = new IMAPScanner.LongNumber();
+                    if (!scanner.is_char(' ') || !scanner.mod_sequence_value(modSeq)) {
+                        throw new ParserException("<SP> <mod-sequence-value>");
+                    }
+                    changedSince = modSeq.number;
+                } else if (scanner.keyword("VANISHED")) {
+                    vanished = true;
+                } else {
+                    throw new ParserException("'CHANGEDSINCE', 'VANISHED'");
+                }
+            } while (scanner.is_char(' '));
+            if (!scanner.is_char(')')) {
+                throw new ParserException("')'");
+            }
+        }
         checkEOL(session);
 
+        if (vanished && (!asuid || (changedSince < 0) || !session.isQResync())) {
+            throw new BADCommandException("VANISHED needs UID FETCH with CHANGEDSINCE and enabled QRESYNC");
+        }
+
         Folder f = session.getSelectedFolder();
 
-        MessageUtilities.sequenceIterator(session, this, f, sequenceSet, asuid);
+        if ((changedSince >= 0) || attrs.contains(ModSeq.instance)) {
+            if (!(f instanceof ModSeqFolder)) {
+                throw new BADCommandException("Mailbox doesn't support mod-sequences");
+            }
+            session.setCondStore(true);
+        }
+        if (session.isCondStore() && (f instanceof ModSeqFolder) && !attrs.contains(ModSeq.instance)) {
+            boolean flags = (changedSince >= 0);
+            for (Object o : attrs) {
+                flags = flags || (o instanceof Flags);
+            }
+            if (flags) {
+                attrs.add(ModSeq.instance);
+            }
+        }
+
+        if (changedSince >= 0) {
+            fetchChanged(session, (ModSeqFolder)f, sequenceSet, changedSince, vanished);
+        } else {
+            MessageUtilities.sequenceIterator(session, this, f, sequenceSet, asuid);
+        }
         sendOK(session);
     }
 
+    /**
+     * Fetches only messages from the sequence set changed after given mod-sequence. Messages are
+     * taken from folder's list of changed UIDs so unchanged messages are not even looked at.
+     * @param session session
+     * @param f folder
+     * @param sequenceSet sequence set
+     * @param changedSince mod-sequence
+     * @param vanished should UIDs from the sequence set expunged after mod-sequence be reported
+     * @throws IOException
+     * @throws MessagingException
+     */
+    protected void fetchChanged(IMAPSession session, ModSeqFolder f, ComposedSequence sequenceSet, long changedSince, boolean vanished) throws IOException, MessagingException {
+        if (vanished) {
+            long[] expunged = MessageUtilities.intersectRanges(f.getExpungedUIDs(changedSince), sequenceSet);
+            if (expunged.length > 0) {
+                new MnemonicResponse(session, Response.UNTAGGED_RESPONSE, "VANISHED", "(EARLIER) "+MessageUtilities.rangesToSequenceSet(expunged)).submit();
+            }
+        }
+        long[] changed = f.getChangedUIDs(changedSince);
+        for (long uid : changed) {
+            if (!asuid || sequenceSet.belongs((int)uid)) {
+                MimeMessage m = (MimeMessage)f.getMessageByUID(uid);
+                if ((m != null) && (asuid || sequenceSet.belongs(m.getMessageNumber()))) {
+                    process(session, m);
+                }
+            }
+        }
+    }
+
     /**
      * Parses fetch attributes
      * @param scanner scanner
@@ -255,8 +337,10 @@ public class Fetch extends UIDCommand {
             }
         } else if (scanner.keyword("UID")) {
             atts.add(UID.instance);
+        } else if (scanner.keyword("MODSEQ")) {
+            atts.add(ModSeq.instance);
         } else {
-            throw new ParserException("'ENVELOPE', 'FLAGS', 'INTERNALDATE', 'RFC822', 'BODY', 'UID'");
+            throw new ParserException("'ENVELOPE', 'FLAGS', 'INTERNALDATE', 'RFC822', 'BODY', 'UID', 'MODSEQ'");
         }
         return true;
     }
@@ -286,6 +370,11 @@ public class Fetch extends UIDCommand {
                 } else if (o instanceof Flags) {
                     first = spaceSeparator(first, response);
                     response.append("FLAGS (").append(FlagUtilities.toString(m.getFlags())).append(')');
+                } else if (o instanceof ModSeq) {
+                    first = spaceSeparator(first, response);
+                    response.append("MODSEQ (");
+                    response.append(MessageUtilities.findModSeq(m));
+                    response.append(')');
                 } else if (o instanceof Envelope) {
                     if (!expunged) {
                         first = spaceSeparator(first, response);
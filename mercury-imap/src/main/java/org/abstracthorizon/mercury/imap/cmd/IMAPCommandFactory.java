@@ -47,6 +47,7 @@ public class IMAPCommandFactory {
         add("COPY", Copy.class);
         add("CREATE", Create.class);
         add("DELETE", Delete.class);
+        add("ENABLE", Enable.class);
         add("EXAMINE", Examine.class);
         add("EXPUNGE", Expunge.class);
         add("FETCH", Fetch.class);
@@ -36,7 +36,8 @@ public class Idle extends NOOP {
     }
 
     /**
-     * Executes the command
+     * Executes the command. If session can be parked, command returns after continuation
+     * response and is executed again, as session's pending command, when client sends DONE.
      * @param session
      * @throws ParserException
      * @throws MessagingException
@@ -44,17 +45,30 @@ public class Idle extends NOOP {
      * @throws IOException
      */
     protected void execute(IMAPSession session) throws CommandException, ParserException, IOException {
-        checkEOL(session);
+        boolean resumed = session.isIdling();
+        if (!resumed) {
+            checkEOL(session);
+        }
+        boolean parked = false;
         try {
+            if (!resumed) {
+                session.setIdling(true);
+                new ContinuationResponse(session, "Idling").submit();
 
-            session.setIdling(true);
-            new ContinuationResponse(session, "Idling").submit();
+                if (session.canPark()) {
+                    session.setPendingCommand(this);
+                    parked = true;
+                    return;
+                }
+            }
 
             session.getScanner().keyword("DONE");
             checkEOL(session);
             sendOK(session);
         } finally {
-            session.setIdling(false);
+            if (!parked) {
+                session.setIdling(false);
+            }
         }
    }
 }
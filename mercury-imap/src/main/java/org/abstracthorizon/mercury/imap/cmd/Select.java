@@ -18,15 +18,23 @@ import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.UIDFolder;
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.common.command.CommandException;
+import org.abstracthorizon.mercury.imap.BADCommandException;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 import org.abstracthorizon.mercury.imap.response.ExistsResponse;
+import org.abstracthorizon.mercury.imap.response.FetchResponse;
 import org.abstracthorizon.mercury.imap.response.FlagsResponse;
+import org.abstracthorizon.mercury.imap.response.MnemonicResponse;
 import org.abstracthorizon.mercury.imap.response.OKResponse;
 import org.abstracthorizon.mercury.imap.response.RecentResponse;
 import org.abstracthorizon.mercury.imap.response.Response;
+import org.abstracthorizon.mercury.imap.util.ComposedSequence;
 import org.abstracthorizon.mercury.imap.util.FlagUtilities;
+import org.abstracthorizon.mercury.imap.util.IMAPScanner;
+import org.abstracthorizon.mercury.imap.util.MessageUtilities;
 import org.abstracthorizon.mercury.imap.util.ParserException;
+import org.abstracthorizon.mercury.imap.util.Sequence;
 
 /**
  * Select IMAP command
@@ -76,16 +84,43 @@ public class Select extends IMAPCommand {
      * @throws IOException
      */
     protected void executeImpl(IMAPSession session, boolean readonly) throws ParserException, MessagingException, IOException {
+        IMAPScanner scanner = session.getScanner();
         StringBuffer mailboxName = new StringBuffer();
-        if (!session.getScanner().mailbox(mailboxName)) {
+        if (!scanner.mailbox(mailboxName)) {
             throw new ParserException("<mailbox_name>");
         }
+        boolean qresync = false;
+        IMAPScanner.LongNumber knownUIDValidity = new IMAPScanner.LongNumber();
+        IMAPScanner.LongNumber knownModSeq = new IMAPScanner.LongNumber();
+        ComposedSequence knownUIDs = null;
+        if (scanner.is_char(' ')) {
+            if (!scanner.is_char('(')) {
+                throw new ParserException("'('");
+            }
+            if (scanner.keyword("CONDSTORE")) {
+                session.setCondStore(true);
+            } else if (scanner.keyword("QRESYNC")) {
+                if (!session.isQResync()) {
+                    throw new BADCommandException("QRESYNC is not enabled");
+                }
+                qresync = true;
+                knownUIDs = qresync_params(scanner, knownUIDValidity, knownModSeq);
+            } else {
+                throw new ParserException("'CONDSTORE', 'QRESYNC'");
+            }
+            if (!scanner.is_char(')')) {
+                throw new ParserException("')'");
+            }
+        }
         checkEOL(session);
 
         Folder f = session.getStore().getFolder(mailboxName.toString());
         Folder selectedFolder = session.getSelectedFolder();
         if ((selectedFolder != null) && (selectedFolder.isOpen())) {
             selectedFolder.close(false);
+            if (session.isQResync()) {
+                new OKResponse(session, Response.UNTAGGED_RESPONSE, "[CLOSED] Previous mailbox closed").submit();
+            }
         }
 
         if (readonly) {
@@ -104,6 +139,8 @@ public class Select extends IMAPCommand {
 //        S: * OK [PERMANENTFLAGS (\Deleted \Seen \*)] Limited
 
         int msgNum = f.getMessageCount();
+        int recent = f.getNewMessageCount();
+        session.getNotificationCoalescer().reset(msgNum, recent);
         int unseen = f.getUnreadMessageCount();
         long uidValidity = 0;
         int nextUID = 0;
@@ -116,8 +153,8 @@ public class Select extends IMAPCommand {
             }
         }
 
-        new ExistsResponse(session, f).submit();
-        new RecentResponse(session, f).submit();
+        new ExistsResponse(session, msgNum).submit();
+        new RecentResponse(session, recent).submit();
 
         new OKResponse(session, Response.UNTAGGED_RESPONSE, "[UNSEEN "+unseen+"]").submit();
         new OKResponse(session, Response.UNTAGGED_RESPONSE, "[UIDVALIDITY "+uidValidity+"]").submit();
@@ -130,6 +167,99 @@ public class Select extends IMAPCommand {
         new FlagsResponse(session, flags).submit();
 
         new OKResponse(session, Response.UNTAGGED_RESPONSE, "[PERMANENTFLAGS ("+FlagUtilities.toString(f.getPermanentFlags())+")]").submit();
+
+        if (f instanceof ModSeqFolder) {
+            ModSeqFolder ff = (ModSeqFolder)f;
+            new OKResponse(session, Response.UNTAGGED_RESPONSE, "[HIGHESTMODSEQ "+ff.getHighestModSeq()+"] Highest").submit();
+            if (qresync && (knownUIDValidity.number == uidValidity) && (knownModSeq.number > 0)) {
+                resync(session, ff, knownModSeq.number, knownUIDs);
+            }
+        } else {
+            new OKResponse(session, Response.UNTAGGED_RESPONSE, "[NOMODSEQ] No mod-sequences in this mailbox").submit();
+        }
         sendOK(session);
     }
+
+    /**
+     * Parses QRESYNC parameters: UID validity, mod-sequence, optional known UIDs and
+     * optional message sequence match data. Message sequence match data is ignored as
+     * expunges that are no longer known are reported from the gaps between folder's UIDs.
+     * @param scanner scanner
+     * @param uidValidity UID validity client knows of
+     * @param modSeq last mod-sequence client knows of
+     * @return known UIDs or <code>null</code> if not specified
+     * @throws IOException
+     * @throws ParserException
+     */
+    protected ComposedSequence qresync_params(IMAPScanner scanner, IMAPScanner.LongNumber uidValidity, IMAPScanner.LongNumber modSeq) throws IOException, ParserException {
+        if (!scanner.is_char(' ') || !scanner.is_char('(')) {
+            throw new ParserException("<SP> '('");
+        }
+        if (!scanner.mod_sequence_value(uidValidity)) {
+            throw new ParserException("<uidvalidity>");
+        }
+        if (!scanner.is_char(' ')) {
+            throw new ParserException("<SP>");
+        }
+        if (!scanner.mod_sequence_value(modSeq)) {
+            throw new ParserException("<mod-sequence-value>");
+        }
+        ComposedSequence knownUIDs = null;
+        if (scanner.is_char(' ')) {
+            if (!scanner.peek_char('(')) {
+                knownUIDs = new ComposedSequence();
+                if (!scanner.sequence_set(knownUIDs)) {
+                    throw new ParserException("<known-uids>");
+                }
+            }
+            if ((knownUIDs == null) || scanner.is_char(' ')) {
+                ComposedSequence knownSequence = new ComposedSequence();
+                ComposedSequence knownSequenceUIDs = new ComposedSequence();
+                if (!scanner.is_char('(')
+                        || !scanner.sequence_set(knownSequence)
+                        || !scanner.is_char(' ')
+                        || !scanner.sequence_set(knownSequenceUIDs)
+                        || !scanner.is_char(')')) {
+                    throw new ParserException("<seq-match-data>");
+                }
+            }
+        }
+        if (!scanner.is_char(')')) {
+            throw new ParserException("')'");
+        }
+        return knownUIDs;
+    }
+
+    /**
+     * Sends <code>VANISHED (EARLIER)</code> response for messages expunged and <code>FETCH</code>
+     * responses for messages changed since given mod-sequence
+     * @param session session
+     * @param f folder
+     * @param modSeq last mod-sequence client knows of
+     * @param knownUIDs UIDs client knows of or <code>null</code>
+     * @throws MessagingException
+     * @throws IOException
+     */
+    protected void resync(IMAPSession session, ModSeqFolder f, long modSeq, Sequence knownUIDs) throws MessagingException, IOException {
+        long[] expunged = f.getExpungedUIDs(modSeq);
+        if (knownUIDs != null) {
+            expunged = MessageUtilities.intersectRanges(expunged, knownUIDs);
+        }
+        if (expunged.length > 0) {
+            new MnemonicResponse(session, Response.UNTAGGED_RESPONSE, "VANISHED", "(EARLIER) "+MessageUtilities.rangesToSequenceSet(expunged)).submit();
+        }
+        long[] changed = f.getChangedUIDs(modSeq);
+        for (long uid : changed) {
+            if ((knownUIDs == null) || knownUIDs.belongs((int)uid)) {
+                Message m = f.getMessageByUID(uid);
+                if (m != null) {
+                    FetchResponse response = new FetchResponse(session, m.getMessageNumber());
+                    response.append("(UID ").append(uid);
+                    response.append(" FLAGS (").append(FlagUtilities.toString(m.getFlags())).append(')');
+                    response.append(" MODSEQ (").append(f.getModSeq(m)).append("))");
+                    response.submit();
+                }
+            }
+        }
+    }
 }
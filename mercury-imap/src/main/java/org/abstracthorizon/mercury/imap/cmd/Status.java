@@ -17,6 +17,7 @@ import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.UIDFolder;
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.common.command.CommandException;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 import org.abstracthorizon.mercury.imap.NOCommandException;
@@ -70,12 +71,12 @@ public class Status extends IMAPCommand {
                     throw new ParserException("'('");
                 }
 
-                if (!status_att(scanner, response, folder)) {
+                if (!status_att(session, scanner, response, folder)) {
                     throw new ParserException("<status_att>");
                 }
                 while (scanner.is_char(' ')) {
                     response.append(' ');
-                    if (!status_att(scanner, response, folder)) {
+                    if (!status_att(session, scanner, response, folder)) {
                         throw new ParserException("<status_att>");
                     }
                 } // while
@@ -96,6 +97,7 @@ public class Status extends IMAPCommand {
 
     /**
      * This method scans for status attributes
+     * @param session session
      * @param scanner scanner
      * @param response response
      * @param folder folder
@@ -104,7 +106,7 @@ public class Status extends IMAPCommand {
      * @throws ParserException
      * @throws MessagingException
      */
-    protected boolean status_att(IMAPScanner scanner, StatusResponse response, Folder folder) throws IOException, ParserException, MessagingException {
+    protected boolean status_att(IMAPSession session, IMAPScanner scanner, StatusResponse response, Folder folder) throws IOException, ParserException, MessagingException {
         if (scanner.keyword("MESSAGES")) {
             response.append("MESSAGES ").append(folder.getMessageCount());
             return true;
@@ -133,6 +135,14 @@ public class Status extends IMAPCommand {
         } else if (scanner.keyword("UNSEEN")) {
             response.append("UNSEEN ").append(folder.getUnreadMessageCount());
             return true;
+        } else if (scanner.keyword("HIGHESTMODSEQ")) {
+            session.setCondStore(true);
+            long highestModSeq = 0;
+            if (folder instanceof ModSeqFolder) {
+                highestModSeq = ((ModSeqFolder) folder).getHighestModSeq();
+            }
+            response.append("HIGHESTMODSEQ ").append(highestModSeq);
+            return true;
         }
         return false;
     }
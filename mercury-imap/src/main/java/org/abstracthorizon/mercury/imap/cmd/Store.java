@@ -13,17 +13,24 @@
 package org.abstracthorizon.mercury.imap.cmd;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.mail.Folder;
+import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.common.command.CommandException;
+import org.abstracthorizon.mercury.imap.BADCommandException;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 import org.abstracthorizon.mercury.imap.response.FetchResponse;
+import org.abstracthorizon.mercury.imap.response.OKResponse;
 import org.abstracthorizon.mercury.imap.util.ComposedSequence;
 import org.abstracthorizon.mercury.imap.util.FlagUtilities;
 import org.abstracthorizon.mercury.imap.util.MessageUtilities;
@@ -44,6 +51,9 @@ public class Store extends UIDCommand {
     /** Flags */
     protected Flags flags = new Flags();
 
+    /** Messages collected from sequence set */
+    protected List<MimeMessage> messages = new ArrayList<MimeMessage>();
+
     /**
      * Constructor
      * @param mnemonic mnemonic
@@ -70,6 +80,18 @@ public class Store extends UIDCommand {
             throw new ParserException("<SP>");
         }
 
+        long unchangedSince = -1;
+        if (scanner.is_char('(')) {
+            IMAPScanner.LongNumber modSeq = new IMAPScanner.LongNumber();
+            if (!scanner.keyword("UNCHANGEDSINCE") || !scanner.is_char(' ') || !scanner.mod_sequence_value(modSeq)) {
+                throw new ParserException("'UNCHANGEDSINCE' <SP> <mod-sequence-value>");
+            }
+            if (!scanner.is_char(')') || !scanner.is_char(' ')) {
+                throw new ParserException("')' <SP>");
+            }
+            unchangedSince = modSeq.number;
+        }
+
         flags = new Flags();
         if (!store_atts(scanner, flags)) {
             throw new ParserException("<store-atts>");
@@ -78,45 +100,145 @@ public class Store extends UIDCommand {
 
         Folder f = session.getSelectedFolder();
 
+        if (unchangedSince >= 0) {
+            if (!(f instanceof ModSeqFolder)) {
+                throw new BADCommandException("Mailbox doesn't support mod-sequences");
+            }
+            session.setCondStore(true);
+        }
+        boolean condStore = session.isCondStore() && (f instanceof ModSeqFolder);
+
         logger.debug("Prepare to process "+sequenceSet);
-        MessageUtilities.sequenceIterator(session, this, f, sequenceSet, asuid);
-        sendOK(session);
+        messages.clear();
+        String modified = null;
+        try {
+            MessageUtilities.sequenceIterator(session, this, f, sequenceSet, asuid);
+            modified = storeFlags(f, unchangedSince);
+            if (!flags.silent || (unchangedSince >= 0)) {
+                for (MimeMessage m : messages) {
+                    FetchResponse response = new FetchResponse(session, m.getMessageNumber());
+                    response.append('(');
+                    if (condStore && asuid) {
+                        response.append("UID ").append(MessageUtilities.findUID(m)).append(' ');
+                    }
+                    if (!flags.silent) {
+                        response.append("FLAGS (").append(FlagUtilities.toString(m.getFlags())).append(')');
+                        if (condStore) {
+                            response.append(' ');
+                        }
+                    }
+                    if (condStore) {
+                        response.append("MODSEQ (").append(MessageUtilities.findModSeq(m)).append(')');
+                    }
+                    response.append(')');
+                    response.submit();
+                }
+            }
+        } finally {
+            messages.clear();
+        }
+        if (modified != null) {
+            new OKResponse(session, "[MODIFIED "+modified+"] Conditional STORE failed for some messages").submit();
+        } else {
+            sendOK(session);
+        }
     }
 
     /**
-     * Processes the message
+     * Removes messages folder didn't change from the list of collected messages.
+     * @param f folder
+     * @param modified messages that are not changed as they are modified since
+     * @return sequence set of removed messages (UIDs for UID STORE) or <code>null</code> if none
+     * are removed
+     * @throws MessagingException
+     */
+    protected String removeModified(ModSeqFolder f, Message[] modified) throws MessagingException {
+        if (modified.length == 0) {
+            return null;
+        }
+        long[] removed = new long[modified.length];
+        for (int i = 0; i < modified.length; i++) {
+            if (asuid) {
+                removed[i] = f.getUID(modified[i]);
+            } else {
+                removed[i] = modified[i].getMessageNumber();
+            }
+        }
+        messages.removeAll(Arrays.asList(modified));
+        Arrays.sort(removed);
+        return MessageUtilities.toSequenceSet(removed);
+    }
+
+    /**
+     * Collects the message. Flags of all collected messages are changed at once
+     * in {@link #storeFlags(Folder, long)}.
      * @param session session
      * @param m message
      * @throws MessagingException
      * @throws IOException
      */
     public void process(IMAPSession session, MimeMessage m) throws MessagingException, IOException {
-        logger.debug("Processing "+((UIDFolder)m.getFolder()).getUID(m));
-        int msgNo = m.getMessageNumber();
-        FetchResponse response = null;
-        if (!flags.silent) {
-            response = new FetchResponse(session, msgNo);
-            response.append('(');
+        messages.add(m);
+    }
+
+    /**
+     * Changes flags of all collected messages through folder so folder can
+     * apply them in bulk. When flags are replaced all flags collected messages
+     * have (but <code>RECENT</code>) and are not in the new set are removed first.
+     * With <code>UNCHANGEDSINCE</code> folder compares mod-sequences and changes flags
+     * in one go (see {@link ModSeqFolder#setFlags(Message[], javax.mail.Flags, javax.mail.Flags, long)})
+     * and messages it didn't change are removed from collected messages.
+     * @param f folder
+     * @param unchangedSince mod-sequence or -1 if store is not conditional
+     * @return sequence set of messages that are not changed (UIDs for UID STORE)
+     * or <code>null</code> if there are none
+     * @throws MessagingException
+     */
+    protected String storeFlags(Folder f, long unchangedSince) throws MessagingException {
+        if (messages.isEmpty()) {
+            return null;
         }
+        Message[] msgs = new Message[messages.size()];
+        msgs = messages.toArray(msgs);
+        javax.mail.Flags remove = null;
+        javax.mail.Flags add = null;
         if (!flags.plus && !flags.minus) {
-            javax.mail.Flags flgs = m.getFlags();
-            m.setFlags(flgs, false);
-            m.setFlags(flags.flags, true);
-            logger.debug("Removed "+flgs+" from message UID "+((UIDFolder)m.getFolder()).getUID(m));
-            logger.debug("Set "+flags.flags+" to same message UID "+((UIDFolder)m.getFolder()).getUID(m));
+            javax.mail.Flags flgs = new javax.mail.Flags();
+            for (Message m : msgs) {
+                flgs.add(m.getFlags());
+            }
+            flgs.remove(flags.flags);
+            flgs.remove(javax.mail.Flags.Flag.RECENT);
+            if ((flgs.getSystemFlags().length > 0) || (flgs.getUserFlags().length > 0)) {
+                remove = flgs;
+            }
+            add = flags.flags;
+        } else if (flags.plus) {
+            add = flags.flags;
         } else {
-            m.setFlags(flags.flags, flags.plus);
-            if (flags.plus) {
-                logger.debug("Set "+flags.flags+" from message UID "+((UIDFolder)m.getFolder()).getUID(m));
-            } else {
-                logger.debug("Removed "+flags.flags+" from message UID "+((UIDFolder)m.getFolder()).getUID(m));
+            remove = flags.flags;
+        }
+
+        String modified = null;
+        if (unchangedSince >= 0) {
+            ModSeqFolder modSeqFolder = (ModSeqFolder)f;
+            modified = removeModified(modSeqFolder, modSeqFolder.setFlags(msgs, remove, add, unchangedSince));
+        } else {
+            if (remove != null) {
+                f.setFlags(msgs, remove, false);
+            }
+            if (add != null) {
+                f.setFlags(msgs, add, true);
             }
         }
-        if (!flags.silent) {
-            response.append("FLAGS (").append(FlagUtilities.toString(m.getFlags())).append(')');
-            response.append(')');
-            response.submit();
+        if (!flags.plus && !flags.minus) {
+            logger.debug("Replaced flags of " + msgs.length + " messages with " + flags.flags);
+        } else if (flags.plus) {
+            logger.debug("Set "+flags.flags+" to " + msgs.length + " messages");
+        } else {
+            logger.debug("Removed "+flags.flags+" from " + msgs.length + " messages");
         }
+        return modified;
     }
 
     /**
@@ -39,14 +39,14 @@ public class CapabilityResponse extends MnemonicResponse {
     public static String getCapabilityList(IMAPSession session) {
         if (session.isInsecureAllowed()) {
             //return "IMAP4rev1 AUTH=LOGIN STARTTLS IDLE";
-            return "IMAP4rev1 AUTH=PLAIN STARTTLS";
+            return "IMAP4rev1 AUTH=PLAIN STARTTLS ENABLE CONDSTORE QRESYNC";
         } else {
             if (session.isSecure()) {
                 //return "IMAP4rev1 AUTH=LOGIN IDLE";
-                return "IMAP4rev1 AUTH=PLAIN";
+                return "IMAP4rev1 AUTH=PLAIN ENABLE CONDSTORE QRESYNC";
             } else {
                 // return "IMAP4rev1 STARTTLS LOGINDISABLED IDLE";
-                return "IMAP4rev1 STARTTLS LOGINDISABLED";
+                return "IMAP4rev1 STARTTLS LOGINDISABLED ENABLE CONDSTORE QRESYNC";
             }
         }
     }
@@ -33,4 +33,13 @@ public class ExistsResponse extends NumberResponse {
         super(session, "EXISTS", f.getMessageCount());
     }
 
+    /**
+     * Constructor
+     * @param session imap session
+     * @param count number of messages
+     */
+    public ExistsResponse(IMAPSession session, int count) {
+        super(session, "EXISTS", count);
+    }
+
 }
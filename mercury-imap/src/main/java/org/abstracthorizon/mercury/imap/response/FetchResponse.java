@@ -21,12 +21,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -81,8 +81,9 @@ public class FetchResponse extends NumberResponse {
      */
     public FetchResponse append(Body b, MimeMessage msg) throws IOException, MessagingException {
         MeasuredInputStream is = b.getInputStream(msg);
-        OutputStream out = (OutputStream)session.adapt(OutputStream.class);
-        synchronized (out) {
+        Lock outputLock = session.getOutputLock();
+        outputLock.lock();
+        try {
             long size = 0;
             boolean f = true;
             try {
@@ -143,6 +144,8 @@ public class FetchResponse extends NumberResponse {
             } finally {
                 is.close();
             }
+        } finally {
+            outputLock.unlock();
         }
         return this;
     }
@@ -33,4 +33,13 @@ public class RecentResponse extends NumberResponse {
         super(session, "RECENT", f.getNewMessageCount());
     }
 
+    /**
+     * Constructor
+     * @param session imap session
+     * @param count number of recent messages
+     */
+    public RecentResponse(IMAPSession session, int count) {
+        super(session, "RECENT", count);
+    }
+
 }
@@ -14,6 +14,7 @@ package org.abstracthorizon.mercury.imap.response;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 
 /**
@@ -150,11 +151,15 @@ public abstract class Response {
      */
     protected void commit() throws IOException {
         OutputStream out = session.adapt(OutputStream.class);
-        synchronized (out) {
+        Lock outputLock = session.getOutputLock();
+        outputLock.lock();
+        try {
             out.write(msg.toString().getBytes());
             out.write(13);
             out.write(10);
             out.flush();
+        } finally {
+            outputLock.unlock();
         }
         msg.delete(0, msg.length());
     }
@@ -166,11 +171,15 @@ public abstract class Response {
     public void submit() throws IOException {
         if (msg.length() > 0) {
             OutputStream out = session.adapt(OutputStream.class);
-            synchronized (out) {
+            Lock outputLock = session.getOutputLock();
+            outputLock.lock();
+            try {
                 out.write(msg.toString().getBytes());
                 out.write(13);
                 out.write(10);
                 out.flush();
+            } finally {
+                outputLock.unlock();
             }
             msg.delete(0, msg.length());
         }
@@ -27,6 +27,6 @@ public class StatusResponse extends MnemonicResponse {
      * @param session imap session
      */
     public StatusResponse(IMAPSession session) {
-        super(session, Response.UNTAGGED_RESPONSE,  null, "STATUS");
+        super(session, Response.UNTAGGED_RESPONSE, "STATUS");
     }
 }
@@ -20,6 +20,8 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.mail.Flags;
 import org.abstracthorizon.mercury.imap.util.section.HeaderSection;
 import org.abstracthorizon.mercury.imap.util.section.MimeSection;
@@ -41,6 +43,9 @@ public class IMAPScanner {
     /** Output stream */
     protected OutputStream out;
 
+    /** Lock held while writing to output stream */
+    protected Lock outputLock;
+
     /** Buffer */
     protected char[] buffer;
 
@@ -59,8 +64,19 @@ public class IMAPScanner {
      * @param out output stream
      */
     public IMAPScanner(InputStream in, OutputStream out) {
+        this(in, out, new ReentrantLock());
+    }
+
+    /**
+     * Constructor
+     * @param in input stream
+     * @param out output stream
+     * @param outputLock lock held while writing to output stream
+     */
+    public IMAPScanner(InputStream in, OutputStream out, Lock outputLock) {
         this.in = in;
         this.out = out;
+        this.outputLock = outputLock;
         in.mark(128);
     }
 
@@ -236,6 +252,21 @@ public class IMAPScanner {
         return true;
     }
 
+    public boolean mod_sequence_value(LongNumber num) throws IOException {
+        in.mark(20);
+        int len = 0;
+        num.number = 0;
+        int c = in.read();
+        while ((c >= '0') && (c <= '9') && (len < 19)) {
+            num.number = num.number*10 + (c-'0');
+            len = len + 1;
+            c = in.read();
+        } // while
+        in.reset();
+        in.skip(len);
+        return len > 0;
+    }
+
     public boolean tag(StringBuffer res) throws IOException {
         in.mark(128);
         int i = in.read();
@@ -335,9 +366,12 @@ public class IMAPScanner {
             in.reset();
             throw new ParserException("<LF>");
         }
-        synchronized (out) {
+        outputLock.lock();
+        try {
             out.write("+ Ready for literal data\r\n".getBytes());
             out.flush();
+        } finally {
+            outputLock.unlock();
         }
         byte[] buf = new byte[len];
         int size = 0;
@@ -383,9 +417,12 @@ public class IMAPScanner {
         if (c != '\n') {
             throw new ParserException("<LF>");
         }
-        synchronized (out) {
+        outputLock.lock();
+        try {
             out.write("+ Ready for literal data\r\n".getBytes());
             out.flush();
+        } finally {
+            outputLock.unlock();
         }
         return len;
     }
@@ -977,4 +1014,8 @@ public class IMAPScanner {
         public int number = 0;
     }
 
+    public static class LongNumber {
+        public long number = 0;
+    }
+
 }
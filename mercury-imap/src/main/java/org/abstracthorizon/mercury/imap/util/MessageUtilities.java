@@ -14,6 +14,10 @@ package org.abstracthorizon.mercury.imap.util;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -25,6 +29,7 @@ import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.common.util.RFCDate;
 import org.abstracthorizon.mercury.imap.IMAPSession;
 
@@ -71,6 +76,149 @@ public class MessageUtilities {
         }
     }
 
+    /**
+     * Returns messages's mod-sequence
+     * @param m message
+     * @return mod-sequence
+     * @throws MessagingException if folder is not of {@link ModSeqFolder} type
+     */
+    public static long findModSeq(Message m) throws MessagingException {
+        Folder f = m.getFolder();
+        if (f instanceof ModSeqFolder) {
+            return ((ModSeqFolder) f).getModSeq(m);
+        } else {
+            throw new MessagingException("Not Implemented");
+        }
+    }
+
+    /**
+     * Creates sequence set out of UIDs in ascending order, joining consecutive UIDs to ranges
+     * @param uids UIDs in ascending order
+     * @return sequence set
+     */
+    public static String toSequenceSet(long[] uids) {
+        StringBuffer res = new StringBuffer();
+        int i = 0;
+        while (i < uids.length) {
+            int j = i;
+            while ((j + 1 < uids.length) && (uids[j + 1] == uids[j] + 1)) {
+                j++;
+            }
+            appendRange(res, uids[i], uids[j]);
+            i = j + 1;
+        }
+        return res.toString();
+    }
+
+    /**
+     * Creates sequence set out of ranges as returned by {@link ModSeqFolder#getExpungedUIDs(long)}
+     * @param ranges pairs of first and last UID in ascending order
+     * @return sequence set
+     */
+    public static String rangesToSequenceSet(long[] ranges) {
+        StringBuffer res = new StringBuffer();
+        for (int i = 0; i + 1 < ranges.length; i = i + 2) {
+            appendRange(res, ranges[i], ranges[i + 1]);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Returns ranges that are both in given ranges and in the sequence
+     * @param ranges pairs of first and last UID in ascending order
+     * @param sequence sequence
+     * @return pairs of first and last UID in ascending order
+     */
+    public static long[] intersectRanges(long[] ranges, Sequence sequence) {
+        long[] other = toRanges(sequence);
+        long[] res = new long[Math.min(ranges.length + other.length, 16)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while ((i + 1 < ranges.length) && (j + 1 < other.length)) {
+            long from = Math.max(ranges[i], other[j]);
+            long to = Math.min(ranges[i + 1], other[j + 1]);
+            if (from <= to) {
+                if (count + 2 > res.length) {
+                    res = Arrays.copyOf(res, res.length * 2);
+                }
+                res[count] = from;
+                res[count + 1] = to;
+                count = count + 2;
+            }
+            if (ranges[i + 1] < other[j + 1]) {
+                i = i + 2;
+            } else {
+                j = j + 2;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Converts sequence to disjoint ranges
+     * @param sequence sequence
+     * @return pairs of first and last number in ascending order
+     */
+    public static long[] toRanges(Sequence sequence) {
+        List<SimpleSequence> simple = new ArrayList<SimpleSequence>();
+        collectSimpleSequences(sequence, simple);
+        Collections.sort(simple, new Comparator<SimpleSequence>() {
+            public int compare(SimpleSequence a, SimpleSequence b) {
+                return Long.compare(a.getMin(), b.getMin());
+            }
+        });
+        long[] res = new long[simple.size() * 2];
+        int count = 0;
+        for (SimpleSequence s : simple) {
+            long from = Math.max(s.getMin(), 1);
+            long to = s.getMax();
+            if (from > to) {
+                continue;
+            }
+            if ((count > 0) && (from <= res[count - 1] + 1)) {
+                res[count - 1] = Math.max(res[count - 1], to);
+            } else {
+                res[count] = from;
+                res[count + 1] = to;
+                count = count + 2;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Collects simple sequences sequence is made of
+     * @param sequence sequence
+     * @param simple list simple sequences are added to
+     */
+    protected static void collectSimpleSequences(Sequence sequence, List<SimpleSequence> simple) {
+        if (sequence instanceof ComposedSequence) {
+            Iterator<Sequence> iterator = ((ComposedSequence) sequence).getSequencesAsIterator();
+            while (iterator.hasNext()) {
+                collectSimpleSequences(iterator.next(), simple);
+            }
+        } else if (sequence instanceof SimpleSequence) {
+            simple.add((SimpleSequence) sequence);
+        }
+    }
+
+    /**
+     * Appends range to the sequence set
+     * @param set sequence set
+     * @param from first UID
+     * @param to last UID
+     */
+    protected static void appendRange(StringBuffer set, long from, long to) {
+        if (set.length() > 0) {
+            set.append(',');
+        }
+        set.append(from);
+        if (to != from) {
+            set.append(':').append(to);
+        }
+    }
+
     /**
      * Creates string representation of headers for mime part
      * @param m mime part
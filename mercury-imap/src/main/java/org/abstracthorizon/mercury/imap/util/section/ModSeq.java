@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap.util.section;
+
+/**
+ * MODSEQ section
+ *
+ * @author Daniel Sendula
+ */
+public class ModSeq {
+
+    /** MODSEQ string */
+    public static final String MODSEQ = "MODSEQ";
+
+    /** Hash code of MODSEQ string */
+    public static final int hash = MODSEQ.hashCode();
+
+    /** Static MODSEQ instance */
+    public static final ModSeq instance = new ModSeq();
+
+    /**
+     * Returns string representation of this object
+     * @return string representation of this object
+     */
+    public String toString() {
+        return MODSEQ;
+    }
+
+    /**
+     * Returns <code>true</code> if object is of MODSEQ type
+     * @retrun <code>true</code> if object is of MODSEQ type
+     */
+    public boolean equals(Object o) {
+        return (o instanceof ModSeq);
+    }
+
+    /**
+     * Returns hash code
+     * @return hash code
+     */
+    public int hashCode() {
+        return hash;
+    }
+}
+
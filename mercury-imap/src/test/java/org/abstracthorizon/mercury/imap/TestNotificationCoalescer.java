@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.imap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+
+import org.abstracthorizon.danube.connection.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNotificationCoalescer {
+
+    protected RecordingConnection connection;
+
+    protected RecordingHandler handler;
+
+    protected IMAPSession session;
+
+    protected NotificationCoalescer coalescer;
+
+    protected TestFolder folder;
+
+    @Before
+    public void setUp() {
+        connection = new RecordingConnection();
+        handler = new RecordingHandler();
+        session = new IMAPSession(connection, handler);
+        coalescer = new NotificationCoalescer(session, handler);
+        folder = new TestFolder();
+    }
+
+    @Test
+    public void testExpungesHighestFirst() throws Exception {
+        coalescer.reset(10, 0);
+        coalescer.setNotifying(true);
+
+        coalescer.messagesRemoved(messages(3, 7));
+        // Numbers of second event are as they are after the first one
+        coalescer.messagesRemoved(messages(5, 2));
+        assertEquals(1, handler.scheduled.size());
+
+        handler.runScheduled();
+        assertEquals("* 7 EXPUNGE\r\n* 3 EXPUNGE\r\n* 5 EXPUNGE\r\n* 2 EXPUNGE\r\n", connection.output());
+        assertEquals(6, coalescer.getExists());
+    }
+
+    @Test
+    public void testAddedAndRemovedCancelOut() throws Exception {
+        coalescer.reset(5, 1);
+        coalescer.setNotifying(true);
+
+        coalescer.messagesAdded(recentMessages(6, 7));
+        coalescer.messagesRemoved(recentMessages(7, 6));
+        assertEquals(1, handler.scheduled.size());
+
+        handler.runScheduled();
+        assertEquals("", connection.output());
+        assertEquals(5, coalescer.getExists());
+        assertEquals(1, coalescer.getRecent());
+    }
+
+    @Test
+    public void testAddedAndExpunged() throws Exception {
+        coalescer.reset(5, 0);
+        coalescer.setNotifying(true);
+
+        coalescer.messagesAdded(recentMessages(6));
+        coalescer.messagesRemoved(messages(2));
+
+        handler.runScheduled();
+        assertEquals("* 2 EXPUNGE\r\n* 5 EXISTS\r\n* 1 RECENT\r\n", connection.output());
+
+        coalescer.messagesAdded(messages(6, 7));
+        handler.runScheduled();
+        assertEquals("* 2 EXPUNGE\r\n* 5 EXISTS\r\n* 1 RECENT\r\n* 7 EXISTS\r\n", connection.output());
+    }
+
+    @Test
+    public void testNotifyingKeepsPendingChanges() throws Exception {
+        coalescer.reset(5, 0);
+        coalescer.setNotifying(true);
+        coalescer.messagesAdded(messages(6));
+
+        // Flush is scheduled so client is still to be told about both messages
+        coalescer.setNotifying(false);
+        coalescer.messagesAdded(messages(7));
+        coalescer.setNotifying(true);
+
+        handler.runScheduled();
+        assertEquals("* 7 EXISTS\r\n", connection.output());
+    }
+
+    @Test
+    public void testNotifyingTakesSnapshot() throws Exception {
+        coalescer.reset(5, 0);
+        coalescer.setNotifying(true);
+        coalescer.setNotifying(false);
+
+        // Nothing is scheduled so added messages are taken as known to the client
+        coalescer.messagesAdded(messages(6, 7));
+        coalescer.setNotifying(true);
+        assertEquals(0, handler.scheduled.size());
+
+        coalescer.messagesRemoved(messages(7));
+        handler.runScheduled();
+        assertEquals("* 7 EXPUNGE\r\n", connection.output());
+    }
+
+    @Test
+    public void testVanished() throws Exception {
+        session.setQResync(true);
+        coalescer.reset(5, 0);
+        coalescer.setNotifying(true);
+
+        coalescer.messagesRemoved(messages(4, 2));
+        coalescer.messagesRemoved(messages(3));
+        coalescer.messagesAdded(messages(3));
+
+        handler.runScheduled();
+        assertEquals("* VANISHED 20,30,40\r\n* 3 EXISTS\r\n", connection.output());
+    }
+
+    /**
+     * Creates messages with given numbers. Message's UID is ten times its number.
+     */
+    protected Message[] messages(int... numbers) {
+        Message[] msgs = new Message[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            msgs[i] = new TestMessage(folder, numbers[i]);
+        }
+        return msgs;
+    }
+
+    protected Message[] recentMessages(int... numbers) throws MessagingException {
+        Message[] msgs = messages(numbers);
+        for (Message msg : msgs) {
+            msg.setFlag(Flags.Flag.RECENT, true);
+        }
+        return msgs;
+    }
+
+    protected static class RecordingConnection implements Connection {
+
+        protected ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        protected InputStream in = new ByteArrayInputStream(new byte[0]);
+
+        public <T> T adapt(Class<T> cls) {
+            if (cls == OutputStream.class) {
+                return cls.cast(out);
+            } else if (cls == InputStream.class) {
+                return cls.cast(in);
+            }
+            return null;
+        }
+
+        public void close() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+
+        public String output() {
+            return out.toString();
+        }
+    }
+
+    protected static class RecordingHandler extends IMAPConnectionHandler {
+
+        protected List<Runnable> scheduled = new ArrayList<Runnable>();
+
+        public void scheduleNotification(Runnable task) {
+            scheduled.add(task);
+        }
+
+        public void runScheduled() {
+            List<Runnable> tasks = new ArrayList<Runnable>(scheduled);
+            scheduled.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    protected static class TestMessage extends MimeMessage {
+
+        public TestMessage(Folder folder, int msgnum) {
+            super((Session)null);
+            this.folder = folder;
+            setMessageNumber(msgnum);
+        }
+    }
+
+    protected static class TestFolder extends Folder implements UIDFolder {
+
+        public TestFolder() {
+            super(null);
+        }
+
+        public long getUID(Message message) {
+            return message.getMessageNumber() * 10;
+        }
+
+        public long getUIDValidity() {
+            return 1;
+        }
+
+        public Message getMessageByUID(long uid) {
+            return null;
+        }
+
+        public Message[] getMessagesByUID(long start, long end) {
+            return new Message[0];
+        }
+
+        public Message[] getMessagesByUID(long[] uids) {
+            return new Message[0];
+        }
+
+        public String getName() {
+            return "INBOX";
+        }
+
+        public String getFullName() {
+            return "INBOX";
+        }
+
+        public Folder getParent() {
+            return null;
+        }
+
+        public boolean exists() {
+            return true;
+        }
+
+        public Folder[] list(String pattern) {
+            return new Folder[0];
+        }
+
+        public char getSeparator() {
+            return '/';
+        }
+
+        public int getType() {
+            return HOLDS_MESSAGES;
+        }
+
+        public boolean create(int type) {
+            return false;
+        }
+
+        public boolean hasNewMessages() {
+            return false;
+        }
+
+        public Folder getFolder(String name) {
+            return null;
+        }
+
+        public boolean delete(boolean recurse) {
+            return false;
+        }
+
+        public boolean renameTo(Folder f) {
+            return false;
+        }
+
+        public void open(int mode) {
+        }
+
+        public void close(boolean expunge) {
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public Flags getPermanentFlags() {
+            return new Flags();
+        }
+
+        public int getMessageCount() {
+            return 0;
+        }
+
+        public Message getMessage(int msgnum) {
+            return null;
+        }
+
+        public void appendMessages(Message[] msgs) {
+        }
+
+        public Message[] expunge() {
+            return new Message[0];
+        }
+    }
+}
@@ -52,9 +52,11 @@ import org.abstracthorizon.mercury.adminconsole.MailboxController;
 import org.abstracthorizon.mercury.adminconsole.RequiresIndexController;
 import org.abstracthorizon.mercury.adminconsole.RequiresMailboxController;
 import org.abstracthorizon.mercury.adminconsole.RequiresStorageManager;
+import org.abstracthorizon.mercury.common.service.VirtualThreadServerSocketService;
 import org.abstracthorizon.mercury.filter.spam.DestinationMailboxFilter;
 import org.abstracthorizon.mercury.filter.spam.FinalSPAMFilter;
 import org.abstracthorizon.mercury.filter.spam.SimpleSubjectFilter;
+import org.abstracthorizon.mercury.imap.IMAPChannelService;
 import org.abstracthorizon.mercury.imap.IMAPConnectionHandler;
 import org.abstracthorizon.mercury.smtp.SMTPConnectionHandler;
 import org.abstracthorizon.mercury.smtp.filter.quiet.QuietFindStorageFilter;
@@ -78,6 +80,8 @@ public class MailSuite implements Closeable {
     private File workDir;
     private int smtpPort = 8125;
     private int imapPort = 8143;
+    private int imapWorkers = -1;
+    private boolean virtualThreads;
     private int adminPort = -1;
     private int syncPort = -1;
 
@@ -99,9 +103,11 @@ public class MailSuite implements Closeable {
     private File accountPropertiesFile;
 
     private MultiThreadServerSocketService smtpService;
+    private VirtualThreadServerSocketService smtpVirtualThreadService;
     private SMTPConnectionHandler smtpConnectionHandler;
     private SMTPQuietFilterCommandFactory smtpQuietFilterCommandFactory;
     private MultiThreadServerSocketService imapService;
+    private IMAPChannelService imapChannelService;
     private IMAPConnectionHandler imapConnectionHandler;
     private MultiThreadServerSSLSocketService danubeSSLServer;
     private File danubeSSLKeystoreFile;
@@ -114,6 +120,7 @@ public class MailSuite implements Closeable {
     private SpringAuthConfiguration configuration;
     private JAASAuthenticator jaasAuthenticator;
     private MultiThreadServerSSLSocketService syncService;
+    private VirtualThreadServerSocketService syncVirtualThreadService;
     private CachedDirs serverCachedDirs;
     private SyncConnectionHandler syncConnectionHandler;
     private SyncCommandFactory syncCommandFactory;
@@ -140,6 +147,16 @@ public class MailSuite implements Closeable {
         return this;
     }
 
+    public MailSuite withIMAPWorkers(int imapWorkers) {
+        this.imapWorkers = imapWorkers;
+        return this;
+    }
+
+    public MailSuite withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
     public MailSuite withSyncPort(int syncPort) {
         this.syncPort = syncPort;
         return this;
@@ -195,16 +212,23 @@ public class MailSuite implements Closeable {
 
         // Inbound SMTP
 
-        if (smtpService == null) {
-            smtpService = new MultiThreadServerSocketService();
-        }
-        smtpService.setName("smtp");
-        smtpService.setPort(smtpPort);
-        smtpService.setServerSocketTimeout(1000);
-        smtpService.setNewSocketTimeout(60000);
-
         smtpConnectionHandler = new SMTPConnectionHandler();
-        smtpService.setConnectionHandler(smtpConnectionHandler);
+        if (virtualThreads) {
+            smtpVirtualThreadService = new VirtualThreadServerSocketService();
+            smtpVirtualThreadService.setName("smtp");
+            smtpVirtualThreadService.setPort(smtpPort);
+            smtpVirtualThreadService.setNewSocketTimeout(60000);
+            smtpVirtualThreadService.setConnectionHandler(smtpConnectionHandler);
+        } else {
+            if (smtpService == null) {
+                smtpService = new MultiThreadServerSocketService();
+            }
+            smtpService.setName("smtp");
+            smtpService.setPort(smtpPort);
+            smtpService.setServerSocketTimeout(1000);
+            smtpService.setNewSocketTimeout(60000);
+            smtpService.setConnectionHandler(smtpConnectionHandler);
+        }
         smtpConnectionHandler.setStorageManager(storageManager);
 
         smtpQuietFilterCommandFactory = new SMTPQuietFilterCommandFactory();
@@ -223,14 +247,25 @@ public class MailSuite implements Closeable {
 
         // IMAP
 
-        imapService = new MultiThreadServerSocketService();
-        imapService.setName("imap");
-        imapService.setPort(imapPort);
-        imapService.setServerSocketTimeout(1000);
-        imapService.setNewSocketTimeout(60000);
-
         imapConnectionHandler = new IMAPConnectionHandler();
-        imapService.setConnectionHandler(imapConnectionHandler);
+        if (virtualThreads || (imapWorkers > 0)) {
+            imapChannelService = new IMAPChannelService();
+            imapChannelService.setName("imap");
+            imapChannelService.setPort(imapPort);
+            imapChannelService.setVirtualThreads(virtualThreads);
+            if (imapWorkers > 0) {
+                imapChannelService.setWorkers(imapWorkers);
+            }
+            imapChannelService.setNewSocketTimeout(60000);
+            imapChannelService.setConnectionHandler(imapConnectionHandler);
+        } else {
+            imapService = new MultiThreadServerSocketService();
+            imapService.setName("imap");
+            imapService.setPort(imapPort);
+            imapService.setServerSocketTimeout(1000);
+            imapService.setNewSocketTimeout(60000);
+            imapService.setConnectionHandler(imapConnectionHandler);
+        }
 
         imapConnectionHandler.setStorageManager(storageManager);
 
@@ -314,16 +349,28 @@ public class MailSuite implements Closeable {
             syncServiceKeyStoreFile = new File(configDir, "sync-service-key-store.keystore");
             createKeystore(syncServiceKeyStoreFile, null, true, syncKeystorePassword);
 
-            syncService = new MultiThreadServerSSLSocketService();
-            syncService.setName("sync");
-            syncService.setPort(syncPort);
-            syncService.setAddress("localhost");
-            syncService.setServerSocketTimeout(1000);
-            syncService.setNewSocketTimeout(60000);
-            syncService.setTrustStoreURL(syncServiceTrustStoreFile.toURI().toURL());
-            syncService.setTrustStorePassword(syncKeystorePassword);
-            syncService.setKeyStoreURL(syncServiceKeyStoreFile.toURI().toURL());
-            syncService.setKeyStorePassword(syncKeystorePassword);
+            if (virtualThreads) {
+                syncVirtualThreadService = new VirtualThreadServerSocketService();
+                syncVirtualThreadService.setName("sync");
+                syncVirtualThreadService.setPort(syncPort);
+                syncVirtualThreadService.setAddress("localhost");
+                syncVirtualThreadService.setNewSocketTimeout(60000);
+                syncVirtualThreadService.setTrustStoreURL(syncServiceTrustStoreFile.toURI().toURL());
+                syncVirtualThreadService.setTrustStorePassword(syncKeystorePassword);
+                syncVirtualThreadService.setKeyStoreURL(syncServiceKeyStoreFile.toURI().toURL());
+                syncVirtualThreadService.setKeyStorePassword(syncKeystorePassword);
+            } else {
+                syncService = new MultiThreadServerSSLSocketService();
+                syncService.setName("sync");
+                syncService.setPort(syncPort);
+                syncService.setAddress("localhost");
+                syncService.setServerSocketTimeout(1000);
+                syncService.setNewSocketTimeout(60000);
+                syncService.setTrustStoreURL(syncServiceTrustStoreFile.toURI().toURL());
+                syncService.setTrustStorePassword(syncKeystorePassword);
+                syncService.setKeyStoreURL(syncServiceKeyStoreFile.toURI().toURL());
+                syncService.setKeyStorePassword(syncKeystorePassword);
+            }
 
             serverCachedDirs = new CachedDirs();
             serverCachedDirs.setRootFile(mercuryDataDir);
@@ -339,7 +386,11 @@ public class MailSuite implements Closeable {
             syncConnectionHandler.setKeyStoreURL(syncClientKeyStoreFile.toURI().toURL());
             syncConnectionHandler.setKeyStorePassword(syncKeystorePassword);
 
-            syncService.setConnectionHandler(syncConnectionHandler);
+            if (syncVirtualThreadService != null) {
+                syncVirtualThreadService.setConnectionHandler(syncConnectionHandler);
+            } else {
+                syncService.setConnectionHandler(syncConnectionHandler);
+            }
 
             syncCommandFactory = new SyncCommandFactory();
             syncCommandFactory.setInactivityTimeout(60000);
@@ -354,13 +405,23 @@ public class MailSuite implements Closeable {
     public MailSuite create() throws IOException {
         // Start methods
 
-        runWithRetry(() -> smtpService.create());
-        runWithRetry(() -> imapService.create());
+        if (smtpVirtualThreadService != null) {
+            runWithRetry(() -> smtpVirtualThreadService.create());
+        } else {
+            runWithRetry(() -> smtpService.create());
+        }
+        if (imapChannelService != null) {
+            runWithRetry(() -> imapChannelService.create());
+        } else {
+            runWithRetry(() -> imapService.create());
+        }
 
         if (adminPort > 0) {
             runWithRetry(() -> danubeSSLServer.create());
         }
-        if (syncPort > 0) {
+        if (syncVirtualThreadService != null) {
+            runWithRetry(() -> syncVirtualThreadService.create());
+        } else if (syncPort > 0) {
             runWithRetry(() -> syncService.create());
         }
 
@@ -368,23 +429,35 @@ public class MailSuite implements Closeable {
     }
 
     public void start() throws Exception {
-        smtpService.start();
+        if (smtpVirtualThreadService != null) {
+            smtpVirtualThreadService.start();
+        } else {
+            smtpService.start();
+        }
         // smtpConnectionHandler.start();
         // smtpQuietFilterCommandFactory.start();
-        imapService.start();
+        if (imapChannelService != null) {
+            imapChannelService.start();
+        } else {
+            imapService.start();
+        }
         // imapConnectionHandler.start();
 
         if (adminPort > 0) {
             danubeSSLServer.start();
             keyStoreModuleService.start();
         }
-        if (syncPort > 0) {
+        if (syncVirtualThreadService != null) {
+            syncVirtualThreadService.start();
+        } else if (syncPort > 0) {
             syncService.start();
         }
     }
 
     public void stop() throws IOException {
-        if (syncPort > 0) {
+        if (syncVirtualThreadService != null) {
+            syncVirtualThreadService.stop();
+        } else if (syncPort > 0) {
             syncService.stop();
         }
         if (adminPort > 0) {
@@ -392,8 +465,16 @@ public class MailSuite implements Closeable {
             danubeSSLServer.stop();
         }
 
-        imapService.stop();
-        smtpService.stop();
+        if (imapChannelService != null) {
+            imapChannelService.stop();
+        } else {
+            imapService.stop();
+        }
+        if (smtpVirtualThreadService != null) {
+            smtpVirtualThreadService.stop();
+        } else {
+            smtpService.stop();
+        }
     }
 
     public void destroy() {
@@ -401,8 +482,16 @@ public class MailSuite implements Closeable {
             danubeSSLServer.destroy();
         }
 
-        imapService.destroy();
-        smtpService.destroy();
+        if (imapChannelService != null) {
+            imapChannelService.destroy();
+        } else {
+            imapService.destroy();
+        }
+        if (smtpVirtualThreadService != null) {
+            smtpVirtualThreadService.destroy();
+        } else {
+            smtpService.destroy();
+        }
     }
 
     public void syncTrustMailSuite(MailSuite suite) throws IOException {
@@ -650,6 +739,10 @@ public class MailSuite implements Closeable {
         return imapPort;
     }
 
+    public IMAPChannelService getIMAPChannelService() {
+        return imapChannelService;
+    }
+
     public int getAdminPort() {
         return adminPort;
     }
@@ -0,0 +1,171 @@
+package org.abstracthorizon.mercury.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.abstracthorizon.mercury.common.util.VirtualThreads;
+
+/**
+ * Compares memory used per connection and NOOP latency of IMAP execution modes:
+ * <ul>
+ * <li><code>pool</code> - danube's thread per connection service</li>
+ * <li><code>parked</code> - channel service with fixed number of workers and parked sessions</li>
+ * <li><code>virtual</code> - channel service with a virtual thread per connection</li>
+ * </ul>
+ * Run it once per mode, each in its own JVM, as memory is measured as growth of the process'
+ * resident set (or heap if that is not available). Arguments are mode, number of connections
+ * (default 5000), number of NOOP round trips measured (default 20000) and number of client
+ * threads sending them (default 16). Client sockets are in the same process so they add the
+ * same amount of memory to every mode.
+ */
+public class LTestExecutionModes {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int samples = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int clients = Math.min(connections, args.length > 3 ? Integer.parseInt(args[3]) : 16);
+
+        try (MailSuite mailSuite = new MailSuite("modes")) {
+            mailSuite
+                .withSMTPPort(8127)
+                .withIMAPPort(8146)
+                .withAdminPort(8445);
+            if ("parked".equals(mode)) {
+                mailSuite.withIMAPWorkers(16);
+            } else if ("virtual".equals(mode)) {
+                mailSuite.withVirtualThreads();
+            } else if (!"pool".equals(mode)) {
+                throw new IllegalArgumentException("Mode must be one of pool, parked or virtual");
+            }
+            mailSuite.init().create().start();
+
+            AdminConsoleAdapter consoleAdapter = new AdminConsoleAdapter(mailSuite);
+            consoleAdapter.addMailbox("test.domain", "user", "pass", null);
+
+            System.out.println("Mode " + mode + (VirtualThreads.isAvailable() ? "" : " (no virtual threads in this JVM)"));
+
+            long memoryBefore = usedMemory();
+            int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            List<Socket> sockets = new ArrayList<>();
+            List<InputStream> inputs = new ArrayList<>();
+            try {
+                long started = System.currentTimeMillis();
+                for (int i = 0; i < connections; i++) {
+                    Socket socket = new Socket("localhost", mailSuite.getIMAPPort());
+                    socket.setSoTimeout(60000);
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), 512);
+                    sockets.add(socket);
+                    inputs.add(in);
+
+                    readUntil(in, "* OK");
+                    send(socket, "a LOGIN user@test.domain pass");
+                    readUntil(in, "a OK");
+                    send(socket, "b SELECT INBOX");
+                    readUntil(in, "b OK");
+                }
+                long memory = usedMemory() - memoryBefore;
+                int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+                long perConnection = memory / connections;
+                System.out.println(connections + " connections opened in " + (System.currentTimeMillis() - started) + "ms");
+                System.out.println("Platform threads added: " + threads);
+                System.out.println("Memory per connection: " + perConnection + " bytes, connections per GB: "
+                    + (perConnection > 0 ? (1024L * 1024 * 1024 / perConnection) : -1));
+
+                long[] latencies = new long[samples];
+                AtomicInteger next = new AtomicInteger();
+                List<Thread> clientThreads = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    final int client = c;
+                    Thread thread = new Thread(() -> {
+                        Random random = new Random(client);
+                        try {
+                            int i = next.getAndIncrement();
+                            while (i < samples) {
+                                // Each client uses its own share of connections so they are never used concurrently
+                                int s = client + random.nextInt(connections / clients) * clients;
+                                long start = System.nanoTime();
+                                send(sockets.get(s), "n NOOP");
+                                readUntil(inputs.get(s), "n OK");
+                                latencies[i] = System.nanoTime() - start;
+                                i = next.getAndIncrement();
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                    thread.start();
+                    clientThreads.add(thread);
+                }
+                started = System.currentTimeMillis();
+                for (Thread thread : clientThreads) {
+                    thread.join();
+                }
+                long time = System.currentTimeMillis() - started;
+                Arrays.sort(latencies);
+                System.out.println(samples + " NOOPs in " + time + "ms, p50 " + (latencies[samples / 2] / 1000)
+                    + "us, p99 " + (latencies[samples * 99 / 100] / 1000) + "us, max " + (latencies[samples - 1] / 1000) + "us");
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line = reader.readLine();
+            while (line != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException ignore) {
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void send(Socket socket, String line) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readUntil(InputStream in, String prefix) throws IOException {
+        while (true) {
+            StringBuilder line = new StringBuilder();
+            int c = in.read();
+            while (c != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Connection closed while waiting for " + prefix);
+                }
+                if (c != '\r') {
+                    line.append((char)c);
+                }
+                c = in.read();
+            }
+            if (line.toString().startsWith(prefix)) {
+                return line.toString();
+            }
+        }
+    }
+}
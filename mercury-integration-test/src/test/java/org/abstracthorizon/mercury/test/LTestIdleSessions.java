@@ -0,0 +1,131 @@
+package org.abstracthorizon.mercury.test;
+
+import static org.abstracthorizon.mercury.test.EmailClientAdapter.sendEmail;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.abstracthorizon.mercury.imap.IMAPSessionParker;
+
+/**
+ * Opens many IMAP sessions that sit in IDLE and checks that they are served with
+ * fixed number of threads. Arguments are number of sessions (default 20000) and
+ * number of IMAP worker threads (default 16). Each session needs two file descriptors
+ * in this process so open files limit has to be raised for the default.
+ */
+public class LTestIdleSessions {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        try (MailSuite mailSuite = new MailSuite("idle")) {
+            mailSuite
+                .withSMTPPort(8126)
+                .withIMAPPort(8145)
+                .withAdminPort(8444)
+                .withIMAPWorkers(workers)
+                .init()
+                .create()
+                .start();
+
+            AdminConsoleAdapter consoleAdapter = new AdminConsoleAdapter(mailSuite);
+            consoleAdapter.addMailbox("test.domain", "user", "pass", null);
+
+            IMAPSessionParker sessionParker = mailSuite.getIMAPChannelService().getSessionParker();
+
+            List<Socket> sockets = new ArrayList<>();
+            List<InputStream> inputs = new ArrayList<>();
+            try {
+                long started = System.currentTimeMillis();
+                for (int i = 0; i < sessions; i++) {
+                    Socket socket = new Socket("localhost", mailSuite.getIMAPPort());
+                    socket.setSoTimeout(60000);
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), 512);
+                    sockets.add(socket);
+                    inputs.add(in);
+
+                    readUntil(in, "* OK");
+                    send(socket, "a LOGIN user@test.domain pass");
+                    readUntil(in, "a OK");
+                    send(socket, "b SELECT INBOX");
+                    readUntil(in, "b OK");
+                    send(socket, "c IDLE");
+                    readUntil(in, "+");
+                }
+                System.out.println(sessions + " sessions in IDLE after " + (System.currentTimeMillis() - started) + "ms");
+
+                System.out.println("Parked " + sessionParker.getParkedCount() + ", IMAP threads " + imapThreads());
+                checkThreads(workers);
+
+                started = System.currentTimeMillis();
+                sendEmail(mailSuite.getSMTPPort(), "Test message", "Message body");
+                for (InputStream in : inputs) {
+                    readUntil(in, "* 1 EXISTS");
+                }
+                System.out.println("New message pushed to all sessions in " + (System.currentTimeMillis() - started) + "ms");
+
+                started = System.currentTimeMillis();
+                for (Socket socket : sockets) {
+                    send(socket, "DONE");
+                }
+                for (InputStream in : inputs) {
+                    readUntil(in, "c OK");
+                }
+                System.out.println("All sessions left IDLE in " + (System.currentTimeMillis() - started) + "ms");
+
+                checkThreads(workers);
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static long imapThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> t.getName().toLowerCase().startsWith("imap"))
+            .count();
+    }
+
+    private static void checkThreads(int workers) {
+        // Workers, acceptor, session parker and notification scheduler
+        long threads = imapThreads();
+        if (threads > workers + 3) {
+            throw new AssertionError("Expected at most " + (workers + 3) + " IMAP threads but got " + threads);
+        }
+    }
+
+    private static void send(Socket socket, String line) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readUntil(InputStream in, String prefix) throws IOException {
+        while (true) {
+            StringBuilder line = new StringBuilder();
+            int c = in.read();
+            while (c != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Connection closed while waiting for " + prefix);
+                }
+                if (c != '\r') {
+                    line.append((char)c);
+                }
+                c = in.read();
+            }
+            if (line.toString().startsWith(prefix)) {
+                return line.toString();
+            }
+        }
+    }
+}
@@ -15,12 +15,57 @@ package org.abstracthorizon.mercury.maildir;
 import javax.mail.Flags;
 
 /**
- * Utility class for handling maildir flags
+ * Utility class for handling maildir flags. Flags are kept as bits ({@link #DRAFT},
+ * {@link #FLAGGED}, {@link #ANSWERED}, {@link #SEEN} and {@link #DELETED}) and
+ * converted to <code>javax.mail.Flags</code> only when JavaMail API needs them.
  *
  *  @author Daniel Sendula
  */
 public class FlagUtilities {
 
+    /** Bit for DRAFT flag */
+    public static final int DRAFT = 1;
+
+    /** Bit for FLAGGED flag */
+    public static final int FLAGGED = 2;
+
+    /** Bit for ANSWERED flag */
+    public static final int ANSWERED = 4;
+
+    /** Bit for SEEN flag */
+    public static final int SEEN = 8;
+
+    /** Bit for DELETED flag */
+    public static final int DELETED = 16;
+
+    /** All flag bits */
+    public static final int ALL = DRAFT | FLAGGED | ANSWERED | SEEN | DELETED;
+
+    /** Maildir strings of all combinations of flag bits */
+    protected static final String[] MAILDIR_STRINGS = new String[ALL + 1];
+
+    static {
+        for (int bits = 0; bits <= ALL; bits++) {
+            StringBuilder buf = new StringBuilder();
+            if ((bits & DRAFT) != 0) {
+                buf.append('D');
+            }
+            if ((bits & FLAGGED) != 0) {
+                buf.append('F');
+            }
+            if ((bits & ANSWERED) != 0) {
+                buf.append('R');
+            }
+            if ((bits & SEEN) != 0) {
+                buf.append('S');
+            }
+            if ((bits & DELETED) != 0) {
+                buf.append('T');
+            }
+            MAILDIR_STRINGS[bits] = buf.toString();
+        }
+    }
+
     /**
      * Masked private constructor
      */
@@ -44,23 +89,16 @@ public class FlagUtilities {
         if (flags == null) {
             return "";
         }
-        StringBuffer buf = new StringBuffer();
-        if (flags.contains(javax.mail.Flags.Flag.DRAFT)) {
-            buf.append('D');
-        }
-        if (flags.contains(javax.mail.Flags.Flag.FLAGGED)) {
-            buf.append('F');
-        }
-        if (flags.contains(javax.mail.Flags.Flag.ANSWERED)) {
-            buf.append('R');
-        }
-        if (flags.contains(javax.mail.Flags.Flag.SEEN)) {
-            buf.append('S');
-        }
-        if (flags.contains(javax.mail.Flags.Flag.DELETED)) {
-            buf.append('T');
-        }
-        return buf.toString();
+        return toMaildirString(toBits(flags));
+    }
+
+    /**
+     * Returns maildir string of given flag bits. Strings are shared so nothing is allocated.
+     * @param bits bits as defined by {@link #DRAFT}, {@link #FLAGGED}, {@link #ANSWERED}, {@link #SEEN} and {@link #DELETED}
+     * @return string in maildir format
+     */
+    public static String toMaildirString(int bits) {
+        return MAILDIR_STRINGS[bits & ALL];
     }
 
     /**
@@ -76,25 +114,86 @@ public class FlagUtilities {
      * @return flags set
      */
     public static Flags fromMaildirString(String str) {
-        Flags flags = new Flags();
-        int len = str.length();
-        if ((str == null) || (len == 0)) {
-            return flags;
+        if (str == null) {
+            return new Flags();
         }
-        for (int i = 0; i < len; i++) {
-            char c = Character.toUpperCase(str.charAt(i));
+        return fromBits(bitsFromMaildirString(str, 0));
+    }
+
+    /**
+     * Returns bits of flags from maildir flags part of the file name. Only
+     * characters from <code>start</code> to the end of the name are checked.
+     * @param name file name
+     * @param start index of first flag character
+     * @return bits as defined by {@link #DRAFT}, {@link #FLAGGED}, {@link #ANSWERED}, {@link #SEEN} and {@link #DELETED}
+     */
+    public static int bitsFromMaildirString(CharSequence name, int start) {
+        int bits = 0;
+        int len = name.length();
+        for (int i = start; i < len; i++) {
+            char c = Character.toUpperCase(name.charAt(i));
             if (c == 'D') {
-                flags.add(Flags.Flag.DRAFT);
+                bits = bits | DRAFT;
             } else if (c == 'F') {
-                flags.add(Flags.Flag.FLAGGED);
+                bits = bits | FLAGGED;
             } else if (c == 'R') {
-                flags.add(Flags.Flag.ANSWERED);
+                bits = bits | ANSWERED;
             } else if (c == 'S') {
-                flags.add(Flags.Flag.SEEN);
+                bits = bits | SEEN;
             } else if (c == 'T') {
-                flags.add(Flags.Flag.DELETED);
+                bits = bits | DELETED;
             }
         }
+        return bits;
+    }
+
+    /**
+     * Returns bits of given flags. User flags and <code>RECENT</code> are ignored.
+     * @param flags flags
+     * @return bits as defined by {@link #DRAFT}, {@link #FLAGGED}, {@link #ANSWERED}, {@link #SEEN} and {@link #DELETED}
+     */
+    public static int toBits(Flags flags) {
+        int bits = 0;
+        if (flags.contains(Flags.Flag.DRAFT)) {
+            bits = bits | DRAFT;
+        }
+        if (flags.contains(Flags.Flag.FLAGGED)) {
+            bits = bits | FLAGGED;
+        }
+        if (flags.contains(Flags.Flag.ANSWERED)) {
+            bits = bits | ANSWERED;
+        }
+        if (flags.contains(Flags.Flag.SEEN)) {
+            bits = bits | SEEN;
+        }
+        if (flags.contains(Flags.Flag.DELETED)) {
+            bits = bits | DELETED;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns flags of given bits. Bits other than ones defined here are ignored.
+     * @param bits bits as defined by {@link #DRAFT}, {@link #FLAGGED}, {@link #ANSWERED}, {@link #SEEN} and {@link #DELETED}
+     * @return flags
+     */
+    public static Flags fromBits(int bits) {
+        Flags flags = new Flags();
+        if ((bits & DRAFT) != 0) {
+            flags.add(Flags.Flag.DRAFT);
+        }
+        if ((bits & FLAGGED) != 0) {
+            flags.add(Flags.Flag.FLAGGED);
+        }
+        if ((bits & ANSWERED) != 0) {
+            flags.add(Flags.Flag.ANSWERED);
+        }
+        if ((bits & SEEN) != 0) {
+            flags.add(Flags.Flag.SEEN);
+        }
+        if ((bits & DELETED) != 0) {
+            flags.add(Flags.Flag.DELETED);
+        }
         return flags;
     }
 
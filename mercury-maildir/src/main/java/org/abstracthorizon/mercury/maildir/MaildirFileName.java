@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+/**
+ * <p>Parser of maildir file names. File name consists of base name, optionally followed
+ * by info separator, {@link MaildirMessage#FLAGS_SEPERATOR} and flags. Base name may contain
+ * message's size after {@link MaildirMessage#SIZE_TAG}.
+ * </p>
+ * <p>Methods work on any <code>CharSequence</code> and only return positions and values
+ * so nothing is allocated while parsing. Flags are returned as bits defined in {@link FlagUtilities}.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFileName {
+
+    /**
+     * Masked private constructor
+     */
+    private MaildirFileName() {
+    }
+
+    /**
+     * Returns index of {@link MaildirMessage#FLAGS_SEPERATOR} in the file name
+     * @param name file name
+     * @return index or -1 if file name has no flags
+     */
+    public static int infoIndex(CharSequence name) {
+        for (int i = name.length() - 2; i > 0; i--) {
+            if ((name.charAt(i) == '2') && (name.charAt(i + 1) == ',')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns length of base name
+     * @param name file name
+     * @return length of base name; whole name's length if there are no flags
+     */
+    public static int baseLength(CharSequence name) {
+        int i = infoIndex(name);
+        if (i > 0) {
+            return i - 1;
+        }
+        return name.length();
+    }
+
+    /**
+     * Returns base name. If name is a string without flags it is returned as is.
+     * @param name file name
+     * @return base name
+     */
+    public static String baseName(CharSequence name) {
+        int len = baseLength(name);
+        if ((len == name.length()) && (name instanceof String)) {
+            return (String)name;
+        }
+        return name.subSequence(0, len).toString();
+    }
+
+    /**
+     * Returns flag bits of the file name
+     * @param name file name
+     * @return bits as defined by {@link FlagUtilities}
+     */
+    public static int flagBits(CharSequence name) {
+        int i = infoIndex(name);
+        if (i > 0) {
+            return FlagUtilities.bitsFromMaildirString(name, i + 2);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns message's size recorded in base name with {@link MaildirMessage#SIZE_TAG}
+     * @param name file name
+     * @return size or -1 if file name doesn't have it
+     */
+    public static long size(CharSequence name) {
+        int len = baseLength(name);
+        for (int i = len - 3; i >= 0; i--) {
+            if ((name.charAt(i) == ',') && (name.charAt(i + 1) == 'S') && (name.charAt(i + 2) == '=')) {
+                long size = 0;
+                int j = i + 3;
+                while ((j < len) && Character.isDigit(name.charAt(j))) {
+                    size = size * 10 + (name.charAt(j) - '0');
+                    j++;
+                }
+                if (j == i + 3) {
+                    return -1;
+                }
+                return size;
+            }
+        }
+        return -1;
+    }
+}
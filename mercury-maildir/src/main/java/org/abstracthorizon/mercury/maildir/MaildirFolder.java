@@ -13,11 +13,9 @@
 package org.abstracthorizon.mercury.maildir;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.mail.Flags;
 import javax.mail.Folder;
@@ -26,6 +24,7 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.event.ConnectionEvent;
 import javax.mail.event.FolderEvent;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.internet.MimeMessage;
 
 import org.abstracthorizon.mercury.maildir.util.MessageBase;
@@ -73,7 +72,8 @@ import org.abstracthorizon.mercury.maildir.util.MessageWrapper;
  * If subfolders are not allowed a zero length file of a name &quot;.nosubfolders&quot; will be written
  * in subdirectory and that would prevent new subfolders of being created. Existing subfolders won't
  * be affected. <b>Note: this implementation does not write any other files or alters the folder's directoy
- * in any way.</b>.
+ * in any way</b> apart from &quot;.index&quot; file which caches folder's messages
+ * (see {@link org.abstracthorizon.mercury.maildir.MaildirFolderIndex}).
  * </p>
  *
  * <p>Note: if subdirectory of folder's name exist this implementation will try to create <i>tmp</i>,
@@ -104,14 +104,9 @@ public class MaildirFolder extends Folder {
 
     /**
      * Since folder must have messages ordered as at the time when it is opened
-     * this is the list that contains it.
+     * this is the list that contains it. Messages are created as they are asked for.
      */
-    protected List<MessageBase> messages;
-
-    /** Map that maps folder data messages to folder messages. */
-    protected HashMap<MimeMessage, MessageWrapper> map;
-
-    protected Message[] cacheArray;
+    protected MaildirFolderMessages messages;
 
     /**
      * Constructor.
@@ -137,7 +132,7 @@ public class MaildirFolder extends Folder {
      * subclasses of Maildir API.
      * @return folder messages
      */
-    public List<MessageBase> getFolderMessages() {
+    public MaildirFolderMessages getFolderMessages() {
         return messages;
     }
 
@@ -146,9 +141,8 @@ public class MaildirFolder extends Folder {
      * subclasses of Maildir API.
      * @param messages folder messages
      */
-    protected void setFolderMessages(List<MessageBase> messages) {
+    protected void setFolderMessages(MaildirFolderMessages messages) {
         this.messages = messages;
-        cacheArray = null;
     }
 
     /**
@@ -314,7 +308,6 @@ public class MaildirFolder extends Folder {
         }
 
         try {
-            map = new HashMap<MimeMessage, MessageWrapper>();
             folderData.open(this);
 
             this.mode = mode;
@@ -343,8 +336,6 @@ public class MaildirFolder extends Folder {
             folderData.close(this);
         } finally {
             messages = null;
-            cacheArray = null;
-            map = null;
             opened = false;
             notifyConnectionListeners(ConnectionEvent.CLOSED);
         }
@@ -378,26 +369,30 @@ public class MaildirFolder extends Folder {
 
     /**
      * Adds messages to the folder. It is called by {@link MaildirFolderData}
-     * @param messages messages to be added
+     * @param rows rows of messages in folder data's table in ascending order
      * @param notify should folder listeners be notified for new messages to be added
      * @throws MessagingException
      */
-    protected void addMessages(List<MaildirMessage> messages, boolean notify) throws MessagingException {
-        int size = messages.size();
-        MessageBase[] wrappers = new MessageBase[size];
-        for (int i = 0; i < size; i++) {
-            MaildirMessage msg = messages.get(i);
-            wrappers[i] = addMessage(msg, i+1);
-        }
-
-        List<MessageBase> ms = Arrays.asList(wrappers);
-        if (ms.size() > 0) {
-            this.messages.addAll(ms);
-            cacheArray = null;
-
-            if (notify) {
-                Message[] msgs = new Message[ms.size()];
-                msgs = ms.toArray(msgs);
+    protected void addMessages(int[] rows, boolean notify) throws MessagingException {
+        int[] indexes = messages.add(rows);
+        if (notify) {
+            int cnt = 0;
+            Message[] msgs = new Message[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] >= 0) {
+                    int index = messages.indexOfRow(rows[i]);
+                    if (index >= 0) {
+                        msgs[cnt] = messages.getMessage(index);
+                        cnt++;
+                    }
+                }
+            }
+            if (cnt > 0) {
+                if (cnt < msgs.length) {
+                    Message[] res = new Message[cnt];
+                    System.arraycopy(msgs, 0, res, 0, cnt);
+                    msgs = res;
+                }
                 notifyMessageAddedListeners(msgs);
             }
         }
@@ -411,60 +406,103 @@ public class MaildirFolder extends Folder {
      * @throws MessagingException
      */
     protected List<? extends MimeMessage> removeMessages(Collection<? extends MimeMessage> messages, boolean explicit) throws MessagingException {
-        ArrayList<MimeMessage> expunged = new ArrayList<MimeMessage>();
-
-        Iterator<? extends MimeMessage> it = messages.iterator();
-        while (it.hasNext()) {
-            MimeMessage msg = it.next();
-            MessageWrapper removed = removeMessage(msg);
-
-            if (removed != null) {
-                expunged.add(removed);
-            }
-        }
+        List<MessageBase> expunged = this.messages.remove(messages, explicit);
 
         if (expunged.size() > 0) {
-            this.messages.removeAll(expunged);
-            cacheArray = null;
             MessageBase[] msgs = new MessageBase[expunged.size()];
             msgs = expunged.toArray(msgs);
-            int size = this.messages.size();
-            if (explicit && (size > 0)) {
-                MaildirFolderData.renumerateMessages(1, this.messages);
-            }
             notifyMessageRemovedListeners(explicit, msgs);
         }
         return expunged;
     }
 
     /**
-     * Adds message to folder's internal storage. This method wraps message as well.
-     * @param msg folder data message
-     * @param num message number
-     * @return wrapped message
-     * @throws MessagingException
+     * Called by {@link MaildirFolderData} once for all messages whose flags are changed
+     * through some other folder. Only messages this folder has already handed out are
+     * reported to message changed listeners.
+     * @param rows rows of changed messages in folder data's table in ascending order
      */
-    protected MessageWrapper addMessage(MimeMessage msg, int num) throws MessagingException {
-        MessageWrapper wrapper = new MessageWrapper(this, msg, num);
-        map.put(msg, wrapper);
-        return wrapper;
+    protected void messagesChanged(int[] rows) {
+        MaildirFolderMessages messages = this.messages;
+        if (messages != null) {
+            for (int row : rows) {
+                MessageBase message = messages.getCachedMessage(messages.indexOfRow(row));
+                if (message != null) {
+                    notifyMessageChangedListeners(MessageChangedEvent.FLAGS_CHANGED, message);
+                }
+            }
+        }
     }
 
     /**
-     * This medhod removes message. Argument could be folder's message or folder data's message.
-     * @param msg message to be removed
-     * @return wrapped message that is removed
-     * @throws MessagingException
+     * Sets or resets flags of given messages at once. Messages of this folder are changed
+     * through {@link MaildirFolderData#setFlags(MaildirFolder, List, Flags, boolean)} so their
+     * files are renamed in parallel.
+     * @param msgs messages
+     * @param flag flags to be set or reset
+     * @param value should flags be set or reset
+     * @throws MessagingException if flags of any message cannot be changed. Exceptions for
+     * each of messages are chained to it.
      */
-    protected MessageWrapper removeMessage(MimeMessage msg) throws MessagingException {
-        if (msg instanceof MessageWrapper) {
-            msg = ((MessageWrapper)msg).getMessage();
+    public void setFlags(Message[] msgs, Flags flag, boolean value) throws MessagingException {
+        if (!isOpen()) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
+        }
+        List<MaildirMessage> list = new ArrayList<MaildirMessage>(msgs.length);
+        for (Message m : msgs) {
+            Message msg = m;
+            if (msg instanceof MessageWrapper) {
+                msg = ((MessageWrapper)msg).getMessage();
+            }
+            if ((msg instanceof MaildirMessage) && (((MaildirMessage)msg).maildirFolder == folderData)) {
+                list.add((MaildirMessage)msg);
+            } else {
+                m.setFlags(flag, value);
+            }
         }
-        MessageWrapper removed = (MessageWrapper)map.get(msg);
-        if (removed != null) {
-            map.remove(msg);
+        Map<MaildirMessage, MessagingException> failed = folderData.setFlags(this, list, flag, value);
+        if (!failed.isEmpty()) {
+            MessagingException exception = new MessagingException("Cannot set flags of " + failed.size() + " message(s)");
+            for (MessagingException e : failed.values()) {
+                exception.setNextException(e);
+            }
+            throw exception;
         }
-        return removed;
+    }
+
+    /**
+     * Sets or resets flags of messages in given range at once.
+     * @param start number of first message
+     * @param end number of last message
+     * @param flag flags to be set or reset
+     * @param value should flags be set or reset
+     * @throws MessagingException if flags of any message cannot be changed
+     */
+    public void setFlags(int start, int end, Flags flag, boolean value) throws MessagingException {
+        setFlags(getMessages(start, end), flag, value);
+    }
+
+    /**
+     * Sets or resets flags of messages with given numbers at once.
+     * @param msgnums message numbers
+     * @param flag flags to be set or reset
+     * @param value should flags be set or reset
+     * @throws MessagingException if flags of any message cannot be changed
+     */
+    public void setFlags(int[] msgnums, Flags flag, boolean value) throws MessagingException {
+        setFlags(getMessages(msgnums), flag, value);
+    }
+
+    /**
+     * Wraps folder data's message. Called when folder's message is asked for first time
+     * (or again after wrapper was released).
+     * @param msg folder data message
+     * @param num message number
+     * @return wrapped message
+     * @throws MessagingException
+     */
+    protected MessageWrapper createMessageWrapper(MaildirMessage msg, int num) throws MessagingException {
+        return new MessageWrapper(this, msg, num);
     }
 
     /**
@@ -474,10 +512,7 @@ public class MaildirFolder extends Folder {
      * @throws MessagingException
      */
     protected boolean hasMessage(MimeMessage msg) throws MessagingException {
-        if (msg instanceof MessageWrapper) {
-            msg = ((MessageWrapper)msg).getMessage();
-        }
-        return map.containsKey(msg);
+        return messages.indexOf(msg) >= 0;
     }
 
     /**
@@ -561,8 +596,21 @@ public class MaildirFolder extends Folder {
             return folderData.getNewMessageCount();
         } else {
             folderData.obtainMessages(); // Notify all folders of new messages
-            return super.getNewMessageCount();
+            return messages.count(MaildirMessageTable.NEW);
+        }
+    }
+
+    /**
+     * Returns number of messages without <code>SEEN</code> flag
+     * @return number of unread messages
+     * @throws MessagingException
+     */
+    public int getUnreadMessageCount() throws MessagingException {
+        if (!isOpen()) {
+            return super.getUnreadMessageCount();
         }
+        folderData.obtainMessages(); // Notify all folders of new messages
+        return messages.size() - messages.count(FlagUtilities.SEEN);
     }
 
     /**
@@ -575,7 +623,7 @@ public class MaildirFolder extends Folder {
         if (!isOpen()) {
             throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        return (Message)messages.get(msgNum-1);
+        return messages.getMessage(msgNum-1);
     }
 
     /**
@@ -587,11 +635,11 @@ public class MaildirFolder extends Folder {
         if (!isOpen()) {
             throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        if (cacheArray == null) {
-            cacheArray = new Message[messages.size()];
-            cacheArray = (Message[])messages.toArray(cacheArray);
+        Message[] res = new Message[messages.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = messages.getMessage(i);
         }
-        return cacheArray;
+        return res;
     }
 
 }
@@ -16,17 +16,23 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.regex.Pattern;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.mail.Flags;
 import javax.mail.Folder;
@@ -34,6 +40,7 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import org.abstracthorizon.mercury.maildir.file.GroupCommit;
 import org.abstracthorizon.mercury.maildir.util.MessageBase;
 import org.abstracthorizon.mercury.maildir.util.MessageWrapper;
 
@@ -49,11 +56,36 @@ import org.abstracthorizon.mercury.maildir.util.MessageWrapper;
  * That is maintained in store itself</p>
  *
  * <p>Messages that are present in folder data are later wrapped inside of
- * folder. Pair of (message, file) is kept in folder data's cache.
- * Cache for each directory is maintained as long as there are opened folders
- * over that directory. After that time it is left to be collected throught
- * weak reference. If folder over folder data is opened before reference
- * is garbage collected it is reused.
+ * folder. Messages are kept as rows of {@link MaildirMessageTable} and message
+ * objects are created only when needed.
+ * Table for each directory is maintained as long as there are opened folders
+ * over that directory. After that time it is kept in bounded {@link MaildirFolderDataCache}
+ * and, if cache doesn't take it, left to be collected throught weak reference.
+ * If folder over the same directory is opened while table is still there it is reused,
+ * even by folder data of another store over the same mailbox. Directories of reused table
+ * are not read again if they have not been modified since folder was closed.
+ * </p>
+ *
+ * <p>Folder's messages are also recorded in persistent index (see {@link MaildirFolderIndex})
+ * when last folder over folder data is closed. When folder data is opened again index is used
+ * instead of reading directories and files whose directories haven't changed in the meantime.
+ * </p>
+ *
+ * <p>While folder data is open its <i>new</i> and <i>cur</i> directories are watched by
+ * {@link MaildirFolderWatcher} and changes made by others are applied as they happen.
+ * Directories are read again only if watching is not available or watch queue overflowed.
+ * </p>
+ *
+ * <p>Concurrency: folder data's monitor guards changes of the folder's structure -
+ * opening and closing, reading directories, registering delivered messages and expunging.
+ * Those are short sections; appended messages' content is written (and synced) outside of it,
+ * in <i>tmp</i> directory. Only moving written files to their place, naming them (and giving
+ * them UIDs) and adding them to the table is done holding the monitor, so messages are added
+ * in the order of their UIDs. Readers do not take the monitor:
+ * messages are read from the table (see {@link MaildirMessageTable}) which has its own lock
+ * with optimistic reads, and counts and checks whether directories need to be read again
+ * use volatile fields. Open folders are kept in a copy-on-write list so other sessions are
+ * notified of changes without any lock held over all of them.
  * </p>
  *
  * @author Daniel Sendula
@@ -103,25 +135,37 @@ public class MaildirFolderData extends Folder {
     protected String cachedName;
 
     /** Last time folder data was accessed or 0 if no open folders */
-    protected long lastAccess;
+    protected volatile long lastAccess;
 
     /** Amount of time between two accesses. TODO - make this as an attribute */
-    protected int delay = 1000; // 1 sec
+    protected volatile int delay = 1000; // 1 sec
 
     /** Delay factor - amount of time needed for reading directory vs delay. TODO - make this as an attribute */
     protected int delayFactor = 3;
 
-    /** List of open folders */
-    protected WeakHashMap<Folder, Object> openedFolders = new WeakHashMap<Folder, Object>();
+    /** Are directories watched by {@link MaildirFolderWatcher}. If not they are polled using delay */
+    protected volatile boolean watched;
+
+    /** Set when directories must be read again regardless of watching or delay */
+    protected volatile boolean rescanNeeded;
+
+    /** List of open folders. Folders are weakly referenced as they may be dropped without being closed */
+    protected CopyOnWriteArrayList<WeakReference<MaildirFolder>> openedFolders = new CopyOnWriteArrayList<WeakReference<MaildirFolder>>();
 
     /** Folder's data */
-    protected Data data;
+    protected volatile Data data;
 
     /** Weak reference to data when there are no open folders */
     protected Reference<Data> closedRef;
 
     /** Count of open folders. When count reaches zero, storage may remove this folder data */
-    protected int openCount = 0;
+    protected volatile int openCount = 0;
+
+    /** Modification time of <i>cur</i> directory last index is stored/loaded with or -1 if unknown */
+    protected long indexCurModified = -1;
+
+    /** Modification time of <i>new</i> directory last index is stored/loaded with or -1 if unknown */
+    protected long indexNewModified = -1;
 
     /**
      * Constructor
@@ -289,17 +333,15 @@ public class MaildirFolderData extends Folder {
     }
 
     /**
-     * Lists subfolder names.
+     * Lists subfolder names. Names are matched against store's folder tree
+     * (see {@link MaildirFolderTree}).
      * @param pattern pattern
      * @return list of subfolder names
      * @throws MessagingException
      */
     public String[] listNames(String pattern) throws MessagingException {
         if ((pattern == null) || (pattern.length() == 0)) {
-            pattern = ".*";
-        } else {
-            pattern = pattern.replaceAll("[*]", ".*?");
-            pattern = pattern.replaceAll("[%]", "[^/]*?");
+            pattern = "*";
         }
 
         String n = getFullName();
@@ -307,35 +349,7 @@ public class MaildirFolderData extends Folder {
         if (n.length() > 0) {
             pattern = n+'/'+pattern;
         }
-        Pattern p = Pattern.compile(pattern);
-
-        boolean leadingDot = store.isLeadingDot();
-        ArrayList<String> res = new ArrayList<String>();
-
-        File[] files = store.getBaseFile().listFiles();
-        if (files != null) {
-            for (int i = 0; i < files.length; i++) {
-                if (files[i].isDirectory()) {
-                    String name = files[i].getName();
-                    if (!"tmp".equals(name) && !"new".equals(name) && !"cur".equals(name) &&
-                            ((leadingDot && name.startsWith(".")) || (!leadingDot && !name.startsWith(".")))) {
-
-                        if (leadingDot) {
-                            name = name.substring(1);
-                        }
-                        name = name.replace('.', '/');
-                        if (pattern.equals("INBOX") && name.equalsIgnoreCase("INBOX")) {
-                            res.add(name);
-                        } else if (p.matcher(name).matches()) {
-                            res.add(name);
-                        }
-                    }
-                }
-            }
-        }
-
-        String[] array = new String[res.size()];
-        return res.toArray(array);
+        return store.getFolderTree().listNames(pattern);
     }
 
     /**
@@ -391,6 +405,7 @@ public class MaildirFolderData extends Folder {
             }
         }
         this.type = type;
+        store.getFolderTree().folderCreated(this);
         return true;
     }
 
@@ -418,11 +433,18 @@ public class MaildirFolderData extends Folder {
             }
         }
 
-        return deleteAll(getFolderFile());
+        store.getFolderDataCache().invalidate(getFolderFile());
+        boolean res = deleteAll(getFolderFile());
+        if (res) {
+            store.getFolderTree().folderDeleted(getFullName());
+            store.getMaildirSize().invalidate();
+        }
+        return res;
     }
 
     /**
      * Utility method that deletes all subdirectories and files from given directory.
+     * Files of single instance store deleted message files were linked to are released.
      * @param file directory to be deleted
      * @return <code>true<code> if operation was successful.
      */
@@ -434,8 +456,12 @@ public class MaildirFolderData extends Folder {
             for (int i = 0; i < files.length; i++) {
                 if (files[i].isDirectory()) {
                     res = deleteAll(files[i]) && res;
+                } else if (files[i].delete()) {
+                    if (store.getInstanceStore() != null) {
+                        store.getInstanceStore().releaseName(files[i].getName());
+                    }
                 } else {
-                    res = files[i].delete() && res;
+                    res = false;
                 }
             }
         }
@@ -526,160 +552,385 @@ public class MaildirFolderData extends Folder {
 
    private void purgeDelDirFiles() {
        long thirtyDaysAgo = System.currentTimeMillis() - 30L * 24L * 60L * 60L * 1000L;
-       File[] files = getDelDir().listFiles();
-       for (File f : files) {
-           if (!f.getName().startsWith(".") && f.lastModified() < thirtyDaysAgo) {
-               if (!f.delete()) {
-                   // TODO should we complain?
+       MaildirInstanceStore instanceStore = store.getInstanceStore();
+       try {
+           DirectoryStream<Path> stream = openDirectoryStream(getDelDir());
+           if (stream != null) {
+               try {
+                   for (Path path : stream) {
+                       File f = path.toFile();
+                       if (!f.getName().startsWith(".") && f.lastModified() < thirtyDaysAgo) {
+                           if (!f.delete()) {
+                               // TODO should we complain?
+                           } else if (instanceStore != null) {
+                               // Release what expunge might have missed, for instance if it was interrupted
+                               instanceStore.releaseName(f.getName());
+                           }
+                       }
+                   }
+               } finally {
+                   stream.close();
                }
            }
+       } catch (IOException ignore) {
+       } catch (DirectoryIteratorException ignore) {
        }
     }
 
+    /**
+     * Returns table of folder data's messages
+     * @return table or <code>null</code> if there are no opened folders
+     */
+    protected MaildirMessageTable getTable() {
+        Data data = this.data;
+        if (data != null) {
+            return data.table;
+        }
+        return null;
+    }
+
 // ---------------------------------------------------------------------------------------
 
     /**
-     * Returns message count. This implementation checks files on the disk - new and cur directories.
+     * Returns message count. This implementation uses folder's index if it is up to date
+     * or checks files on the disk - new and cur directories.
      * @return message count
      * @throws MessagingException never
      */
     @Override
     public int getMessageCount() throws MessagingException {
-        synchronized (this) {
-            if (data != null) {
-                return data.messages.size();
-            }
+        Data data = this.data;
+        if (data != null) {
+            return data.table.getMessageCount();
         }
 
-        int len = 0;
-        if (getNewDir().exists()) {
-            String[] fs = getNewDir().list();
-            if (fs != null) {
-                len = len + fs.length;
-            }
-        }
-        if (getCurDir().exists()) {
-            String[] fs = getCurDir().list();
-            if (fs != null) {
-                len = len + fs.length;
-            }
+        MaildirFolderIndex summary = loadCurrentIndexSummary();
+        if (summary != null) {
+            return summary.getTotal();
         }
 
-        return len;
+        return countFiles(getNewDir()) + countFiles(getCurDir());
     }
 
     /**
-     * Returns new message count. This implementation checks files on the disk - only in new directory.
+     * Returns new message count. This implementation uses folder's index if it is up to date
+     * or checks files on the disk - only in new directory.
      * @return new message count
      * @throws MessagingException never
      */
     @Override
     public int getNewMessageCount() throws MessagingException {
-        synchronized (this) {
-            if (data != null) {
-                int cnt = 0;
-                Iterator<MaildirMessage> it = data.messages.iterator();
-                while (it.hasNext()) {
-                    Message msg = it.next();
-                    if (msg.isSet(Flags.Flag.RECENT)) {
-                        cnt++;
+        Data data = this.data;
+        if (data != null) {
+            return data.table.getNewMessageCount();
+        }
+        MaildirFolderIndex summary = loadCurrentIndexSummary();
+        if (summary != null) {
+            return summary.getRecent();
+        }
+        return countFiles(getNewDir());
+    }
+
+    /**
+     * Returns folder's size - sum of message file sizes and number of messages. Sizes are taken
+     * from folder data's table if folder is open, from folder's index if it is up to date or
+     * from files in <i>new</i> and <i>cur</i> directories otherwise. Folder data's monitor
+     * is not taken so method can be called while other folder data's monitor is held.
+     * @return array of size in bytes and number of messages
+     */
+    protected long[] calculateSize() {
+        Data data = this.data;
+        if (data != null) {
+            return new long[] {data.table.getTotalFileSize(), data.table.getMessageCount()};
+        }
+        long bytes = 0;
+        long count = 0;
+        MaildirFolderIndex index = MaildirFolderIndex.load(getFolderFile());
+        if ((index != null) && index.isCurrent(getCurDir().lastModified(), getNewDir().lastModified())) {
+            for (MaildirFolderIndex.Entry entry : index.getEntries()) {
+                bytes = bytes + entry.getSize();
+                count = count + 1;
+            }
+        } else {
+            File[] dirs = new File[] {getNewDir(), getCurDir()};
+            for (File dir : dirs) {
+                try {
+                    DirectoryStream<Path> stream = openDirectoryStream(dir);
+                    if (stream != null) {
+                        try {
+                            for (Path path : stream) {
+                                bytes = bytes + MaildirMessage.fileSizeOf(path.toFile());
+                                count = count + 1;
+                            }
+                        } finally {
+                            stream.close();
+                        }
                     }
+                } catch (IOException ignore) {
+                } catch (DirectoryIteratorException ignore) {
                 }
-                return cnt;
             }
         }
-        if (getNewDir().exists()) {
-            return getNewDir().list().length;
+        return new long[] {bytes, count};
+    }
+
+    /**
+     * Returns sum of messages' file sizes
+     * @param messages messages
+     * @return total size in bytes
+     */
+    protected static long getFileSize(List<MaildirMessage> messages) {
+        long bytes = 0;
+        for (MaildirMessage message : messages) {
+            if (message.getFileSize() > 0) {
+                bytes = bytes + message.getFileSize();
+            }
         }
-        return 0;
+        return bytes;
+    }
+
+    /**
+     * Returns folder index's summary if index exists and is up to date with
+     * <i>cur</i> and <i>new</i> directories.
+     * @return index summary or <code>null</code>
+     */
+    protected MaildirFolderIndex loadCurrentIndexSummary() {
+        MaildirFolderIndex summary = MaildirFolderIndex.loadSummary(getFolderFile());
+        if ((summary != null) && summary.isCurrent(getCurDir().lastModified(), getNewDir().lastModified())) {
+            return summary;
+        }
+        return null;
     }
 
     /**
      * This method is called by folder that is being opened. This implementation reads all files from the new and cur directories and
-     * wraps them in appropriate message message objects (see {@link #createExistingMaildirMessage(File, int)}).
+     * records them in folder data's table (see {@link MaildirMessageTable}).
      * @param folder folder that asked opening
      * @throws MessagingException thrown if an error is encountered while creating messages
      * @throws MessagingException thrown if an error is encountered while creating messages
      */
-    protected void open(MaildirFolder folder) throws MessagingException {
+    protected synchronized void open(MaildirFolder folder) throws MessagingException {
         if (openCount == 0) {
             checkDirs();
+            if (store.isWatch()) {
+                // Registered before directories are read so no change is missed
+                watched = MaildirFolderWatcher.getDefaultInstance().register(this);
+            }
+            // Changes while there were no open folders are not seen
+            rescanNeeded = true;
         }
         openCount = openCount + 1;
         if (data == null) { // Must be same as openCount == 1
-            if (closedRef != null) {
+            data = store.getFolderDataCache().take(this);
+            if (data != null) {
+                adopt(data);
+            } else if (closedRef != null) {
                 data = closedRef.get();
             }
             if (data == null) {
                 data = new Data();
-                data.messages = new ArrayList<MaildirMessage>();
-                data.files = new HashMap<String, MaildirMessage>();
+                data.table = new MaildirMessageTable(this);
+                // Fresh data must be read regardless of delay
+                lastAccess = 0;
+            } else {
+                // No folder refers to table's rows at the moment
+                data.table.compact();
             }
             closedRef = null;
         }
 
-        folder.setFolderMessages(createFolderMessages());
+        folder.setFolderMessages(createFolderMessages(folder));
         obtainMessages();
 
         // If folder is pronounced as opened here
         // it won't be filled with newly discovered messages so...
-        synchronized (openedFolders) {
-            openedFolders.put(folder, null);
-        }
+        openedFolders.add(new WeakReference<MaildirFolder>(folder));
         // ... this statement here will be only one that will add messages
-        folder.addMessages(data.messages, false);
+        folder.addMessages(data.table.getRows(), false);
     }
 
     /**
      * This method is called with folder that is closing.
      * @param folder folder that is closed
      */
-    protected void close(MaildirFolder folder) {
-        synchronized (openedFolders) {
-            openedFolders.remove(folder);
+    protected synchronized void close(MaildirFolder folder) {
+        for (WeakReference<MaildirFolder> ref : openedFolders) {
+            MaildirFolder f = ref.get();
+            if ((f == folder) || (f == null)) {
+                openedFolders.remove(ref);
+            }
         }
 
         openCount = openCount - 1;
         if (openCount == 0) {
-            closedRef = new WeakReference<Data>(data);
+            if (watched) {
+                MaildirFolderWatcher.getDefaultInstance().unregister(this);
+                watched = false;
+            }
+            storeIndex();
+            storeHeaderCache();
+            if (store.getFolderDataCache().put(this, data, store.getFolderCacheSize(), store.getFolderCacheMemory())) {
+                closedRef = null;
+            } else {
+                closedRef = new WeakReference<Data>(data);
+            }
             data = null;
         }
     }
 
     /**
-     * Appends messages to the folder.
+     * Returns <code>true</code> if data closed by given folder data can be used by this folder data.
+     * That is so if it is the same folder data or folder data of the same type from a store
+     * with the same info separator.
+     * @param folderData folder data that closed data
+     * @return <code>true</code> if data can be used
+     */
+    protected boolean canAdopt(MaildirFolderData folderData) {
+        return (folderData == this)
+            || ((folderData.getClass() == getClass()) && (folderData.store.getInfoSeparator() == store.getInfoSeparator()));
+    }
+
+    /**
+     * Takes data from the cache. If it was closed by another folder data its table is moved
+     * to this folder data. If directories are not modified since they were last read into
+     * data's table they are not read again. Must be called with folder data's monitor held,
+     * after folder data is marked as opened.
+     * @param data data
+     */
+    protected void adopt(Data data) {
+        if (data.table.folderData != this) {
+            data.table.setFolderData(this);
+            if ((data.headerCache != null) && !Arrays.equals(data.headerCache.getHeaderNames(), store.getCachedHeaders())) {
+                data.headerCache = null;
+            }
+        }
+        if ((data.scannedCurModified != 0) && (data.scannedNewModified != 0)
+                && (data.scannedCurModified == getCurDir().lastModified())
+                && (data.scannedNewModified == getNewDir().lastModified())) {
+            rescanNeeded = false;
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Appends messages to the folder. Messages' files are written (and synced if needed) outside
+     * of folder data's monitor. Only moving them to their place and adding them to the table
+     * is done holding it (see {@link #deliverMessages(MaildirFolder, List)}) so messages are
+     * added in the order they get their names (and UIDs).
      * @param folder folder that initiated appending messages
      * @param messages array of messages
      * @throws MessagingException thrown while creating new message.
      */
     protected void appendMessages(MaildirFolder folder, Message[] messages) throws MessagingException {
-        ArrayList<MaildirMessage> addedMessages = new ArrayList<MaildirMessage>();
+        ArrayList<MaildirMessage> writtenMessages = new ArrayList<MaildirMessage>();
         Exception exception = null;
         int num = 0;
-        if ((folder != null) && folder.isOpen()) {
-            num = folder.getMessageCount();
+        MaildirFolderMessages folderMessages = folder != null ? folder.getFolderMessages() : null;
+        if (folderMessages != null) {
+            num = folderMessages.size();
         }
-        for (int i = 0; i < messages.length; i++) {
-            try {
-                MaildirMessage message = createNewMaildirMessage((MimeMessage)messages[i], num);
-                if (data != null) {
-                    data.files.put(message.getBaseName(), message);
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                try {
+                    MaildirMessage source = getSourceMaildirMessage(messages[i]);
+                    MaildirMessage message = null;
+                    if (source != null) {
+                        try {
+                            message = createCopiedMaildirMessage(source, num);
+                        } catch (IOException ignore) {
+                            // Falling back to storing message's content
+                        }
+                    }
+                    if (message == null) {
+                        message = createNewMaildirMessage((MimeMessage)messages[i], num);
+                    }
+                    num = num + 1;
+                    writtenMessages.add(message);
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        } finally {
+            if (writtenMessages.size() > 0) {
+                List<MaildirMessage> addedMessages = deliverMessages(folder, writtenMessages);
+                if (addedMessages.size() < writtenMessages.size()) {
+                    exception = new IOException("Cannot move " + (writtenMessages.size() - addedMessages.size()) + " message file(s) from " + getTmpDir().getAbsolutePath());
+                }
+                store.getMaildirSize().update(getFullName(), getFileSize(addedMessages), addedMessages.size());
+                try {
+                    syncDelivered(addedMessages);
+                } catch (IOException e) {
+                    exception = e;
                 }
-                num = num + 1;
-                addedMessages.add(message);
-            } catch (IOException e) {
-                exception = e;
             }
-        }
-        if (addedMessages.size() > 0) {
-            // folder.addMessages(addedMessages, true);
-            addMessages(folder, addedMessages);
         }
         if (exception != null) {
             throw new MessagingException("Adding message failed", exception);
         }
     }
 
+    /**
+     * Moves written messages' files to their places, records them in folder data's table and
+     * adds them to open folders. Message whose file is already found by {@link MaildirFolderWatcher}
+     * is not added again. Files of messages that cannot be moved are removed.
+     * @param folder folder that initiated appending messages or <code>null</code>
+     * @param messages written messages
+     * @return delivered messages
+     * @throws MessagingException
+     */
+    protected synchronized List<MaildirMessage> deliverMessages(MaildirFolder folder, List<MaildirMessage> messages) throws MessagingException {
+        ArrayList<MaildirMessage> deliveredMessages = new ArrayList<MaildirMessage>(messages.size());
+        for (MaildirMessage message : messages) {
+            try {
+                message.deliver();
+                deliveredMessages.add(message);
+            } catch (MessagingException e) {
+                message.file.delete();
+            }
+        }
+        Data data = this.data;
+        if (data != null) {
+            ArrayList<MaildirMessage> addedMessages = new ArrayList<MaildirMessage>(deliveredMessages.size());
+            for (MaildirMessage message : deliveredMessages) {
+                if (data.table.findName(message.file.getName()) < 0) {
+                    int row = data.table.add(message, getIndexedUID(message));
+                    data.table.sort(row);
+                    addedMessages.add(message);
+                }
+            }
+            addMessages(folder, addedMessages);
+        }
+        return deliveredMessages;
+    }
+
+    /**
+     * Makes moves of delivered messages' files durable if store's durability property
+     * requires so. Each directory is synced once; with group durability directory syncs are
+     * shared with concurrent deliveries (see {@link GroupCommit#commitDirectory(File)}).
+     * @param messages delivered messages
+     * @throws IOException if directory cannot be synced
+     */
+    protected void syncDelivered(List<MaildirMessage> messages) throws IOException {
+        String durability = store.getDurability();
+        GroupCommit groupCommit = null;
+        if (MaildirStore.DURABILITY_GROUP.equals(durability)) {
+            groupCommit = store.getGroupCommit();
+        } else if (!MaildirStore.DURABILITY_MESSAGE.equals(durability)) {
+            return;
+        }
+        Set<File> dirs = new LinkedHashSet<File>();
+        for (MaildirMessage message : messages) {
+            dirs.add(message.file.getParentFile());
+        }
+        for (File dir : dirs) {
+            if (groupCommit != null) {
+                groupCommit.commitDirectory(dir);
+            } else {
+                GroupCommit.syncDirectory(dir);
+            }
+        }
+    }
+
     /**
      * Appends messages to the maildir data. This method doesn't append messages to any
      * specific folder - but all opened.
@@ -691,6 +942,63 @@ public class MaildirFolderData extends Folder {
         appendMessages(null, messages);
     }
 
+    /**
+     * Sets or resets flags of given messages at once. New file names are worked out in memory
+     * and files are renamed in parallel on store's file task pool (see {@link MaildirStore#getFileTaskPool()}).
+     * Other open folders are notified of changed messages once for the whole batch.
+     * Failure of one message doesn't stop the others.
+     * @param folder folder messages are changed through or <code>null</code>
+     * @param messages folder data's messages
+     * @param flags flags to be set or reset
+     * @param set should flags be set or reset
+     * @return messages whose flags could not be changed with the reason; empty if all succeeded
+     */
+    public Map<MaildirMessage, MessagingException> setFlags(MaildirFolder folder, final List<MaildirMessage> messages, final Flags flags, final boolean set) {
+        final boolean[] changed = new boolean[messages.size()];
+        final MessagingException[] errors = new MessagingException[messages.size()];
+        List<Runnable> tasks = new ArrayList<Runnable>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final int index = i;
+            tasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        changed[index] = messages.get(index).updateFlags(flags, set);
+                    } catch (MessagingException e) {
+                        errors[index] = e;
+                    } catch (RuntimeException e) {
+                        errors[index] = new MessagingException("Cannot set flags", e);
+                    }
+                }
+            });
+        }
+        getMaildirStore().getFileTaskPool().run(tasks);
+
+        Map<MaildirMessage, MessagingException> failed = new LinkedHashMap<MaildirMessage, MessagingException>();
+        int[] rows = new int[messages.size()];
+        int cnt = 0;
+        Data data = this.data;
+        for (int i = 0; i < changed.length; i++) {
+            MaildirMessage message = messages.get(i);
+            if (errors[i] != null) {
+                failed.put(message, errors[i]);
+            } else if (changed[i] && (data != null) && (message.table == data.table) && (message.row >= 0)) {
+                rows[cnt] = message.row;
+                cnt++;
+            }
+        }
+        if (cnt > 0) {
+            rows = Arrays.copyOf(rows, cnt);
+            Arrays.sort(rows);
+            for (WeakReference<MaildirFolder> ref : openedFolders) {
+                MaildirFolder extFolder = ref.get();
+                if ((extFolder != null) && (extFolder != folder)) {
+                    extFolder.messagesChanged(rows);
+                }
+            }
+        }
+        return failed;
+    }
+
     /**
      * Expunges messages for given folder.
      * @param folder folder
@@ -700,29 +1008,50 @@ public class MaildirFolderData extends Folder {
      */
     protected List<? extends Message> expunge(MaildirFolder folder, boolean explicit) throws MessagingException {
         ArrayList<MaildirMessage> expunged = new ArrayList<MaildirMessage>();
-        List<MaildirMessage> messages = getFolderMessages(folder);
+        MaildirMessageTable table = folder.getFolderMessages().getTable();
+        int[] rows = folder.getFolderMessages().getRows();
 
-        Iterator<MaildirMessage> it = messages.iterator();
-        while (it.hasNext()) {
-            MaildirMessage message = it.next();
-            if (!message.isExpunged() && message.getFlags().contains(Flags.Flag.DELETED)) {
-                expunged.add(message);
+        for (int row : rows) {
+            if (table.isRemoved(row)) {
+                continue;
+            }
+            MaildirMessage message = table.getCached(row);
+            if (message != null) {
+                // Message's own flags may not be in file name yet
+                if (!message.isExpunged() && message.getFlags().contains(Flags.Flag.DELETED)) {
+                    expunged.add(message);
+                }
+            } else if ((table.getFlags(row) & FlagUtilities.DELETED) != 0) {
+                expunged.add(table.get(row));
             }
         }
         if (expunged.size() > 0) {
-            it = expunged.iterator();
-            while (it.hasNext()) {
-                MaildirMessage msg = it.next();
-                if (!expungeMessage(msg)) {
-                    it.remove();
+            List<? extends Message> removed;
+            // Files are deleted under the monitor so directory scan or watcher
+            // cannot see messages half way through
+            synchronized (this) {
+                // Messages whose files could not be deleted are still removed from the table
+                // but not reported as expunged
+                ArrayList<MaildirMessage> deleted = new ArrayList<MaildirMessage>(expunged.size());
+                for (MaildirMessage msg : expunged) {
+                    int row = msg.row;
+                    if ((row < 0) || table.isRemoved(row)) {
+                        // Removed by someone else in the meantime
+                        continue;
+                    }
+                    if (expungeMessage(msg)) {
+                        deleted.add(msg);
+                    }
+                    table.remove(row);
                 }
-                data.messages.remove(msg);
-                data.files.remove(msg.getBaseName());
-            }
+                expunged = deleted;
 
-            removeMessages(folder, expunged);
-            // Remove method removes for all but folder
-            return folder.removeMessages(expunged, explicit);
+                removeMessages(folder, expunged);
+                // Remove method removes for all but folder
+                removed = folder.removeMessages(expunged, explicit);
+            }
+            store.getMaildirSize().update(getFullName(), -getFileSize(expunged), -expunged.size());
+            return removed;
         } else {
             // Zero sized list
             return expunged;
@@ -742,98 +1071,147 @@ public class MaildirFolderData extends Folder {
     }
 
     /**
-     * Returns folder's messages for given folder.
-     * This implementation unwraps messages from the folder.
-     *
-     * @param folder
-     * @return list of messages
+     * This method reads directory and creates messages for given folder.
+     * If there are no messages known yet, folder's index is consulted first:
+     * directories whose modification time matches the index are not read at all
+     * and files that are in the index are not checked on the disk.
+     * If directories are watched they are read only when folder data is opened
+     * or watch queue overflowed; otherwise they are polled using delay.
+     * Need for reading directories is checked before folder data's monitor is taken
+     * so callers do not wait for it when there is nothing to read.
+     * @throws MessagingException
      */
-    protected List<MaildirMessage> getFolderMessages(MaildirFolder folder) {
-        List<? extends MessageBase> messages = folder.getFolderMessages();
-        int size = messages.size();
-        ArrayList<MaildirMessage> unwrapped = new ArrayList<MaildirMessage>(size);
-        for (int i = 0; i < size; i++) {
-            MaildirMessage wrapped = (MaildirMessage)((MessageWrapper)messages.get(i)).getMessage();
-            unwrapped.add(wrapped);
+    protected void obtainMessages() throws MessagingException {
+        if (isScanNeeded(System.currentTimeMillis())) {
+            synchronized (this) {
+                scanMessages();
+            }
         }
-        return unwrapped;
     }
 
     /**
-     * This method reads directory and creates messages for given folder.
+     * Returns <code>true</code> if directories should be read
+     * @param time current time
+     * @return <code>true</code> if directories should be read
+     */
+    protected boolean isScanNeeded(long time) {
+        if (rescanNeeded || (lastAccess == 0)) {
+            return true;
+        } else if (watched) {
+            return false;
+        } else {
+            return (time - lastAccess) > delay;
+        }
+    }
+
+    /**
+     * Reads directories if it is still needed. Must be called with folder data's monitor held.
+     * <i>cur</i> directory is streamed and reconciled with the table in the caller's thread
+     * while names of (normally small) <i>new</i> directory are read on file task pool at the same time.
+     * Missing directory has no files but directory that cannot be read is an error
+     * rather than all its messages being expunged.
      * @throws MessagingException
      */
-    @SuppressWarnings("unchecked")
-    protected void obtainMessages() throws MessagingException {
+    protected void scanMessages() throws MessagingException {
         try {
-            // It is called from open so we do not need to sycnhronise - open is synchronised.
             long time = System.currentTimeMillis();
-            if ((time - lastAccess) > delay) {
-                int msgno = 1;
-                Set<String> scannedOldFiles = new HashSet<>();
-                Map<String, MaildirMessage> expunged = (HashMap<String, MaildirMessage>)data.files.clone();
-                ArrayList<MaildirMessage> newMessages = new ArrayList<MaildirMessage>();
-                File[] oldFiles = getCurDir().listFiles();
-                File[] newFiles = getNewDir().listFiles();
-                if (oldFiles != null) {
-                    for (int i = 0; i < oldFiles.length; i++) {
-                        String baseName = MaildirMessage.baseNameFromFile(oldFiles[i]);
-                        scannedOldFiles.add(baseName);
-                        MaildirMessage message = data.files.get(baseName);
-                        if (message == null) {
-                            // new file
-                            message = createExistingMaildirMessage(oldFiles[i], msgno);
-                            msgno++;
-                            newMessages.add(message);
-                            if (data != null) {
-                                data.files.put(message.getBaseName(), message);
-                            }
-                        } else {
-                            // we still have that file
-                            expunged.remove(baseName);
+            if (isScanNeeded(time)) {
+                rescanNeeded = false;
+                // Taken before directories are read so changes made while reading are not missed
+                long curModified = getCurDir().lastModified();
+                long newModified = getNewDir().lastModified();
+                MaildirMessageTable table = data.table;
+                MaildirFolderIndex index = null;
+                if (table.getMessageCount() == 0) {
+                    index = MaildirFolderIndex.load(getFolderFile());
+                    if (index != null) {
+                        indexCurModified = index.getCurModified();
+                        indexNewModified = index.getNewModified();
+                    } else {
+                        // Missing or corrupt index - it is going to be written on close
+                        indexCurModified = -1;
+                        indexNewModified = -1;
+                    }
+                }
+                int from = table.getRowCount();
+                // Rows of files seen in this scan and rows of files seen in cur directory
+                final BitSet seen = new BitSet();
+                final BitSet seenOld = new BitSet();
+                final MaildirFolderIndex curIndex = index;
+                final boolean curFromIndex = (index != null) && (index.getCurModified() != 0) && (index.getCurModified() == curModified);
+                boolean newFromIndex = (index != null) && (index.getNewModified() != 0) && (index.getNewModified() == newModified);
+
+                // cur directory is streamed and reconciled here while new directory is read on file task pool
+                final Exception[] failure = new Exception[1];
+                Runnable curScan = new Runnable() {
+                    public void run() {
+                        try {
+                            scanCurDir(curIndex, curFromIndex, seen, seenOld);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        } catch (MessagingException e) {
+                            failure[0] = e;
                         }
                     }
+                };
+                DirectoryReader newReader = null;
+                if (newFromIndex) {
+                    curScan.run();
+                } else {
+                    newReader = new DirectoryReader(getNewDir());
+                    getMaildirStore().getFileTaskPool().runConcurrently(newReader, curScan);
                 }
-                if (newFiles != null) {
-                    for (int i = 0; i < newFiles.length; i++) {
-                        String baseName = MaildirMessage.baseNameFromFile(newFiles[i]);
-                        if (scannedOldFiles.contains(baseName)) {
-                            // Already exists as old file
-                            if (!newFiles[i].delete()) {
-                                // TODO what to do if we cannot delete duplicate file...
-                            }
-                        } else {
-                            MaildirMessage message = data.files.get(baseName);
-                            if (message == null) {
-                                // new file
-                                message = createExistingMaildirMessage(newFiles[i], msgno);
-                                msgno++;
-                                newMessages.add(message);
-                                if (data != null) {
-                                    data.files.put(message.getBaseName(), message);
-                                }
-                            } else {
-                                // we still have that file
-                                expunged.remove(baseName);
-                            }
+                if (failure[0] instanceof MessagingException) {
+                    throw (MessagingException)failure[0];
+                } else if (failure[0] != null) {
+                    throw (IOException)failure[0];
+                }
+                List<String> newFiles;
+                if (newReader == null) {
+                    newFiles = Arrays.asList(index.getNames(true));
+                } else if (newReader.getException() != null) {
+                    throw new MessagingException("Cannot read directory; " + getNewDir(), newReader.getException());
+                } else {
+                    newFiles = newReader.getNames();
+                }
+
+                for (String name : newFiles) {
+                    int row = table.findName(name);
+                    if ((row >= 0) && seenOld.get(row)) {
+                        // Already exists as old file
+                        if (!new File(getNewDir(), name).delete()) {
+                            // TODO what to do if we cannot delete duplicate file...
                         }
+                    } else {
+                        if (row < 0) {
+                            // new file
+                            row = addMessageFile(index, getNewDir(), name);
+                        }
+                        seen.set(row);
+                    }
+                }
+                ArrayList<MaildirMessage> expunged = new ArrayList<MaildirMessage>();
+                for (int row = seen.nextClearBit(0); row < from; row = seen.nextClearBit(row + 1)) {
+                    if (!table.isRemoved(row)) {
+                        expunged.add(table.get(row));
                     }
                 }
-                if (newMessages.size() > 0) {
-                    addMessages(null, newMessages);
+                if (table.getRowCount() > from) {
+                    table.sort(from);
+                    addMessages(null, rowRange(from, table.getRowCount()));
                 }
                 if (expunged.size() > 0) {
-                    Iterator<MaildirMessage> it = expunged.values().iterator();
-                    while (it.hasNext()) {
-                        MaildirMessage msg = it.next();
-                        data.messages.remove(msg);
-                        data.files.remove(msg.getBaseName());
+                    for (MaildirMessage msg : expunged) {
+                        table.remove(msg.row);
                     }
-                    removeMessages((MaildirFolder)null, expunged.values());
+                    removeMessages((MaildirFolder)null, expunged);
                 }
 
+                data.scannedCurModified = MaildirFolderIndex.trustedModified(curModified, time);
+                data.scannedNewModified = MaildirFolderIndex.trustedModified(newModified, time);
+
                 long now = System.currentTimeMillis();
-                if ((now - time) > (delay / delayFactor)) {
+                if (!watched && ((now - time) > (delay / delayFactor))) {
                     delay = delay * delayFactor;
                 }
 
@@ -844,27 +1222,411 @@ public class MaildirFolderData extends Folder {
         }
     }
 
+    /**
+     * Reconciles files of <i>cur</i> directory with folder data's table. Directory is streamed
+     * so its names are never all in memory at once. If index is current for <i>cur</i> directory
+     * its names are used instead. Must be called with folder data's monitor held.
+     * @param index folder index or <code>null</code>
+     * @param fromIndex are names to be taken from the index
+     * @param seen rows of seen files are set here
+     * @param seenOld rows of files seen in <i>cur</i> directory are set here
+     * @throws IOException if directory cannot be read
+     * @throws MessagingException
+     */
+    protected void scanCurDir(MaildirFolderIndex index, boolean fromIndex, BitSet seen, BitSet seenOld) throws IOException, MessagingException {
+        if (fromIndex) {
+            for (String name : index.getNames(false)) {
+                scanCurFile(index, name, seen, seenOld);
+            }
+            return;
+        }
+        DirectoryStream<Path> stream = openDirectoryStream(getCurDir());
+        if (stream != null) {
+            try {
+                for (Path path : stream) {
+                    scanCurFile(index, path.getFileName().toString(), seen, seenOld);
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            } finally {
+                stream.close();
+            }
+        }
+    }
 
+    /**
+     * Reconciles one file of <i>cur</i> directory with folder data's table
+     * @param index folder index or <code>null</code>
+     * @param name file name
+     * @param seen rows of seen files
+     * @param seenOld rows of files seen in <i>cur</i> directory
+     * @throws IOException
+     * @throws MessagingException
+     */
+    protected void scanCurFile(MaildirFolderIndex index, String name, BitSet seen, BitSet seenOld) throws IOException, MessagingException {
+        int row = data.table.findName(name);
+        if (row < 0) {
+            // new file
+            row = addMessageFile(index, getCurDir(), name);
+        }
+        seen.set(row);
+        seenOld.set(row);
+    }
+
+    /**
+     * Opens stream of directory's entries
+     * @param dir directory
+     * @return stream or <code>null</code> if directory doesn't exist
+     * @throws IOException if directory cannot be read
+     */
+    protected static DirectoryStream<Path> openDirectoryStream(File dir) throws IOException {
+        try {
+            return Files.newDirectoryStream(dir.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (NotDirectoryException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Counts directory's entries without reading all their names at once
+     * @param dir directory
+     * @return number of entries or 0 if directory cannot be read
+     */
+    protected static int countFiles(File dir) {
+        int count = 0;
+        try {
+            DirectoryStream<Path> stream = openDirectoryStream(dir);
+            if (stream != null) {
+                try {
+                    Iterator<Path> iterator = stream.iterator();
+                    while (iterator.hasNext()) {
+                        iterator.next();
+                        count = count + 1;
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        } catch (IOException ignore) {
+        } catch (DirectoryIteratorException ignore) {
+        }
+        return count;
+    }
+
+    /**
+     * Called by {@link MaildirFolderWatcher} when files appear in <i>new</i> or <i>cur</i> directory.
+     * Unknown files are added as new messages; known messages whose file is renamed
+     * (flags changed or moved from <i>new</i> to <i>cur</i>) get their file updated.
+     * @param dir directory files appeared in
+     * @param names file names
+     */
+    protected synchronized void messageFilesCreated(File dir, List<String> names) {
+        if (data == null) {
+            return;
+        }
+        try {
+            boolean isNew = dir.equals(getNewDir());
+            MaildirMessageTable table = data.table;
+            int from = table.getRowCount();
+            int[] renamed = new int[names.size()];
+            int renamedCount = 0;
+            for (String name : names) {
+                File file = new File(isNew ? getNewDir() : getCurDir(), name);
+                int row = table.findName(name);
+                if (row < 0) {
+                    if (file.exists()) {
+                        MaildirMessage message = createExistingMaildirMessage(file, 0);
+                        table.add(message, getIndexedUID(message));
+                    }
+                } else {
+                    File old = table.getFile(row);
+                    if (!old.equals(file) && !old.exists() && file.exists()) {
+                        MaildirMessage message = table.getCached(row);
+                        if (message != null) {
+                            message.setFile(file);
+                        } else {
+                            table.setFile(row, file, MaildirMessage.fileSizeOf(file));
+                        }
+                        renamed[renamedCount] = row;
+                        renamedCount++;
+                    }
+                }
+            }
+            if (renamedCount > 0) {
+                messageFilesRenamed(Arrays.copyOf(renamed, renamedCount));
+            }
+            if (table.getRowCount() > from) {
+                table.sort(from);
+                addMessages(null, rowRange(from, table.getRowCount()));
+            }
+        } catch (IOException e) {
+            rescanNeeded = true;
+        } catch (MessagingException e) {
+            rescanNeeded = true;
+        }
+    }
+
+    /**
+     * Called when files of known messages are renamed by some other program, which
+     * means their flags are changed. This implementation does nothing.
+     * @param rows rows of messages
+     * @throws MessagingException
+     */
+    protected void messageFilesRenamed(int[] rows) throws MessagingException {
+    }
+
+    /**
+     * Called by {@link MaildirFolderWatcher} when files disappear from <i>new</i> or <i>cur</i> directory.
+     * Messages whose current file is gone are removed.
+     * @param dir directory files disappeared from
+     * @param names file names
+     */
+    protected synchronized void messageFilesDeleted(File dir, List<String> names) {
+        if (data == null) {
+            return;
+        }
+        try {
+            MaildirMessageTable table = data.table;
+            ArrayList<MaildirMessage> removed = new ArrayList<MaildirMessage>();
+            for (String name : names) {
+                int row = table.findName(name);
+                if (row >= 0) {
+                    File file = table.getFile(row);
+                    if (file.getName().equals(name)
+                            && dir.equals(file.getParentFile())
+                            && !file.exists()) {
+                        removed.add(table.get(row));
+                    }
+                }
+            }
+            if (removed.size() > 0) {
+                for (MaildirMessage message : removed) {
+                    table.remove(message.row);
+                }
+                removeMessages((MaildirFolder)null, removed);
+            }
+        } catch (MessagingException e) {
+            rescanNeeded = true;
+        }
+    }
+
+    /**
+     * Called by {@link MaildirFolderWatcher} when changes are lost. Directories are read again.
+     */
+    protected void watchOverflowed() {
+        rescanNeeded = true;
+        synchronized (this) {
+            if (data == null) {
+                // Directories are read when folder data is opened again
+                return;
+            }
+            try {
+                scanMessages();
+            } catch (MessagingException ignore) {
+                // It will be tried again on next access
+            }
+        }
+    }
+
+    /**
+     * Called by {@link MaildirFolderWatcher} when it stops watching directories of this folder data.
+     * Directories are polled from now on, starting with next access.
+     */
+    protected void watchStopped() {
+        watched = false;
+        rescanNeeded = true;
+    }
+
+    /**
+     * Adds row for the file found in given directory. If file is present in
+     * the index row is made from index's entry without checking the file
+     * or creating message object.
+     * @param index folder index or <code>null</code>
+     * @param dir directory file is in
+     * @param name file name
+     * @return new row
+     * @throws IOException
+     * @throws MessagingException
+     */
+    protected int addMessageFile(MaildirFolderIndex index, File dir, String name) throws IOException, MessagingException {
+        if (index != null) {
+            MaildirFolderIndex.Entry entry = index.getEntry(name);
+            if ((entry != null) && (entry.isNew() == (dir == getNewDir())) && isIndexEntryUsable(entry)) {
+                return data.table.add(name, entry.isNew(), entry.getSize(), entry.getInternalDate(), entry.getUID());
+            }
+        }
+        MaildirMessage message = createExistingMaildirMessage(new File(dir, name), 0);
+        return data.table.add(message, getIndexedUID(message));
+    }
+
+    /**
+     * Returns <code>true</code> if index entry has all that is needed for the message
+     * so message object doesn't have to be created. This implementation returns <code>true</code>.
+     * @param entry index entry
+     * @return <code>true</code> if entry can be used
+     */
+    protected boolean isIndexEntryUsable(MaildirFolderIndex.Entry entry) {
+        return true;
+    }
+
+    /**
+     * Returns array of consecutive rows
+     * @param from first row
+     * @param to row after last
+     * @return array of rows
+     */
+    protected static int[] rowRange(int from, int to) {
+        int[] rows = new int[to - from];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return rows;
+    }
+
+    /**
+     * Stores folder's index if <i>cur</i> or <i>new</i> directories have changed since
+     * index was last stored or loaded. Index is stored with modification times directories had
+     * when they were last read into the table. If directories have changed since, table may miss
+     * changes (files delivered while directories are polled or deletions watcher still holds)
+     * so directories are read again first. Failing to store index is not fatal - folder
+     * will be read from directories next time. Must be called with folder data's monitor held.
+     */
+    protected void storeIndex() {
+        if (data == null) {
+            return;
+        }
+        long curModified = data.scannedCurModified;
+        long newModified = data.scannedNewModified;
+        if ((curModified != 0) && (newModified != 0)
+                && ((curModified != getCurDir().lastModified()) || (newModified != getNewDir().lastModified()))) {
+            rescanNeeded = true;
+            try {
+                scanMessages();
+            } catch (MessagingException e) {
+                return;
+            }
+            curModified = data.scannedCurModified;
+            newModified = data.scannedNewModified;
+        }
+        if ((curModified != 0) && (newModified != 0)
+                && (curModified == indexCurModified) && (newModified == indexNewModified)) {
+            return;
+        }
+        try {
+            MaildirFolderIndex index = new MaildirFolderIndex(curModified, newModified);
+            MaildirMessageTable table = data.table;
+            // Rows do not move while folder data's monitor is held
+            for (int row : table.getRows()) {
+                long date = table.getInternalDate(row);
+                if (date == -1) {
+                    long l = table.getFile(row).lastModified();
+                    if (l != 0) {
+                        date = l;
+                    }
+                }
+                index.addEntry(new MaildirFolderIndex.Entry(
+                        table.getName(row),
+                        table.isNew(row),
+                        table.getFileSize(row),
+                        date,
+                        table.getUID(row)));
+            }
+            index.store(getFolderFile());
+            indexCurModified = curModified;
+            indexNewModified = newModified;
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Returns header cache of this folder. Cache is loaded on first use.
+     * @return header cache or <code>null</code> if folder is not open or headers are not cached
+     */
+    protected MaildirHeaderCache getHeaderCache() {
+        Data data = this.data;
+        if (data == null) {
+            return null;
+        }
+        synchronized (data) {
+            if (data.headerCache == null) {
+                String[] headerNames = store.getCachedHeaders();
+                if (headerNames == null) {
+                    return null;
+                }
+                data.headerCache = MaildirHeaderCache.load(getFolderFile(), headerNames);
+            }
+            return data.headerCache;
+        }
+    }
+
+    /**
+     * Stores header cache if it is changed. Entries of messages that are gone are removed first.
+     * Failing to store cache is not fatal - it will be filled again as messages are parsed.
+     */
+    protected void storeHeaderCache() {
+        if ((data == null) || (data.headerCache == null)) {
+            return;
+        }
+        MaildirHeaderCache cache = data.headerCache;
+        synchronized (this) {
+            cache.retain(data.table.getBaseNames());
+        }
+        if (cache.isDirty()) {
+            try {
+                cache.store(getFolderFile());
+            } catch (IOException ignore) {
+            }
+        }
+    }
 
+    /**
+     * Returns UID to be stored in the index for given message. This implementation returns -1.
+     * @param message message
+     * @return UID or -1
+     * @throws MessagingException
+     */
+    protected long getIndexedUID(MaildirMessage message) throws MessagingException {
+        return -1;
+    }
 
     /**
-     * This method adds messages to the folder.
+     * This method adds messages to the folder. Messages must already be added to folder data's table.
      * @param folder folder where messages should be added without being notified. All others will be notified. If null supplied then all will be notified.
      * @param messages messages to be added
      * @throws MessagingException
      */
     protected void addMessages(MaildirFolder folder, List<MaildirMessage> messages) throws MessagingException {
+        Data data = this.data;
         if (data != null) {
+            int[] rows = new int[messages.size()];
+            int cnt = 0;
+            for (MaildirMessage message : messages) {
+                if ((message.table == data.table) && (message.row >= 0)) {
+                    rows[cnt] = message.row;
+                    cnt++;
+                }
+            }
+            rows = Arrays.copyOf(rows, cnt);
+            Arrays.sort(rows);
+            addMessages(folder, rows);
+        }
+    }
+
+    /**
+     * This method adds rows of folder data's table to the folders.
+     * @param folder folder where messages should be added without being notified. All others will be notified. If null supplied then all will be notified.
+     * @param rows rows in ascending order
+     * @throws MessagingException
+     */
+    protected void addMessages(MaildirFolder folder, int[] rows) throws MessagingException {
+        if ((data != null) && (rows.length > 0)) {
             // There are opened folders
-            Collections.sort(messages);
-            renumerateMessages(data.messages.size()+1, messages);
-            data.messages.addAll(messages);
-
-            synchronized (openedFolders) {
-                Iterator<Folder> it = openedFolders.keySet().iterator();
-                while (it.hasNext()) {
-                    MaildirFolder extFolder = (MaildirFolder)it.next();
-                    extFolder.addMessages(messages, folder != extFolder);
+            for (WeakReference<MaildirFolder> ref : openedFolders) {
+                MaildirFolder extFolder = ref.get();
+                if (extFolder != null) {
+                    extFolder.addMessages(rows, folder != extFolder);
                 }
             }
         }
@@ -878,25 +1640,23 @@ public class MaildirFolderData extends Folder {
      * @throws MessagingException
      */
     protected void removeMessages(MaildirFolder folder, Collection<? extends MimeMessage> messages) throws MessagingException {
-        synchronized (openedFolders) {
-            Iterator<Folder> it = openedFolders.keySet().iterator();
-            while (it.hasNext()) {
-                MaildirFolder extFolder = (MaildirFolder)it.next();
-//                extFolder.removeMessages(messages, (folder == extFolder) && explicit);
-                if (extFolder != folder) {
-                    extFolder.removeMessages(messages, false);
-                }
+        for (WeakReference<MaildirFolder> ref : openedFolders) {
+            MaildirFolder extFolder = ref.get();
+//            extFolder.removeMessages(messages, (folder == extFolder) && explicit);
+            if ((extFolder != null) && (extFolder != folder)) {
+                extFolder.removeMessages(messages, false);
             }
         }
     }
 
     /**
      * This method creates collection structure for storing messages in the folder.
-     * This implementation returns <code>ArrayList</code>
+     * This implementation returns {@link MaildirFolderMessages} over folder data's table.
+     * @param folder folder
      * @return list for messages to be stored in.
      */
-    protected List<MessageBase> createFolderMessages() {
-        return new ArrayList<MessageBase>();
+    protected MaildirFolderMessages createFolderMessages(MaildirFolder folder) {
+        return new MaildirFolderMessages(folder, data.table);
     }
 
     /**
@@ -935,6 +1695,36 @@ public class MaildirFolderData extends Folder {
         return new MaildirMessage(this, message, num);
     }
 
+    /**
+     * This method creates new maildir message as a copy of existing maildir message. Source
+     * message's file is hard linked (or copied if link is not possible) instead of
+     * message being written again.
+     * @param source maildir message whose file will be linked or copied
+     * @param num message number
+     * @return new maildir message this folder will keep for its folder data
+     * @throws IOException if file cannot be linked nor copied
+     * @throws MessagingException
+     */
+    protected MaildirMessage createCopiedMaildirMessage(MaildirMessage source, int num) throws IOException, MessagingException {
+        return new MaildirMessage(this, source, num);
+    }
+
+    /**
+     * Returns maildir message supplied message is or wraps. Only messages backed by
+     * a file of maildir store can be copied by linking their files.
+     * @param message message to be appended
+     * @return maildir message or <code>null</code>
+     */
+    protected MaildirMessage getSourceMaildirMessage(Message message) {
+        while (message instanceof MessageWrapper) {
+            message = ((MessageWrapper)message).getMessage();
+        }
+        if ((message instanceof MaildirMessage) && (((MaildirMessage)message).maildirFolder != null)) {
+            return (MaildirMessage)message;
+        }
+        return null;
+    }
+
     /**
      * This method creates new maildir message object for existing file in folder data's directory.
      * @param file file message object is going to be created
@@ -947,19 +1737,114 @@ public class MaildirFolderData extends Folder {
         return new MaildirMessage(this, file, num);
     }
 
+    /**
+     * This method creates new maildir message object for existing file whose details are
+     * already recorded in folder data's table. File is not checked on the disk.
+     * @param file file message object is going to be created
+     * @param fileSize file size
+     * @param internalDate internal date or -1
+     * @param num message number
+     * @return new maildir message
+     * @throws MessagingException
+     */
+    protected MaildirMessage createKnownMaildirMessage(File file, long fileSize, long internalDate, int num) throws MessagingException {
+        return new MaildirMessage(this, file, fileSize, internalDate, num, true);
+    }
+
 
     /**
-     * Folders data class. This class keeps list of messages and map for files, messages pair.
+     * Reads names of directory's entries. It is run on file task pool so the directory
+     * is read while another directory is being scanned.
+     */
+    protected static class DirectoryReader implements Runnable {
+
+        /** Directory */
+        protected File dir;
+
+        /** Names read so far */
+        protected List<String> names = new ArrayList<String>();
+
+        /** Exception directory couldn't be read with or <code>null</code> */
+        protected IOException exception;
+
+        /**
+         * Constructor
+         * @param dir directory
+         */
+        protected DirectoryReader(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Reads names of directory's entries. Missing directory has no entries.
+         */
+        public void run() {
+            try {
+                DirectoryStream<Path> stream = openDirectoryStream(dir);
+                if (stream != null) {
+                    try {
+                        for (Path path : stream) {
+                            names.add(path.getFileName().toString());
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                }
+            } catch (IOException e) {
+                exception = e;
+            } catch (DirectoryIteratorException e) {
+                exception = e.getCause();
+            }
+        }
+
+        /**
+         * Returns names read
+         * @return names
+         */
+        protected List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * Returns exception directory couldn't be read with
+         * @return exception or <code>null</code>
+         */
+        protected IOException getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * Folders data class. This class keeps table of messages.
      * It is moved to separate class just for easier handling of moving instance of this class
      * under weak reference regime when there are no open folders. That means garbage collector
      * can more easily remove not used messages.
      */
     protected static class Data {
         /** Messages in this directory (folder(s)) */
-        protected List<MaildirMessage> messages;
-
-        /** Map from files to message objects */
-        protected HashMap<String, MaildirMessage> files;
+        protected MaildirMessageTable table;
+
+        /** Header cache or <code>null</code> if not loaded yet */
+        protected MaildirHeaderCache headerCache;
+
+        /** Trusted modification time of <i>cur</i> directory when it was last read into the table or 0 */
+        protected long scannedCurModified;
+
+        /** Trusted modification time of <i>new</i> directory when it was last read into the table or 0 */
+        protected long scannedNewModified;
+
+        /**
+         * Returns estimated number of bytes taken by the table and header cache
+         * @return estimated memory usage
+         */
+        protected long getMemoryUsage() {
+            long res = table.getMemoryUsage();
+            MaildirHeaderCache headerCache = this.headerCache;
+            if (headerCache != null) {
+                res = res + headerCache.getMemoryUsage();
+            }
+            return res;
+        }
     }
 
 
@@ -1077,8 +1962,13 @@ public class MaildirFolderData extends Folder {
      */
     @Override
     public Message getMessage(int i) throws MessagingException {
+        Data data = this.data;
         if (data != null) {
-            return data.messages.get(i);
+            int row = data.table.getRow(i);
+            if (row < 0) {
+                throw new IndexOutOfBoundsException("Index: " + i);
+            }
+            return data.table.get(row);
         } else {
             return null;
         }
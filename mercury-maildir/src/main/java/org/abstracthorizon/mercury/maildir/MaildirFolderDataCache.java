@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Bounded cache of data (message tables and header caches) of closed folders.
+ * When last folder over a folder data is closed its data is kept here so opening the
+ * folder again, from the same store or from a store of another session over the same
+ * mailbox, doesn't need to read folder's index and directories. Without the cache
+ * closed folder's data is only weakly referenced and it is up to garbage collector
+ * whether it survives.
+ * </p>
+ * <p>Cache is bounded by number of folders and by estimated memory of their data, both for
+ * all mailboxes together (see {@link #setMaxFolders(int)} and {@link #setMaxMemory(long)}) and
+ * for each mailbox (store's base directory) separately (see {@link MaildirStore#FOLDER_CACHE_SIZE}
+ * and {@link MaildirStore#FOLDER_CACHE_MEMORY}). Least recently closed folders are evicted first.
+ * Number of hits, misses and evictions is counted.
+ * </p>
+ * <p>All stores use the same cache (see {@link #getDefaultInstance()}).
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFolderDataCache {
+
+    /** Default maximum number of cached folders */
+    public static final int DEFAULT_MAX_FOLDERS = 1000;
+
+    /** Default maximum estimated memory of cached folders' data */
+    public static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    /** Default instance */
+    protected static MaildirFolderDataCache defaultInstance = new MaildirFolderDataCache();
+
+    /** Entries by folder's directory, least recently closed first */
+    protected LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>();
+
+    /** Usage of each mailbox: number of folders and memory */
+    protected Map<File, long[]> mailboxes = new HashMap<File, long[]>();
+
+    /** Maximum number of cached folders */
+    protected int maxFolders = DEFAULT_MAX_FOLDERS;
+
+    /** Maximum estimated memory of cached folders' data */
+    protected long maxMemory = DEFAULT_MAX_MEMORY;
+
+    /** Estimated memory of cached folders' data */
+    protected long memory;
+
+    /** Number of folders found in the cache */
+    protected long hits;
+
+    /** Number of folders not found in the cache */
+    protected long misses;
+
+    /** Number of evicted folders */
+    protected long evictions;
+
+    /**
+     * Returns default instance
+     * @return default instance
+     */
+    public static MaildirFolderDataCache getDefaultInstance() {
+        return defaultInstance;
+    }
+
+    /**
+     * Returns maximum number of cached folders
+     * @return maximum number of cached folders
+     */
+    public synchronized int getMaxFolders() {
+        return maxFolders;
+    }
+
+    /**
+     * Sets maximum number of cached folders. Zero disables the cache.
+     * @param maxFolders maximum number of cached folders
+     */
+    public synchronized void setMaxFolders(int maxFolders) {
+        this.maxFolders = maxFolders;
+        evict(null, -1, -1);
+    }
+
+    /**
+     * Returns maximum estimated memory of cached folders' data
+     * @return maximum memory in bytes
+     */
+    public synchronized long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Sets maximum estimated memory of cached folders' data
+     * @param maxMemory maximum memory in bytes
+     */
+    public synchronized void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+        evict(null, -1, -1);
+    }
+
+    /**
+     * Returns number of cached folders
+     * @return number of cached folders
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Returns estimated memory of cached folders' data
+     * @return memory in bytes
+     */
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Returns estimated memory of cached folders' data of one mailbox
+     * @param mailbox mailbox's (store's) base directory
+     * @return memory in bytes
+     */
+    public synchronized long getMemory(File mailbox) {
+        long[] usage = mailboxes.get(mailbox);
+        return usage != null ? usage[1] : 0;
+    }
+
+    /**
+     * Returns number of folders whose data was found in the cache when opened
+     * @return number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns number of folders whose data was not found in the cache when opened
+     * @return number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns number of folders evicted from the cache to stay within limits
+     * @return number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Keeps data of folder data that has just been closed. Oldest entries are evicted if
+     * limits are exceeded. Data bigger than a limit is not kept.
+     * @param folderData folder data
+     * @param data folder data's data
+     * @param mailboxMaxFolders maximum number of cached folders of folder's mailbox or -1 for no limit
+     * @param mailboxMaxMemory maximum memory of cached folders of folder's mailbox or -1 for no limit
+     * @return <code>true</code> if data is kept
+     */
+    protected boolean put(MaildirFolderData folderData, MaildirFolderData.Data data, int mailboxMaxFolders, long mailboxMaxMemory) {
+        long size = data.getMemoryUsage();
+        File mailbox = folderData.getMaildirStore().getBaseFile();
+        synchronized (this) {
+            remove(folderData.getFolderFile());
+            if ((maxFolders <= 0) || (size > maxMemory) || (mailboxMaxFolders == 0)
+                    || ((mailboxMaxMemory >= 0) && (size > mailboxMaxMemory))) {
+                return false;
+            }
+            Entry entry = new Entry();
+            entry.folderData = folderData;
+            entry.data = data;
+            entry.mailbox = mailbox;
+            entry.memory = size;
+            entries.put(folderData.getFolderFile(), entry);
+            long[] usage = mailboxes.get(mailbox);
+            if (usage == null) {
+                usage = new long[2];
+                mailboxes.put(mailbox, usage);
+            }
+            usage[0] = usage[0] + 1;
+            usage[1] = usage[1] + size;
+            memory = memory + size;
+            evict(mailbox, mailboxMaxFolders, mailboxMaxMemory);
+        }
+        return true;
+    }
+
+    /**
+     * Takes data of folder's directory out of the cache. Data is returned only if given
+     * folder data can use it (see {@link MaildirFolderData#canAdopt(MaildirFolderData)}).
+     * @param folderData folder data that is being opened
+     * @return data or <code>null</code>
+     */
+    protected synchronized MaildirFolderData.Data take(MaildirFolderData folderData) {
+        Entry entry = remove(folderData.getFolderFile());
+        if ((entry == null) || !folderData.canAdopt(entry.folderData)) {
+            misses = misses + 1;
+            return null;
+        }
+        hits = hits + 1;
+        return entry.data;
+    }
+
+    /**
+     * Drops cached data of given directory
+     * @param dir folder's directory
+     */
+    public synchronized void invalidate(File dir) {
+        remove(dir);
+    }
+
+    /**
+     * Drops all cached data
+     */
+    public synchronized void clear() {
+        entries.clear();
+        mailboxes.clear();
+        memory = 0;
+    }
+
+    /**
+     * Removes entry and updates usage. Monitor must be held.
+     * @param dir folder's directory
+     * @return removed entry or <code>null</code>
+     */
+    protected Entry remove(File dir) {
+        Entry entry = entries.remove(dir);
+        if (entry != null) {
+            removed(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Updates usage after entry is removed. Monitor must be held.
+     * @param entry removed entry
+     */
+    protected void removed(Entry entry) {
+        memory = memory - entry.memory;
+        long[] usage = mailboxes.get(entry.mailbox);
+        if (usage != null) {
+            usage[0] = usage[0] - 1;
+            usage[1] = usage[1] - entry.memory;
+            if (usage[0] <= 0) {
+                mailboxes.remove(entry.mailbox);
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently closed entries of the mailbox while mailbox is over its limits
+     * and then least recently closed entries of all mailboxes while cache is over its limits.
+     * Monitor must be held. Evicted data is left to garbage collector.
+     * @param mailbox mailbox or <code>null</code>
+     * @param mailboxMaxFolders maximum number of mailbox's folders or -1
+     * @param mailboxMaxMemory maximum memory of mailbox's folders or -1
+     */
+    protected void evict(File mailbox, int mailboxMaxFolders, long mailboxMaxMemory) {
+        long[] usage = mailbox != null ? mailboxes.get(mailbox) : null;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((usage != null) && iterator.hasNext()
+                && (((mailboxMaxFolders >= 0) && (usage[0] > mailboxMaxFolders))
+                    || ((mailboxMaxMemory >= 0) && (usage[1] > mailboxMaxMemory)))) {
+            Entry entry = iterator.next();
+            if (entry.mailbox.equals(mailbox)) {
+                iterator.remove();
+                removed(entry);
+                evictions = evictions + 1;
+            }
+        }
+        iterator = entries.values().iterator();
+        while (iterator.hasNext() && ((entries.size() > maxFolders) || (memory > maxMemory))) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            removed(entry);
+            evictions = evictions + 1;
+        }
+    }
+
+    /**
+     * Cache entry
+     */
+    protected static class Entry {
+
+        /** Folder data that was closed */
+        protected MaildirFolderData folderData;
+
+        /** Its data */
+        protected MaildirFolderData.Data data;
+
+        /** Mailbox (store's base directory) */
+        protected File mailbox;
+
+        /** Estimated memory of the data */
+        protected long memory;
+    }
+}
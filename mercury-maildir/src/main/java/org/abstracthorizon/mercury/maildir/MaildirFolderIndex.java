@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * <p>Persistent index of one maildir folder. It is kept in &quot;.index&quot; file
+ * in folder's directory, next to &quot;.uidvalidity&quot; and &quot;.nextuid&quot;.
+ * For each message file it holds file's name (base name and flags), size, internal date
+ * and UID (or -1 if folder is not UID folder) together with running counts of total,
+ * recent and unseen messages.
+ * </p>
+ *
+ * <p>Index remembers modification times of <i>cur</i> and <i>new</i> directories
+ * it was written against. If directory's modification time is unchanged, index entries
+ * for that directory can be used without listing directory or checking any of its files.
+ * If it is changed, directory is listed but only names that are not in the index are
+ * checked on the disk.
+ * </p>
+ *
+ * <p>Index is written to &quot;.index.tmp&quot; first, synced and then renamed over
+ * the old index so crash can leave only old or new index, never partial one. Header
+ * and whole content are protected with checksums. Index that cannot be read is removed
+ * and folder falls back to directory scan; new index is written when folder is next closed.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFolderIndex {
+
+    /** Name of the index file */
+    public static final String INDEX_FILE = ".index";
+
+    /** Name of the temporary file index is written to before it is renamed to {@link #INDEX_FILE} */
+    public static final String INDEX_TMP_FILE = ".index.tmp";
+
+    /**
+     * Directory modified within this period (in milliseconds) before index is written is
+     * not trusted - it can be modified again within the same file system's time granularity
+     */
+    public static final long MODIFIED_GRACE_PERIOD = 2000; // 2 secs
+
+    /** Index file magic number - &quot;MDIX&quot; */
+    protected static final int MAGIC = 0x4d444958;
+
+    /** Index file format version */
+    protected static final int VERSION = 1;
+
+    /** Modification time of <i>cur</i> directory index is made against or 0 if not trusted */
+    protected long curModified;
+
+    /** Modification time of <i>new</i> directory index is made against or 0 if not trusted */
+    protected long newModified;
+
+    /** Total number of messages */
+    protected int total;
+
+    /** Number of recent messages (messages in <i>new</i> directory) */
+    protected int recent;
+
+    /** Number of messages without seen flag */
+    protected int unseen;
+
+    /** Entries mapped by file name. <code>null</code> if only summary is loaded. */
+    protected Map<String, Entry> entries;
+
+    /**
+     * Constructor
+     * @param curModified modification time of <i>cur</i> directory
+     * @param newModified modification time of <i>new</i> directory
+     */
+    public MaildirFolderIndex(long curModified, long newModified) {
+        this.curModified = curModified;
+        this.newModified = newModified;
+        entries = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * Returns modification time of <i>cur</i> directory this index is made against
+     * @return modification time of <i>cur</i> directory or 0 if it is not to be trusted
+     */
+    public long getCurModified() {
+        return curModified;
+    }
+
+    /**
+     * Returns modification time of <i>new</i> directory this index is made against
+     * @return modification time of <i>new</i> directory or 0 if it is not to be trusted
+     */
+    public long getNewModified() {
+        return newModified;
+    }
+
+    /**
+     * Returns total number of messages
+     * @return total number of messages
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns number of recent messages
+     * @return number of recent messages
+     */
+    public int getRecent() {
+        return recent;
+    }
+
+    /**
+     * Returns number of unseen messages
+     * @return number of unseen messages
+     */
+    public int getUnseen() {
+        return unseen;
+    }
+
+    /**
+     * Returns <code>true</code> if index reflects both directories with given modification times.
+     * @param curModified current modification time of <i>cur</i> directory
+     * @param newModified current modification time of <i>new</i> directory
+     * @return <code>true</code> if index is up to date
+     */
+    public boolean isCurrent(long curModified, long newModified) {
+        return (this.curModified != 0) && (this.newModified != 0)
+            && (this.curModified == curModified) && (this.newModified == newModified);
+    }
+
+    /**
+     * Adds entry to the index updating counts.
+     * @param entry entry
+     */
+    public void addEntry(Entry entry) {
+        entries.put(entry.getName(), entry);
+        total = total + 1;
+        if (entry.isNew()) {
+            recent = recent + 1;
+        }
+        if (!entry.isSeen()) {
+            unseen = unseen + 1;
+        }
+    }
+
+    /**
+     * Returns entry for given file name
+     * @param name file name
+     * @return entry or <code>null</code>
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns all entries
+     * @return all entries
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns names of all files in <i>new</i> or <i>cur</i> directory
+     * @param isNew <code>true</code> for <i>new</i> directory
+     * @return array of file names
+     */
+    public String[] getNames(boolean isNew) {
+        List<String> names = new ArrayList<String>(isNew ? recent : total - recent);
+        for (Entry entry : entries.values()) {
+            if (entry.isNew() == isNew) {
+                names.add(entry.getName());
+            }
+        }
+        String[] res = new String[names.size()];
+        return names.toArray(res);
+    }
+
+    /**
+     * Returns directory's modification time if it can be trusted or 0 if it is
+     * within {@link #MODIFIED_GRACE_PERIOD} of now.
+     * @param modified directory modification time
+     * @param now current time
+     * @return modification time or 0
+     */
+    public static long trustedModified(long modified, long now) {
+        if ((now - modified) < MODIFIED_GRACE_PERIOD) {
+            return 0;
+        }
+        return modified;
+    }
+
+    /**
+     * Loads index from given folder's directory. If index file doesn't exist
+     * or cannot be read <code>null</code> is returned. Corrupt index file is deleted.
+     * @param dir folder's directory
+     * @return index or <code>null</code>
+     */
+    public static MaildirFolderIndex load(File dir) {
+        return read(dir, false);
+    }
+
+    /**
+     * Loads only index's header - directories' modification times and counts.
+     * Entries are not read.
+     * @param dir folder's directory
+     * @return index without entries or <code>null</code>
+     */
+    public static MaildirFolderIndex loadSummary(File dir) {
+        return read(dir, true);
+    }
+
+    /**
+     * Reads index file.
+     * @param dir folder's directory
+     * @param summaryOnly should only header be read
+     * @return index or <code>null</code>
+     */
+    protected static MaildirFolderIndex read(File dir, boolean summaryOnly) {
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            try {
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                    throw new IOException("Unknown index format");
+                }
+                MaildirFolderIndex index = new MaildirFolderIndex(in.readLong(), in.readLong());
+                int total = in.readInt();
+                int recent = in.readInt();
+                int unseen = in.readInt();
+                checkChecksum(checked, in);
+                if (summaryOnly) {
+                    index.entries = null;
+                    index.total = total;
+                    index.recent = recent;
+                    index.unseen = unseen;
+                    return index;
+                }
+                for (int i = 0; i < total; i++) {
+                    Entry entry = new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(), in.readLong());
+                    index.addEntry(entry);
+                }
+                checkChecksum(checked, in);
+                if ((index.recent != recent) || (index.unseen != unseen)) {
+                    throw new IOException("Index counts do not match entries");
+                }
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Corrupt or partial index - it is going to be rebuilt
+            if (!file.delete()) {
+                // TODO what to do if we cannot delete corrupt index...
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks stored checksum against checksum of everything read so far.
+     * @param checked checked input stream
+     * @param in data input stream over checked stream
+     * @throws IOException if checksums do not match
+     */
+    protected static void checkChecksum(CheckedInputStream checked, DataInputStream in) throws IOException {
+        long expected = checked.getChecksum().getValue();
+        long stored = in.readLong();
+        if (expected != stored) {
+            throw new IOException("Index checksum mismatch");
+        }
+    }
+
+    /**
+     * Stores index to given folder's directory. Index is written to temporary file
+     * and then atomically renamed to {@link #INDEX_FILE}.
+     * @param dir folder's directory
+     * @throws IOException if index cannot be written
+     */
+    public void store(File dir) throws IOException {
+        File tmpFile = new File(dir, INDEX_TMP_FILE);
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(curModified);
+            out.writeLong(newModified);
+            out.writeInt(total);
+            out.writeInt(recent);
+            out.writeInt(unseen);
+            out.writeLong(checked.getChecksum().getValue());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.getName());
+                out.writeBoolean(entry.isNew());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getInternalDate());
+                out.writeLong(entry.getUID());
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmpFile.toPath(), new File(dir, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Index entry - details of one message file.
+     */
+    public static class Entry {
+
+        /** File name (base name and info) */
+        protected String name;
+
+        /** Is file in <i>new</i> directory */
+        protected boolean isNew;
+
+        /** File size */
+        protected long size;
+
+        /** Internal date */
+        protected long internalDate;
+
+        /** UID or -1 */
+        protected long uid;
+
+        /**
+         * Constructor
+         * @param name file name
+         * @param isNew is file in <i>new</i> directory
+         * @param size file size
+         * @param internalDate internal date
+         * @param uid uid or -1
+         */
+        public Entry(String name, boolean isNew, long size, long internalDate, long uid) {
+            this.name = name;
+            this.isNew = isNew;
+            this.size = size;
+            this.internalDate = internalDate;
+            this.uid = uid;
+        }
+
+        /**
+         * Returns file name
+         * @return file name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns base name - file name without info (flags)
+         * @return base name
+         */
+        public String getBaseName() {
+            return MaildirMessage.baseNameFromName(name);
+        }
+
+        /**
+         * Returns maildir flags string from the file name
+         * @return maildir flags string
+         */
+        public String getFlags() {
+            int i = name.lastIndexOf(MaildirMessage.FLAGS_SEPERATOR);
+            if (i > 0) {
+                return name.substring(i + MaildirMessage.FLAGS_SEPERATOR.length());
+            }
+            return "";
+        }
+
+        /**
+         * Returns <code>true</code> if file is in <i>new</i> directory
+         * @return <code>true</code> if file is in <i>new</i> directory
+         */
+        public boolean isNew() {
+            return isNew;
+        }
+
+        /**
+         * Returns <code>true</code> if file has seen flag
+         * @return <code>true</code> if file has seen flag
+         */
+        public boolean isSeen() {
+            String flags = getFlags();
+            return (flags.indexOf('S') >= 0) || (flags.indexOf('s') >= 0);
+        }
+
+        /**
+         * Returns file size
+         * @return file size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns internal date
+         * @return internal date
+         */
+        public long getInternalDate() {
+            return internalDate;
+        }
+
+        /**
+         * Returns uid
+         * @return uid or -1
+         */
+        public long getUID() {
+            return uid;
+        }
+    }
+}
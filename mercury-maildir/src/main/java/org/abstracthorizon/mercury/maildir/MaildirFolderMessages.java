@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.abstracthorizon.mercury.maildir.util.MessageBase;
+import org.abstracthorizon.mercury.maildir.util.MessageWrapper;
+
+
+/**
+ * <p>Messages of an open folder. Folder keeps only rows of folder data's
+ * {@link MaildirMessageTable} in order messages are seen by the folder. Wrappers
+ * (folder messages) are created when they are asked for and are kept through weak
+ * references so they are released when nobody uses them any more.
+ * </p>
+ * <p>UIDs of messages are kept in a column next to rows. While they are known
+ * and in ascending order (as they are in UID folders) UID lookups and UID ranges
+ * are resolved by binary search; otherwise messages are scanned.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFolderMessages extends AbstractList<MessageBase> {
+
+    /** Folder */
+    protected MaildirFolder folder;
+
+    /** Folder data's table */
+    protected MaildirMessageTable table;
+
+    /** Rows of messages in ascending order */
+    protected int[] rows = new int[16];
+
+    /** UIDs of messages, -1 if not known */
+    protected long[] uids = new long[16];
+
+    /** Are all UIDs known and in ascending order */
+    protected boolean uidsSorted = true;
+
+    /** Number of messages */
+    protected int size;
+
+    /** Created wrappers */
+    protected WeakReference<MessageBase>[] wrappers;
+
+    /**
+     * Constructor.
+     * @param folder folder
+     * @param table folder data's table
+     */
+    public MaildirFolderMessages(MaildirFolder folder, MaildirMessageTable table) {
+        this.folder = folder;
+        this.table = table;
+        wrappers = MaildirMessageTable.newReferences(rows.length);
+    }
+
+    /**
+     * Returns folder data's table
+     * @return folder data's table
+     */
+    public MaildirMessageTable getTable() {
+        return table;
+    }
+
+    /**
+     * Returns number of messages
+     * @return number of messages
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns message at given index.
+     * @param index index
+     * @return message
+     * @throws IllegalStateException if message cannot be created
+     */
+    public MessageBase get(int index) {
+        try {
+            return getMessage(index);
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Cannot create message", e);
+        }
+    }
+
+    /**
+     * Returns message at given index. Message is created if it is not already.
+     * @param index index
+     * @return message
+     * @throws MessagingException if message cannot be created
+     */
+    public MessageBase getMessage(int index) throws MessagingException {
+        int row;
+        synchronized (this) {
+            if ((index < 0) || (index >= size)) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            MessageBase wrapper = getCached(index);
+            if (wrapper != null) {
+                return wrapper;
+            }
+            row = rows[index];
+        }
+        MessageBase wrapper = folder.createMessageWrapper(table.get(row), index + 1);
+        synchronized (this) {
+            if ((index >= size) || (rows[index] != row)) {
+                // Messages are removed in the meantime
+                index = indexOfRow(row);
+                if (index < 0) {
+                    return wrapper;
+                }
+                wrapper.setMessageNumber(index + 1);
+            }
+            MessageBase other = getCached(index);
+            if (other != null) {
+                return other;
+            }
+            wrappers[index] = new WeakReference<MessageBase>(wrapper);
+            return wrapper;
+        }
+    }
+
+    /**
+     * Returns message at given index only if its wrapper already exists
+     * @param index index
+     * @return message or <code>null</code> if it is not created or index is out of range
+     */
+    public synchronized MessageBase getCachedMessage(int index) {
+        if ((index < 0) || (index >= size)) {
+            return null;
+        }
+        return getCached(index);
+    }
+
+    /**
+     * Returns wrapper at given index only if it already exists
+     * @param index index
+     * @return wrapper or <code>null</code>
+     */
+    protected MessageBase getCached(int index) {
+        WeakReference<MessageBase> ref = wrappers[index];
+        if (ref != null) {
+            return ref.get();
+        }
+        return null;
+    }
+
+    /**
+     * Returns index of given row
+     * @param row row
+     * @return index or -1 if row is not in this folder
+     */
+    public synchronized int indexOfRow(int row) {
+        int i = Arrays.binarySearch(rows, 0, size, row);
+        if (i >= 0) {
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns index of given message
+     * @param message folder data's message or folder's message
+     * @return index or -1 if message is not in this folder
+     */
+    public int indexOf(MimeMessage message) {
+        if (message instanceof MessageWrapper) {
+            message = ((MessageWrapper)message).getMessage();
+        }
+        if ((message instanceof MaildirMessage) && (((MaildirMessage)message).table == table)) {
+            return indexOfRow(((MaildirMessage)message).row);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns index of message with given UID
+     * @param uid UID
+     * @return index or -1 if there is no message with given UID
+     */
+    public synchronized int indexOfUID(long uid) {
+        if (uidsSorted) {
+            int i = Arrays.binarySearch(uids, 0, size, uid);
+            if (i >= 0) {
+                return i;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (uids[i] == uid) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns copy of UIDs of messages
+     * @return UIDs in ascending order
+     */
+    public long[] getUIDs() {
+        long[] res;
+        boolean sorted;
+        synchronized (this) {
+            res = Arrays.copyOf(uids, size);
+            sorted = uidsSorted;
+        }
+        if (!sorted) {
+            Arrays.sort(res);
+        }
+        return res;
+    }
+
+    /**
+     * Returns messages with UIDs in given range. If UIDs are in ascending order
+     * returned list is a view of this list (valid until messages are added or removed)
+     * and no message is created until it is asked for.
+     * @param start first UID
+     * @param end last UID (inclusive)
+     * @return list of messages
+     */
+    public List<MessageBase> getMessagesByUID(long start, long end) {
+        if (start > end) {
+            return new ArrayList<MessageBase>();
+        }
+        int[] indexes;
+        int count = 0;
+        synchronized (this) {
+            if (uidsSorted) {
+                int from = Arrays.binarySearch(uids, 0, size, start);
+                if (from < 0) {
+                    from = -from - 1;
+                }
+                int to = Arrays.binarySearch(uids, from, size, end);
+                if (to < 0) {
+                    to = -to - 1;
+                } else {
+                    to = to + 1;
+                }
+                return subList(from, to);
+            }
+            indexes = new int[size];
+            for (int i = 0; i < size; i++) {
+                if ((uids[i] >= start) && (uids[i] <= end)) {
+                    indexes[count] = i;
+                    count++;
+                }
+            }
+        }
+        // Messages are created outside of the lock
+        ArrayList<MessageBase> res = new ArrayList<MessageBase>(count);
+        for (int i = 0; i < count; i++) {
+            res.add(get(indexes[i]));
+        }
+        return res;
+    }
+
+    /**
+     * Returns copy of rows of messages
+     * @return rows in ascending order
+     */
+    public synchronized int[] getRows() {
+        return Arrays.copyOf(rows, size);
+    }
+
+    /**
+     * Returns number of messages whose all given bits are set in the table
+     * @param bits bits as defined in {@link FlagUtilities} and {@link MaildirMessageTable#NEW}
+     * @return number of messages
+     */
+    public int count(int bits) {
+        int[] rs = getRows();
+        int cnt = 0;
+        for (int row : rs) {
+            if ((table.getFlags(row) & bits) == bits) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Adds rows. Rows that are already in the folder are skipped.
+     * @param newRows rows in ascending order
+     * @return indexes rows are added at or -1 for skipped rows
+     */
+    public int[] add(int[] newRows) {
+        long[] newUids = table.getUIDs(newRows);
+        synchronized (this) {
+            int[] res = new int[newRows.length];
+            for (int i = 0; i < newRows.length; i++) {
+                int row = newRows[i];
+                int index;
+                if ((size == 0) || (rows[size - 1] < row)) {
+                    index = size;
+                } else {
+                    index = Arrays.binarySearch(rows, 0, size, row);
+                    if (index >= 0) {
+                        res[i] = -1;
+                        continue;
+                    }
+                    index = -index - 1;
+                }
+                if (size == rows.length) {
+                    int capacity = rows.length * 2;
+                    rows = Arrays.copyOf(rows, capacity);
+                    uids = Arrays.copyOf(uids, capacity);
+                    wrappers = Arrays.copyOf(wrappers, capacity);
+                }
+                if (index < size) {
+                    System.arraycopy(rows, index, rows, index + 1, size - index);
+                    System.arraycopy(uids, index, uids, index + 1, size - index);
+                    System.arraycopy(wrappers, index, wrappers, index + 1, size - index);
+                }
+                long uid = newUids[i];
+                if ((uid < 0) || ((index > 0) && (uids[index - 1] >= uid)) || ((index < size) && (uids[index + 1] <= uid))) {
+                    uidsSorted = false;
+                }
+                rows[index] = row;
+                uids[index] = uid;
+                wrappers[index] = null;
+                size = size + 1;
+                res[i] = index;
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Removes given messages.
+     * @param messages folder data's messages or folder's messages
+     * @return list of removed folder messages
+     * @throws MessagingException
+     */
+    public List<MessageBase> remove(Collection<? extends MimeMessage> messages) throws MessagingException {
+        return remove(messages, false);
+    }
+
+    /**
+     * Removes given messages in one pass over the folder. Each message is located
+     * by binary search and remaining messages are moved down only once, so removing
+     * <i>m</i> messages out of <i>n</i> costs O(m log n + n) regardless of how
+     * many messages are removed.
+     * @param messages folder data's messages or folder's messages
+     * @param renumber if <code>true</code> existing wrappers of remaining messages
+     * get their new message numbers in the same pass
+     * @return list of removed folder messages in folder order
+     * @throws MessagingException
+     */
+    public synchronized List<MessageBase> remove(Collection<? extends MimeMessage> messages, boolean renumber) throws MessagingException {
+        int[] indexes = new int[messages.size()];
+        MimeMessage[] msgs = new MimeMessage[size];
+        int count = 0;
+        for (MimeMessage message : messages) {
+            int index = indexOf(message);
+            if ((index >= 0) && (msgs[index] == null)) {
+                msgs[index] = message;
+                indexes[count] = index;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return new ArrayList<MessageBase>();
+        }
+        Arrays.sort(indexes, 0, count);
+
+        ArrayList<MessageBase> removed = new ArrayList<MessageBase>(count);
+        int j = indexes[0];
+        int k = 0;
+        for (int i = j; i < size; i++) {
+            if ((k < count) && (indexes[k] == i)) {
+                MessageBase wrapper = getCached(i);
+                if (wrapper == null) {
+                    MimeMessage message = msgs[i];
+                    MaildirMessage msg = (MaildirMessage)(message instanceof MessageWrapper ? ((MessageWrapper)message).getMessage() : message);
+                    wrapper = folder.createMessageWrapper(msg, i + 1);
+                }
+                removed.add(wrapper);
+                k++;
+            } else {
+                rows[j] = rows[i];
+                uids[j] = uids[i];
+                wrappers[j] = wrappers[i];
+                if (renumber) {
+                    MessageBase wrapper = getCached(j);
+                    if (wrapper != null) {
+                        wrapper.setMessageNumber(j + 1);
+                    }
+                }
+                j++;
+            }
+        }
+        for (int i = j; i < size; i++) {
+            wrappers[i] = null;
+        }
+        size = j;
+        return removed;
+    }
+
+    /**
+     * Sets message numbers of existing wrappers to their current position
+     */
+    public synchronized void renumber() {
+        renumber(0);
+    }
+
+    /**
+     * Sets message numbers of existing wrappers starting from given index to their current position
+     * @param from first index
+     */
+    protected void renumber(int from) {
+        for (int i = from; i < size; i++) {
+            MessageBase wrapper = getCached(i);
+            if (wrapper != null) {
+                wrapper.setMessageNumber(i + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+
+/**
+ * <p>In memory tree of store's folders. All folders are directories directly in store's
+ * base directory so tree is built from one listing of that directory and is kept until
+ * base directory's modification time changes. Folders created or deleted through the store
+ * are updated in the tree straight away. Tree built within {@link MaildirFolderIndex#MODIFIED_GRACE_PERIOD}
+ * of base directory's last change is not trusted and is built again next time.
+ * </p>
+ * <p>Folder names are matched against LIST patterns (&quot;*&quot; matches any characters
+ * while &quot;%&quot; doesn't match hierarchy separator) without accessing the file system.
+ * Tree also keeps folder data of existing folders once they are asked for so they are not
+ * created again on each listing.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFolderTree {
+
+    /** Store */
+    protected MaildirStore store;
+
+    /** Root node or <code>null</code> if tree is not built yet */
+    protected Node root;
+
+    /** Modification time of base directory tree is built against or -1 if not trusted */
+    protected long baseModified = -1;
+
+    /** Number of times tree was built */
+    protected long builds;
+
+    /**
+     * Constructor.
+     * @param store store
+     */
+    public MaildirFolderTree(MaildirStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns number of times tree was built from base directory
+     * @return number of builds
+     */
+    public synchronized long getBuilds() {
+        return builds;
+    }
+
+    /**
+     * Returns full names of existing folders that match the pattern. &quot;INBOX&quot;
+     * matches inbox regardless of the case.
+     * @param pattern pattern of full names. Empty pattern matches all folders.
+     * @return full names of matching folders
+     */
+    public synchronized String[] listNames(String pattern) {
+        refresh();
+        if ((pattern == null) || (pattern.length() == 0)) {
+            pattern = "*";
+        }
+        List<String> res = new ArrayList<String>();
+        if ("INBOX".equals(pattern)) {
+            for (Node node : root.children.values()) {
+                if (node.exists && node.name.equalsIgnoreCase("INBOX")) {
+                    res.add(node.fullName);
+                }
+            }
+        } else {
+            int maxDepth = Integer.MAX_VALUE;
+            if (pattern.indexOf('*') < 0) {
+                maxDepth = depth(pattern);
+            }
+            collect(root, pattern, literalPrefix(pattern), maxDepth, res);
+        }
+        String[] array = new String[res.size()];
+        return res.toArray(array);
+    }
+
+    /**
+     * Remembers folder data of an existing folder so it is kept as long as folder exists
+     * @param folderData folder data
+     */
+    public synchronized void attach(MaildirFolderData folderData) {
+        if ((root != null) && !folderData.isRootFolder()) {
+            Node node = getNode(folderData.getFullName(), false);
+            if ((node != null) && node.exists && (node.folderData != folderData)) {
+                node.folderData = folderData;
+            }
+        }
+    }
+
+    /**
+     * Adds created folder to the tree
+     * @param folderData created folder's data
+     */
+    public synchronized void folderCreated(MaildirFolderData folderData) {
+        if (root != null) {
+            Node node = getNode(folderData.getFullName(), true);
+            node.exists = true;
+            node.folderData = folderData;
+        }
+    }
+
+    /**
+     * Removes deleted folder from the tree
+     * @param fullName deleted folder's full name
+     */
+    public synchronized void folderDeleted(String fullName) {
+        if (root != null) {
+            Node node = getNode(fullName, false);
+            if (node != null) {
+                node.exists = false;
+                node.folderData = null;
+                while ((node != root) && !node.exists && node.children.isEmpty()) {
+                    node.parent.children.remove(node.name);
+                    node = node.parent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes tree to be built again next time it is used
+     */
+    public synchronized void invalidate() {
+        baseModified = -1;
+    }
+
+    /**
+     * Builds the tree if it is not built yet, if base directory has changed since
+     * or if tree is not trusted.
+     */
+    protected void refresh() {
+        File base = store.getBaseFile();
+        long modified = base.lastModified();
+        if ((root != null) && (baseModified != -1) && (modified == baseModified)) {
+            return;
+        }
+        Node oldRoot = root;
+        root = new Node(null, "", "");
+        builds = builds + 1;
+        boolean leadingDot = store.isLeadingDot();
+        File[] files = base.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getName();
+                if (!"tmp".equals(name) && !"new".equals(name) && !"cur".equals(name)
+                        && (leadingDot == name.startsWith(".")) && files[i].isDirectory()) {
+                    if (leadingDot) {
+                        name = name.substring(1);
+                    }
+                    getNode(name.replace('.', '/'), true).exists = true;
+                }
+            }
+        }
+        if (oldRoot != null) {
+            keepFolderData(oldRoot);
+        }
+        if (System.currentTimeMillis() - modified > MaildirFolderIndex.MODIFIED_GRACE_PERIOD) {
+            baseModified = modified;
+        } else {
+            baseModified = -1;
+        }
+    }
+
+    /**
+     * Moves folder data from nodes of old tree to nodes of new tree of folders that still exist
+     * @param oldNode node of old tree
+     */
+    protected void keepFolderData(Node oldNode) {
+        if (oldNode.folderData != null) {
+            Node node = getNode(oldNode.fullName, false);
+            if ((node != null) && node.exists) {
+                node.folderData = oldNode.folderData;
+            }
+        }
+        for (Node child : oldNode.children.values()) {
+            keepFolderData(child);
+        }
+    }
+
+    /**
+     * Returns node of given full name
+     * @param fullName full name
+     * @param create should missing nodes be created
+     * @return node or <code>null</code> if it doesn't exist and <code>create</code> is <code>false</code>
+     */
+    protected Node getNode(String fullName, boolean create) {
+        Node node = root;
+        int start = 0;
+        while (start < fullName.length()) {
+            int end = fullName.indexOf('/', start);
+            if (end < 0) {
+                end = fullName.length();
+            }
+            String name = fullName.substring(start, end);
+            Node child = node.children.get(name);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node(node, name, fullName.substring(0, end));
+                node.children.put(name, child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Collects full names of existing folders under given node that match the pattern.
+     * Subtrees that cannot match pattern's literal prefix or are deeper than pattern
+     * allows are skipped.
+     * @param node node
+     * @param pattern pattern
+     * @param prefix pattern's literal prefix
+     * @param maxDepth maximum depth of matching folders
+     * @param res list full names are added to
+     */
+    protected void collect(Node node, String pattern, String prefix, int maxDepth, List<String> res) {
+        for (Node child : node.children.values()) {
+            String fullName = child.fullName;
+            boolean compatible;
+            if (fullName.length() <= prefix.length()) {
+                compatible = prefix.startsWith(fullName);
+            } else {
+                compatible = fullName.startsWith(prefix);
+            }
+            if (compatible) {
+                if (child.exists && matches(pattern, 0, fullName, 0)) {
+                    res.add(fullName);
+                }
+                if (depth(fullName) < maxDepth) {
+                    collect(child, pattern, prefix, maxDepth, res);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns part of the pattern before first wildcard
+     * @param pattern pattern
+     * @return literal prefix
+     */
+    protected static String literalPrefix(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if ((c == '*') || (c == '%')) {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Returns number of hierarchy separators in the name
+     * @param name name
+     * @return depth
+     */
+    protected static int depth(String name) {
+        int depth = 0;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Matches name against the pattern. &quot;*&quot; matches any characters while
+     * &quot;%&quot; matches any characters but hierarchy separator.
+     * @param pattern pattern
+     * @param p position in pattern
+     * @param name name
+     * @param n position in name
+     * @return <code>true</code> if rest of the name matches rest of the pattern
+     */
+    public static boolean matches(String pattern, int p, String name, int n) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if ((c == '*') || (c == '%')) {
+                for (int i = n; i <= name.length(); i++) {
+                    if (matches(pattern, p + 1, name, i)) {
+                        return true;
+                    }
+                    if ((c == '%') && (i < name.length()) && (name.charAt(i) == '/')) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            if ((n >= name.length()) || (name.charAt(n) != c)) {
+                return false;
+            }
+            p++;
+            n++;
+        }
+        return n == name.length();
+    }
+
+    /**
+     * Node of the tree.
+     */
+    protected static class Node {
+
+        /** Parent node or <code>null</code> for root */
+        protected Node parent;
+
+        /** Last component of folder's name */
+        protected String name;
+
+        /** Folder's full name */
+        protected String fullName;
+
+        /** Does folder's directory exist or node is there only for its subfolders */
+        protected boolean exists;
+
+        /** Folder data of existing folder or <code>null</code> */
+        protected MaildirFolderData folderData;
+
+        /** Subfolders */
+        protected TreeMap<String, Node> children = new TreeMap<String, Node>();
+
+        /**
+         * Constructor.
+         * @param parent parent node
+         * @param name last component of folder's name
+         * @param fullName folder's full name
+         */
+        public Node(Node parent, String name, String fullName) {
+            this.parent = parent;
+            this.name = name;
+            this.fullName = fullName;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Shared watcher of <i>new</i> and <i>cur</i> directories of all open folders.
+ * Each {@link MaildirFolderData} registers itself when first folder over it is opened
+ * and unregisters when last is closed. Files that appear in watched directories are passed
+ * to {@link MaildirFolderData#messageFilesCreated(File, List)} and files that disappear
+ * to {@link MaildirFolderData#messageFilesDeleted(File, List)}.
+ * </p>
+ *
+ * <p>Renaming file from <i>new</i> to <i>cur</i> or changing its flags is seen as
+ * deletion of one file and creation of another. Since those two events can come
+ * in any order deletions are held for {@link #getSettleTime()} before they are passed
+ * to folder data. If watch queue overflows folder data is asked to rescan its directories
+ * (see {@link MaildirFolderData#watchOverflowed()}).
+ * </p>
+ *
+ * <p>Failure of one folder data doesn't stop the watcher; that folder data is only asked to
+ * rescan its directories. If watcher's thread stops anyway all registered folder data are
+ * told to go back to polling (see {@link MaildirFolderData#watchStopped()}).
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirFolderWatcher implements Runnable {
+
+    /** Logger */
+    protected static final Logger logger = LoggerFactory.getLogger(MaildirFolderWatcher.class);
+
+    /** Default instance */
+    protected static MaildirFolderWatcher defaultInstance;
+
+    /** Watch service or <code>null</code> if not available */
+    protected WatchService watchService;
+
+    /** Folder data registered per watch key */
+    protected Map<WatchKey, Set<MaildirFolderData>> registrations = new HashMap<WatchKey, Set<MaildirFolderData>>();
+
+    /** Watch keys per folder data */
+    protected Map<MaildirFolderData, WatchKey[]> folderKeys = new HashMap<MaildirFolderData, WatchKey[]>();
+
+    /** Deletions waiting for settle time to pass */
+    protected LinkedList<PendingDelete> pendingDeletes = new LinkedList<PendingDelete>();
+
+    /** Time in milliseconds deletions are held before passed to folder data */
+    protected long settleTime = 200;
+
+    /** Watcher thread */
+    protected Thread thread;
+
+    /**
+     * Constructor
+     */
+    public MaildirFolderWatcher() {
+    }
+
+    /**
+     * Returns default instance
+     * @return default instance
+     */
+    public static synchronized MaildirFolderWatcher getDefaultInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new MaildirFolderWatcher();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Returns settle time
+     * @return settle time in milliseconds
+     */
+    public long getSettleTime() {
+        return settleTime;
+    }
+
+    /**
+     * Sets settle time
+     * @param settleTime settle time in milliseconds
+     */
+    public void setSettleTime(long settleTime) {
+        this.settleTime = settleTime;
+    }
+
+    /**
+     * Registers <i>new</i> and <i>cur</i> directories of given folder data.
+     * @param folderData folder data
+     * @return <code>true</code> if directories are watched. <code>false</code> means
+     * folder data must poll directories itself.
+     */
+    public synchronized boolean register(MaildirFolderData folderData) {
+        if (folderKeys.containsKey(folderData)) {
+            return true;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+            WatchKey[] keys = new WatchKey[2];
+            keys[0] = register(folderData, folderData.getNewDir());
+            try {
+                keys[1] = register(folderData, folderData.getCurDir());
+            } catch (IOException e) {
+                unregister(folderData, keys[0]);
+                throw e;
+            }
+            folderKeys.put(folderData, keys);
+        } catch (IOException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+
+        if (thread == null) {
+            thread = new Thread(this, "MaildirFolderWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Registers one directory
+     * @param folderData folder data
+     * @param dir directory
+     * @return watch key
+     * @throws IOException
+     */
+    protected WatchKey register(MaildirFolderData folderData, File dir) throws IOException {
+        WatchKey key = dir.toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        Set<MaildirFolderData> set = registrations.get(key);
+        if (set == null) {
+            set = new HashSet<MaildirFolderData>();
+            registrations.put(key, set);
+        }
+        set.add(folderData);
+        return key;
+    }
+
+    /**
+     * Unregisters given folder data
+     * @param folderData folder data
+     */
+    public synchronized void unregister(MaildirFolderData folderData) {
+        WatchKey[] keys = folderKeys.remove(folderData);
+        if (keys != null) {
+            for (WatchKey key : keys) {
+                unregister(folderData, key);
+            }
+        }
+    }
+
+    /**
+     * Removes folder data from the key's registration and cancels key if it is not needed any more
+     * @param folderData folder data
+     * @param key watch key
+     */
+    protected void unregister(MaildirFolderData folderData, WatchKey key) {
+        Set<MaildirFolderData> set = registrations.get(key);
+        if (set != null) {
+            set.remove(folderData);
+            if (set.isEmpty()) {
+                registrations.remove(key);
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Returns folder data registered for the given key
+     * @param key watch key
+     * @return copy of set of folder data
+     */
+    protected synchronized List<MaildirFolderData> getRegistered(WatchKey key) {
+        Set<MaildirFolderData> set = registrations.get(key);
+        if (set == null) {
+            return null;
+        }
+        return new ArrayList<MaildirFolderData>(set);
+    }
+
+    /**
+     * Returns <code>true</code> if folder data is still registered
+     * @param folderData folder data
+     * @return <code>true</code> if folder data is still registered
+     */
+    protected synchronized boolean isRegistered(MaildirFolderData folderData) {
+        return folderKeys.containsKey(folderData);
+    }
+
+    /**
+     * Watcher's loop
+     */
+    public void run() {
+        WatchService watchService;
+        synchronized (this) {
+            watchService = this.watchService;
+        }
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(settleTime, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                while (key != null) {
+                    processKey(key, now);
+                    key = watchService.poll();
+                }
+                processPendingDeletes(now);
+            }
+        } catch (InterruptedException ignore) {
+        } catch (ClosedWatchServiceException ignore) {
+        } finally {
+            stopped();
+        }
+    }
+
+    /**
+     * Drops all registrations when watcher's thread stops. Registered folder data
+     * are not watched any more so they are told to poll their directories.
+     */
+    protected void stopped() {
+        List<MaildirFolderData> folders;
+        synchronized (this) {
+            thread = null;
+            folders = new ArrayList<MaildirFolderData>(folderKeys.keySet());
+            for (WatchKey key : registrations.keySet()) {
+                key.cancel();
+            }
+            registrations.clear();
+            folderKeys.clear();
+            pendingDeletes.clear();
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException ignore) {
+                }
+                watchService = null;
+            }
+        }
+        for (MaildirFolderData folderData : folders) {
+            folderData.watchStopped();
+        }
+    }
+
+    /**
+     * Called when folder data failed to process change. Folder data is asked to rescan
+     * its directories next time it is accessed.
+     * @param folderData folder data
+     * @param e exception
+     */
+    protected void failed(MaildirFolderData folderData, RuntimeException e) {
+        logger.warn("Failed to process changes of " + folderData.getFolderFile(), e);
+        folderData.rescanNeeded = true;
+    }
+
+    /**
+     * Processes events of one key.
+     * @param key watch key
+     * @param now current time
+     */
+    protected void processKey(WatchKey key, long now) {
+        boolean overflow = false;
+        List<String> created = new ArrayList<String>();
+        List<String> deleted = new ArrayList<String>();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                String name = ((Path)event.context()).getFileName().toString();
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    created.add(name);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    deleted.add(name);
+                }
+            }
+        }
+        key.reset();
+
+        List<MaildirFolderData> folders = getRegistered(key);
+        if (folders == null) {
+            return;
+        }
+        File dir = ((Path)key.watchable()).toFile();
+        for (MaildirFolderData folderData : folders) {
+            try {
+                if (overflow) {
+                    folderData.watchOverflowed();
+                } else {
+                    if (created.size() > 0) {
+                        folderData.messageFilesCreated(dir, created);
+                    }
+                    for (String name : deleted) {
+                        pendingDeletes.add(new PendingDelete(folderData, dir, name, now));
+                    }
+                }
+            } catch (RuntimeException e) {
+                failed(folderData, e);
+            }
+        }
+    }
+
+    /**
+     * Passes deletions older than settle time to folder data
+     * @param now current time
+     */
+    protected void processPendingDeletes(long now) {
+        Map<MaildirFolderData, Map<File, List<String>>> ready = new LinkedHashMap<MaildirFolderData, Map<File, List<String>>>();
+        Iterator<PendingDelete> it = pendingDeletes.iterator();
+        while (it.hasNext()) {
+            PendingDelete pending = it.next();
+            if ((now - pending.time) < settleTime) {
+                break;
+            }
+            it.remove();
+            Map<File, List<String>> dirs = ready.get(pending.folderData);
+            if (dirs == null) {
+                dirs = new HashMap<File, List<String>>();
+                ready.put(pending.folderData, dirs);
+            }
+            List<String> names = dirs.get(pending.dir);
+            if (names == null) {
+                names = new ArrayList<String>();
+                dirs.put(pending.dir, names);
+            }
+            names.add(pending.name);
+        }
+        for (Map.Entry<MaildirFolderData, Map<File, List<String>>> entry : ready.entrySet()) {
+            MaildirFolderData folderData = entry.getKey();
+            if (isRegistered(folderData)) {
+                try {
+                    for (Map.Entry<File, List<String>> dir : entry.getValue().entrySet()) {
+                        folderData.messageFilesDeleted(dir.getKey(), dir.getValue());
+                    }
+                } catch (RuntimeException e) {
+                    failed(folderData, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deleted file waiting for settle time
+     */
+    protected static class PendingDelete {
+
+        /** Folder data */
+        protected MaildirFolderData folderData;
+
+        /** Directory */
+        protected File dir;
+
+        /** File name */
+        protected String name;
+
+        /** Time deletion is seen */
+        protected long time;
+
+        /**
+         * Constructor
+         * @param folderData folder data
+         * @param dir directory
+         * @param name file name
+         * @param time time deletion is seen
+         */
+        protected PendingDelete(MaildirFolderData folderData, File dir, String name, long time) {
+            this.folderData = folderData;
+            this.dir = dir;
+            this.name = name;
+            this.time = time;
+        }
+    }
+}
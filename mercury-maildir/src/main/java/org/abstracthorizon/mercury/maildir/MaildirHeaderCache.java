@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * <p>Persistent cache of selected header fields of messages in one maildir folder.
+ * It is kept in &quot;.headers&quot; file in folder's directory, next to &quot;.index&quot;.
+ * For each message, keyed by message's base name so flag changes do not invalidate it,
+ * it holds file size, length of the header block and raw header lines of cached header names.
+ * </p>
+ *
+ * <p>Entries are added when message is parsed for the first time. Until message is parsed
+ * again {@link MaildirMessage} answers header getters for cached names (and message size)
+ * from the cache without opening message file. Entry is used only if message's file size
+ * is still the same as recorded.
+ * </p>
+ *
+ * <p>Cache is written, same as {@link MaildirFolderIndex}, to temporary file and then renamed.
+ * Cache file that cannot be read or is made for different set of header names is ignored
+ * and rebuilt.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirHeaderCache {
+
+    /** Name of the cache file */
+    public static final String CACHE_FILE = ".headers";
+
+    /** Name of the temporary file cache is written to before it is renamed to {@link #CACHE_FILE} */
+    public static final String CACHE_TMP_FILE = ".headers.tmp";
+
+    /** Header names cached by default - those needed for IMAP envelope and body structure */
+    public static final String[] DEFAULT_HEADERS = new String[]{
+        "Date", "Subject", "From", "Sender", "Reply-To", "To", "Cc", "Bcc", "Newsgroups",
+        "In-Reply-To", "Message-ID", "References", "Content-Type", "Content-Transfer-Encoding"
+    };
+
+    /** Cache file magic number - &quot;MDHC&quot; */
+    protected static final int MAGIC = 0x4d444843;
+
+    /** Cache file format version */
+    protected static final int VERSION = 1;
+
+    /** Charset header lines are stored in */
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Cached header names */
+    protected String[] headerNames;
+
+    /** Cached header names in lower case */
+    protected Set<String> names;
+
+    /** Entries mapped by message base name */
+    protected Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Set when cache is changed since it is loaded or stored */
+    protected boolean dirty;
+
+    /**
+     * Constructor
+     * @param headerNames names of headers to be cached
+     */
+    public MaildirHeaderCache(String[] headerNames) {
+        this.headerNames = headerNames;
+        names = new HashSet<String>();
+        for (String name : headerNames) {
+            names.add(name.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Returns names of cached headers
+     * @return names of cached headers
+     */
+    public String[] getHeaderNames() {
+        return headerNames;
+    }
+
+    /**
+     * Returns <code>true</code> if header with given name is cached
+     * @param name header name
+     * @return <code>true</code> if header with given name is cached
+     */
+    public boolean isCached(String name) {
+        return names.contains(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Returns <code>true</code> if all given headers are cached
+     * @param names header names
+     * @return <code>true</code> if all given headers are cached
+     */
+    public boolean isCached(String[] names) {
+        for (String name : names) {
+            if (!isCached(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns entry for given message base name
+     * @param baseName message base name
+     * @return entry or <code>null</code>
+     */
+    public synchronized Entry getEntry(String baseName) {
+        return entries.get(baseName);
+    }
+
+    /**
+     * Adds or replaces entry for given message base name
+     * @param baseName message base name
+     * @param entry entry
+     */
+    public synchronized void putEntry(String baseName, Entry entry) {
+        entries.put(baseName, entry);
+        dirty = true;
+    }
+
+    /**
+     * Removes entries of messages that are not in given set
+     * @param baseNames base names of existing messages
+     */
+    public synchronized void retain(Set<String> baseNames) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!baseNames.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Returns number of entries
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns estimated number of bytes taken by the cache's entries
+     * @return estimated memory usage
+     */
+    public synchronized long getMemoryUsage() {
+        long res = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            res = res + 96 + e.getKey().length() * 2;
+            String[] lines = e.getValue().lines;
+            if (lines != null) {
+                for (String line : lines) {
+                    if (line != null) {
+                        res = res + 40 + line.length() * 2;
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns <code>true</code> if cache is changed since it is loaded or stored
+     * @return <code>true</code> if cache needs storing
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Loads cache from given folder's directory. If cache file doesn't exist,
+     * cannot be read or is made for different header names empty cache is returned.
+     * Corrupt cache file is deleted.
+     * @param dir folder's directory
+     * @param headerNames names of headers to be cached
+     * @return cache
+     */
+    public static MaildirHeaderCache load(File dir, String[] headerNames) {
+        MaildirHeaderCache cache = new MaildirHeaderCache(headerNames);
+        File file = new File(dir, CACHE_FILE);
+        if (!file.exists()) {
+            return cache;
+        }
+        try {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            try {
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                    throw new IOException("Unknown header cache format");
+                }
+                String[] storedNames = new String[in.readInt()];
+                for (int i = 0; i < storedNames.length; i++) {
+                    storedNames[i] = in.readUTF();
+                }
+                if (!Arrays.equals(storedNames, headerNames)) {
+                    // Different headers cached - cache is going to be rebuilt
+                    cache.dirty = true;
+                    return cache;
+                }
+                int count = in.readInt();
+                Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    String baseName = in.readUTF();
+                    long fileSize = in.readLong();
+                    int headerLength = in.readInt();
+                    String[] lines = new String[in.readInt()];
+                    for (int j = 0; j < lines.length; j++) {
+                        lines[j] = readString(in);
+                    }
+                    entries.put(baseName, new Entry(fileSize, headerLength, lines));
+                }
+                long expected = checked.getChecksum().getValue();
+                if (in.readLong() != expected) {
+                    throw new IOException("Header cache checksum mismatch");
+                }
+                cache.entries = entries;
+                return cache;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Corrupt or partial cache - it is going to be rebuilt
+            if (!file.delete()) {
+                // TODO what to do if we cannot delete corrupt cache...
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Stores cache to given folder's directory. Cache is written to temporary file
+     * and then atomically renamed to {@link #CACHE_FILE}.
+     * @param dir folder's directory
+     * @throws IOException if cache cannot be written
+     */
+    public synchronized void store(File dir) throws IOException {
+        File tmpFile = new File(dir, CACHE_TMP_FILE);
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerNames.length);
+            for (String name : headerNames) {
+                out.writeUTF(name);
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.getFileSize());
+                out.writeInt(entry.getHeaderLength());
+                out.writeInt(entry.lines.length);
+                for (String line : entry.lines) {
+                    writeString(out, line);
+                }
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmpFile.toPath(), new File(dir, CACHE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Writes string of any length
+     * @param out output stream
+     * @param s string
+     * @throws IOException
+     */
+    protected static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads string written with {@link #writeString(DataOutputStream, String)}
+     * @param in input stream
+     * @return string
+     * @throws IOException
+     */
+    protected static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("Invalid string length");
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Cache entry - cached headers of one message.
+     */
+    public static class Entry {
+
+        /** Size of message file headers are read from */
+        protected long fileSize;
+
+        /** Length of header block including empty line separating it from the body */
+        protected int headerLength;
+
+        /** Raw header lines of cached headers in order they appear in the message */
+        protected String[] lines;
+
+        /**
+         * Constructor
+         * @param fileSize size of message file
+         * @param headerLength length of header block
+         * @param lines raw header lines
+         */
+        public Entry(long fileSize, int headerLength, String[] lines) {
+            this.fileSize = fileSize;
+            this.headerLength = headerLength;
+            this.lines = lines;
+        }
+
+        /**
+         * Returns size of message file headers are read from
+         * @return file size
+         */
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * Returns length of header block
+         * @return length of header block
+         */
+        public int getHeaderLength() {
+            return headerLength;
+        }
+
+        /**
+         * Returns values of all headers with given name the same way
+         * <code>InternetHeaders</code> does.
+         * @param name header name
+         * @return array of values or <code>null</code>
+         */
+        public String[] getHeader(String name) {
+            List<String> values = null;
+            for (String line : lines) {
+                if (nameMatches(line, name)) {
+                    if (values == null) {
+                        values = new ArrayList<String>();
+                    }
+                    values.add(valueOf(line));
+                }
+            }
+            if (values == null) {
+                return null;
+            }
+            String[] res = new String[values.size()];
+            return values.toArray(res);
+        }
+
+        /**
+         * Returns values of all headers with given name as one string
+         * @param name header name
+         * @param delimiter delimiter or <code>null</code> for first value only
+         * @return value or <code>null</code>
+         */
+        public String getHeader(String name, String delimiter) {
+            String[] values = getHeader(name);
+            if (values == null) {
+                return null;
+            }
+            if ((values.length == 1) || (delimiter == null)) {
+                return values[0];
+            }
+            StringBuffer res = new StringBuffer(values[0]);
+            for (int i = 1; i < values.length; i++) {
+                res.append(delimiter).append(values[i]);
+            }
+            return res.toString();
+        }
+
+        /**
+         * Returns raw header lines with given names
+         * @param names header names
+         * @return enumeration of header lines
+         */
+        public Enumeration<String> getMatchingHeaderLines(String[] names) {
+            List<String> res = new ArrayList<String>();
+            for (String line : lines) {
+                for (String name : names) {
+                    if (nameMatches(line, name)) {
+                        res.add(line);
+                        break;
+                    }
+                }
+            }
+            return Collections.enumeration(res);
+        }
+
+        /**
+         * Returns <code>true</code> if header line is of the given name
+         * @param line header line
+         * @param name header name
+         * @return <code>true</code> if header line is of the given name
+         */
+        protected static boolean nameMatches(String line, String name) {
+            int i = line.indexOf(':');
+            if (i < 0) {
+                return false;
+            }
+            return line.substring(0, i).trim().equalsIgnoreCase(name);
+        }
+
+        /**
+         * Returns value of header line skipping white space after colon
+         * @param line header line
+         * @return value
+         */
+        protected static String valueOf(String line) {
+            int i = line.indexOf(':');
+            if (i < 0) {
+                return line;
+            }
+            int j = i + 1;
+            while (j < line.length()) {
+                char c = line.charAt(j);
+                if ((c != ' ') && (c != '\t') && (c != '\r') && (c != '\n')) {
+                    break;
+                }
+                j++;
+            }
+            return line.substring(j);
+        }
+    }
+}
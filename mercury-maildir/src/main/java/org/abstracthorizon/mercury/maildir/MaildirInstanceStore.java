@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>Content addressed area of message files shared by maildir stores (single instance store).
+ * When store has it (see {@link MaildirStore#INSTANCES}) content of each delivered message
+ * is digested first. If file with the same content is already in this area new message's
+ * file is made as hard link to it instead of writing the message again. Otherwise message is
+ * written as usual and then linked to this area under its digest so following deliveries
+ * of the same message can link to it. This way a message sent to many recipients
+ * is written to the disk only once.
+ * </p>
+ * <p>Files of this area are kept in subdirectories named by the first two characters of the digest.
+ * Digest is recorded in message's file name with {@link #INSTANCE_TAG} so file can be released when
+ * message is expunged (see {@link #release(String)}). Reference count of a file is number of its
+ * hard links as maintained by the file system: file that has no other links but the one in this area
+ * is not used by any mailbox and it is removed. There is no other state kept so stores in other
+ * processes can share the same area. Races between them can only result in the same content being
+ * stored more than once, never in a message losing its content.
+ * </p>
+ * <p>If file system doesn't support hard links messages are written as if there is no single
+ * instance store.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirInstanceStore {
+
+    /** Digest algorithm content is addressed with */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Tag digest is recorded with in message's file name */
+    public static final String INSTANCE_TAG = ",I=";
+
+    /** Instance stores by their directories */
+    protected static Map<File, MaildirInstanceStore> instanceStores = new HashMap<File, MaildirInstanceStore>();
+
+    /** Directory of the area */
+    protected File base;
+
+    /** Number of messages stored as links to existing files */
+    protected AtomicLong linked = new AtomicLong();
+
+    /** Number of messages added to the area */
+    protected AtomicLong added = new AtomicLong();
+
+    /** Number of files removed from the area */
+    protected AtomicLong released = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param base directory of the area
+     */
+    public MaildirInstanceStore(File base) {
+        this.base = base;
+    }
+
+    /**
+     * Returns instance store for given directory. All stores of this JVM that use the same
+     * directory share the same instance.
+     * @param base directory of the area
+     * @return instance store
+     */
+    public static synchronized MaildirInstanceStore getInstanceStore(File base) {
+        File key = base.getAbsoluteFile();
+        MaildirInstanceStore instanceStore = instanceStores.get(key);
+        if (instanceStore == null) {
+            instanceStore = new MaildirInstanceStore(key);
+            instanceStores.put(key, instanceStore);
+        }
+        return instanceStore;
+    }
+
+    /**
+     * Returns directory of the area
+     * @return directory of the area
+     */
+    public File getBaseFile() {
+        return base;
+    }
+
+    /**
+     * Returns number of messages stored as links to existing files
+     * @return linked messages
+     */
+    public long getLinked() {
+        return linked.get();
+    }
+
+    /**
+     * Returns number of messages added to the area
+     * @return added messages
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * Returns number of files removed from the area
+     * @return released files
+     */
+    public long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * Digests message's content as it would be written to the file
+     * @param message message
+     * @return digest
+     * @throws MessagingException if message cannot be written
+     * @throws IOException if message cannot be written
+     */
+    public static Digest digest(MimeMessage message) throws MessagingException, IOException {
+        Digest digest = new Digest();
+        message.writeTo(digest);
+        return digest;
+    }
+
+    /**
+     * Returns name of area's file for given digest. Name of compressed file has size
+     * in it (see {@link MaildirMessage#SIZE_TAG}) so plain and compressed files of the same
+     * content are kept apart.
+     * @param digest digest
+     * @param compressed is file compressed
+     * @return instance name
+     */
+    public static String instanceName(Digest digest, boolean compressed) {
+        if (compressed) {
+            return digest.getDigest() + MaildirMessage.SIZE_TAG + digest.getSize();
+        }
+        return digest.getDigest();
+    }
+
+    /**
+     * Returns name of area's file recorded in message's file name or <code>null</code>
+     * if message is not stored in single instance store.
+     * @param name message's file name
+     * @return instance name or <code>null</code>
+     */
+    public static String instanceNameFromName(String name) {
+        String digest = digestFromName(name);
+        if (digest == null) {
+            return null;
+        }
+        long size = MaildirMessage.fileSizeFromName(name);
+        if (size >= 0) {
+            return digest + MaildirMessage.SIZE_TAG + size;
+        }
+        return digest;
+    }
+
+    /**
+     * Returns digest recorded in message's file name with {@link #INSTANCE_TAG}
+     * @param name message's file name
+     * @return digest or <code>null</code> if file name doesn't have it
+     */
+    public static String digestFromName(String name) {
+        String baseName = MaildirMessage.baseNameFromName(name);
+        int i = baseName.lastIndexOf(INSTANCE_TAG);
+        if (i < 0) {
+            return null;
+        }
+        i = i + INSTANCE_TAG.length();
+        int j = i;
+        while ((j < baseName.length()) && (Character.digit(baseName.charAt(j), 16) >= 0)) {
+            j++;
+        }
+        if (j == i) {
+            return null;
+        }
+        return baseName.substring(i, j);
+    }
+
+    /**
+     * Returns area's file of given name
+     * @param instanceName instance name
+     * @return file
+     */
+    protected File getFile(String instanceName) {
+        return new File(new File(base, instanceName.substring(0, 2)), instanceName);
+    }
+
+    /**
+     * Creates given file as hard link to area's file.
+     * @param instanceName instance name
+     * @param file file to be created. It must not exist.
+     * @return <code>true</code> if link is created or <code>false</code> if there is no such
+     *         file in the area or link cannot be made
+     */
+    public boolean link(String instanceName, File file) {
+        try {
+            Files.createLink(file.toPath(), getFile(instanceName).toPath());
+            linked.incrementAndGet();
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds just written message's file to the area.
+     * @param instanceName instance name
+     * @param file message's file
+     * @return <code>true</code> if file is in the area (or area already had file of the same name)
+     *         and <code>false</code> if it cannot be linked
+     */
+    public boolean add(String instanceName, File file) {
+        File instanceFile = getFile(instanceName);
+        File dir = instanceFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            return false;
+        }
+        try {
+            Files.createLink(instanceFile.toPath(), file.toPath());
+            added.incrementAndGet();
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes area's file if no mailbox links to it anymore. It is called when message's
+     * file is deleted. If number of links cannot be obtained file is kept.
+     * @param instanceName instance name
+     */
+    public void release(String instanceName) {
+        File instanceFile = getFile(instanceName);
+        try {
+            Object links = Files.getAttribute(instanceFile.toPath(), "unix:nlink");
+            if ((links instanceof Number) && (((Number)links).intValue() <= 1)) {
+                if (instanceFile.delete()) {
+                    released.incrementAndGet();
+                }
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ignore) {
+        }
+    }
+
+    /**
+     * Releases area's file given message's file name refers to, if any.
+     * @param name message's file name
+     */
+    public void releaseName(String name) {
+        String instanceName = instanceNameFromName(name);
+        if (instanceName != null) {
+            release(instanceName);
+        }
+    }
+
+    /**
+     * Output stream that digests and counts what is written to it.
+     */
+    public static class Digest extends OutputStream {
+
+        /** Message digest */
+        protected MessageDigest messageDigest;
+
+        /** Number of written bytes */
+        protected long size;
+
+        /** Digest in hex or <code>null</code> if not finished yet */
+        protected String digest;
+
+        /**
+         * Constructor
+         */
+        public Digest() {
+            try {
+                messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Digests a byte
+         * @param b byte
+         */
+        public void write(int b) {
+            messageDigest.update((byte)b);
+            size = size + 1;
+        }
+
+        /**
+         * Digests bytes
+         * @param buf buffer
+         * @param off offset
+         * @param len length
+         */
+        public void write(byte[] buf, int off, int len) {
+            messageDigest.update(buf, off, len);
+            size = size + len;
+        }
+
+        /**
+         * Returns number of digested bytes
+         * @return size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns digest in hex. Nothing can be digested after it is called.
+         * @return digest
+         */
+        public String getDigest() {
+            if (digest == null) {
+                byte[] bytes = messageDigest.digest();
+                StringBuilder res = new StringBuilder(bytes.length * 2);
+                for (byte b : bytes) {
+                    res.append(Character.forDigit((b >> 4) & 0xf, 16));
+                    res.append(Character.forDigit(b & 0xf, 16));
+                }
+                digest = res.toString();
+            }
+            return digest;
+        }
+    }
+}
@@ -12,6 +12,7 @@
  */
 package org.abstracthorizon.mercury.maildir;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -19,14 +20,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Random;
+import java.util.zip.Deflater;
 
 import javax.mail.Flags;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
 
+import org.abstracthorizon.mercury.maildir.file.BlockCompressedOutputStream;
 import org.abstracthorizon.mercury.maildir.file.FileProvider;
+import org.abstracthorizon.mercury.maildir.file.GroupCommit;
 import org.abstracthorizon.mercury.maildir.file.SharedInputStreamPool;
 import org.abstracthorizon.mercury.maildir.util.LazyParsingMessage;
 
@@ -42,6 +55,7 @@ import org.abstracthorizon.mercury.maildir.util.LazyParsingMessage;
  * <li>&quot;R&quot; followed with 18bit random integer</li>
  * <li>&quot;.&quot; (dot)</li>
  * <li>host name</li>
+ * <li>for compressed messages &quot;,S=&quot; followed by uncompressed size of the message</li>
  * <li>optional &quot;:&quot;, &quot;.&quot; or value from stores info separator attibute
  * followed by &quot;2,&quot; followed by flags</li>
  * </ul>
@@ -70,12 +84,39 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
     /** Cached file size or -1 */
     protected long fileSize = -1;
 
+    /** Cached internal (received) date or -1 */
+    protected long internalDate = -1;
+
+    /** Length of header block read while parsing or -1 */
+    protected int headerLength = -1;
+
     /** Flag to show is file in <i>new</i> subdirectory or not */
     protected boolean isNew;
 
+    /** Folder data's table this message is row of or <code>null</code> */
+    protected MaildirMessageTable table;
+
+    /** Row of this message in {@link #table} or -1 */
+    protected int row = -1;
+
+    /** Tags (size, instance digest) added to the name of appended message's file when it is delivered */
+    protected String deliveryTags = "";
+
+    /** Flags part of name appended message's file gets in <i>cur</i> or <code>null</code> if it goes to <i>new</i> */
+    protected String deliveryInfo;
+
+    /** Flags set to appended message after it is delivered or <code>null</code> */
+    protected Flags appendedFlags;
+
+    /** Header cache entry of copied message stored after it is delivered or <code>null</code> */
+    protected MaildirHeaderCache.Entry appendedHeaders;
+
     /** Flags (info) separator */
     public static final String FLAGS_SEPERATOR = "2,";
 
+    /** Tag of message's size in file name as in Maildir++ */
+    public static final String SIZE_TAG = ",S=";
+
     /** Random number generator */
     protected static final Random randomGenerator = new Random();
 
@@ -95,7 +136,8 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
     }
 
     /**
-     * Constructor that takes new message and creates a file.
+     * Constructor that takes new message and writes it to a file in <i>tmp</i> directory.
+     * Message is moved to its place by {@link #deliver()}.
      * @param folder folder message belongs to.
      * @param message new message this message instance will be created based upon
      * @param msgnum message number
@@ -112,8 +154,76 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
 
         createFile(null);
         storeMessage(message);
-        setFlags(message.getFlags(), true);
-        initialise();
+        appendedFlags = message.getFlags();
+    }
+
+    /**
+     * Constructor that creates message as a copy of another maildir message without
+     * serialising it again. New file is hard link to source message's file or, when link
+     * cannot be made (different file system), byte copy of it. Flags and location (new or cur)
+     * are taken from source message's file name and internal date is carried over.
+     * New file is made in <i>tmp</i> directory and moved to its place by {@link #deliver()}.
+     * @param folder folder message belongs to.
+     * @param source maildir message to be copied
+     * @param msgnum message number
+     * @throws MessagingException
+     * @throws IOException if file cannot be linked nor copied
+     */
+    protected MaildirMessage(MaildirFolderData folder, MaildirMessage source, int msgnum) throws MessagingException, IOException {
+        super(folder, msgnum);
+        this.maildirFolder = folder;
+        infoSeparator = folder.getMaildirStore().getInfoSeparator();
+
+        File sourceFile = source.getFile();
+        long sourceDate = source.getInternalDate();
+        linkFile(sourceFile);
+        try {
+            syncWrittenFile();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        long taggedSize = fileSizeFromName(sourceFile.getName());
+        if (taggedSize >= 0) {
+            // Size of compressed file must stay in its name
+            deliveryTags = SIZE_TAG + taggedSize;
+        }
+        String digest = MaildirInstanceStore.digestFromName(sourceFile.getName());
+        if (digest != null) {
+            // Link to single instance store's file as well
+            deliveryTags = deliveryTags + MaildirInstanceStore.INSTANCE_TAG + digest;
+        }
+
+        String flgs = sourceFile.getName();
+        int i = flgs.lastIndexOf(FLAGS_SEPERATOR);
+        if (i > 0) {
+            flgs = flgs.substring(i+2);
+        } else {
+            flgs = "";
+        }
+        boolean recent = "new".equals(sourceFile.getParentFile().getName());
+        if (!recent) {
+            deliveryInfo = flgs;
+        }
+        long size = source.getFileSize();
+        if (size < 0) {
+            size = fileSizeOf(file);
+        }
+        fileSize = size;
+        isNew = recent;
+        if (recent) {
+            super.setFlags(new Flags(Flags.Flag.RECENT), true);
+        } else {
+            super.setFlags(FlagUtilities.fromBits(FlagUtilities.bitsFromMaildirString(flgs, 0)), true);
+        }
+        // Hard link shares modification time with source file
+        internalDate = sourceDate;
+
+        MaildirHeaderCache.Entry entry = source.getHeaderCacheEntry();
+        MaildirHeaderCache cache = getHeaderCache();
+        if ((entry != null) && (cache != null) && (cache != source.getHeaderCache())) {
+            appendedHeaders = entry;
+        }
     }
 
     /**
@@ -140,6 +250,30 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
         }
     }
 
+    /**
+     * Constructor that creates message object from the file whose details are already known
+     * from folder's index (see {@link MaildirFolderIndex}). File is not checked on the disk.
+     * @param folder folder this message belongs to
+     * @param file file
+     * @param fileSize file size
+     * @param internalDate internal date
+     * @param msgnum message number
+     * @param initialise should message be initialised or not
+     * @throws MessagingException
+     */
+    protected MaildirMessage(MaildirFolderData folder, File file, long fileSize, long internalDate, int msgnum, boolean initialise) throws MessagingException {
+        super(folder, msgnum);
+        this.maildirFolder = folder;
+        infoSeparator = maildirFolder.getMaildirStore().getInfoSeparator();
+
+        setFile(file, fileSize);
+        this.internalDate = internalDate;
+
+        if (initialise) {
+            initialise();
+        }
+    }
+
     /**
      * Constructor that creates message object from the file. Message is always initialised
      * @param folder folder this message belongs to
@@ -158,7 +292,7 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      * @throws MessagingException
      */
     protected void initialise() throws MessagingException {
-        parse(SharedInputStreamPool.getDefaultInstance().newStream(this, 0, fileSize));
+        parse(getSharedInputStreamPool().newStream(this, 0, fileSize));
     }
 
     /**
@@ -167,12 +301,39 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      * @return message's base name
      */
     public static String baseNameFromFile(File file) {
-        String name = file.getName();
-        int i = name.lastIndexOf(MaildirMessage.FLAGS_SEPERATOR);
-        if (i > 0) {
-            name = name.substring(0, i-1);
+        return baseNameFromName(file.getName());
+    }
+
+    /**
+     * Static method that obtains base name from the given file name.
+     * @param name file name
+     * @return message's base name
+     */
+    public static String baseNameFromName(String name) {
+        return MaildirFileName.baseName(name);
+    }
+
+    /**
+     * Returns message's size recorded in file name with {@link #SIZE_TAG}
+     * @param name file name
+     * @return size or -1 if file name doesn't have it
+     */
+    public static long fileSizeFromName(String name) {
+        return MaildirFileName.size(name);
+    }
+
+    /**
+     * Returns message's size. Size recorded in file name is used if present
+     * (file may be compressed) or file's length otherwise.
+     * @param file file
+     * @return message's size
+     */
+    public static long fileSizeOf(File file) {
+        long size = fileSizeFromName(file.getName());
+        if (size < 0) {
+            size = file.length();
         }
-        return name;
+        return size;
     }
 
     /**
@@ -198,29 +359,35 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      * @throws MessagingException if there is a problem setting flags
      */
     public void setFile(File file) throws MessagingException {
+        setFile(file, fileSizeOf(file));
+    }
+
+    /**
+     * Sets message's file with already known size.
+     * @param file file
+     * @param fileSize file's size
+     * @throws MessagingException if there is a problem setting flags
+     */
+    protected void setFile(File file, long fileSize) throws MessagingException {
         this.file = file;
 
         File parentFile = file.getParentFile();
-        isNew = parentFile.getAbsolutePath().endsWith(File.pathSeparator + "new");
+        isNew = "new".equals(parentFile.getName());
 
-        baseName = file.getName();
-        int i = baseName.lastIndexOf(FLAGS_SEPERATOR);
+        String name = file.getName();
+        baseName = MaildirFileName.baseName(name);
 
-        Flags flags = null;
-        if (i > 0) {
-            String flagsStr = baseName.substring(i+2);
-            baseName = baseName.substring(0, i-1);
-            flags = FlagUtilities.fromMaildirString(flagsStr);
-        } else {
-            flags = new Flags();
-        }
+        Flags flags = FlagUtilities.fromBits(MaildirFileName.flagBits(name));
         if (isNew) {
             flags.add(Flags.Flag.RECENT);
         }
 
         super.setFlags(flags, true);
 
-        fileSize = file.length();
+        this.fileSize = fileSize;
+        if (table != null) {
+            table.fileChanged(this);
+        }
     }
 
     /**
@@ -231,11 +398,22 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
         return baseName;
     }
 
+    /**
+     * Returns pool this message's streams are obtained from
+     * @return pool of maildir store or default pool if message is not attached to folder
+     */
+    protected SharedInputStreamPool getSharedInputStreamPool() {
+        if (maildirFolder != null) {
+            return maildirFolder.getMaildirStore().getSharedInputStreamPool();
+        }
+        return SharedInputStreamPool.getDefaultInstance();
+    }
+
     /**
      * Closes all <code>SharedInputStream</code> impementations over this file.
      */
     protected void closeFile() {
-        SharedInputStreamPool.getDefaultInstance().closeWithProvider(this);
+        getSharedInputStreamPool().closeWithProvider(this);
     }
 
     /**
@@ -246,16 +424,30 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      * @throws MessagingException
      */
     protected String createFileName(String flags) throws MessagingException {
-        String time = Long.toString(System.currentTimeMillis());
-        String milis = time.substring(time.length()-3);
-        time = time.substring(0, time.length()-3);
-        String pid = Integer.toString(Thread.currentThread().hashCode());
-        String random = Integer.toString(randomGenerator.nextInt(131072));
-        if ((flags == null) || (flags.length() == 0)) {
-            return time+".M" + milis + "P" + pid + "R" + random + "." + host;
-        } else {
-            return time+".M" + milis + "P" + pid + "R" + random + "." + host + infoSeparator + FLAGS_SEPERATOR + flags;
+        String name = createTmpFileName();
+        if ((flags != null) && (flags.length() > 0)) {
+            return name + infoSeparator + FLAGS_SEPERATOR + flags;
         }
+        return name;
+    }
+
+    /**
+     * Creates name of file in <i>tmp</i> directory, composed of time, milliseconds,
+     * process id and random number and host name. Unlike {@link #createFileName(String)}
+     * it is never overridden so writing the file doesn't take anything (like UID) that
+     * must be handed out in order messages are delivered.
+     * @return new file name
+     */
+    protected final String createTmpFileName() {
+        long time = System.currentTimeMillis();
+        int millis = (int)(time % 1000);
+        StringBuilder name = new StringBuilder(64);
+        name.append(time / 1000).append(".M");
+        name.append((char)('0' + millis / 100)).append((char)('0' + millis / 10 % 10)).append((char)('0' + millis % 10));
+        name.append('P').append(Thread.currentThread().hashCode());
+        name.append('R').append(randomGenerator.nextInt(131072));
+        name.append('.').append(host);
+        return name.toString();
     }
 
     /**
@@ -265,7 +457,10 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      */
     protected void createFile(String flags) throws MessagingException {
         for (int i = 0; i < CREATE_FILE_RETRIES; i++) {
-            String fileName = createFileName(flags);
+            String fileName = createTmpFileName();
+            if ((flags != null) && (flags.length() > 0)) {
+                fileName = fileName + infoSeparator + FLAGS_SEPERATOR + flags;
+            }
             file = new File(maildirFolder.getTmpDir(), fileName);
             try {
                 if (file.createNewFile()) {
@@ -280,33 +475,167 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
     }
 
     /**
-     * Stores mime message to the file.
+     * Creates new file for the copied message in tmp directory as hard link to the given file.
+     * If link cannot be created file's content is copied instead.
+     * @param source file to be linked or copied
+     * @throws MessagingException if new file name cannot be obtained
+     * @throws IOException if file can be neither linked nor copied
+     */
+    protected void linkFile(File source) throws MessagingException, IOException {
+        for (int i = 0; i < CREATE_FILE_RETRIES; i++) {
+            String fileName = createTmpFileName();
+            File f = new File(maildirFolder.getTmpDir(), fileName);
+            try {
+                try {
+                    Files.createLink(f.toPath(), source.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    throw e;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Cross device link or file system without links
+                    Files.copy(source.toPath(), f.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                file = f;
+                baseName = fileName;
+                return;
+            } catch (FileAlreadyExistsException ignore) {
+            }
+        }
+        throw new MessagingException("Cannot create new file after " + CREATE_FILE_RETRIES + " retries.");
+    }
+
+    /**
+     * Stores mime message to the file. If store compresses messages file is written
+     * block compressed and uncompressed size is added to file name. If store has
+     * single instance store (see {@link MaildirInstanceStore}) file is linked to
+     * already stored file of the same content or added to it, and content's digest
+     * is added to file name when message is delivered. Linked file's modification time is shared
+     * with all messages of the same content so message's internal date is then kept in folder
+     * data's table and index only.
      * @param message message to be stored
      * @throws MessagingException if file cannot be written
      */
     protected void storeMessage(MimeMessage message) throws MessagingException {
         try {
-            FileOutputStream fos = new FileOutputStream(file);
-            try {
-                message.writeTo(fos);
-            } finally {
-                fos.close();
+            MaildirStore store = maildirFolder.getMaildirStore();
+            boolean compress = MaildirStore.COMPRESSION_DEFLATE.equals(store.getCompression());
+            MaildirInstanceStore instanceStore = store.getInstanceStore();
+            MaildirInstanceStore.Digest digest = null;
+            boolean linked = false;
+            if (instanceStore != null) {
+                digest = MaildirInstanceStore.digest(message);
+                // Just created empty file is replaced with link to the same content
+                if (file.delete()) {
+                    linked = instanceStore.link(MaildirInstanceStore.instanceName(digest, compress), file);
+                }
             }
-            File newDir = maildirFolder.getNewDir();
-            String fn = file.getName();
-            File newFile = new File(newDir, fn);
-
-            if (!file.renameTo(newFile)) {
-                throw new MessagingException("Cannot move file " + file.getAbsolutePath() + " to " + newFile.getAbsolutePath());
+            if (linked) {
+                fileSize = digest.getSize();
+                // Linked file has modification time of the first delivery of the same content
+                internalDate = System.currentTimeMillis();
+            } else {
+                writeFile(message, compress);
+                if ((digest != null) && !instanceStore.add(MaildirInstanceStore.instanceName(digest, compress), file)) {
+                    digest = null;
+                }
             }
-            file = newFile;
-            // initialise();
-            //baseName = baseNameFromFile(file);
+            if (compress) {
+                deliveryTags = SIZE_TAG + fileSize;
+            }
+            if (digest != null) {
+                deliveryTags = deliveryTags + MaildirInstanceStore.INSTANCE_TAG + digest.getDigest();
+            }
+            syncWrittenFile();
         } catch (IOException e) {
             throw new MessagingException("Cannot write file", e);
         }
     }
 
+    /**
+     * Writes mime message to message's file, block compressed if asked so, and sets file size.
+     * @param message message to be written
+     * @param compress should file be block compressed
+     * @throws MessagingException if message cannot be written
+     * @throws IOException if file cannot be written
+     */
+    protected void writeFile(MimeMessage message, boolean compress) throws MessagingException, IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            if (compress) {
+                BlockCompressedOutputStream out = new BlockCompressedOutputStream(new BufferedOutputStream(fos), maildirFolder.getMaildirStore().getCompressionBlockSize(), Deflater.DEFAULT_COMPRESSION);
+                message.writeTo(out);
+                out.finish();
+                fileSize = out.getSize();
+            } else {
+                message.writeTo(fos);
+                fileSize = fos.getChannel().position();
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Forces just written (or linked) file to the disk if store's durability property requires so.
+     * It is done before message is delivered so its content is on the disk before the file
+     * appears in <i>new</i> or <i>cur</i> directory.
+     * @throws IOException if file cannot be synced
+     */
+    protected void syncWrittenFile() throws IOException {
+        String durability = maildirFolder.getMaildirStore().getDurability();
+        if (MaildirStore.DURABILITY_GROUP.equals(durability) || MaildirStore.DURABILITY_MESSAGE.equals(durability)) {
+            GroupCommit.syncFile(file);
+        }
+    }
+
+    /**
+     * Moves appended message's file from <i>tmp</i> directory to its place. Final name is
+     * obtained here (see {@link #getDeliveryName()}) so this method is called by folder data while
+     * holding its monitor, just before message is added to its table. Directory message
+     * is moved to is not synced here; that is left to folder data
+     * (see {@link MaildirFolderData#syncDelivered(List)}).
+     * @throws MessagingException if file cannot be moved
+     */
+    protected void deliver() throws MessagingException {
+        String name = getDeliveryName() + deliveryTags;
+        File newFile;
+        if (deliveryInfo == null) {
+            newFile = new File(maildirFolder.getNewDir(), name);
+        } else if (deliveryInfo.length() > 0) {
+            newFile = new File(maildirFolder.getCurDir(), name + infoSeparator + FLAGS_SEPERATOR + deliveryInfo);
+        } else {
+            newFile = new File(maildirFolder.getCurDir(), name);
+        }
+        if (!file.renameTo(newFile)) {
+            throw new MessagingException("Cannot move file " + file.getAbsolutePath() + " to " + newFile.getAbsolutePath());
+        }
+        file = newFile;
+        baseName = name;
+
+        if (appendedHeaders != null) {
+            MaildirHeaderCache cache = getHeaderCache();
+            if (cache != null) {
+                cache.putEntry(baseName, appendedHeaders);
+            }
+            appendedHeaders = null;
+        }
+        if (appendedFlags != null) {
+            Flags flags = appendedFlags;
+            appendedFlags = null;
+            setFlags(flags, true);
+        }
+        initialise();
+    }
+
+    /**
+     * Returns base name (without tags) appended message's file gets when delivered.
+     * This implementation keeps name file has in <i>tmp</i> directory.
+     * @return base name
+     * @throws MessagingException
+     */
+    protected String getDeliveryName() throws MessagingException {
+        return baseName;
+    }
+
     /**
      * Return's cached file's size.
      * @return cached file's size.
@@ -365,11 +694,161 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
         if (!parsed) {
             super.parseImpl();
             closeFile();
+            cacheHeaders();
+        }
+    }
+
+    /**
+     * Creates headers remembering length of header block
+     * @param inputStream input stream
+     * @return internet headers
+     * @throws MessagingException
+     */
+    protected InternetHeaders createInternetHeaders(InputStream inputStream) throws MessagingException {
+        InternetHeaders headers = super.createInternetHeaders(inputStream);
+        if (inputStream instanceof SharedInputStream) {
+            headerLength = (int)((SharedInputStream)inputStream).getPosition();
+        }
+        return headers;
+    }
+
+    /**
+     * Returns folder's header cache or <code>null</code> if headers are not cached
+     * @return header cache or <code>null</code>
+     */
+    protected MaildirHeaderCache getHeaderCache() {
+        if (maildirFolder == null) {
+            return null;
+        }
+        return maildirFolder.getHeaderCache();
+    }
+
+    /**
+     * Returns cached headers of this message if they are valid for current file
+     * @return header cache entry or <code>null</code>
+     */
+    protected MaildirHeaderCache.Entry getHeaderCacheEntry() {
+        MaildirHeaderCache cache = getHeaderCache();
+        if (cache == null) {
+            return null;
+        }
+        MaildirHeaderCache.Entry entry = cache.getEntry(baseName);
+        if ((entry == null) || (entry.getFileSize() != fileSize)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores headers of just parsed message to folder's header cache
+     * unless valid entry is already there.
+     * @throws MessagingException
+     */
+    protected void cacheHeaders() throws MessagingException {
+        if ((headerLength < 0) || (fileSize < 0)) {
+            return;
+        }
+        MaildirHeaderCache cache = getHeaderCache();
+        if ((cache == null) || (getHeaderCacheEntry() != null)) {
+            return;
+        }
+        List<String> lines = new ArrayList<String>();
+        Enumeration<?> en = headers.getMatchingHeaderLines(cache.getHeaderNames());
+        while (en.hasMoreElements()) {
+            lines.add((String)en.nextElement());
         }
+        String[] res = new String[lines.size()];
+        cache.putEntry(baseName, new MaildirHeaderCache.Entry(fileSize, headerLength, lines.toArray(res)));
     }
 
     /**
-     * Expunges the message. Effectively tries to delete the file
+     * Returns <code>true</code> if header is in folder's header cache for this message
+     * @param name header name
+     * @return <code>true</code> if header can be obtained without parsing
+     */
+    protected boolean isHeaderCached(String name) {
+        MaildirHeaderCache cache = getHeaderCache();
+        return (cache != null) && cache.isCached(name) && (getHeaderCacheEntry() != null);
+    }
+
+    /**
+     * Returns header from header cache if message is not parsed and header is cached.
+     * @param name name of header
+     * @return array of header values
+     * @throws MessagingException
+     */
+    public String[] getHeader(String name) throws MessagingException {
+        if (!parsed) {
+            MaildirHeaderCache cache = getHeaderCache();
+            if ((cache != null) && cache.isCached(name)) {
+                MaildirHeaderCache.Entry entry = getHeaderCacheEntry();
+                if (entry != null) {
+                    return entry.getHeader(name);
+                }
+            }
+        }
+        return super.getHeader(name);
+    }
+
+    /**
+     * Returns header from header cache if message is not parsed and header is cached.
+     * @param name name
+     * @param delimiter delimiter
+     * @return header
+     * @throws MessagingException
+     */
+    public String getHeader(String name, String delimiter) throws MessagingException {
+        if (!parsed) {
+            MaildirHeaderCache cache = getHeaderCache();
+            if ((cache != null) && cache.isCached(name)) {
+                MaildirHeaderCache.Entry entry = getHeaderCacheEntry();
+                if (entry != null) {
+                    return entry.getHeader(name, delimiter);
+                }
+            }
+        }
+        return super.getHeader(name, delimiter);
+    }
+
+    /**
+     * Returns matching header lines from header cache if message is not parsed
+     * and all headers are cached.
+     * @param names array of names
+     * @return enumeration
+     * @throws MessagingException
+     */
+    public Enumeration<?> getMatchingHeaderLines(String[] names) throws MessagingException {
+        if (!parsed) {
+            MaildirHeaderCache cache = getHeaderCache();
+            if ((cache != null) && cache.isCached(names)) {
+                MaildirHeaderCache.Entry entry = getHeaderCacheEntry();
+                if (entry != null) {
+                    return entry.getMatchingHeaderLines(names);
+                }
+            }
+        }
+        return super.getMatchingHeaderLines(names);
+    }
+
+    /**
+     * Returns size of message's body. If message is not parsed it is calculated
+     * from header cache.
+     * @return size
+     * @throws MessagingException
+     */
+    public int getSize() throws MessagingException {
+        if (!parsed) {
+            MaildirHeaderCache.Entry entry = getHeaderCacheEntry();
+            if (entry != null) {
+                return (int)(fileSize - entry.getHeaderLength());
+            }
+        }
+        return super.getSize();
+    }
+
+    /**
+     * Expunges the message. Effectively tries to delete the file. File of single instance
+     * store message was linked to is released (see {@link MaildirInstanceStore#release(String)}).
      * @return <code>true</code> if file can be deleted
      */
     protected boolean expunge() {
@@ -380,6 +859,10 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
                 setExpunged(res);
                 if (res) {
                     String name = file.getName();
+                    MaildirInstanceStore instanceStore = maildirFolder.getMaildirStore().getInstanceStore();
+                    if (instanceStore != null) {
+                        instanceStore.releaseName(name);
+                    }
                     int i = name.indexOf(':');
                     if (i >= 0) {
                         name = name.substring(0, i);
@@ -405,18 +888,33 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
      * @throws MessagingException
      */
     public Date getReceivedDate() throws MessagingException {
+        long l = getInternalDate();
+        if (l != -1L) {
+            return new Date(l);
+        }
+        return null;
+    }
+
+    /**
+     * Returns cached file's date. If not cached it is read from the file.
+     * @return file's date or -1 if file doesn't exist
+     * @throws MessagingException
+     */
+    public long getInternalDate() throws MessagingException {
         // TODO this shouldn't be the case!!!
         // We should use first line of raw message ('Received: from mailb-ca.linkedin.com ([108.184.66.115]) by localserver for daniel; Tue, 01 Sep 2020 10:28:03 +0100')
-        if (!file.exists()) {
-            synchronise();
-        }
-        if (file.exists()) {
-            long l = file.lastModified();
-            if (l != -1L) {
-                return new Date(l);
+        if (internalDate == -1L) {
+            if (!file.exists()) {
+                synchronise();
+            }
+            if (file.exists()) {
+                long l = file.lastModified();
+                if (l != 0L) {
+                    internalDate = l;
+                }
             }
         }
-        return null;
+        return internalDate;
     }
 
     /**
@@ -433,45 +931,124 @@ public class MaildirMessage extends LazyParsingMessage implements FilenameFilter
         if (file.exists()) {
             synchronized (this) {
                 closeFile();
-                File newFile = null;
-                String oldFlgs = file.getName();
-                int i = oldFlgs.lastIndexOf(FLAGS_SEPERATOR);
-                if (i > 0) {
-                    oldFlgs = oldFlgs.substring(i+2);
-                } else {
-                    oldFlgs = "";
-                }
-
-                Flags currentFlags = getFlags();
-
-                String flgs = FlagUtilities.toMaildirString(currentFlags);
-                if ((!flgs.equals(oldFlgs) || (isNew != currentFlags.contains(Flags.Flag.RECENT)))) {
-                    if (flags.contains(Flags.Flag.RECENT) ) {
-                        super.setFlags(getFlags(), false);
-                        super.setFlags(new Flags(Flags.Flag.RECENT), true);
-                        newFile = new File(maildirFolder.getNewDir(), baseName);
-                        isNew = true;
-                    } else if (flgs.length() > 0) {
-                        newFile = new File(maildirFolder.getCurDir(), baseName + infoSeparator + FLAGS_SEPERATOR+flgs);
-                        isNew = false;
-                    } else {
-                        newFile = new File(maildirFolder.getCurDir(), baseName);
-                        isNew = false;
-                    }
-                }
-
+                File newFile = getFlagsFile(flags);
                 if (newFile != null) {
-                    if (!file.renameTo(newFile)) {
-                        throw new MessagingException("Cannot set flags; oldFile=" + file.getAbsolutePath() + ", newFile="+newFile);
-                    }
-                    // TODO this spoils 'received date' but fixes problem with synchronised messages.
-                    newFile.setLastModified(System.currentTimeMillis());
-                    file = newFile;
+                    moveToFlagsFile(newFile);
                 }
             }
         }
     }
 
+    /**
+     * Sets flags to the message as part of bulk change (see
+     * {@link MaildirFolderData#setFlags(MaildirFolder, List, Flags, boolean)}). New file name
+     * is worked out from cached file name and file is renamed without checking if it exists first.
+     * Only if rename fails file is searched for and rename is tried once more.
+     * @param flags flags that are applied
+     * @param set are flags set or removed
+     * @return <code>true</code> if file is renamed
+     * @throws MessagingException if file cannot be renamed
+     */
+    protected synchronized boolean updateFlags(Flags flags, boolean set) throws MessagingException {
+        super.setFlags(flags, set);
+        closeFile();
+        File newFile = getFlagsFile(flags);
+        if (newFile == null) {
+            return false;
+        }
+        if (file.renameTo(newFile)) {
+            flagsFileMoved(newFile);
+            return true;
+        }
+        synchronise();
+        if (expunged) {
+            throw new MessageRemovedException("Message file is removed; " + baseName);
+        }
+        super.setFlags(flags, set);
+        newFile = getFlagsFile(flags);
+        if (newFile == null) {
+            return false;
+        }
+        moveToFlagsFile(newFile);
+        return true;
+    }
+
+    /**
+     * Returns file message should be moved to so its name reflects current flags.
+     * If changed flags contain <code>RECENT</code> flag all other flags are removed
+     * and message goes back to <i>new</i> directory.
+     * @param changed flags that were just set or removed
+     * @return new file or <code>null</code> if current file already reflects flags
+     * @throws MessagingException
+     */
+    protected File getFlagsFile(Flags changed) throws MessagingException {
+        int oldBits = MaildirFileName.flagBits(file.getName());
+        int bits = FlagUtilities.toBits(this.flags);
+        if ((bits == oldBits) && (isNew == this.flags.contains(Flags.Flag.RECENT))) {
+            return null;
+        }
+        if (changed.contains(Flags.Flag.RECENT)) {
+            super.setFlags(getFlags(), false);
+            super.setFlags(new Flags(Flags.Flag.RECENT), true);
+            return new File(maildirFolder.getNewDir(), baseName);
+        } else if (bits != 0) {
+            StringBuilder name = new StringBuilder(baseName.length() + 8);
+            name.append(baseName).append(infoSeparator).append(FLAGS_SEPERATOR).append(FlagUtilities.toMaildirString(bits));
+            return new File(maildirFolder.getCurDir(), name.toString());
+        } else {
+            return new File(maildirFolder.getCurDir(), baseName);
+        }
+    }
+
+    /**
+     * Renames message's file to the file obtained from {@link #getFlagsFile(Flags)}.
+     * @param newFile new file
+     * @throws MessagingException if file cannot be renamed
+     */
+    protected void moveToFlagsFile(File newFile) throws MessagingException {
+        if (!file.renameTo(newFile)) {
+            throw new MessagingException("Cannot set flags; oldFile=" + file.getAbsolutePath() + ", newFile="+newFile);
+        }
+        flagsFileMoved(newFile);
+    }
+
+    /**
+     * Updates message after its file is renamed to reflect flags. Modification time of the file
+     * is not touched if file is hard linked (copied message) as it is shared with all other links;
+     * message's internal date is then kept in folder data's table and index only.
+     * @param newFile new file
+     */
+    protected void flagsFileMoved(File newFile) {
+        if (!isLinked(newFile)) {
+            // TODO this spoils 'received date' but fixes problem with synchronised messages.
+            long now = System.currentTimeMillis();
+            newFile.setLastModified(now);
+            internalDate = now;
+        } else if (internalDate == -1L) {
+            internalDate = newFile.lastModified();
+        }
+        isNew = newFile.getParentFile().equals(maildirFolder.getNewDir());
+        file = newFile;
+        if (table != null) {
+            table.fileChanged(this);
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if file has more than one hard link. If number of links
+     * cannot be obtained file is taken as not linked.
+     * @param file file
+     * @return <code>true</code> if file has more than one hard link
+     */
+    protected static boolean isLinked(File file) {
+        try {
+            Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+            return (links instanceof Number) && (((Number)links).intValue() > 1);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
 
     /**
      * This method compares two messages by base name.
@@ -0,0 +1,1159 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * <p>Compact table of folder data's messages. Each message is a row of primitive
+ * columns - UID, file size, internal date and flag bits - while file names are
+ * kept as bytes in one shared array. Message objects are created only when they
+ * are asked for and are kept through weak references, so folder with a million
+ * messages doesn't keep a million message objects in memory.
+ * </p>
+ *
+ * <p>Rows are only appended. Removed rows are marked in a bitmap and dropped
+ * by {@link #compact()} which is called only when there are no open folders
+ * over folder data - so rows folders refer to never move while they are open.
+ * Messages created from the table know their row and update it when their
+ * file is renamed.
+ * </p>
+ *
+ * <p>Table is guarded by a {@link StampedLock}. Reads of a single column
+ * (flags, UID, size, date) are optimistic and take read lock only if a writer
+ * interfered; other reads take read lock and changes take short write sections.
+ * Lock is not reentrant so public methods never call each other while holding it.
+ * Message objects are never created while lock is held.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirMessageTable {
+
+    /** Bit denoting that message's file is in <i>new</i> directory. Other bits are defined in {@link FlagUtilities} */
+    public static final int NEW = 32;
+
+    /** Initial number of rows */
+    public static final int INITIAL_CAPACITY = 64;
+
+    /** Folder data messages are created with */
+    protected MaildirFolderData folderData;
+
+    /** Lock guarding all columns */
+    protected final StampedLock lock = new StampedLock();
+
+    /** Number of rows including removed ones */
+    protected int size;
+
+    /** Number of removed rows */
+    protected int removedCount;
+
+    /** UIDs or -1 */
+    protected long[] uids;
+
+    /** File sizes */
+    protected long[] sizes;
+
+    /** Internal dates or -1 if not known */
+    protected long[] dates;
+
+    /** Flag bits and {@link #NEW} bit */
+    protected int[] flags;
+
+    /** Offsets of file names in {@link #names} */
+    protected int[] nameOffsets;
+
+    /** Lengths of file names in bytes */
+    protected short[] nameLengths;
+
+    /** Lengths of base names (names without info) in bytes */
+    protected short[] baseLengths;
+
+    /** File names of all rows */
+    protected byte[] names;
+
+    /** Used part of {@link #names} */
+    protected int namesSize;
+
+    /** Removed rows */
+    protected BitSet removed = new BitSet();
+
+    /** Open addressing hash table of base names. Holds row + 1 or 0 for empty slot */
+    protected int[] hash;
+
+    /** Messages created for rows */
+    protected WeakReference<MaildirMessage>[] cache;
+
+    /** Are UIDs of rows in ascending order */
+    protected boolean uidsSorted = true;
+
+    /**
+     * Constructor.
+     * @param folderData folder data messages are created with
+     */
+    public MaildirMessageTable(MaildirFolderData folderData) {
+        this.folderData = folderData;
+        uids = new long[INITIAL_CAPACITY];
+        sizes = new long[INITIAL_CAPACITY];
+        dates = new long[INITIAL_CAPACITY];
+        flags = new int[INITIAL_CAPACITY];
+        nameOffsets = new int[INITIAL_CAPACITY];
+        nameLengths = new short[INITIAL_CAPACITY];
+        baseLengths = new short[INITIAL_CAPACITY];
+        cache = newReferences(INITIAL_CAPACITY);
+        names = new byte[INITIAL_CAPACITY * 48];
+        hash = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Creates array of weak references. Arrays of generic type cannot be created directly.
+     * @param length array length
+     * @return new array
+     */
+    @SuppressWarnings("unchecked")
+    static <T> WeakReference<T>[] newReferences(int length) {
+        return (WeakReference<T>[])new WeakReference<?>[length];
+    }
+
+    /**
+     * Returns number of rows including removed ones
+     * @return number of rows
+     */
+    public int getRowCount() {
+        long stamp = lock.tryOptimisticRead();
+        int res = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns estimated number of bytes taken by the table's columns
+     * @return estimated memory usage
+     */
+    public long getMemoryUsage() {
+        long stamp = lock.readLock();
+        try {
+            long res = (long)uids.length * 8 + (long)sizes.length * 8 + (long)dates.length * 8;
+            res = res + (long)flags.length * 4 + (long)nameOffsets.length * 4;
+            res = res + (long)nameLengths.length * 2 + (long)baseLengths.length * 2;
+            res = res + (long)cache.length * 8 + names.length + (long)hash.length * 4;
+            return res;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Moves table to another folder data over the same directory. Messages created
+     * for the previous folder data are detached from the table.
+     * Must be called only when no folder refers to table's rows.
+     * @param folderData new folder data
+     */
+    public void setFolderData(MaildirFolderData folderData) {
+        long stamp = lock.writeLock();
+        try {
+            for (int row = 0; row < size; row++) {
+                MaildirMessage message = cached(row);
+                if (message != null) {
+                    message.row = -1;
+                }
+            }
+            cache = newReferences(cache.length);
+            this.folderData = folderData;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns number of messages (rows that are not removed)
+     * @return number of messages
+     */
+    public int getMessageCount() {
+        long stamp = lock.tryOptimisticRead();
+        int res = size - removedCount;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = size - removedCount;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns number of messages whose files are in <i>new</i> directory
+     * @return number of new messages
+     */
+    public int getNewMessageCount() {
+        long stamp = lock.readLock();
+        try {
+            int cnt = 0;
+            for (int row = 0; row < size; row++) {
+                if (((flags[row] & NEW) != 0) && !removed.get(row)) {
+                    cnt++;
+                }
+            }
+            return cnt;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns sum of file sizes of all messages
+     * @return total size in bytes
+     */
+    public long getTotalFileSize() {
+        long stamp = lock.readLock();
+        try {
+            long total = 0;
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                if (sizes[row] > 0) {
+                    total = total + sizes[row];
+                }
+            }
+            return total;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row of message with given index counting only rows that are not removed
+     * @param index index
+     * @return row or -1
+     */
+    public int getRow(int index) {
+        long stamp = lock.readLock();
+        try {
+            int row = removed.nextClearBit(0);
+            while ((index > 0) && (row < size)) {
+                row = removed.nextClearBit(row + 1);
+                index--;
+            }
+            if (row < size) {
+                return row;
+            }
+            return -1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns all rows that are not removed
+     * @return rows in ascending order
+     */
+    public int[] getRows() {
+        long stamp = lock.readLock();
+        try {
+            int[] res = new int[size - removedCount];
+            int i = 0;
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                res[i] = row;
+                i++;
+            }
+            return res;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds row for message file whose details are already known.
+     * Rows added this way should be ordered using {@link #sort(int)}.
+     * @param name file name
+     * @param isNew is file in <i>new</i> directory
+     * @param fileSize file size
+     * @param internalDate internal date or -1
+     * @param uid UID or -1
+     * @return new row
+     */
+    public int add(String name, boolean isNew, long fileSize, long internalDate, long uid) {
+        long stamp = lock.writeLock();
+        try {
+            return addRow(name, isNew, fileSize, internalDate, uid);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds row. Write lock must be held.
+     * @param name file name
+     * @param isNew is file in <i>new</i> directory
+     * @param fileSize file size
+     * @param internalDate internal date or -1
+     * @param uid UID or -1
+     * @return new row
+     */
+    protected int addRow(String name, boolean isNew, long fileSize, long internalDate, long uid) {
+        ensureCapacity(size + 1);
+        int row = size;
+        size = size + 1;
+        setName(row, name);
+        hashInsert(row);
+        uids[row] = uid;
+        sizes[row] = fileSize;
+        dates[row] = internalDate;
+        flags[row] = flagBits(name, isNew);
+        cache[row] = null;
+        return row;
+    }
+
+    /**
+     * Adds row for given message. Message is remembered in the table and
+     * from now on it updates its row when its file changes.
+     * Rows added this way should be ordered using {@link #sort(int)}.
+     * @param message message
+     * @param uid message's UID or -1
+     * @return new row
+     */
+    public int add(MaildirMessage message, long uid) {
+        long stamp = lock.writeLock();
+        try {
+            File file = message.file;
+            int row = addRow(file.getName(), isNewDir(file.getParentFile()), message.fileSize, message.internalDate, uid);
+            cache[row] = new WeakReference<MaildirMessage>(message);
+            message.table = this;
+            message.row = row;
+            return row;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sorts rows starting from given row by UID (or base name if UID is not known).
+     * Should be called after rows are added.
+     * @param from first row to be sorted
+     */
+    public void sort(int from) {
+        long stamp = lock.writeLock();
+        try {
+            sortRows(from);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sorts rows starting from given row. Write lock must be held.
+     * @param from first row to be sorted
+     */
+    protected void sortRows(int from) {
+        int count = size - from;
+        if (count > 1) {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = from + i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return compareRows(a, b);
+                }
+            });
+            int[] slots = new int[count];
+            for (int i = 0; i < count; i++) {
+                slots[i] = hashSlot(from + i);
+            }
+            long[] u = Arrays.copyOfRange(uids, from, size);
+            long[] s = Arrays.copyOfRange(sizes, from, size);
+            long[] d = Arrays.copyOfRange(dates, from, size);
+            int[] f = Arrays.copyOfRange(flags, from, size);
+            int[] o = Arrays.copyOfRange(nameOffsets, from, size);
+            short[] nl = Arrays.copyOfRange(nameLengths, from, size);
+            short[] bl = Arrays.copyOfRange(baseLengths, from, size);
+            WeakReference<MaildirMessage>[] c = Arrays.copyOfRange(cache, from, size);
+            for (int i = 0; i < count; i++) {
+                int old = order[i] - from;
+                int row = from + i;
+                uids[row] = u[old];
+                sizes[row] = s[old];
+                dates[row] = d[old];
+                flags[row] = f[old];
+                nameOffsets[row] = o[old];
+                nameLengths[row] = nl[old];
+                baseLengths[row] = bl[old];
+                cache[row] = c[old];
+                hash[slots[old]] = row + 1;
+                MaildirMessage message = cached(row);
+                if (message != null) {
+                    message.row = row;
+                }
+            }
+        }
+        for (int row = Math.max(from, 1); uidsSorted && (row < size); row++) {
+            if (uids[row - 1] > uids[row]) {
+                uidsSorted = false;
+            }
+        }
+    }
+
+    /**
+     * Compares two rows by UID or, if any of UIDs is not known, by base name.
+     * @param a first row
+     * @param b second row
+     * @return -1, 0 or 1
+     */
+    protected int compareRows(int a, int b) {
+        if ((uids[a] >= 0) && (uids[b] >= 0)) {
+            return Long.compare(uids[a], uids[b]);
+        }
+        int ao = nameOffsets[a];
+        int bo = nameOffsets[b];
+        int al = baseLengths[a];
+        int bl = baseLengths[b];
+        int len = Math.min(al, bl);
+        for (int i = 0; i < len; i++) {
+            int c = (names[ao + i] & 0xff) - (names[bo + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return al - bl;
+    }
+
+    /**
+     * Marks row as removed.
+     * @param row row
+     */
+    public void remove(int row) {
+        long stamp = lock.writeLock();
+        try {
+            if ((row >= 0) && (row < size) && !removed.get(row)) {
+                removed.set(row);
+                removedCount = removedCount + 1;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if row is removed
+     * @param row row
+     * @return <code>true</code> if row is removed
+     */
+    public boolean isRemoved(int row) {
+        long stamp = lock.readLock();
+        try {
+            return removed.get(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row of message with given base name
+     * @param baseName base name
+     * @return row or -1 if there is no such message
+     */
+    public int find(String baseName) {
+        byte[] bytes = baseName.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.readLock();
+        try {
+            return findRow(bytes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row of message with given base name. Lock must be held.
+     * @param bytes base name's bytes
+     * @return row or -1 if there is no such message
+     */
+    protected int findRow(byte[] bytes) {
+        int mask = hash.length - 1;
+        int i = hashCode(bytes, 0, bytes.length) & mask;
+        while (hash[i] != 0) {
+            int row = hash[i] - 1;
+            if (!removed.get(row) && (baseLengths[row] == bytes.length)) {
+                int offset = nameOffsets[row];
+                int j = 0;
+                while ((j < bytes.length) && (names[offset + j] == bytes[j])) {
+                    j++;
+                }
+                if (j == bytes.length) {
+                    return row;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns row of message with base name of given file name. Name is not copied
+     * unless it contains non ASCII characters.
+     * @param name file name
+     * @return row or -1 if there is no such message
+     */
+    public int findName(CharSequence name) {
+        int len = MaildirFileName.baseLength(name);
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) >= 0x80) {
+                return find(MaildirFileName.baseName(name));
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return findRow(name, len);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row of message with given ASCII base name. Lock must be held.
+     * @param name base name or file name
+     * @param len length of base name
+     * @return row or -1 if there is no such message
+     */
+    protected int findRow(CharSequence name, int len) {
+        int mask = hash.length - 1;
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + name.charAt(i);
+        }
+        int i = (h ^ (h >>> 16)) & mask;
+        while (hash[i] != 0) {
+            int row = hash[i] - 1;
+            if (!removed.get(row) && (baseLengths[row] == len)) {
+                int offset = nameOffsets[row];
+                int j = 0;
+                while ((j < len) && (names[offset + j] == name.charAt(j))) {
+                    j++;
+                }
+                if (j == len) {
+                    return row;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns row of message with given UID. Binary search is used while
+     * UIDs are in ascending order.
+     * @param uid UID
+     * @return row or -1 if there is no such message
+     */
+    public int findUID(long uid) {
+        long stamp = lock.readLock();
+        try {
+            return findUIDRow(uid);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row of message with given UID. Lock must be held.
+     * @param uid UID
+     * @return row or -1 if there is no such message
+     */
+    protected int findUIDRow(long uid) {
+        if (uidsSorted) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (uids[mid] < uid) {
+                    low = mid + 1;
+                } else if (uids[mid] > uid) {
+                    high = mid - 1;
+                } else {
+                    // Same UID can be on removed row as well
+                    while ((mid > 0) && (uids[mid - 1] == uid)) {
+                        mid--;
+                    }
+                    while ((mid < size) && (uids[mid] == uid)) {
+                        if (!removed.get(mid)) {
+                            return mid;
+                        }
+                        mid++;
+                    }
+                    return -1;
+                }
+            }
+        } else {
+            for (int row = 0; row < size; row++) {
+                if ((uids[row] == uid) && !removed.get(row)) {
+                    return row;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns message of given row. Message is created if it doesn't exist already.
+     * @param row row
+     * @return message
+     * @throws MessagingException
+     */
+    public MaildirMessage get(int row) throws MessagingException {
+        while (true) {
+            File file;
+            long fileSize;
+            long internalDate;
+            long stamp = lock.readLock();
+            try {
+                MaildirMessage message = cached(row);
+                if (message != null) {
+                    return message;
+                }
+                file = file(row);
+                fileSize = sizes[row];
+                internalDate = dates[row];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            // Message is created outside of the lock as it may need folder data's lock
+            MaildirMessage message = folderData.createKnownMaildirMessage(file, fileSize, internalDate, row + 1);
+            stamp = lock.writeLock();
+            try {
+                MaildirMessage other = cached(row);
+                if (other != null) {
+                    return other;
+                }
+                if (removed.get(row)) {
+                    return message;
+                }
+                if (file.equals(file(row))) {
+                    cache[row] = new WeakReference<MaildirMessage>(message);
+                    message.table = this;
+                    message.row = row;
+                    return message;
+                }
+                // File is renamed in the meantime
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Returns message of given row only if it already exists
+     * @param row row
+     * @return message or <code>null</code>
+     */
+    public MaildirMessage getCached(int row) {
+        long stamp = lock.readLock();
+        try {
+            return cached(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns message of given row only if it already exists. Lock must be held.
+     * @param row row
+     * @return message or <code>null</code>
+     */
+    protected MaildirMessage cached(int row) {
+        WeakReference<MaildirMessage> ref = cache[row];
+        if (ref != null) {
+            return ref.get();
+        }
+        return null;
+    }
+
+    /**
+     * Returns row's file name
+     * @param row row
+     * @return file name
+     */
+    public String getName(int row) {
+        long stamp = lock.readLock();
+        try {
+            return name(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row's file name. Lock must be held.
+     * @param row row
+     * @return file name
+     */
+    protected String name(int row) {
+        return new String(names, nameOffsets[row], nameLengths[row], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns row's base name
+     * @param row row
+     * @return base name
+     */
+    public String getBaseName(int row) {
+        long stamp = lock.readLock();
+        try {
+            return baseName(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row's base name. Lock must be held.
+     * @param row row
+     * @return base name
+     */
+    protected String baseName(int row) {
+        return new String(names, nameOffsets[row], baseLengths[row], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns row's file
+     * @param row row
+     * @return file in <i>new</i> or <i>cur</i> directory
+     */
+    public File getFile(int row) {
+        long stamp = lock.readLock();
+        try {
+            return file(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns row's file. Lock must be held.
+     * @param row row
+     * @return file in <i>new</i> or <i>cur</i> directory
+     */
+    protected File file(int row) {
+        File dir = (flags[row] & NEW) != 0 ? folderData.getNewDir() : folderData.getCurDir();
+        return new File(dir, name(row));
+    }
+
+    /**
+     * Returns <code>true</code> if row's file is in <i>new</i> directory
+     * @param row row
+     * @return <code>true</code> if row's file is in <i>new</i> directory
+     */
+    public boolean isNew(int row) {
+        return (getFlags(row) & NEW) != 0;
+    }
+
+    /**
+     * Returns row's flag bits
+     * @param row row
+     * @return flag bits as defined in {@link FlagUtilities} and {@link #NEW}
+     */
+    public int getFlags(int row) {
+        long stamp = lock.tryOptimisticRead();
+        int[] f = flags;
+        int res = row < f.length ? f[row] : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = flags[row];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns row's UID
+     * @param row row
+     * @return UID or -1
+     */
+    public long getUID(int row) {
+        long stamp = lock.tryOptimisticRead();
+        long[] u = uids;
+        long res = row < u.length ? u[row] : -1;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = uids[row];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns UIDs of given rows
+     * @param rows rows
+     * @return UIDs; -1 for rows whose UID is not known
+     */
+    public long[] getUIDs(int[] rows) {
+        long[] res = new long[rows.length];
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                res[i] = uids[rows[i]];
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return res;
+    }
+
+    /**
+     * Returns row's file size
+     * @param row row
+     * @return file size
+     */
+    public long getFileSize(int row) {
+        long stamp = lock.tryOptimisticRead();
+        long[] s = sizes;
+        long res = row < s.length ? s[row] : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = sizes[row];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns row's internal date
+     * @param row row
+     * @return internal date or -1 if not known
+     */
+    public long getInternalDate(int row) {
+        long stamp = lock.tryOptimisticRead();
+        long[] d = dates;
+        long res = row < d.length ? d[row] : -1;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                res = dates[row];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns base names of all messages
+     * @return set of base names
+     */
+    public Set<String> getBaseNames() {
+        Set<String> res = new HashSet<String>();
+        long stamp = lock.readLock();
+        try {
+            for (int row = removed.nextClearBit(0); row < size; row = removed.nextClearBit(row + 1)) {
+                res.add(baseName(row));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return res;
+    }
+
+    /**
+     * Updates row with new file of a message that is not created.
+     * @param row row
+     * @param file new file
+     * @param fileSize file's size
+     */
+    public void setFile(int row, File file, long fileSize) {
+        long stamp = lock.writeLock();
+        try {
+            updateFile(row, file, fileSize);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Updates row with new file. Write lock must be held.
+     * @param row row
+     * @param file new file
+     * @param fileSize file's size
+     */
+    protected void updateFile(int row, File file, long fileSize) {
+        String name = file.getName();
+        setName(row, name);
+        flags[row] = flagBits(name, isNewDir(file.getParentFile()));
+        sizes[row] = fileSize;
+    }
+
+    /**
+     * Called by message when its file is changed.
+     * @param message message
+     */
+    protected void fileChanged(MaildirMessage message) {
+        long stamp = lock.writeLock();
+        try {
+            int row = message.row;
+            if ((row < 0) || (row >= size) || removed.get(row) || (cached(row) != message)) {
+                return;
+            }
+            updateFile(row, message.file, message.fileSize);
+            dates[row] = message.internalDate;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drops removed rows and unused parts of names. Must be called only when
+     * no folder refers to rows.
+     */
+    public void compact() {
+        long stamp = lock.writeLock();
+        try {
+            compactRows();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drops removed rows. Write lock must be held.
+     */
+    protected void compactRows() {
+        if (removedCount == 0) {
+            return;
+        }
+        int live = size - removedCount;
+        int capacity = Math.max(INITIAL_CAPACITY, live + live / 2);
+        long[] u = new long[capacity];
+        long[] s = new long[capacity];
+        long[] d = new long[capacity];
+        int[] f = new int[capacity];
+        int[] o = new int[capacity];
+        short[] nl = new short[capacity];
+        short[] bl = new short[capacity];
+        WeakReference<MaildirMessage>[] c = newReferences(capacity);
+        int len = 0;
+        for (int row = 0; row < size; row++) {
+            if (!removed.get(row)) {
+                len = len + nameLengths[row];
+            }
+        }
+        byte[] n = new byte[Math.max(len + len / 2, INITIAL_CAPACITY * 48)];
+        int pos = 0;
+        int r = 0;
+        for (int row = 0; row < size; row++) {
+            MaildirMessage message = cached(row);
+            if (removed.get(row)) {
+                if (message != null) {
+                    message.row = -1;
+                }
+            } else {
+                u[r] = uids[row];
+                s[r] = sizes[row];
+                d[r] = dates[row];
+                f[r] = flags[row];
+                nl[r] = nameLengths[row];
+                bl[r] = baseLengths[row];
+                o[r] = pos;
+                System.arraycopy(names, nameOffsets[row], n, pos, nameLengths[row]);
+                pos = pos + nameLengths[row];
+                if (message != null) {
+                    c[r] = cache[row];
+                    message.row = r;
+                }
+                r++;
+            }
+        }
+        uids = u;
+        sizes = s;
+        dates = d;
+        flags = f;
+        nameOffsets = o;
+        nameLengths = nl;
+        baseLengths = bl;
+        cache = c;
+        names = n;
+        namesSize = pos;
+        size = r;
+        removed.clear();
+        removedCount = 0;
+        rehash(hashCapacity(capacity));
+        uidsSorted = true;
+        for (int row = 1; uidsSorted && (row < size); row++) {
+            if (uids[row - 1] > uids[row]) {
+                uidsSorted = false;
+            }
+        }
+    }
+
+    /**
+     * Returns flag bits for given file name
+     * @param name file name
+     * @param isNew is file in <i>new</i> directory
+     * @return flag bits
+     */
+    protected int flagBits(String name, boolean isNew) {
+        int bits = MaildirFileName.flagBits(name);
+        if (isNew) {
+            bits = bits | NEW;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns <code>true</code> if given directory is folder data's <i>new</i> directory
+     * @param dir directory
+     * @return <code>true</code> if it is <i>new</i> directory
+     */
+    protected boolean isNewDir(File dir) {
+        return folderData.getNewDir().equals(dir);
+    }
+
+    /**
+     * Stores row's name. Name is overwritten in place if it fits, appended otherwise.
+     * @param row row
+     * @param name file name
+     */
+    protected void setName(int row, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int baseLength = MaildirFileName.baseLength(name);
+        if (bytes.length != name.length()) {
+            baseLength = name.substring(0, baseLength).getBytes(StandardCharsets.UTF_8).length;
+        }
+        int offset;
+        if (nameLengths[row] >= bytes.length) {
+            offset = nameOffsets[row];
+        } else {
+            if (namesSize + bytes.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesSize + bytes.length));
+            }
+            offset = namesSize;
+            namesSize = namesSize + bytes.length;
+        }
+        System.arraycopy(bytes, 0, names, offset, bytes.length);
+        nameOffsets[row] = offset;
+        nameLengths[row] = (short)bytes.length;
+        baseLengths[row] = (short)baseLength;
+    }
+
+    /**
+     * Makes sure there is space for given number of rows
+     * @param capacity number of rows
+     */
+    protected void ensureCapacity(int capacity) {
+        if (capacity > uids.length) {
+            int newCapacity = Math.max(capacity, uids.length * 2);
+            uids = Arrays.copyOf(uids, newCapacity);
+            sizes = Arrays.copyOf(sizes, newCapacity);
+            dates = Arrays.copyOf(dates, newCapacity);
+            flags = Arrays.copyOf(flags, newCapacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, newCapacity);
+            nameLengths = Arrays.copyOf(nameLengths, newCapacity);
+            baseLengths = Arrays.copyOf(baseLengths, newCapacity);
+            cache = Arrays.copyOf(cache, newCapacity);
+        }
+        if (capacity * 2 > hash.length) {
+            rehash(hashCapacity(capacity));
+        }
+    }
+
+    /**
+     * Returns size of hash table for given number of rows
+     * @param capacity number of rows
+     * @return power of two at least twice as big as capacity
+     */
+    protected static int hashCapacity(int capacity) {
+        int res = INITIAL_CAPACITY * 2;
+        while (res < capacity * 2) {
+            res = res * 2;
+        }
+        return res;
+    }
+
+    /**
+     * Creates new hash table of given size with all rows that are not removed
+     * @param capacity size of hash table
+     */
+    protected void rehash(int capacity) {
+        hash = new int[capacity];
+        for (int row = 0; row < size; row++) {
+            if (!removed.get(row)) {
+                hashInsert(row);
+            }
+        }
+    }
+
+    /**
+     * Inserts row to the hash table
+     * @param row row
+     */
+    protected void hashInsert(int row) {
+        int mask = hash.length - 1;
+        int i = hashCode(names, nameOffsets[row], baseLengths[row]) & mask;
+        while (hash[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        hash[i] = row + 1;
+    }
+
+    /**
+     * Returns slot of hash table given row is stored in
+     * @param row row
+     * @return slot
+     */
+    protected int hashSlot(int row) {
+        int mask = hash.length - 1;
+        int i = hashCode(names, nameOffsets[row], baseLengths[row]) & mask;
+        while (hash[i] != row + 1) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Calculates hash code of base name
+     * @param bytes bytes
+     * @param offset offset of base name
+     * @param len length of base name
+     * @return hash code
+     */
+    protected static int hashCode(byte[] bytes, int offset, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + bytes[offset + i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
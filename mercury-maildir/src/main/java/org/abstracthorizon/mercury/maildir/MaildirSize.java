@@ -0,0 +1,575 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+
+/**
+ * <p>Size ledger of the store in Maildir++ &quot;maildirsize&quot; format. File is kept in
+ * store's base directory. First line holds quota definition (for instance
+ * &quot;10000000S,1000C&quot; - bytes and messages) and each following line holds
+ * change of store's size in bytes and number of messages. Sum of all lines is store's size.
+ * </p>
+ *
+ * <p>Appended, copied and expunged messages are recorded by appending one line to the file
+ * so store's size is known without checking message files. Changes done by other
+ * Maildir++ aware programs are picked up when file changes. When file grows over
+ * {@link #MAX_FILE_SIZE} it is compacted - rewritten with one line holding current size.
+ * File is recalculated from folders (and rewritten with one line) when it is missing,
+ * when it cannot be read or when store is over quota and file is older than {@link #MAX_AGE}.
+ * Messages added or removed by programs not aware of the ledger are accounted for only
+ * after recalculation.
+ * </p>
+ *
+ * <p>Recalculation walks all folders so it is never done while messages are delivered
+ * or expunged. It is done in the background and size known so far is used in the meantime.
+ * Only if store's size is not known at all (file is missing when it is used for the first time)
+ * it is recalculated straight away. Changes made while folders are walked may be missed or
+ * counted twice until the next recalculation.
+ * </p>
+ *
+ * <p>Size of each folder is worked out when it is asked for the first time
+ * (see {@link MaildirFolderData#calculateSize()}) and is kept up to date in memory afterwards.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class MaildirSize {
+
+    /** Name of ledger file */
+    public static final String FILE_NAME = "maildirsize";
+
+    /** File size after which file is recalculated */
+    public static final int MAX_FILE_SIZE = 5120;
+
+    /** Age after which file of store that is over quota is recalculated */
+    public static final long MAX_AGE = 15 * 60 * 1000; // 15 min
+
+    /** Store */
+    protected MaildirStore store;
+
+    /** Ledger file */
+    protected File file;
+
+    /** Quota in bytes or -1 if not set */
+    protected long quotaBytes = -1;
+
+    /** Quota in number of messages or -1 if not set */
+    protected long quotaCount = -1;
+
+    /** Is quota set for the store overriding quota from the file */
+    protected boolean quotaFixed;
+
+    /** Store's size in bytes */
+    protected long bytes;
+
+    /** Number of store's messages */
+    protected long count;
+
+    /** Length of file when it was last read or written or -1 */
+    protected long fileLength = -1;
+
+    /** Modification time of file when it was last read or written */
+    protected long fileModified = -1;
+
+    /** Should file be recalculated next time it is used */
+    protected boolean recalculateNeeded;
+
+    /** Is recalculation running in the background */
+    protected boolean recalculating;
+
+    /** Number of times file was recalculated */
+    protected long recalculations;
+
+    /** Number of times file was compacted */
+    protected long compactions;
+
+    /** Sizes of folders, bytes and number of messages, keyed by folder's full name */
+    protected Map<String, long[]> folders = new HashMap<String, long[]>();
+
+    /**
+     * Constructor.
+     * @param store store
+     */
+    public MaildirSize(MaildirStore store) {
+        this.store = store;
+        this.file = new File(store.getBaseFile(), FILE_NAME);
+    }
+
+    /**
+     * Returns ledger file
+     * @return ledger file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns store's size in bytes
+     * @return size in bytes
+     */
+    public synchronized long getBytes() {
+        refresh();
+        return bytes;
+    }
+
+    /**
+     * Returns number of store's messages
+     * @return number of messages
+     */
+    public synchronized long getCount() {
+        refresh();
+        return count;
+    }
+
+    /**
+     * Returns folder's size in bytes
+     * @param fullName folder's full name
+     * @return size in bytes
+     */
+    public synchronized long getFolderBytes(String fullName) {
+        return getFolderSize(fullName)[0];
+    }
+
+    /**
+     * Returns number of folder's messages
+     * @param fullName folder's full name
+     * @return number of messages
+     */
+    public synchronized long getFolderCount(String fullName) {
+        return getFolderSize(fullName)[1];
+    }
+
+    /**
+     * Returns quota in bytes
+     * @return quota in bytes or -1 if not set
+     */
+    public synchronized long getQuotaBytes() {
+        refresh();
+        return quotaBytes;
+    }
+
+    /**
+     * Returns quota in number of messages
+     * @return quota in number of messages or -1 if not set
+     */
+    public synchronized long getQuotaCount() {
+        refresh();
+        return quotaCount;
+    }
+
+    /**
+     * Returns number of times file was recalculated
+     * @return number of recalculations
+     */
+    public synchronized long getRecalculations() {
+        return recalculations;
+    }
+
+    /**
+     * Returns number of times file was compacted
+     * @return number of compactions
+     */
+    public synchronized long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Returns <code>true</code> if recalculation is running in the background
+     * @return <code>true</code> if recalculation is running in the background
+     */
+    public synchronized boolean isRecalculating() {
+        return recalculating;
+    }
+
+    /**
+     * Sets quota and rewrites the file. Quota set this way is not replaced by
+     * quota definition of the file.
+     * @param quotaBytes quota in bytes or -1 for no quota
+     * @param quotaCount quota in number of messages or -1 for no quota
+     */
+    public synchronized void setQuota(long quotaBytes, long quotaCount) {
+        fixQuota(quotaBytes, quotaCount);
+        recalculate();
+    }
+
+    /**
+     * Sets quota without rewriting the file. Quota set this way is not replaced by
+     * quota definition of the file.
+     * @param quotaBytes quota in bytes or -1 for no quota
+     * @param quotaCount quota in number of messages or -1 for no quota
+     */
+    protected synchronized void fixQuota(long quotaBytes, long quotaCount) {
+        this.quotaBytes = quotaBytes;
+        this.quotaCount = quotaCount;
+        this.quotaFixed = true;
+    }
+
+    /**
+     * Sets quota from Maildir++ quota definition, for instance &quot;10000000S,1000C&quot;.
+     * Parts that are missing or invalid mean no quota.
+     * @param definition quota definition
+     */
+    public void setQuota(String definition) {
+        long[] quota = parseQuota(definition);
+        setQuota(quota[0], quota[1]);
+    }
+
+    /**
+     * Checks if given bytes and number of messages can be added to the store
+     * without going over quota.
+     * @param bytes bytes to be added
+     * @param count number of messages to be added
+     * @return <code>true</code> if store would still be within quota
+     */
+    public synchronized boolean isWithinQuota(long bytes, long count) {
+        refresh();
+        return ((quotaBytes < 0) || (this.bytes + bytes <= quotaBytes))
+                && ((quotaCount < 0) || (this.count + count <= quotaCount));
+    }
+
+    /**
+     * Records change of folder's size. Must be called after message files are
+     * written or deleted. File is compacted if it grows too big, but never recalculated here.
+     * @param fullName folder's full name
+     * @param bytes change in bytes
+     * @param count change in number of messages
+     */
+    public synchronized void update(String fullName, long bytes, long count) {
+        if ((bytes == 0) && (count == 0)) {
+            return;
+        }
+        if (refresh()) {
+            // Recalculated size already has the change
+            return;
+        }
+        long[] folder = folders.get(fullName);
+        if (folder != null) {
+            folder[0] = folder[0] + bytes;
+            folder[1] = folder[1] + count;
+        }
+        this.bytes = this.bytes + bytes;
+        this.count = this.count + count;
+        if (recalculateNeeded) {
+            // File is going to be written again by recalculation
+            return;
+        }
+        byte[] line = (bytes + " " + count + "\n").getBytes(StandardCharsets.US_ASCII);
+        try {
+            FileOutputStream fos = new FileOutputStream(file, true);
+            try {
+                fos.write(line);
+            } finally {
+                fos.close();
+            }
+            fileLength = fileLength + line.length;
+            fileModified = file.lastModified();
+            if (fileLength > MAX_FILE_SIZE) {
+                compactions = compactions + 1;
+                write();
+            }
+        } catch (IOException e) {
+            recalculateNeeded = true;
+            recalculateLater();
+        }
+    }
+
+    /**
+     * Makes size of the store and all folders to be recalculated next time
+     * they are used. Called when folders are deleted.
+     */
+    public synchronized void invalidate() {
+        recalculateNeeded = true;
+        folders.clear();
+    }
+
+    /**
+     * Returns folder's size working it out if not known yet
+     * @param fullName folder's full name
+     * @return array of size in bytes and number of messages
+     */
+    protected long[] getFolderSize(String fullName) {
+        refresh();
+        long[] folder = folders.get(fullName);
+        if (folder == null) {
+            folder = store.getFolderData(fullName).calculateSize();
+            folders.put(fullName, folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Brings store's size up to date with the file. File is read again if it changed
+     * since it was last read. If file needs to be recalculated that is done in
+     * the background (see {@link #recalculateLater()}) unless nothing is known yet.
+     * @return <code>true</code> if file was recalculated straight away
+     */
+    protected boolean refresh() {
+        long length = file.length();
+        long modified = file.lastModified();
+        if ((length != fileLength) || (modified != fileModified)) {
+            if (modified == 0) {
+                recalculateNeeded = true;
+            } else {
+                try {
+                    read();
+                } catch (IOException e) {
+                    recalculateNeeded = true;
+                }
+            }
+        }
+        if (fileLength < 0) {
+            // Store's size is not known at all
+            recalculate();
+            return true;
+        }
+        if (!recalculateNeeded && (((quotaBytes >= 0) && (bytes > quotaBytes)) || ((quotaCount >= 0) && (count > quotaCount)))) {
+            if (System.currentTimeMillis() - fileModified > MAX_AGE) {
+                recalculateNeeded = true;
+            }
+        }
+        if (recalculateNeeded) {
+            recalculateLater();
+        }
+        return false;
+    }
+
+    /**
+     * Reads quota definition and sums all lines of the file
+     * @throws IOException if file cannot be read
+     */
+    protected void read() throws IOException {
+        long length = file.length();
+        long modified = file.lastModified();
+        long bytes = 0;
+        long count = 0;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+        try {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Missing quota definition");
+            }
+            if (!quotaFixed) {
+                long[] quota = parseQuota(line);
+                quotaBytes = quota[0];
+                quotaCount = quota[1];
+            }
+            line = in.readLine();
+            while (line != null) {
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                if (tokenizer.countTokens() >= 2) {
+                    try {
+                        bytes = bytes + Long.parseLong(tokenizer.nextToken());
+                        count = count + Long.parseLong(tokenizer.nextToken());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid line " + line);
+                    }
+                }
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+        if ((bytes != this.bytes) || (count != this.count)) {
+            // Changed by someone else; folders' sizes are not known any more
+            folders.clear();
+        }
+        this.bytes = bytes;
+        this.count = count;
+        this.fileLength = length;
+        this.fileModified = modified;
+    }
+
+    /**
+     * Starts recalculation in the background if it is not already running.
+     */
+    protected void recalculateLater() {
+        if (!recalculating) {
+            recalculating = true;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    recalculateInBackground();
+                }
+            }, "MaildirSize");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Works out sizes of all folders without holding this object's lock and
+     * then writes file again.
+     */
+    protected void recalculateInBackground() {
+        try {
+            synchronized (this) {
+                recalculateNeeded = false;
+            }
+            Map<String, long[]> folders = calculateFolders();
+            synchronized (this) {
+                recalculated(folders);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                recalculateNeeded = true;
+            }
+        } finally {
+            synchronized (this) {
+                recalculating = false;
+            }
+        }
+    }
+
+    /**
+     * Works out sizes of all folders and writes file again with quota definition
+     * and one line with store's size.
+     */
+    protected void recalculate() {
+        recalculateNeeded = false;
+        recalculated(calculateFolders());
+    }
+
+    /**
+     * Works out sizes of all folders
+     * @return map of folders' sizes keyed by folders' full names
+     */
+    protected Map<String, long[]> calculateFolders() {
+        Map<String, long[]> folders = new HashMap<String, long[]>();
+        String[] names = store.getFolderTree().listNames("*");
+        for (String name : names) {
+            folders.put(name, store.getFolderData(name).calculateSize());
+        }
+        return folders;
+    }
+
+    /**
+     * Takes recalculated sizes of folders and writes file again. Quota definition
+     * is read from the file first unless quota is set for the store.
+     * @param folders map of folders' sizes keyed by folders' full names
+     */
+    protected void recalculated(Map<String, long[]> folders) {
+        recalculations = recalculations + 1;
+        if (!quotaFixed && (file.length() > 0)) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+                try {
+                    long[] quota = parseQuota(in.readLine());
+                    quotaBytes = quota[0];
+                    quotaCount = quota[1];
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ignore) {
+            }
+        }
+        this.folders = folders;
+        long bytes = 0;
+        long count = 0;
+        for (long[] folder : folders.values()) {
+            bytes = bytes + folder[0];
+            count = count + folder[1];
+        }
+        this.bytes = bytes;
+        this.count = count;
+        write();
+    }
+
+    /**
+     * Writes file with quota definition and one line with store's size.
+     * File is written to temporary file and then renamed.
+     */
+    protected void write() {
+        StringBuilder content = new StringBuilder();
+        content.append(formatQuota(quotaBytes, quotaCount)).append('\n');
+        content.append(bytes).append(' ').append(count).append('\n');
+        try {
+            File tmpFile = File.createTempFile(FILE_NAME, ".tmp", file.getParentFile());
+            try {
+                FileOutputStream fos = new FileOutputStream(tmpFile);
+                try {
+                    fos.write(content.toString().getBytes(StandardCharsets.US_ASCII));
+                } finally {
+                    fos.close();
+                }
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmpFile.delete();
+            }
+            fileLength = file.length();
+            fileModified = file.lastModified();
+        } catch (IOException e) {
+            // Size is still kept in memory; file is written next time
+            recalculateNeeded = true;
+        }
+    }
+
+    /**
+     * Parses Maildir++ quota definition
+     * @param definition quota definition or <code>null</code>
+     * @return array of quota in bytes and quota in number of messages; -1 for not set
+     */
+    public static long[] parseQuota(String definition) {
+        long[] res = new long[] {-1, -1};
+        if (definition != null) {
+            StringTokenizer tokenizer = new StringTokenizer(definition, ",");
+            while (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken().trim();
+                if (token.length() > 1) {
+                    char type = Character.toUpperCase(token.charAt(token.length() - 1));
+                    try {
+                        long value = Long.parseLong(token.substring(0, token.length() - 1));
+                        if (type == 'S') {
+                            res[0] = value;
+                        } else if (type == 'C') {
+                            res[1] = value;
+                        }
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Formats Maildir++ quota definition
+     * @param quotaBytes quota in bytes or -1
+     * @param quotaCount quota in number of messages or -1
+     * @return quota definition; empty if there is no quota
+     */
+    public static String formatQuota(long quotaBytes, long quotaCount) {
+        StringBuilder res = new StringBuilder();
+        if (quotaBytes >= 0) {
+            res.append(quotaBytes).append('S');
+        }
+        if (quotaCount >= 0) {
+            if (res.length() > 0) {
+                res.append(',');
+            }
+            res.append(quotaCount).append('C');
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * <p>Index of block compressed message file written by {@link BlockCompressedOutputStream}.
+ * Content is split in blocks of the same uncompressed size and each block is compressed
+ * on its own so any part of the content can be read by decompressing only blocks it spans.
+ * </p>
+ * <p>File layout (all numbers are big endian):
+ * <ul>
+ * <li>header: {@link #MAGIC} (int) and block size (int)</li>
+ * <li>blocks: zlib compressed blocks one after another. Block whose compressed form is not
+ * smaller is stored as it is.</li>
+ * <li>index: for each block offset of block's data in the file (long) and CRC32 of
+ * uncompressed block (int)</li>
+ * <li>footer: uncompressed size (long), offset of the index (long) and {@link #MAGIC} (int)</li>
+ * </ul>
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class BlockCompressedFile {
+
+    /** Magic number at the start and the end of the file - &quot;MZC1&quot; */
+    public static final int MAGIC = 0x4D5A4331;
+
+    /** Default uncompressed size of a block */
+    public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+
+    /** Size of the header */
+    public static final int HEADER_SIZE = 8;
+
+    /** Size of the footer */
+    public static final int FOOTER_SIZE = 20;
+
+    /** Size of one index entry */
+    public static final int INDEX_ENTRY_SIZE = 12;
+
+    /** Uncompressed size of a block */
+    protected int blockSize;
+
+    /** Uncompressed size of the content */
+    protected long size;
+
+    /** Offsets of blocks' data with offset of the index as the last element */
+    protected long[] offsets;
+
+    /** CRC32 of uncompressed blocks */
+    protected int[] checksums;
+
+    /**
+     * Constructor.
+     * @param blockSize uncompressed size of a block
+     * @param size uncompressed size of the content
+     * @param offsets offsets of blocks' data with offset of the index as the last element
+     * @param checksums CRC32 of uncompressed blocks
+     */
+    public BlockCompressedFile(int blockSize, long size, long[] offsets, int[] checksums) {
+        this.blockSize = blockSize;
+        this.size = size;
+        this.offsets = offsets;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Returns uncompressed size of a block
+     * @return block size
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns uncompressed size of the content
+     * @return uncompressed size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns number of blocks
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return checksums.length;
+    }
+
+    /**
+     * Returns block given position of uncompressed content is in
+     * @param pos position
+     * @return block
+     */
+    public int getBlock(long pos) {
+        return (int)(pos / blockSize);
+    }
+
+    /**
+     * Returns uncompressed length of the block
+     * @param block block
+     * @return block's length
+     */
+    public int getBlockLength(int block) {
+        return (int)Math.min(blockSize, size - (long)block * blockSize);
+    }
+
+    /**
+     * Reads index of the file from the channel
+     * @param channel file's channel
+     * @return index or <code>null</code> if file is not block compressed
+     * @throws IOException if file is block compressed but index cannot be read
+     */
+    public static BlockCompressedFile read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE + FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            return null;
+        }
+        int blockSize = header.getInt(4);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        readFully(channel, footer, fileSize - FOOTER_SIZE);
+        long size = footer.getLong(0);
+        long indexOffset = footer.getLong(8);
+        if ((footer.getInt(16) != MAGIC) || (blockSize <= 0) || (size < 0)
+                || (indexOffset < HEADER_SIZE) || (indexOffset > fileSize - FOOTER_SIZE)) {
+            throw new IOException("Corrupt block compressed file");
+        }
+        long blocks = (size + blockSize - 1) / blockSize;
+        if (blocks * INDEX_ENTRY_SIZE != fileSize - FOOTER_SIZE - indexOffset) {
+            throw new IOException("Corrupt block compressed file index");
+        }
+        ByteBuffer index = ByteBuffer.allocate((int)(blocks * INDEX_ENTRY_SIZE));
+        readFully(channel, index, indexOffset);
+        long[] offsets = new long[(int)blocks + 1];
+        int[] checksums = new int[(int)blocks];
+        for (int i = 0; i < blocks; i++) {
+            offsets[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+            checksums[i] = index.getInt(i * INDEX_ENTRY_SIZE + 8);
+        }
+        offsets[(int)blocks] = indexOffset;
+        return new BlockCompressedFile(blockSize, size, offsets, checksums);
+    }
+
+    /**
+     * Reads and decompresses one block
+     * @param channel file's channel
+     * @param block block
+     * @param buf buffer of at least block's length uncompressed block is read into
+     * @return block's length
+     * @throws IOException if block cannot be read or is corrupt
+     */
+    public int readBlock(FileChannel channel, int block, byte[] buf) throws IOException {
+        int length = getBlockLength(block);
+        int compressedLength = (int)(offsets[block + 1] - offsets[block]);
+        if (compressedLength == length) {
+            readFully(channel, ByteBuffer.wrap(buf, 0, length), offsets[block]);
+        } else {
+            byte[] compressed = new byte[compressedLength];
+            readFully(channel, ByteBuffer.wrap(compressed), offsets[block]);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int l = 0;
+                while ((l < length) && !inflater.finished()) {
+                    int r = inflater.inflate(buf, l, length - l);
+                    if ((r == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    l = l + r;
+                }
+                if (l != length) {
+                    throw new IOException("Corrupt block " + block);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + block, e);
+            } finally {
+                inflater.end();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, length);
+        if ((int)crc.getValue() != checksums[block]) {
+            throw new IOException("Checksum mismatch of block " + block);
+        }
+        return length;
+    }
+
+    /**
+     * Reads from the channel until buffer is full
+     * @param channel channel
+     * @param buf buffer
+     * @param pos position in the channel
+     * @throws IOException if end of file is reached before buffer is full
+     */
+    protected static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int r = channel.read(buf, pos);
+            if (r < 0) {
+                throw new IOException("Unexpected end of block compressed file");
+            }
+            pos = pos + r;
+        }
+    }
+}
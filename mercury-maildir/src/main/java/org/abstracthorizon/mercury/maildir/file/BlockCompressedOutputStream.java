@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Output stream that writes block compressed file (see {@link BlockCompressedFile}).
+ * Written content is collected in a block sized buffer and each full block is compressed
+ * and written to the underlying stream. Index and footer are written by {@link #finish()}
+ * which is called from {@link #close()} as well.
+ *
+ * @author Daniel Sendula
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+    /** Underlying stream */
+    protected DataOutputStream out;
+
+    /** Deflater */
+    protected Deflater deflater;
+
+    /** Uncompressed block */
+    protected byte[] block;
+
+    /** Number of bytes in uncompressed block */
+    protected int blockLength;
+
+    /** Buffer compressed block is written to */
+    protected byte[] compressed;
+
+    /** Offsets of written blocks */
+    protected long[] offsets = new long[16];
+
+    /** CRC32 of written blocks */
+    protected int[] checksums = new int[16];
+
+    /** Number of written blocks */
+    protected int blocks;
+
+    /** Uncompressed size */
+    protected long size;
+
+    /** Is stream finished */
+    protected boolean finished;
+
+    /**
+     * Constructor.
+     * @param out underlying stream
+     * @param blockSize uncompressed size of a block
+     * @param level compression level
+     * @throws IOException if header cannot be written
+     */
+    public BlockCompressedOutputStream(OutputStream out, int blockSize, int level) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.block = new byte[blockSize];
+        this.compressed = new byte[blockSize];
+        this.deflater = new Deflater(level);
+        this.out.writeInt(BlockCompressedFile.MAGIC);
+        this.out.writeInt(blockSize);
+    }
+
+    /**
+     * Returns number of uncompressed bytes written so far
+     * @return uncompressed size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns number of bytes written to the underlying stream so far
+     * @return compressed size
+     */
+    public long getCompressedSize() {
+        return out.size();
+    }
+
+    /**
+     * Writes one byte
+     * @param b byte
+     * @throws IOException
+     */
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            writeBlock();
+        }
+        block[blockLength] = (byte)b;
+        blockLength = blockLength + 1;
+        size = size + 1;
+    }
+
+    /**
+     * Writes bytes
+     * @param buf buffer
+     * @param off offset in buffer
+     * @param len number of bytes
+     * @throws IOException
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == block.length) {
+                writeBlock();
+            }
+            int l = Math.min(len, block.length - blockLength);
+            System.arraycopy(buf, off, block, blockLength, l);
+            blockLength = blockLength + l;
+            size = size + l;
+            off = off + l;
+            len = len - l;
+        }
+    }
+
+    /**
+     * Compresses and writes collected block
+     * @throws IOException
+     */
+    protected void writeBlock() throws IOException {
+        if (blocks == offsets.length) {
+            long[] o = new long[blocks * 2];
+            System.arraycopy(offsets, 0, o, 0, blocks);
+            offsets = o;
+            int[] c = new int[blocks * 2];
+            System.arraycopy(checksums, 0, c, 0, blocks);
+            checksums = c;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, blockLength);
+        offsets[blocks] = out.size();
+        checksums[blocks] = (int)crc.getValue();
+        blocks = blocks + 1;
+
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int l = 0;
+        while (!deflater.finished() && (l < blockLength)) {
+            l = l + deflater.deflate(compressed, l, compressed.length - l);
+        }
+        if (deflater.finished() && (l < blockLength)) {
+            out.write(compressed, 0, l);
+        } else {
+            // Not compressible - stored as it is
+            out.write(block, 0, blockLength);
+        }
+        blockLength = 0;
+    }
+
+    /**
+     * Writes last block, index and footer. Underlying stream is not closed.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            if (blockLength > 0) {
+                writeBlock();
+            }
+            long indexOffset = out.size();
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(checksums[i]);
+            }
+            out.writeLong(size);
+            out.writeLong(indexOffset);
+            out.writeInt(BlockCompressedFile.MAGIC);
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Flushes underlying stream. Collected block is not written until it is full.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes and closes underlying stream
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
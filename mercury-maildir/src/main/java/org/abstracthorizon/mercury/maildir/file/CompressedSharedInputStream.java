@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.IOException;
+
+/**
+ * <code>SharedInputStream</code> implementation over channel obtained from
+ * {@link CompressedSharedInputStreamPool}. Positions are positions in uncompressed content.
+ * Block the position is in is decompressed into stream's buffer so reads within the same
+ * block are served from the buffer. Plain files are read as by {@link FileChannelSharedInputStream}.
+ *
+ * @author Daniel Sendula
+ */
+public class CompressedSharedInputStream extends FileChannelSharedInputStream {
+
+    /**
+     * Constructor. If end is not given file provider's file size is used as it is
+     * uncompressed size of the file.
+     * @param parent pool that is creating this stream
+     * @param fileProvider file provider
+     * @param start stream start
+     * @param end stream end
+     */
+    public CompressedSharedInputStream(CompressedSharedInputStreamPool parent, FileProvider fileProvider, long start, long end) {
+        super(parent, fileProvider, start, end);
+        if ((end < 0) && (fileProvider.getFileSize() >= 0)) {
+            this.end = fileProvider.getFileSize();
+        }
+    }
+
+    /**
+     * Reads from the given channel at current pointer decompressing block
+     * pointer is in if file is block compressed.
+     * @param channel channel
+     * @param buf buffer to be read into
+     * @param off offset in buffer
+     * @param len length to be read
+     * @return number of read bytes or -1
+     * @throws IOException
+     */
+    protected int readChannel(FileChannelSharedInputStreamPool.Channel channel, byte[] buf, int off, int len) throws IOException {
+        CompressedSharedInputStreamPool.CompressedChannel compressedChannel = (CompressedSharedInputStreamPool.CompressedChannel)channel;
+        BlockCompressedFile index = compressedChannel.index;
+        if (index == null) {
+            return super.readChannel(channel, buf, off, len);
+        }
+        if (ptr >= index.getSize()) {
+            return -1;
+        }
+        int block = index.getBlock(ptr);
+        if ((buffer == null) || (buffer.length < index.getBlockSize())) {
+            buffer = new byte[index.getBlockSize()];
+        }
+        buflen = 0;
+        bufptr = (long)block * index.getBlockSize();
+        buflen = compressedChannel.readBlock(block, buffer);
+        int l = (int)Math.min(len, bufptr + buflen - ptr);
+        System.arraycopy(buffer, (int)(ptr - bufptr), buf, off, l);
+        return l;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * <p>Pool of {@link CompressedSharedInputStream} instances. It extends
+ * {@link FileChannelSharedInputStreamPool} so channels are shared and limited in the same way.
+ * When channel is opened file's header is checked and, for block compressed files
+ * (see {@link BlockCompressedFile}), index of blocks is read and kept with the channel.
+ * Streams then decompress only blocks they read from so new stream at any position
+ * doesn't need to decompress file from the start. Files that are not compressed are read
+ * as with {@link FileChannelSharedInputStreamPool}.
+ * </p>
+ * <p>Each channel keeps last decompressed block so streams reading the same part
+ * of a message, for instance header and then body of the same message, decompress it once.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class CompressedSharedInputStreamPool extends FileChannelSharedInputStreamPool {
+
+    /** Default instance */
+    protected static CompressedSharedInputStreamPool defaultCompressedInstance = new CompressedSharedInputStreamPool();
+
+    /** Number of decompressed blocks */
+    protected AtomicLong blockReads = new AtomicLong();
+
+    /** Number of blocks taken from channels' last decompressed block */
+    protected AtomicLong blockHits = new AtomicLong();
+
+    /**
+     * Default constructor
+     */
+    public CompressedSharedInputStreamPool() {
+    }
+
+    /**
+     * Constructor.
+     * @param maxFiles maximum number of opened channels
+     */
+    public CompressedSharedInputStreamPool(int maxFiles) {
+        super(maxFiles);
+    }
+
+    /**
+     * Returns default instance
+     * @return default instance
+     */
+    public static CompressedSharedInputStreamPool getDefaultCompressedInstance() {
+        return defaultCompressedInstance;
+    }
+
+    /**
+     * Returns number of decompressed blocks
+     * @return block reads
+     */
+    public long getBlockReads() {
+        return blockReads.get();
+    }
+
+    /**
+     * Returns number of blocks taken from channels' last decompressed block
+     * @return block hits
+     */
+    public long getBlockHits() {
+        return blockHits.get();
+    }
+
+    /**
+     * Resets all counters
+     */
+    public void resetStatistics() {
+        super.resetStatistics();
+        blockReads.set(0);
+        blockHits.set(0);
+    }
+
+    /**
+     * Creates new <code>CompressedSharedInputStream</code> instance.
+     * @param fileProvider file provider
+     * @param start start of the stream
+     * @param len end of the stream
+     * @return new <code>CompressedSharedInputStream</code> instance
+     */
+    public InputStream newStream(FileProvider fileProvider, long start, long len) {
+        return new CompressedSharedInputStream(this, fileProvider, start, len);
+    }
+
+    /**
+     * Creates and opens new channel reading index of block compressed file
+     * @param fileProvider file provider
+     * @return new channel
+     * @throws IOException
+     */
+    protected Channel createChannel(FileProvider fileProvider) throws IOException {
+        return new CompressedChannel(fileProvider);
+    }
+
+    /**
+     * Channel over block compressed or plain file.
+     */
+    protected class CompressedChannel extends Channel {
+
+        /** Index of block compressed file or <code>null</code> if file is not compressed */
+        protected BlockCompressedFile index;
+
+        /** Last decompressed block or -1 */
+        protected int lastBlock;
+
+        /** Content of last decompressed block */
+        protected byte[] lastBlockContent;
+
+        /** Length of last decompressed block */
+        protected int lastBlockLength;
+
+        /** Guards last block. Not a monitor so virtual threads reading blocks don't pin their carriers. */
+        protected final ReentrantLock blockLock = new ReentrantLock();
+
+        /**
+         * Constructor. It opens file channel.
+         * @param fileProvider file provider
+         * @throws IOException
+         */
+        protected CompressedChannel(FileProvider fileProvider) throws IOException {
+            super(fileProvider);
+        }
+
+        /**
+         * Reads index of block compressed file. Plain files are mapped as usual.
+         * @throws IOException if file is block compressed but its index cannot be read
+         */
+        protected void opened() throws IOException {
+            lastBlock = -1;
+            index = BlockCompressedFile.read(fileChannel);
+            if (index == null) {
+                super.opened();
+            }
+        }
+
+        /**
+         * Reads uncompressed block
+         * @param block block
+         * @param buf buffer of at least block size
+         * @return block's length
+         * @throws IOException
+         */
+        protected int readBlock(int block, byte[] buf) throws IOException {
+            blockLock.lock();
+            try {
+                if (block != lastBlock) {
+                    blockReads.incrementAndGet();
+                    if (lastBlockContent == null) {
+                        lastBlockContent = new byte[index.getBlockSize()];
+                    }
+                    lastBlock = -1;
+                    lastBlockLength = index.readBlock(fileChannel, block, lastBlockContent);
+                    lastBlock = block;
+                } else {
+                    blockHits.incrementAndGet();
+                }
+                System.arraycopy(lastBlockContent, 0, buf, 0, lastBlockLength);
+                return lastBlockLength;
+            } finally {
+                blockLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>SharedInputStream</code> implementation over channel obtained from
+ * {@link FileChannelSharedInputStreamPool}. It keeps its own position and reads
+ * either from slice of mapped file or with positional reads so
+ * streams over the same file do not need to synchronise with each other.
+ *
+ * @author Daniel Sendula
+ */
+public class FileChannelSharedInputStream extends InputStream implements SharedInputStream {
+
+    /** Logger */
+    protected static final Logger logger = LoggerFactory.getLogger(FileChannelSharedInputStream.class);
+
+    /** Stream's buffer size */
+    public static final int BUFFER_SIZE = 1024 * 8;
+
+    /** Stream start offset */
+    protected long start;
+
+    /** Stream end offset */
+    protected long end;
+
+    /** Stream's pointer */
+    protected long ptr;
+
+    /** Mark */
+    protected long mark;
+
+    /** Stream's buffer used for positional reads */
+    protected byte[] buffer;
+
+    /** Stream's buffer start pointer */
+    protected long bufptr;
+
+    /** Stream's buffer content len */
+    protected int buflen;
+
+    /** This stream's view of mapped file */
+    protected ByteBuffer view;
+
+    /** File provider reference */
+    protected FileProvider fileProvider;
+
+    /** Set when channel was obtained at least once */
+    protected boolean hadChannel;
+
+    /** Pool that created this object */
+    protected FileChannelSharedInputStreamPool parent;
+
+    /**
+     * Constructor.
+     * @param parent pool that is creating this stream
+     * @param fileProvider file provider
+     * @param start stream start
+     * @param end stream end
+     */
+    public FileChannelSharedInputStream(FileChannelSharedInputStreamPool parent, FileProvider fileProvider, long start, long end) {
+        this.fileProvider = fileProvider;
+        this.parent = parent;
+        this.start = start;
+        this.end = end;
+        if (end < 0) {
+            try {
+                this.end = fileProvider.getFile().length();
+            } catch (IOException e) {
+                logger.warn("Cannot obtain length of message file", e);
+            }
+        }
+        mark = start;
+        ptr = start;
+    }
+
+    /**
+     * Reads bytes from the mapped file or from the channel through internal buffer.
+     * @param buf buffer to be read into
+     * @param off offset in buffer
+     * @param len length to be read
+     * @return number of actually read bytes
+     * @throws IOException
+     */
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (ptr >= end) {
+            return -1;
+        }
+        if (len > end - ptr) {
+            len = (int) (end - ptr);
+        }
+        int l;
+        if ((buffer != null) && (ptr >= bufptr) && (ptr < bufptr + buflen)) {
+            l = (int) Math.min(len, bufptr + buflen - ptr);
+            System.arraycopy(buffer, (int) (ptr - bufptr), buf, off, l);
+        } else {
+            l = readChannel(buf, off, len);
+        }
+        if (l <= 0) {
+            // Reached unexpected end of file prematurely
+            ptr = end;
+            return -1;
+        }
+        ptr = ptr + l;
+        return l;
+    } // read
+
+    /**
+     * Reads whole buffer.
+     * @param buf buffer to be read into
+     * @return number of actually read bytes
+     * @throws IOException
+     */
+    public int read(byte[] buf) throws IOException {
+        return read(buf, 0, buf.length);
+    } // read
+
+    /**
+     * Reads one byte or returns -1 if EOF is reached (end of stream really).
+     * @return read byte
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        if (ptr >= end) {
+            return -1;
+        }
+        if ((buffer != null) && (ptr >= bufptr) && (ptr < bufptr + buflen)) {
+            int ret = buffer[(int) (ptr - bufptr)] & 0xff;
+            ptr = ptr + 1;
+            return ret;
+        }
+        if ((view != null) && (ptr < view.limit())) {
+            int ret = view.get((int) ptr) & 0xff;
+            ptr = ptr + 1;
+            return ret;
+        }
+        byte[] b = new byte[1];
+        int i = read(b, 0, 1);
+        if (i > 0) {
+            return b[0] & 0xff;
+        } else {
+            return -1;
+        }
+    } // read
+
+    /**
+     * Reads from the channel (or mapped file) at current pointer. If requested
+     * length is smaller than buffer and file is not mapped, internal buffer is filled.
+     * Channel closed by the pool in the meantime is obtained again.
+     * @param buf buffer to be read into
+     * @param off offset in buffer
+     * @param len length to be read
+     * @return number of read bytes or -1
+     * @throws IOException
+     */
+    protected int readChannel(byte[] buf, int off, int len) throws IOException {
+        try {
+            return readChannel(obtainChannel(), buf, off, len);
+        } catch (ClosedChannelException e) {
+            return readChannel(obtainChannel(), buf, off, len);
+        }
+    }
+
+    /**
+     * Obtains channel from the pool
+     * @return channel
+     * @throws IOException
+     */
+    protected FileChannelSharedInputStreamPool.Channel obtainChannel() throws IOException {
+        FileChannelSharedInputStreamPool.Channel channel = parent.getChannel(fileProvider, hadChannel);
+        hadChannel = true;
+        return channel;
+    }
+
+    /**
+     * Reads from the given channel at current pointer.
+     * @param channel channel
+     * @param buf buffer to be read into
+     * @param off offset in buffer
+     * @param len length to be read
+     * @return number of read bytes or -1
+     * @throws IOException
+     */
+    protected int readChannel(FileChannelSharedInputStreamPool.Channel channel, byte[] buf, int off, int len) throws IOException {
+        if (channel.mapped != null) {
+            if (view == null) {
+                view = channel.mapped.duplicate();
+            }
+            if (ptr >= view.limit()) {
+                return -1;
+            }
+            len = (int) Math.min(len, view.limit() - ptr);
+            view.position((int) ptr);
+            view.get(buf, off, len);
+            return len;
+        }
+        if (len >= BUFFER_SIZE) {
+            return channel.fileChannel.read(ByteBuffer.wrap(buf, off, len), ptr);
+        }
+        if (buffer == null) {
+            buffer = new byte[(int) Math.min(BUFFER_SIZE, end - start)];
+        }
+        bufptr = ptr;
+        buflen = 0;
+        int l = channel.fileChannel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - ptr)), ptr);
+        if (l <= 0) {
+            return -1;
+        }
+        buflen = l;
+        if (len > l) {
+            len = l;
+        }
+        System.arraycopy(buffer, 0, buf, off, len);
+        return len;
+    }
+
+    /**
+     * Returns number of available bytes in stream (to end of stream).
+     * @return number of available bytes
+     * @throws IOException
+     */
+    public int available() throws IOException {
+        return (int) (end - ptr);
+    } // available
+
+    /**
+     * Releases stream's buffers. Channel stays open in the pool.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        buffer = null;
+        buflen = 0;
+        view = null;
+    } // close
+
+    /**
+     * Returns <code>true</code>
+     * @return <code>true</code>
+     */
+    public boolean markSupported() {
+        return true;
+    } // isMarkSupported
+
+    /**
+     * Sets mark.
+     * @param readlimit ignored
+     */
+    public void mark(int readlimit) {
+        mark = ptr;
+    } // mark
+
+    /**
+     * Resets stream to the mark
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        ptr = mark;
+    } // reset
+
+    /**
+     * Skips number of bytes
+     * @param n number of bytes to be skipped
+     * @return number of skipped bytes
+     * @throws IOException
+     */
+    public long skip(long n) throws IOException {
+        if (n > end - ptr) {
+            n = end - ptr;
+        }
+        if (n < 0) {
+            n = 0;
+        }
+        ptr = ptr + n;
+        return n;
+    } // skip
+
+    /**
+     * Returns current pointer in stream
+     * @return current pointer in stream
+     */
+    public long getPosition() {
+        return ptr - start;
+    } // getPosition
+
+    /**
+     * Creates new stream from this stream.
+     * @param pos new relative start position
+     * @param end new relative end position
+     * @return new instance with given start and end.
+     */
+    public InputStream newStream(long pos, long end) {
+        pos = this.start + pos;
+        if (end < 0) {
+            return parent.newStream(fileProvider, pos, this.end);
+        } else {
+            return parent.newStream(fileProvider, pos, this.start + end);
+        }
+    } // newStream
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * <p>Pool of {@link FileChannelSharedInputStream} instances. All streams over the same
+ * file provider share one <code>FileChannel</code>. Files of {@link #getMapThreshold()}
+ * size or bigger are mapped in memory once and streams read from the slices of the
+ * mapped buffer. Smaller files are read with positional reads. Neither needs locking or
+ * seeking so sections of the same message can be read concurrently.
+ * </p>
+ * <p>Number of opened channels is limited by {@link #getMaxFiles()}. Channels are kept
+ * in access order and least recently used are closed when limit is reached. Hits, misses,
+ * reopens and evictions are counted per channel. Note: mapped
+ * buffer cannot be released explicitly - it stays valid (and mapped) until garbage
+ * collected even after its channel is closed.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class FileChannelSharedInputStreamPool extends SharedInputStreamPool {
+
+    /** Default instance */
+    protected static FileChannelSharedInputStreamPool defaultChannelInstance = new FileChannelSharedInputStreamPool();
+
+    /** Default size from which files are mapped in memory */
+    public static final long DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+    /** Opened channels in access order */
+    protected LinkedHashMap<FileProvider, Channel> channels = new LinkedHashMap<FileProvider, Channel>(16, 0.75f, true);
+
+    /** Size from which files are mapped in memory */
+    protected long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+    /**
+     * Default constructor
+     */
+    public FileChannelSharedInputStreamPool() {
+    }
+
+    /**
+     * Constructor.
+     * @param maxFiles maximum number of opened channels
+     */
+    public FileChannelSharedInputStreamPool(int maxFiles) {
+        super(maxFiles);
+    }
+
+    /**
+     * Returns default instance
+     * @return default instance
+     */
+    public static FileChannelSharedInputStreamPool getDefaultChannelInstance() {
+        return defaultChannelInstance;
+    }
+
+    /**
+     * Returns size from which files are mapped in memory
+     * @return map threshold
+     */
+    public long getMapThreshold() {
+        return mapThreshold;
+    }
+
+    /**
+     * Sets size from which files are mapped in memory. Negative value disables mapping.
+     * @param mapThreshold map threshold
+     */
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Creates new <code>FileChannelSharedInputStream</code> instance.
+     * @param fileProvider file provider
+     * @param start start of the stream
+     * @param len end of the stream
+     * @return new <code>FileChannelSharedInputStream</code> instance
+     */
+    public InputStream newStream(FileProvider fileProvider, long start, long len) {
+        return new FileChannelSharedInputStream(this, fileProvider, start, len);
+    }
+
+    /**
+     * Returns number of currently opened channels
+     * @return number of currently opened channels
+     */
+    public synchronized int getOpenFiles() {
+        return channels.size();
+    }
+
+    /**
+     * Returns channel for given file provider opening it if needed. Channels
+     * over the limit are closed after pool's lock is released.
+     * @param fileProvider file provider
+     * @param reopen <code>true</code> if caller has already had channel for this provider
+     * @return channel
+     * @throws IOException
+     */
+    protected Channel getChannel(FileProvider fileProvider, boolean reopen) throws IOException {
+        synchronized (this) {
+            Channel channel = channels.get(fileProvider);
+            if (channel != null) {
+                hits.incrementAndGet();
+                return channel;
+            }
+        }
+        misses.incrementAndGet();
+        if (reopen) {
+            reopens.incrementAndGet();
+        }
+        Channel channel = createChannel(fileProvider);
+        List<Channel> evicted = null;
+        synchronized (this) {
+            Channel existing = channels.get(fileProvider);
+            if (existing != null) {
+                evicted = new ArrayList<Channel>();
+                evicted.add(channel);
+                channel = existing;
+            } else {
+                channels.put(fileProvider, channel);
+                if (channels.size() > maxFiles) {
+                    evicted = new ArrayList<Channel>();
+                    Iterator<Channel> it = channels.values().iterator();
+                    while ((channels.size() > maxFiles) && it.hasNext()) {
+                        Channel c = it.next();
+                        if (c != channel) {
+                            it.remove();
+                            evictions.incrementAndGet();
+                            evicted.add(c);
+                        }
+                    }
+                }
+            }
+        }
+        if (evicted != null) {
+            for (Channel c : evicted) {
+                c.close();
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Creates and opens new channel over provider's file
+     * @param fileProvider file provider
+     * @return new channel
+     * @throws IOException
+     */
+    protected Channel createChannel(FileProvider fileProvider) throws IOException {
+        return new Channel(fileProvider);
+    }
+
+    /**
+     * Closes channel for given file provider
+     * @param provider file provider
+     */
+    public void closeWithProvider(FileProvider provider) {
+        Channel channel;
+        synchronized (this) {
+            channel = channels.remove(provider);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Channel opened over provider's file.
+     */
+    protected class Channel {
+
+        /** File provider */
+        protected FileProvider fileProvider;
+
+        /** File channel */
+        protected FileChannel fileChannel;
+
+        /** Mapped file or <code>null</code> */
+        protected MappedByteBuffer mapped;
+
+        /** File size */
+        protected long size;
+
+        /**
+         * Constructor. It opens file channel.
+         * @param fileProvider file provider
+         * @throws IOException
+         */
+        protected Channel(FileProvider fileProvider) throws IOException {
+            this.fileProvider = fileProvider;
+            fileChannel = FileChannel.open(fileProvider.getFile().toPath(), StandardOpenOption.READ);
+            try {
+                size = fileChannel.size();
+                opened();
+            } catch (IOException e) {
+                fileChannel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Called when channel is opened. This implementation maps file in memory if
+         * it is big enough.
+         * @throws IOException
+         */
+        protected void opened() throws IOException {
+            if ((mapThreshold >= 0) && (size >= mapThreshold) && (size <= Integer.MAX_VALUE)) {
+                mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        /**
+         * Closes channel
+         */
+        protected void close() {
+            try {
+                fileChannel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * <p>Bounded pool of threads bulk file operations are run on, for instance renames
+ * of message files when flags of many messages are changed at once.
+ * </p>
+ * <p>Tasks given to {@link #run(List)} are split in as many chunks as pool has threads
+ * and caller's thread runs one of the chunks itself. Method returns only after all
+ * tasks are finished. Batches smaller than {@link #MIN_PARALLEL_TASKS} are run
+ * in caller's thread only. Two different tasks, like reading two directories,
+ * can be run side by side with {@link #runConcurrently(Runnable, Runnable)}. Pool's threads are daemon threads and are released when
+ * idle.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class FileTaskPool {
+
+    /** Default number of threads */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** Smallest batch that is split over pool's threads */
+    public static final int MIN_PARALLEL_TASKS = 32;
+
+    /** Seconds idle thread is kept for */
+    public static final int KEEP_ALIVE = 30;
+
+    /** Default instance */
+    protected static FileTaskPool defaultInstance;
+
+    /** Number of threads */
+    protected int threads = DEFAULT_THREADS;
+
+    /** Executor or <code>null</code> if not created yet */
+    protected ThreadPoolExecutor executor;
+
+    /** Number of batches run */
+    protected long batches;
+
+    /** Number of tasks run */
+    protected long tasks;
+
+    /**
+     * Default constructor.
+     */
+    public FileTaskPool() {
+    }
+
+    /**
+     * Constructor.
+     * @param threads number of threads
+     */
+    public FileTaskPool(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Returns default instance shared by all stores
+     * @return default instance
+     */
+    public static synchronized FileTaskPool getDefaultInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new FileTaskPool();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Returns number of threads
+     * @return number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns number of batches run
+     * @return number of batches
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Returns number of tasks run
+     * @return number of tasks
+     */
+    public synchronized long getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Runs all tasks and waits for them to finish. Tasks are expected to handle
+     * their own exceptions; unchecked exception thrown from a task stops only the rest
+     * of that task's chunk.
+     * @param tasks tasks
+     */
+    public void run(List<? extends Runnable> tasks) {
+        int size = tasks.size();
+        synchronized (this) {
+            this.batches = this.batches + 1;
+            this.tasks = this.tasks + size;
+        }
+        int chunks = Math.min(threads, size / (MIN_PARALLEL_TASKS / 2));
+        if (chunks <= 1) {
+            runChunk(tasks, 0, size);
+            return;
+        }
+        int chunkSize = (size + chunks - 1) / chunks;
+        chunks = (size + chunkSize - 1) / chunkSize;
+        ThreadPoolExecutor executor = getExecutor();
+        CountDownLatch latch = new CountDownLatch(chunks - 1);
+        int start = chunkSize;
+        while (start < size) {
+            executor.execute(new Chunk(tasks, start, Math.min(start + chunkSize, size), latch));
+            start = start + chunkSize;
+        }
+        try {
+            runChunk(tasks, 0, chunkSize);
+        } finally {
+            await(latch);
+        }
+    }
+
+    /**
+     * Runs first task on one of pool's threads and second task in caller's thread
+     * and waits for both to finish. Tasks are expected to handle their own exceptions.
+     * @param background task run on pool's thread
+     * @param foreground task run in caller's thread
+     */
+    public void runConcurrently(Runnable background, Runnable foreground) {
+        synchronized (this) {
+            this.batches = this.batches + 1;
+            this.tasks = this.tasks + 2;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        getExecutor().execute(new Chunk(Collections.singletonList(background), 0, 1, latch));
+        try {
+            foreground.run();
+        } finally {
+            await(latch);
+        }
+    }
+
+    /**
+     * Waits for latch to reach zero. Interruption is remembered and restored afterwards.
+     * @param latch latch
+     */
+    protected static void await(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs tasks from given range in current thread
+     * @param tasks tasks
+     * @param start first task
+     * @param end index after last task
+     */
+    protected static void runChunk(List<? extends Runnable> tasks, int start, int end) {
+        for (int i = start; i < end; i++) {
+            tasks.get(i).run();
+        }
+    }
+
+    /**
+     * Returns executor creating it if needed
+     * @return executor
+     */
+    protected synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "maildir-file-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops pool's threads. Pool can still be used afterwards.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Chunk of tasks run on one of pool's threads.
+     */
+    protected static class Chunk implements Runnable {
+
+        /** Tasks */
+        protected List<? extends Runnable> tasks;
+
+        /** First task */
+        protected int start;
+
+        /** Index after last task */
+        protected int end;
+
+        /** Latch counted down when chunk is done */
+        protected CountDownLatch latch;
+
+        /**
+         * Constructor.
+         * @param tasks tasks
+         * @param start first task
+         * @param end index after last task
+         * @param latch latch counted down when chunk is done
+         */
+        public Chunk(List<? extends Runnable> tasks, int start, int end, CountDownLatch latch) {
+            this.tasks = tasks;
+            this.start = start;
+            this.end = end;
+            this.latch = latch;
+        }
+
+        /**
+         * Runs chunk's tasks
+         */
+        public void run() {
+            try {
+                runChunk(tasks, start, end);
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+}
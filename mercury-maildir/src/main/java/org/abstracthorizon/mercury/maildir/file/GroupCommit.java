@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * <p>Durable move of written files from <i>tmp</i> to their final directory, shared by
+ * concurrent deliveries. Each file has to be synced to the disk, renamed and then its
+ * new directory synced so rename survives a crash as well.
+ * </p>
+ * <p>Each thread syncs its own file, so file syncs of concurrent deliveries run in parallel.
+ * Renames and directory syncs of files committed within one flush window (or until batch
+ * gets full) are done together - each directory is synced once per batch. Thread that
+ * commits first file of a batch does that work for the batch while other threads wait.
+ * {@link #commit(File, File)} returns only after the batch is durable.
+ * </p>
+ * <p>Deliveries that rename files themselves (so it is done in order with other changes
+ * of the folder) share only directory syncs using {@link #commitDirectory(File)}.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class GroupCommit {
+
+    /** Default flush window in milliseconds */
+    public static final long DEFAULT_WINDOW = 2;
+
+    /** Default maximum number of files in one batch */
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    /** Flush window in milliseconds */
+    protected long window = DEFAULT_WINDOW;
+
+    /** Maximum number of files in one batch */
+    protected int maxBatch = DEFAULT_MAX_BATCH;
+
+    /** Requests waiting for next batch */
+    protected List<Request> pending = new ArrayList<Request>();
+
+    /** Is there a thread collecting or committing a batch */
+    protected boolean committing;
+
+    /** Number of committed batches */
+    protected long batches;
+
+    /** Number of committed files */
+    protected long files;
+
+    /**
+     * Default constructor.
+     */
+    public GroupCommit() {
+    }
+
+    /**
+     * Constructor.
+     * @param window flush window in milliseconds
+     * @param maxBatch maximum number of files in one batch
+     */
+    public GroupCommit(long window, int maxBatch) {
+        this.window = window;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Returns flush window
+     * @return flush window in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns maximum number of files in one batch
+     * @return maximum number of files in one batch
+     */
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Returns number of committed batches
+     * @return number of committed batches
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Returns number of committed files
+     * @return number of committed files
+     */
+    public synchronized long getFiles() {
+        return files;
+    }
+
+    /**
+     * Syncs file, renames it to the target and syncs target's directory. Method returns
+     * when batch this file was part of is durable.
+     * @param file written file
+     * @param target file's new name
+     * @throws IOException if file cannot be synced or renamed
+     */
+    public void commit(File file, File target) throws IOException {
+        syncFile(file);
+        commit(new Request(file, target));
+    }
+
+    /**
+     * Syncs directory file was already moved to. Directory is synced together with other
+     * directories of the batch and method returns when batch is durable.
+     * @param dir directory
+     * @throws IOException if directory cannot be synced
+     */
+    public void commitDirectory(File dir) throws IOException {
+        commit(new Request(null, dir));
+    }
+
+    /**
+     * Adds request to the next batch and waits until it is committed.
+     * @param request request
+     * @throws IOException if request failed
+     */
+    protected void commit(Request request) throws IOException {
+        synchronized (this) {
+            pending.add(request);
+            if (pending.size() >= maxBatch) {
+                notifyAll();
+            }
+        }
+        // Batch this thread collects doesn't have to contain its own request when more
+        // than maxBatch requests are pending - it keeps committing until its request is done.
+        while (true) {
+            List<Request> batch;
+            synchronized (this) {
+                while (!request.done && committing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for commit of " + request.target.getAbsolutePath());
+                    }
+                }
+                if (request.done) {
+                    break;
+                }
+                committing = true;
+                batch = collect();
+            }
+            try {
+                process(batch);
+            } finally {
+                synchronized (this) {
+                    for (Request r : batch) {
+                        r.done = true;
+                    }
+                    batches = batches + 1;
+                    files = files + batch.size();
+                    committing = false;
+                    notifyAll();
+                }
+            }
+        }
+        if (request.exception != null) {
+            throw request.exception;
+        }
+    }
+
+    /**
+     * Waits for the flush window to pass or batch to get full and takes pending requests.
+     * Must be called while holding this object's lock.
+     * @return batch to be committed
+     */
+    protected List<Request> collect() {
+        long deadline = System.currentTimeMillis() + window;
+        long remaining = window;
+        while ((pending.size() < maxBatch) && (remaining > 0)) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        List<Request> batch;
+        if (pending.size() <= maxBatch) {
+            batch = pending;
+            pending = new ArrayList<Request>();
+        } else {
+            batch = new ArrayList<Request>(pending.subList(0, maxBatch));
+            pending = new ArrayList<Request>(pending.subList(maxBatch, pending.size()));
+        }
+        return batch;
+    }
+
+    /**
+     * Renames already synced files and syncs their directories (and directories
+     * of requests that have no file to rename). Failures are
+     * recorded against the requests they belong to.
+     * @param batch batch of requests
+     */
+    protected void process(List<Request> batch) {
+        Map<File, List<Request>> directories = new LinkedHashMap<File, List<Request>>();
+        for (Request r : batch) {
+            File dir;
+            if (r.file == null) {
+                dir = r.target;
+            } else if (r.file.renameTo(r.target)) {
+                dir = r.target.getParentFile();
+            } else {
+                r.exception = new IOException("Cannot move file " + r.file.getAbsolutePath() + " to " + r.target.getAbsolutePath());
+                continue;
+            }
+            List<Request> list = directories.get(dir);
+            if (list == null) {
+                list = new ArrayList<Request>();
+                directories.put(dir, list);
+            }
+            list.add(r);
+        }
+        for (Map.Entry<File, List<Request>> entry : directories.entrySet()) {
+            try {
+                syncDirectory(entry.getKey());
+            } catch (IOException e) {
+                for (Request r : entry.getValue()) {
+                    r.exception = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces file's content and metadata to the disk.
+     * @param file file
+     * @throws IOException
+     */
+    public static void syncFile(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Forces directory's entries to the disk. On platforms where directories
+     * cannot be opened (Windows) this method does nothing.
+     * @param dir directory
+     * @throws IOException if directory cannot be synced
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException ignore) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Single file waiting to be committed.
+     */
+    protected static class Request {
+
+        /** Written file or <code>null</code> if only target directory is to be synced */
+        protected File file;
+
+        /** File's new name or directory to be synced */
+        protected File target;
+
+        /** Is batch request was part of processed */
+        protected boolean done;
+
+        /** Failure or <code>null</code> */
+        protected IOException exception;
+
+        /**
+         * Constructor.
+         * @param file written file
+         * @param target file's new name
+         */
+        public Request(File file, File target) {
+            this.file = file;
+            this.target = target;
+        }
+    }
+}
@@ -15,6 +15,9 @@ package org.abstracthorizon.mercury.maildir.file;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.mail.internet.SharedInputStream;
 
 /**
@@ -66,8 +69,14 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
     /** Pool that created this object */
     protected SharedInputStreamPool parent;
 
-    /** Timestamp this stream's file is accessed last time */
-    protected long lastAccessed;
+    /** Set when file was opened at least once */
+    protected boolean everOpened;
+
+    /** Streams evicted by the pool when this stream opened its file */
+    protected List<SharedInputStreamImpl> evicted;
+
+    /** Guards file. Not a monitor so virtual threads reading the file don't pin their carriers. */
+    protected final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Constructor.
@@ -91,7 +100,6 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
         }
         mark = start;
         ptr = start;
-        lastAccessed = System.currentTimeMillis();
         num = num + 1;
         id = num;
     }
@@ -106,7 +114,6 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
      * @throws IOException
      */
     public int read(byte[] buf, int off, int len) throws IOException {
-        lastAccessed = System.currentTimeMillis();
         if (len == 0) {
             return 0;
         }
@@ -129,9 +136,13 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
                 }
                 System.arraycopy(buffer, bufoff, buf, off, l);
             } else {
-                synchronized (this) {
-                    if (firstRead) {
-                        checkOpened();
+                lock.lock();
+                try {
+                    boolean opened = checkOpened();
+                    if (!opened) {
+                        parent.accessed(this);
+                    }
+                    if (firstRead || opened) {
                         long p = raf.getFilePointer();
                         if ((p != ptr) && (ptr <= getFileSize())) {
                             raf.seek(ptr);
@@ -181,7 +192,10 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
                             l = 0;
                         }
                     }
-                } // synch
+                } finally {
+                    lock.unlock();
+                }
+                evictPending();
             }
             off = off + l;
             ret = ret + l;
@@ -193,7 +207,7 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
         }
 // TODO - check if this is working - should be ok but not tested.
 //        if (bufptr + buflen >= end) {
-//            synchronized (this) {
+//            lock.lock();
 //                raf.close();
 //                raf = null;
 //            }
@@ -262,12 +276,38 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
      * This method actually releases the resources (<code>random access file</code>)
      * @throws IOException
      */
-    public synchronized void closeImpl() throws IOException {
-        raf.close();
-        raf = null;
-        buffer = null;
+    public void closeImpl() throws IOException {
+        lock.lock();
+        try {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+            }
+            buffer = null;
+        } finally {
+            lock.unlock();
+        }
     } // close
 
+    /**
+     * Closes underlaying file only. It is called by the pool when file is evicted
+     * or closed for the provider. Stream will reopen file on next read.
+     */
+    protected void closeFile() {
+        lock.lock();
+        try {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+                raf = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns <code>true</code>
      * @return <code>true</code>
@@ -307,7 +347,6 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
      * @throws IOException
      */
     public long skip(long n) throws IOException {
-        lastAccessed = System.currentTimeMillis();
         if (n > end - ptr) {
             n = end - ptr;
         }
@@ -345,13 +384,35 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
     /**
      * Checks if underlaying file is opened. It uses <code>FileProvider</code>
      * to obtain file.
+     * @return <code>true</code> if file had to be opened
      * @throws IOException
      */
-    protected void checkOpened() throws IOException {
+    protected boolean checkOpened() throws IOException {
         if (raf == null) {
             raf = new RandomAccessFile(fileProvider.getFile(), "r");
             raf.seek(start);
-            parent.opened(this);
+            evicted = parent.opened(this, everOpened);
+            everOpened = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Passes streams evicted when this stream's file was opened back to the pool
+     * to be closed. Called outside of this stream's lock.
+     */
+    protected void evictPending() {
+        List<SharedInputStreamImpl> evicted;
+        lock.lock();
+        try {
+            evicted = this.evicted;
+            this.evicted = null;
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            parent.evict(evicted);
         }
     }
 
@@ -366,12 +427,16 @@ public class SharedInputStreamImpl extends InputStream implements SharedInputStr
         fileSize = fileProvider.getFileSize();
         if (fileSize < 0) {
             try {
-                synchronized (this) {
+                lock.lock();
+                try {
                     checkOpened();
                     fileSize = raf.length();
+                } finally {
+                    lock.unlock();
                 }
             } catch (IOException ignore) {
             }
+            evictPending();
         }
         return fileSize;
     }
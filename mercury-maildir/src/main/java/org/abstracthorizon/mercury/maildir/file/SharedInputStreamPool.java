@@ -12,17 +12,31 @@
  */
 package org.abstracthorizon.mercury.maildir.file;
 
-import java.io.IOException;
-import java.util.HashSet;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
-import javax.mail.internet.SharedInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Pool of shared input stream instance. Since each instance uses RandomAccessFile from
+ * <p>Pool of shared input stream instance. Since each instance uses RandomAccessFile from
  * java.io package it is important managing these resources.
+ * </p>
+ * <p>Streams with opened files are kept in access order. Opening, accessing and
+ * closing of a stream are constant time operations. When number of opened files goes over
+ * {@link #getMaxFiles()} least recently accessed streams' files are closed (evicted).
+ * Evicted stream reopens its file on next read. Files are closed outside of pool's lock
+ * so pool never waits on a stream that is in the middle of a read.
+ * </p>
+ * <p>Pool counts hits (file was already open), misses (file had to be opened),
+ * reopens (misses of streams whose file was closed before) and evictions.
+ * </p>
  *
  * @author Daniel Sendula
  */
@@ -31,14 +45,29 @@ public class SharedInputStreamPool {
     /** Pool default instance */
     protected static SharedInputStreamPool defaultInstance = new SharedInputStreamPool();
 
-    /** Set of opened <code>SharedInputStreamImpl</code>s */
-    protected Set<SharedInputStream> files = new HashSet<SharedInputStream>();
+    /** Default maximum number of files */
+    public static final int DEFAULT_MAX_FILES = 200;
+
+    /** Opened <code>SharedInputStreamImpl</code>s in access order */
+    protected LinkedHashMap<SharedInputStreamImpl, SharedInputStreamImpl> files = new LinkedHashMap<SharedInputStreamImpl, SharedInputStreamImpl>(16, 0.75f, true);
+
+    /** Opened <code>SharedInputStreamImpl</code>s per file provider */
+    protected Map<FileProvider, Set<SharedInputStreamImpl>> providers = new HashMap<FileProvider, Set<SharedInputStreamImpl>>();
 
     /** Maximum number of files */
-    protected int maxFiles = 200;
+    protected int maxFiles = DEFAULT_MAX_FILES;
+
+    /** Number of reads with file already opened */
+    protected AtomicLong hits = new AtomicLong();
+
+    /** Number of times file had to be opened */
+    protected AtomicLong misses = new AtomicLong();
 
-    /** Timeout for removing not closed files */
-    protected int timeout = 1000; // one secs
+    /** Number of times file had to be opened again after it was closed */
+    protected AtomicLong reopens = new AtomicLong();
+
+    /** Number of files closed because of the limit */
+    protected AtomicLong evictions = new AtomicLong();
 
     /**
      * Default constructor.
@@ -46,6 +75,14 @@ public class SharedInputStreamPool {
     public SharedInputStreamPool() {
     }
 
+    /**
+     * Constructor.
+     * @param maxFiles maximum number of opened files
+     */
+    public SharedInputStreamPool(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
     /**
      * This method returns default instance
      * @return default instance
@@ -54,15 +91,83 @@ public class SharedInputStreamPool {
         return defaultInstance;
     }
 
+    /**
+     * Returns maximum number of opened files
+     * @return maximum number of opened files
+     */
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * Sets maximum number of opened files
+     * @param maxFiles maximum number of opened files
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Returns number of currently opened files
+     * @return number of currently opened files
+     */
+    public synchronized int getOpenFiles() {
+        return files.size();
+    }
+
+    /**
+     * Returns number of reads with file already opened
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns number of times file had to be opened
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns number of times file had to be opened again after it was closed.
+     * Those are counted as misses as well.
+     * @return reopens
+     */
+    public long getReopens() {
+        return reopens.get();
+    }
+
+    /**
+     * Returns number of files closed because of the limit
+     * @return evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Resets hits, misses, reopens and evictions counters
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        reopens.set(0);
+        evictions.set(0);
+    }
+
     /**
      * This method creates new <code>SharedInputStreamImpl</code> instance.
+     * Returned stream implements <code>SharedInputStream</code>.
      *
      * @param fileProvider file provider
      * @param start start of the stream
      * @param len end of the stream
      * @return new <code>SharedInputStreamImpl</code> instance
      */
-    public SharedInputStreamImpl newStream(FileProvider fileProvider, long start, long len) {
+    public InputStream newStream(FileProvider fileProvider, long start, long len) {
         return new SharedInputStreamImpl(this, fileProvider, start, len);
     }
 
@@ -70,37 +175,66 @@ public class SharedInputStreamPool {
      * This is callback method used by <code>SharedInputStreamImpl</code> to register
      * that stream is now opened. This is called each time <code>RandomAccessFile</code>
      * is created over the stream. It is possible for stream to be implicitly &quot;clsoed&quot;
-     * and (re)opened several times.
+     * and (re)opened several times. Streams over the limit are removed from the pool
+     * and returned. Stream must pass them to {@link #evict(List)} once it releases its own lock.
      *
      * @param stream stream that is opened
+     * @param reopened <code>true</code> if stream had its file opened before
+     * @return list of streams to be evicted or <code>null</code>
      */
-    protected synchronized void opened(SharedInputStreamImpl stream) {
-        files.add(stream);
-        int size = files.size();
-        if (size > maxFiles) {
-            int removed = 0;
-            int timeout = this.timeout * (size/maxFiles) * 2;
-            Iterator<SharedInputStream> it = files.iterator();
-            long now = System.currentTimeMillis();
-            SharedInputStreamImpl oldest = stream;
-            SharedInputStreamImpl s = null;
-            while (it.hasNext()) {
-                s = (SharedInputStreamImpl)it.next();
-                if ((now - stream.lastAccessed) < timeout) {
-                    try {
-                        s.closeImpl();
-                    } catch (IOException ignore) {
+    protected List<SharedInputStreamImpl> opened(SharedInputStreamImpl stream, boolean reopened) {
+        misses.incrementAndGet();
+        if (reopened) {
+            reopens.incrementAndGet();
+        }
+        List<SharedInputStreamImpl> evicted = null;
+        synchronized (this) {
+            if (files.put(stream, stream) == null) {
+                Set<SharedInputStreamImpl> set = providers.get(stream.fileProvider);
+                if (set == null) {
+                    set = new LinkedHashSet<SharedInputStreamImpl>();
+                    providers.put(stream.fileProvider, set);
+                }
+                set.add(stream);
+            }
+            if (files.size() > maxFiles) {
+                evicted = new ArrayList<SharedInputStreamImpl>();
+                Iterator<SharedInputStreamImpl> it = files.keySet().iterator();
+                while ((files.size() > maxFiles) && it.hasNext()) {
+                    SharedInputStreamImpl s = it.next();
+                    if (s != stream) {
+                        it.remove();
+                        removeProvider(s);
+                        evicted.add(s);
                     }
-                    it.remove();
-                    removed++;
-                } else if ((removed == 0) && (s.lastAccessed <= oldest.lastAccessed)) {
-                    oldest = stream;
                 }
-            } // while
-            if (removed == 0) {
-                closed(oldest);
             }
         }
+        return evicted;
+    }
+
+    /**
+     * Closes files of evicted streams. It must not be called while holding lock of any stream.
+     * @param evicted streams returned from {@link #opened(SharedInputStreamImpl, boolean)}
+     */
+    protected void evict(List<SharedInputStreamImpl> evicted) {
+        for (SharedInputStreamImpl s : evicted) {
+            evictions.incrementAndGet();
+            s.closeFile();
+        }
+    }
+
+    /**
+     * This is callback method used by <code>SharedInputStreamImpl</code> to register
+     * that stream has read from already opened file. It moves stream to the end
+     * of access order.
+     * @param stream stream that is accessed
+     */
+    protected void accessed(SharedInputStreamImpl stream) {
+        hits.incrementAndGet();
+        synchronized (this) {
+            files.get(stream);
+        }
     }
 
     /**
@@ -112,7 +246,23 @@ public class SharedInputStreamPool {
      * @param stream stream that is closed
      */
     protected synchronized void closed(SharedInputStreamImpl stream) {
-        files.remove(stream);
+        if (files.remove(stream) != null) {
+            removeProvider(stream);
+        }
+    }
+
+    /**
+     * Removes stream from its provider's set
+     * @param stream stream
+     */
+    protected void removeProvider(SharedInputStreamImpl stream) {
+        Set<SharedInputStreamImpl> set = providers.get(stream.fileProvider);
+        if (set != null) {
+            set.remove(stream);
+            if (set.isEmpty()) {
+                providers.remove(stream.fileProvider);
+            }
+        }
     }
 
     /**
@@ -120,18 +270,19 @@ public class SharedInputStreamPool {
      * streams that use given <code>FileProvider</code>
      * @param provider file provider whos <code>SharedInputStreamImpl</code> belongs to
      */
-    public synchronized void closeWithProvider(FileProvider provider) {
-        Iterator<SharedInputStream> it = files.iterator();
-        SharedInputStreamImpl s = null;
-        while (it.hasNext()) {
-            s = (SharedInputStreamImpl)it.next();
-            if (s.fileProvider == provider) {
-                try {
-                    s.closeImpl();
-                } catch (IOException ignore) {
-                }
-                it.remove();
+    public void closeWithProvider(FileProvider provider) {
+        Set<SharedInputStreamImpl> set;
+        synchronized (this) {
+            set = providers.remove(provider);
+            if (set == null) {
+                return;
+            }
+            for (SharedInputStreamImpl s : set) {
+                files.remove(s);
             }
-        } // while
+        }
+        for (SharedInputStreamImpl s : set) {
+            s.closeFile();
+        }
     }
 }
@@ -0,0 +1,633 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.segment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.FolderNotFoundException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.event.ConnectionEvent;
+import javax.mail.event.FolderEvent;
+
+import org.abstracthorizon.mercury.maildir.FlagUtilities;
+
+/**
+ * <p>Folder of {@link SegmentStore}. Opened folder keeps its own list of message records
+ * (taken from {@link SegmentFolderData}) so message numbers change only when this folder
+ * expunges messages. Messages appended by other sessions are added to the list when message
+ * count is asked for. Messages expunged by other sessions stay readable until this folder
+ * expunges or closes.
+ * </p>
+ * <p>Recent messages are recent only to the first folder that opens them read-write.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class SegmentFolder extends Folder implements UIDFolder {
+
+    /** Segment store */
+    protected SegmentStore store;
+
+    /** Full name */
+    protected String fullName;
+
+    /** Folder data */
+    protected SegmentFolderData folderData;
+
+    /** Flag if folder is opened or not */
+    protected boolean opened;
+
+    /** Records of folder's messages in message number order */
+    protected List<SegmentFolderData.Record> records;
+
+    /** Messages created so far, in the same order as records */
+    protected List<SegmentMessage> messages;
+
+    /** Records that are recent to this folder */
+    protected Set<SegmentFolderData.Record> recent;
+
+    /** UID of the last record in the list */
+    protected long lastUID;
+
+    /**
+     * Constructor
+     * @param store store
+     * @param fullName full name
+     * @param folderData folder data
+     */
+    protected SegmentFolder(SegmentStore store, String fullName, SegmentFolderData folderData) {
+        super(store);
+        this.store = store;
+        this.fullName = fullName;
+        this.folderData = folderData;
+    }
+
+    /**
+     * Returns folder data
+     * @return folder data
+     */
+    public SegmentFolderData getFolderData() {
+        return folderData;
+    }
+
+    /**
+     * Returns segment store
+     * @return segment store
+     */
+    public SegmentStore getSegmentStore() {
+        return store;
+    }
+
+    /**
+     * Returns name
+     * @return name
+     */
+    public String getName() {
+        int i = fullName.lastIndexOf('/');
+        return fullName.substring(i + 1);
+    }
+
+    /**
+     * Returns full name
+     * @return full name
+     */
+    public String getFullName() {
+        return fullName;
+    }
+
+    /**
+     * Returns parent folder or <code>null</code> for root folder
+     * @return parent folder
+     * @throws MessagingException
+     */
+    public Folder getParent() throws MessagingException {
+        if (fullName.length() == 0) {
+            return null;
+        }
+        int i = fullName.lastIndexOf('/');
+        return store.getFolder(i > 0 ? fullName.substring(0, i) : "");
+    }
+
+    /**
+     * Returns <code>true</code> if folder's directory exists
+     * @return <code>true</code> if folder exists
+     */
+    public boolean exists() {
+        return folderData.exists();
+    }
+
+    /**
+     * Lists subfolders matching the pattern
+     * @param pattern pattern
+     * @return subfolders
+     * @throws MessagingException
+     */
+    public Folder[] list(String pattern) throws MessagingException {
+        if ((pattern == null) || (pattern.length() == 0)) {
+            pattern = "*";
+        }
+        if (fullName.length() > 0) {
+            pattern = fullName + '/' + pattern;
+        }
+        String[] names = store.listNames(pattern);
+        Folder[] res = new Folder[names.length];
+        for (int i = 0; i < names.length; i++) {
+            res[i] = store.getFolder(names[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Returns &quot;/&quot;
+     * @return &quot;/&quot;
+     */
+    public char getSeparator() {
+        return '/';
+    }
+
+    /**
+     * Returns subfolder
+     * @param name subfolder's name
+     * @return subfolder
+     * @throws MessagingException
+     */
+    public Folder getFolder(String name) throws MessagingException {
+        if (fullName.length() == 0) {
+            return store.getFolder(name);
+        }
+        return store.getFolder(fullName + '/' + name);
+    }
+
+    /**
+     * Returns type. Folders can hold both messages and folders.
+     * @return type
+     */
+    public int getType() {
+        return HOLDS_MESSAGES | HOLDS_FOLDERS;
+    }
+
+    /**
+     * Creates folder. Parent folder must exist.
+     * @param type ignored
+     * @return <code>true</code> if folder is created
+     * @throws MessagingException
+     */
+    public boolean create(int type) throws MessagingException {
+        if (isOpen()) {
+            throw new IllegalStateException("Folder is opened; " + fullName);
+        }
+        if (fullName.length() == 0) {
+            return false;
+        }
+        Folder parent = getParent();
+        if ((parent.getFullName().length() > 0) && !parent.exists()) {
+            return false;
+        }
+        if (!store.getBaseFile().exists()) {
+            store.getBaseFile().mkdirs();
+        }
+        boolean res = folderData.create();
+        if (res) {
+            notifyFolderListeners(FolderEvent.CREATED);
+        }
+        return res;
+    }
+
+    /**
+     * Deletes folder. Folder that has subfolders is deleted only if recursive is set.
+     * Folder opened by any session is not deleted.
+     * @param recursive should subfolders be deleted
+     * @return <code>true</code> if folder is deleted
+     * @throws MessagingException
+     */
+    public boolean delete(boolean recursive) throws MessagingException {
+        if (isOpen()) {
+            throw new IllegalStateException("Folder is opened; " + fullName);
+        }
+        if (fullName.length() == 0) {
+            return false;
+        }
+        String[] subfolders = store.listNames(fullName + "/*");
+        if ((subfolders.length > 0) && !recursive) {
+            return false;
+        }
+        for (int i = subfolders.length - 1; i >= 0; i--) {
+            if (!store.getFolderData(subfolders[i]).delete()) {
+                return false;
+            }
+        }
+        boolean res = folderData.delete();
+        if (res) {
+            notifyFolderListeners(FolderEvent.DELETED);
+        }
+        return res;
+    }
+
+    /**
+     * Renames folder and its subfolders. Folder opened by any session is not renamed.
+     * @param folder new folder
+     * @return <code>true</code> if folder is renamed
+     * @throws MessagingException
+     */
+    public boolean renameTo(Folder folder) throws MessagingException {
+        if (isOpen()) {
+            throw new IllegalStateException("Folder is opened; " + fullName);
+        }
+        if ((fullName.length() == 0) || folder.exists()) {
+            return false;
+        }
+        String newName = folder.getFullName();
+        String[] subfolders = store.listNames(fullName + "/*");
+        if (!folderData.renameTo(store.getFolderFile(newName))) {
+            return false;
+        }
+        for (String subfolder : subfolders) {
+            File newDir = store.getFolderFile(newName + subfolder.substring(fullName.length()));
+            store.getFolderData(subfolder).renameTo(newDir);
+        }
+        notifyFolderRenamedListeners(folder);
+        return true;
+    }
+
+    /**
+     * Opens folder
+     * @param mode mode
+     * @throws MessagingException
+     */
+    public void open(int mode) throws MessagingException {
+        if (!exists()) {
+            throw new FolderNotFoundException(this);
+        }
+        if (isOpen()) {
+            throw new IllegalStateException("Folder is opened; " + fullName);
+        }
+        folderData.opened();
+        try {
+            this.mode = mode;
+            records = new ArrayList<SegmentFolderData.Record>();
+            messages = new ArrayList<SegmentMessage>();
+            recent = new HashSet<SegmentFolderData.Record>();
+            lastUID = 0;
+            addRecords(folderData.getRecordsAfter(0));
+        } catch (MessagingException e) {
+            folderData.closed();
+            throw e;
+        }
+        opened = true;
+        notifyConnectionListeners(ConnectionEvent.OPENED);
+    }
+
+    /**
+     * Adds records to the list of folder's records. Recent messages are taken as recent
+     * by this folder if it is opened read-write.
+     * @param added new records
+     * @throws MessagingException
+     */
+    protected void addRecords(List<SegmentFolderData.Record> added) throws MessagingException {
+        List<SegmentFolderData.Record> newRecent = new ArrayList<SegmentFolderData.Record>();
+        for (SegmentFolderData.Record record : added) {
+            records.add(record);
+            messages.add(null);
+            if ((record.getFlags() & SegmentFolderData.RECENT) != 0) {
+                recent.add(record);
+                newRecent.add(record);
+            }
+            lastUID = record.getUID();
+        }
+        if ((mode == READ_WRITE) && (newRecent.size() > 0)) {
+            folderData.clearRecent(newRecent);
+        }
+    }
+
+    /**
+     * Adds messages appended since last check and notifies listeners
+     * @throws MessagingException
+     */
+    protected void checkNewMessages() throws MessagingException {
+        List<SegmentFolderData.Record> added = folderData.getRecordsAfter(lastUID);
+        if (added.size() > 0) {
+            addRecords(added);
+            Message[] res = new Message[added.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = getMessage(records.size() - res.length + i + 1);
+            }
+            notifyMessageAddedListeners(res);
+        }
+    }
+
+    /**
+     * Closes folder
+     * @param expunge should deleted messages be expunged
+     * @throws MessagingException
+     */
+    public void close(boolean expunge) throws MessagingException {
+        if (!isOpen()) {
+            throw new IllegalStateException("Folder is closed; " + fullName);
+        }
+        try {
+            if (expunge) {
+                expunge();
+            }
+        } finally {
+            for (SegmentMessage message : messages) {
+                if (message != null) {
+                    store.getSharedInputStreamPool().closeWithProvider(message);
+                }
+            }
+            records = null;
+            messages = null;
+            recent = null;
+            opened = false;
+            folderData.closed();
+            store.scheduleCompaction(folderData);
+            notifyConnectionListeners(ConnectionEvent.CLOSED);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if folder is opened
+     * @return <code>true</code> if folder is opened
+     */
+    public boolean isOpen() {
+        return opened;
+    }
+
+    /**
+     * Returns permanent flags
+     * @return permanent flags
+     */
+    public Flags getPermanentFlags() {
+        Flags flags = new Flags();
+        flags.add(Flags.Flag.ANSWERED);
+        flags.add(Flags.Flag.DELETED);
+        flags.add(Flags.Flag.DRAFT);
+        flags.add(Flags.Flag.FLAGGED);
+        flags.add(Flags.Flag.SEEN);
+        return flags;
+    }
+
+    /**
+     * Returns <code>true</code> if there are recent messages in the folder
+     * @return <code>true</code> if there are recent messages
+     * @throws MessagingException
+     */
+    public boolean hasNewMessages() throws MessagingException {
+        if (opened) {
+            checkNewMessages();
+            return recent.size() > 0;
+        }
+        return exists() && (folderData.getRecentCount() > 0);
+    }
+
+    /**
+     * Returns number of messages
+     * @return number of messages
+     * @throws MessagingException
+     */
+    public int getMessageCount() throws MessagingException {
+        if (opened) {
+            checkNewMessages();
+            return records.size();
+        }
+        if (!exists()) {
+            throw new FolderNotFoundException(this);
+        }
+        return folderData.getMessageCount();
+    }
+
+    /**
+     * Returns number of recent messages
+     * @return number of recent messages
+     * @throws MessagingException
+     */
+    public int getNewMessageCount() throws MessagingException {
+        if (opened) {
+            checkNewMessages();
+            return recent.size();
+        }
+        if (!exists()) {
+            throw new FolderNotFoundException(this);
+        }
+        return folderData.getRecentCount();
+    }
+
+    /**
+     * Returns message
+     * @param msgnum message number
+     * @return message
+     * @throws MessagingException
+     */
+    public Message getMessage(int msgnum) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; " + fullName);
+        }
+        if ((msgnum < 1) || (msgnum > records.size())) {
+            throw new IndexOutOfBoundsException("Message number " + msgnum + " is out of range; " + fullName);
+        }
+        SegmentMessage message = messages.get(msgnum - 1);
+        if (message == null) {
+            message = new SegmentMessage(this, records.get(msgnum - 1), msgnum);
+            messages.set(msgnum - 1, message);
+        }
+        return message;
+    }
+
+    /**
+     * Appends messages
+     * @param msgs messages
+     * @throws MessagingException
+     */
+    public void appendMessages(Message[] msgs) throws MessagingException {
+        if (!exists()) {
+            throw new FolderNotFoundException(this);
+        }
+        folderData.append(msgs, null, false);
+        if (opened) {
+            checkNewMessages();
+        }
+    }
+
+    /**
+     * Expunges messages with <code>DELETED</code> flag. Messages expunged by other
+     * sessions are removed from this folder as well.
+     * @return expunged messages
+     * @throws MessagingException
+     */
+    public Message[] expunge() throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; " + fullName);
+        }
+        List<SegmentFolderData.Record> deleted = new ArrayList<SegmentFolderData.Record>();
+        for (SegmentFolderData.Record record : records) {
+            if (!record.isExpunged() && ((record.getFlags() & FlagUtilities.DELETED) != 0)) {
+                deleted.add(record);
+            }
+        }
+        folderData.expunge(deleted);
+
+        List<Message> expunged = new ArrayList<Message>();
+        List<SegmentFolderData.Record> newRecords = new ArrayList<SegmentFolderData.Record>(records.size());
+        List<SegmentMessage> newMessages = new ArrayList<SegmentMessage>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            SegmentFolderData.Record record = records.get(i);
+            if (record.isExpunged()) {
+                SegmentMessage message = (SegmentMessage)getMessage(i + 1);
+                message.setExpunged(true);
+                expunged.add(message);
+                recent.remove(record);
+            } else {
+                SegmentMessage message = messages.get(i);
+                if (message != null) {
+                    message.setMessageNumber(newRecords.size() + 1);
+                }
+                newRecords.add(record);
+                newMessages.add(message);
+            }
+        }
+        records = newRecords;
+        messages = newMessages;
+        Message[] res = expunged.toArray(new Message[expunged.size()]);
+        if (res.length > 0) {
+            notifyMessageRemovedListeners(true, res);
+        }
+        return res;
+    }
+
+    /**
+     * Returns <code>true</code> if message's record is recent to this folder
+     * @param record record
+     * @return <code>true</code> if recent
+     */
+    protected boolean isRecent(SegmentFolderData.Record record) {
+        Set<SegmentFolderData.Record> recent = this.recent;
+        return (recent != null) && recent.contains(record);
+    }
+
+    /**
+     * Notifies that message is changed.
+     * @param type type of change
+     * @param msg message that is changed
+     */
+    protected void notifyMessageChangedListeners(int type, Message msg) {
+        super.notifyMessageChangedListeners(type, msg);
+    }
+
+    /**
+     * Returns index of message with given UID using binary search
+     * @param uid UID
+     * @param higher if <code>true</code> index of first message with bigger or equal UID is returned if
+     *        there is no message with given UID
+     * @return index or -1
+     */
+    protected int indexOfUID(long uid, boolean higher) {
+        int low = 0;
+        int high = records.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long u = records.get(mid).getUID();
+            if (u < uid) {
+                low = mid + 1;
+            } else if (u > uid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return higher ? low : -1;
+    }
+
+    /**
+     * Returns UID validity
+     * @return UID validity
+     * @throws MessagingException
+     */
+    public long getUIDValidity() throws MessagingException {
+        return folderData.getUIDValidity();
+    }
+
+    /**
+     * Returns message with given UID or <code>null</code>
+     * @param uid UID
+     * @return message
+     * @throws MessagingException
+     */
+    public Message getMessageByUID(long uid) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; " + fullName);
+        }
+        int index = indexOfUID(uid, false);
+        if (index < 0) {
+            return null;
+        }
+        return getMessage(index + 1);
+    }
+
+    /**
+     * Returns messages in given UID range
+     * @param start start UID
+     * @param end end UID or {@link UIDFolder#LASTUID}
+     * @return messages
+     * @throws MessagingException
+     */
+    public Message[] getMessagesByUID(long start, long end) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; " + fullName);
+        }
+        if (end == LASTUID) {
+            end = Long.MAX_VALUE;
+        }
+        List<Message> res = new ArrayList<Message>();
+        for (int i = indexOfUID(start, true); (i < records.size()) && (records.get(i).getUID() <= end); i++) {
+            res.add(getMessage(i + 1));
+        }
+        return res.toArray(new Message[res.size()]);
+    }
+
+    /**
+     * Returns messages of given UIDs. UIDs without messages are skipped.
+     * @param uids UIDs
+     * @return messages
+     * @throws MessagingException
+     */
+    public Message[] getMessagesByUID(long[] uids) throws MessagingException {
+        List<Message> res = new ArrayList<Message>(uids.length);
+        for (long uid : uids) {
+            Message message = getMessageByUID(uid);
+            if (message != null) {
+                res.add(message);
+            }
+        }
+        return res.toArray(new Message[res.size()]);
+    }
+
+    /**
+     * Returns UID of given message
+     * @param message message
+     * @return UID
+     * @throws MessagingException
+     */
+    public long getUID(Message message) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; " + fullName);
+        }
+        return ((SegmentMessage)message).getUID().getUID();
+    }
+}
@@ -0,0 +1,1096 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.segment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.abstracthorizon.mercury.maildir.FlagUtilities;
+
+/**
+ * <p>Messages of one folder of {@link SegmentStore}. Messages are appended to segment files
+ * (&quot;segment.&lt;n&gt;&quot;) one after another and each message has a fixed size record in
+ * folder's &quot;index&quot; file with its UID, segment, offset and length in the segment,
+ * flags and internal date. Index starts with a header of magic number, UID validity
+ * and next UID.
+ * </p>
+ * <p>Nothing is ever rewritten in place but flags of an index record. Message is appended to
+ * the segment first and its record to the index after, so message whose index record didn't
+ * make it to the disk is just space nobody refers to. Partially written record at the end of
+ * the index is dropped when index is read. Expunged message's record is only marked as expunged.
+ * Space of expunged messages is reclaimed by {@link #compact()} which copies live messages
+ * of segments with enough unused space to new segments, replaces index with a new one and then
+ * deletes old segments. Compaction is done only while folder is not opened so messages that
+ * are being read never move.
+ * </p>
+ * <p>There is only one instance of this class for a directory in a JVM (see {@link #getFolderData(File)})
+ * so all stores over the same directory share it. Directory must not be used by other processes
+ * at the same time.
+ * </p>
+ *
+ * @author Daniel Sendula
+ */
+public class SegmentFolderData {
+
+    /** Name of index file */
+    public static final String INDEX_FILE = "index";
+
+    /** Prefix of segment file names */
+    public static final String SEGMENT_PREFIX = "segment.";
+
+    /** Magic number of index file (&quot;MSX1&quot;) */
+    public static final int MAGIC = 0x4D535831;
+
+    /** Size of index header: magic, UID validity and next UID */
+    public static final int HEADER_SIZE = 20;
+
+    /** Position of next UID in index header */
+    public static final int NEXT_UID_OFFSET = 12;
+
+    /** Size of index record: UID, segment, offset, length, flags and internal date */
+    public static final int RECORD_SIZE = 36;
+
+    /** Position of flags in index record */
+    public static final int FLAGS_OFFSET = 24;
+
+    /** Bit of record's flags set for messages that are recent */
+    public static final int RECENT = 0x20;
+
+    /** Bit of record's flags set for expunged messages */
+    public static final int EXPUNGED = 0x100;
+
+    /** Folder datas by their directories */
+    protected static Map<File, WeakReference<SegmentFolderData>> folderDatas = new HashMap<File, WeakReference<SegmentFolderData>>();
+
+    /** Folder's directory */
+    protected File dir;
+
+    /** Maximum size of a segment new messages are appended to */
+    protected long segmentSize = SegmentStore.DEFAULT_SEGMENT_SIZE;
+
+    /** Part of segment that must be unused for segment to be compacted */
+    protected double compactionRatio = SegmentStore.DEFAULT_COMPACTION_RATIO;
+
+    /** Are segments and index synced when messages are appended */
+    protected boolean durable;
+
+    /** Is index read */
+    protected boolean loaded;
+
+    /** Records of messages that are not expunged in UID order */
+    protected List<Record> records = new ArrayList<Record>();
+
+    /** Number of records in index file, including expunged ones */
+    protected int indexRecords;
+
+    /** UID validity */
+    protected long uidValidity;
+
+    /** Next UID */
+    protected long nextUID = 1;
+
+    /** Segments by their numbers */
+    protected TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /** Number of folders that have this folder data opened */
+    protected int openCount;
+
+    /** Opened index file or <code>null</code> */
+    protected RandomAccessFile index;
+
+    /** Number of compactions done */
+    protected long compactions;
+
+    /**
+     * Constructor
+     * @param dir folder's directory
+     */
+    protected SegmentFolderData(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns folder data of given directory. All stores of this JVM share the same instance.
+     * @param dir folder's directory
+     * @return folder data
+     */
+    public static SegmentFolderData getFolderData(File dir) {
+        File key = dir.getAbsoluteFile();
+        synchronized (folderDatas) {
+            WeakReference<SegmentFolderData> ref = folderDatas.get(key);
+            SegmentFolderData folderData = null;
+            if (ref != null) {
+                folderData = ref.get();
+            }
+            if (folderData == null) {
+                folderData = new SegmentFolderData(key);
+                folderDatas.put(key, new WeakReference<SegmentFolderData>(folderData));
+            }
+            return folderData;
+        }
+    }
+
+    /**
+     * Removes folder data of given directory so new one is created when asked for
+     * @param dir folder's directory
+     */
+    protected static void forget(File dir) {
+        synchronized (folderDatas) {
+            folderDatas.remove(dir.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Sets store's properties
+     * @param segmentSize maximum segment size
+     * @param compactionRatio part of segment that must be unused for segment to be compacted
+     * @param durable are appended messages synced
+     */
+    public synchronized void configure(long segmentSize, double compactionRatio, boolean durable) {
+        this.segmentSize = segmentSize;
+        this.compactionRatio = compactionRatio;
+        this.durable = durable;
+    }
+
+    /**
+     * Returns folder's directory
+     * @return folder's directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns segment file of given number
+     * @param segment segment number
+     * @return segment file
+     */
+    public File getSegmentFile(int segment) {
+        return new File(dir, SEGMENT_PREFIX + segment);
+    }
+
+    /**
+     * Returns <code>true</code> if folder's directory exists
+     * @return <code>true</code> if folder exists
+     */
+    public boolean exists() {
+        return dir.isDirectory();
+    }
+
+    /**
+     * Creates folder's directory and empty index
+     * @return <code>true</code> if folder is created and <code>false</code> if it already existed
+     * @throws MessagingException if directory or index cannot be created
+     */
+    public synchronized boolean create() throws MessagingException {
+        if (exists()) {
+            return false;
+        }
+        if (!dir.mkdirs()) {
+            throw new MessagingException("Cannot create folder's directory; " + dir.getAbsolutePath());
+        }
+        createIndex();
+        return true;
+    }
+
+    /**
+     * Writes new empty index
+     * @throws MessagingException if index cannot be written
+     */
+    protected void createIndex() throws MessagingException {
+        closeIndex();
+        records.clear();
+        segments.clear();
+        indexRecords = 0;
+        nextUID = 1;
+        uidValidity = System.currentTimeMillis() / 1000;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+            try {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeLong(uidValidity);
+                raf.writeLong(nextUID);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+        }
+        loaded = true;
+    }
+
+    /**
+     * Reads index if not read already. Index is created if folder's directory doesn't have it.
+     * Segments that have no messages (left after interrupted compaction) are removed.
+     * @throws MessagingException if index cannot be read
+     */
+    protected void load() throws MessagingException {
+        if (loaded) {
+            return;
+        }
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            if (!exists()) {
+                throw new MessagingException("Folder doesn't exist; " + dir.getAbsolutePath());
+            }
+            createIndex();
+            return;
+        }
+        records.clear();
+        segments.clear();
+        long maxUID = 0;
+        try {
+            long length = indexFile.length();
+            int count = (int)((length - HEADER_SIZE) / RECORD_SIZE);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+            try {
+                if ((length < HEADER_SIZE) || (in.readInt() != MAGIC)) {
+                    throw new MessagingException("Index is not valid; " + indexFile.getAbsolutePath());
+                }
+                uidValidity = in.readLong();
+                nextUID = in.readLong();
+                for (int i = 0; i < count; i++) {
+                    Record record = new Record();
+                    record.uid = in.readLong();
+                    record.segment = in.readInt();
+                    record.offset = in.readLong();
+                    record.length = in.readInt();
+                    record.flags = in.readInt();
+                    record.date = in.readLong();
+                    record.position = i;
+                    if (record.uid > maxUID) {
+                        maxUID = record.uid;
+                    }
+                    if (!record.isExpunged()) {
+                        records.add(record);
+                        getSegment(record.segment).live += record.length;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            indexRecords = count;
+            if (length != HEADER_SIZE + (long)count * RECORD_SIZE) {
+                // Record that wasn't completely written
+                RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+                try {
+                    raf.setLength(HEADER_SIZE + (long)count * RECORD_SIZE);
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot read index; " + indexFile.getAbsolutePath(), e);
+        }
+        if (nextUID <= maxUID) {
+            nextUID = maxUID + 1;
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        getSegment(Integer.parseInt(name.substring(SEGMENT_PREFIX.length()))).length = file.length();
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        if (segments.size() > 1) {
+            Integer last = segments.lastKey();
+            Iterator<Segment> it = segments.values().iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if ((segment.live == 0) && (segment.number != last.intValue()) && getSegmentFile(segment.number).delete()) {
+                    it.remove();
+                }
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * Returns segment of given number creating it if it is not known
+     * @param number segment number
+     * @return segment
+     */
+    protected Segment getSegment(int number) {
+        Segment segment = segments.get(number);
+        if (segment == null) {
+            segment = new Segment(number);
+            segments.put(number, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns opened index file
+     * @return index file
+     * @throws IOException
+     */
+    protected RandomAccessFile getIndex() throws IOException {
+        if (index == null) {
+            index = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        }
+        return index;
+    }
+
+    /**
+     * Closes index file if folder is not opened
+     */
+    protected void releaseIndex() {
+        if (openCount == 0) {
+            closeIndex();
+        }
+    }
+
+    /**
+     * Closes index file
+     */
+    protected void closeIndex() {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException ignore) {
+            }
+            index = null;
+        }
+    }
+
+    /**
+     * Marks folder data as opened by one more folder
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized void opened() throws MessagingException {
+        load();
+        openCount = openCount + 1;
+    }
+
+    /**
+     * Marks folder data as closed by one folder
+     */
+    public synchronized void closed() {
+        openCount = openCount - 1;
+        releaseIndex();
+    }
+
+    /**
+     * Returns number of folders that have this folder data opened
+     * @return open count
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Returns UID validity
+     * @return UID validity
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized long getUIDValidity() throws MessagingException {
+        load();
+        return uidValidity;
+    }
+
+    /**
+     * Sets UID validity. It is used when folder is migrated and only when folder is empty.
+     * @param uidValidity UID validity
+     * @throws MessagingException if folder is not empty or index cannot be written
+     */
+    public synchronized void setUIDValidity(long uidValidity) throws MessagingException {
+        load();
+        if (indexRecords > 0) {
+            throw new MessagingException("UID validity can be changed only in empty folder; " + dir.getAbsolutePath());
+        }
+        try {
+            RandomAccessFile raf = getIndex();
+            raf.seek(4);
+            raf.writeLong(uidValidity);
+            this.uidValidity = uidValidity;
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+        } finally {
+            releaseIndex();
+        }
+    }
+
+    /**
+     * Returns next UID
+     * @return next UID
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized long getNextUID() throws MessagingException {
+        load();
+        return nextUID;
+    }
+
+    /**
+     * Returns number of messages
+     * @return number of messages
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized int getMessageCount() throws MessagingException {
+        load();
+        return records.size();
+    }
+
+    /**
+     * Returns number of recent messages
+     * @return number of recent messages
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized int getRecentCount() throws MessagingException {
+        load();
+        int count = 0;
+        for (Record record : records) {
+            if ((record.flags & RECENT) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns records of messages with UID bigger than given
+     * @param uid UID
+     * @return list of records
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized List<Record> getRecordsAfter(long uid) throws MessagingException {
+        load();
+        int low = 0;
+        int high = records.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (records.get(mid).uid <= uid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new ArrayList<Record>(records.subList(low, records.size()));
+    }
+
+    /**
+     * Appends messages to the folder. Messages are written to the last segment (new one is started when
+     * it reaches maximum segment size) and then records of all of them are appended to the index.
+     * If a message cannot be written messages written before it are kept.
+     * @param messages messages
+     * @param uids UIDs messages are to get, in ascending order, or <code>null</code> if new UIDs are to be assigned
+     * @param migrated if <code>true</code> messages are recent only if they have <code>RECENT</code>
+     *        flag, otherwise all appended messages are recent
+     * @return records of appended messages
+     * @throws MessagingException if message cannot be written
+     */
+    public synchronized List<Record> append(Message[] messages, long[] uids, boolean migrated) throws MessagingException {
+        load();
+        List<Record> added = new ArrayList<Record>(messages.length);
+        FileOutputStream out = null;
+        Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                Message message = messages[i];
+                long uid = nextUID;
+                if (uids != null) {
+                    if (uids[i] < nextUID) {
+                        throw new MessagingException("UID " + uids[i] + " is not bigger than last UID; " + dir.getAbsolutePath());
+                    }
+                    uid = uids[i];
+                }
+                if ((segment == null) || ((segment.length > 0) && (segment.length >= segmentSize))) {
+                    if (out != null) {
+                        closeSegment(out);
+                        out = null;
+                    }
+                    segment = getSegment(segment == null ? 0 : segment.number + 1);
+                }
+                if (out == null) {
+                    out = new FileOutputStream(getSegmentFile(segment.number), true);
+                }
+                FileChannel channel = out.getChannel();
+                long start = channel.position();
+                try {
+                    OutputStream buffered = new BufferedOutputStream(out, 65536);
+                    message.writeTo(buffered);
+                    buffered.flush();
+                } catch (IOException e) {
+                    channel.truncate(start);
+                    throw new MessagingException("Cannot write message; " + dir.getAbsolutePath(), e);
+                } catch (MessagingException e) {
+                    channel.truncate(start);
+                    throw e;
+                }
+                long end = channel.position();
+                if (end - start > Integer.MAX_VALUE) {
+                    channel.truncate(start);
+                    throw new MessagingException("Message is too big; " + dir.getAbsolutePath());
+                }
+
+                Flags flags = message.getFlags();
+                Record record = new Record();
+                record.uid = uid;
+                record.segment = segment.number;
+                record.offset = start;
+                record.length = (int)(end - start);
+                record.flags = FlagUtilities.toBits(flags);
+                if (!migrated || flags.contains(Flags.Flag.RECENT)) {
+                    record.flags = record.flags | RECENT;
+                }
+                Date date = message.getReceivedDate();
+                record.date = date != null ? date.getTime() : System.currentTimeMillis();
+                added.add(record);
+                segment.length = end;
+                segment.live += record.length;
+                nextUID = uid + 1;
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write message; " + dir.getAbsolutePath(), e);
+        } finally {
+            try {
+                if (out != null) {
+                    closeSegment(out);
+                }
+                if (added.size() > 0) {
+                    appendRecords(added);
+                }
+            } catch (IOException e) {
+                throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+            } finally {
+                releaseIndex();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Syncs segment if needed and closes it
+     * @param out segment's stream
+     * @throws IOException
+     */
+    protected void closeSegment(FileOutputStream out) throws IOException {
+        try {
+            if (durable) {
+                out.getChannel().force(false);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Appends records to the index and updates next UID in index header
+     * @param added new records
+     * @throws IOException
+     */
+    protected void appendRecords(List<Record> added) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(added.size() * RECORD_SIZE);
+        for (Record record : added) {
+            record.position = indexRecords;
+            indexRecords = indexRecords + 1;
+            buffer.putLong(record.uid);
+            buffer.putInt(record.segment);
+            buffer.putLong(record.offset);
+            buffer.putInt(record.length);
+            buffer.putInt(record.flags);
+            buffer.putLong(record.date);
+        }
+        RandomAccessFile raf = getIndex();
+        raf.seek(HEADER_SIZE + (long)added.get(0).position * RECORD_SIZE);
+        raf.write(buffer.array());
+        raf.seek(NEXT_UID_OFFSET);
+        raf.writeLong(nextUID);
+        if (durable) {
+            raf.getChannel().force(false);
+        }
+        records.addAll(added);
+    }
+
+    /**
+     * Sets record's flags and writes them to the index
+     * @param record record
+     * @param flags new flags as bits of {@link FlagUtilities} and {@link #RECENT}
+     * @throws MessagingException if index cannot be written
+     */
+    public synchronized void setFlags(Record record, int flags) throws MessagingException {
+        if (record.isExpunged() || (record.flags == flags)) {
+            return;
+        }
+        try {
+            writeFlags(record, flags);
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+        } finally {
+            releaseIndex();
+        }
+    }
+
+    /**
+     * Clears recent flag of given records
+     * @param recent records
+     * @throws MessagingException if index cannot be written
+     */
+    public synchronized void clearRecent(List<Record> recent) throws MessagingException {
+        try {
+            for (Record record : recent) {
+                if (!record.isExpunged() && ((record.flags & RECENT) != 0)) {
+                    writeFlags(record, record.flags & ~RECENT);
+                }
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+        } finally {
+            releaseIndex();
+        }
+    }
+
+    /**
+     * Writes flags of a record to the index
+     * @param record record
+     * @param flags flags
+     * @throws IOException
+     */
+    protected void writeFlags(Record record, int flags) throws IOException {
+        RandomAccessFile raf = getIndex();
+        raf.seek(HEADER_SIZE + (long)record.position * RECORD_SIZE + FLAGS_OFFSET);
+        raf.writeInt(flags);
+        record.flags = flags;
+    }
+
+    /**
+     * Expunges messages of given records. Records are marked as expunged in the index
+     * and their space is left for compaction.
+     * @param expunged records to be expunged
+     * @throws MessagingException if index cannot be written
+     */
+    public synchronized void expunge(List<Record> expunged) throws MessagingException {
+        boolean changed = false;
+        try {
+            for (Record record : expunged) {
+                if (!record.isExpunged()) {
+                    writeFlags(record, record.flags | EXPUNGED);
+                    Segment segment = segments.get(record.segment);
+                    if (segment != null) {
+                        segment.live -= record.length;
+                    }
+                    changed = true;
+                }
+            }
+            if (changed && durable) {
+                getIndex().getChannel().force(false);
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write index; " + dir.getAbsolutePath(), e);
+        } finally {
+            if (changed) {
+                Iterator<Record> it = records.iterator();
+                while (it.hasNext()) {
+                    if (it.next().isExpunged()) {
+                        it.remove();
+                    }
+                }
+            }
+            releaseIndex();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if there is a segment with enough unused space to be compacted
+     * @return <code>true</code> if compaction would reclaim space
+     */
+    public synchronized boolean needsCompaction() {
+        for (Segment segment : segments.values()) {
+            if (segment.needsCompaction(compactionRatio)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compacts segments with enough unused space. Their live messages are copied to new segments,
+     * new index is written and moved over the old one and only then old segments are deleted.
+     * Nothing is done while folder is opened.
+     * @return <code>true</code> if segments were compacted
+     * @throws MessagingException if compaction failed. Old segments and index are kept in that case.
+     */
+    public synchronized boolean compact() throws MessagingException {
+        if ((openCount > 0) || !exists()) {
+            return false;
+        }
+        load();
+        List<Integer> compacted = new ArrayList<Integer>();
+        for (Segment segment : segments.values()) {
+            if (segment.needsCompaction(compactionRatio)) {
+                compacted.add(segment.number);
+            }
+        }
+        if (compacted.isEmpty()) {
+            return false;
+        }
+
+        int next = segments.lastKey().intValue() + 1;
+        Map<Integer, Segment> created = new TreeMap<Integer, Segment>();
+        int[] newSegments = new int[records.size()];
+        long[] newOffsets = new long[records.size()];
+        Map<Integer, FileChannel> sources = new HashMap<Integer, FileChannel>();
+        File indexFile = new File(dir, INDEX_FILE);
+        File tmpIndex = new File(dir, INDEX_FILE + ".tmp");
+        FileOutputStream out = null;
+        Segment target = null;
+        try {
+            try {
+                for (int i = 0; i < records.size(); i++) {
+                    Record record = records.get(i);
+                    newSegments[i] = record.segment;
+                    newOffsets[i] = record.offset;
+                    if (compacted.contains(record.segment)) {
+                        if ((target == null) || ((target.length > 0) && (target.length >= segmentSize))) {
+                            if (out != null) {
+                                out.getChannel().force(false);
+                                out.close();
+                            }
+                            target = new Segment(next);
+                            next = next + 1;
+                            created.put(target.number, target);
+                            out = new FileOutputStream(getSegmentFile(target.number));
+                        }
+                        FileChannel source = sources.get(record.segment);
+                        if (source == null) {
+                            source = new FileInputStream(getSegmentFile(record.segment)).getChannel();
+                            sources.put(record.segment, source);
+                        }
+                        long copied = 0;
+                        while (copied < record.length) {
+                            long l = source.transferTo(record.offset + copied, record.length - copied, out.getChannel());
+                            if (l <= 0) {
+                                throw new IOException("Cannot copy message from segment " + record.segment);
+                            }
+                            copied = copied + l;
+                        }
+                        newSegments[i] = target.number;
+                        newOffsets[i] = target.length;
+                        target.length += record.length;
+                        target.live += record.length;
+                    }
+                }
+                if (out != null) {
+                    out.getChannel().force(false);
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+                for (FileChannel source : sources.values()) {
+                    source.close();
+                }
+            }
+
+            DataOutputBuffer buffer = new DataOutputBuffer(tmpIndex);
+            try {
+                buffer.writeInt(MAGIC);
+                buffer.writeLong(uidValidity);
+                buffer.writeLong(nextUID);
+                for (int i = 0; i < records.size(); i++) {
+                    Record record = records.get(i);
+                    buffer.writeLong(record.uid);
+                    buffer.writeInt(newSegments[i]);
+                    buffer.writeLong(newOffsets[i]);
+                    buffer.writeInt(record.length);
+                    buffer.writeInt(record.flags);
+                    buffer.writeLong(record.date);
+                }
+                buffer.force();
+            } finally {
+                buffer.close();
+            }
+            closeIndex();
+            Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            for (Integer number : created.keySet()) {
+                getSegmentFile(number).delete();
+            }
+            tmpIndex.delete();
+            throw new MessagingException("Cannot compact folder; " + dir.getAbsolutePath(), e);
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            record.segment = newSegments[i];
+            record.offset = newOffsets[i];
+            record.position = i;
+        }
+        indexRecords = records.size();
+        for (Integer number : compacted) {
+            segments.remove(number);
+            getSegmentFile(number).delete();
+        }
+        segments.putAll(created);
+        compactions = compactions + 1;
+        return true;
+    }
+
+    /**
+     * Returns number of compactions done
+     * @return number of compactions
+     */
+    public synchronized long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Returns number of segments
+     * @return number of segments
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized int getSegmentCount() throws MessagingException {
+        load();
+        return segments.size();
+    }
+
+    /**
+     * Returns number of bytes in segments not used by messages
+     * @return unused bytes
+     * @throws MessagingException if index cannot be read
+     */
+    public synchronized long getUnusedSize() throws MessagingException {
+        load();
+        long unused = 0;
+        for (Segment segment : segments.values()) {
+            unused = unused + segment.length - segment.live;
+        }
+        return unused;
+    }
+
+    /**
+     * Deletes folder's files and directory. Subfolders are not deleted.
+     * @return <code>true</code> if folder is deleted or <code>false</code> if it is opened or cannot be deleted
+     */
+    public synchronized boolean delete() {
+        if (openCount > 0) {
+            return false;
+        }
+        closeIndex();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    file.delete();
+                }
+            }
+        }
+        loaded = false;
+        records.clear();
+        segments.clear();
+        forget(dir);
+        return dir.delete();
+    }
+
+    /**
+     * Renames folder's directory
+     * @param newDir new directory
+     * @return <code>true</code> if folder is renamed or <code>false</code> if it is opened or cannot be renamed
+     */
+    public synchronized boolean renameTo(File newDir) {
+        if (openCount > 0) {
+            return false;
+        }
+        closeIndex();
+        if (!dir.renameTo(newDir)) {
+            return false;
+        }
+        loaded = false;
+        records.clear();
+        segments.clear();
+        forget(dir);
+        return true;
+    }
+
+    /**
+     * Buffered output to a file that can be synced before it is closed
+     */
+    protected static class DataOutputBuffer extends DataOutputStream {
+
+        /** File stream */
+        protected FileOutputStream fileOutputStream;
+
+        /**
+         * Constructor
+         * @param file file
+         * @throws IOException
+         */
+        protected DataOutputBuffer(File file) throws IOException {
+            this(new FileOutputStream(file));
+        }
+
+        /**
+         * Constructor
+         * @param fileOutputStream file stream
+         */
+        protected DataOutputBuffer(FileOutputStream fileOutputStream) {
+            super(new BufferedOutputStream(fileOutputStream, 65536));
+            this.fileOutputStream = fileOutputStream;
+        }
+
+        /**
+         * Flushes and syncs file
+         * @throws IOException
+         */
+        protected void force() throws IOException {
+            flush();
+            fileOutputStream.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Segment file's sizes
+     */
+    protected static class Segment {
+
+        /** Segment number */
+        protected int number;
+
+        /** Length of segment file */
+        protected long length;
+
+        /** Number of bytes used by messages that are not expunged */
+        protected long live;
+
+        /**
+         * Constructor
+         * @param number segment number
+         */
+        protected Segment(int number) {
+            this.number = number;
+        }
+
+        /**
+         * Returns <code>true</code> if given part of segment is unused
+         * @param ratio part of segment
+         * @return <code>true</code> if segment is to be compacted
+         */
+        protected boolean needsCompaction(double ratio) {
+            long unused = length - live;
+            return (unused > 0) && (unused >= length * ratio);
+        }
+    }
+
+    /**
+     * Index record of a message
+     */
+    public static class Record {
+
+        /** UID */
+        protected long uid;
+
+        /** Segment number */
+        protected int segment;
+
+        /** Offset of message in segment */
+        protected long offset;
+
+        /** Length of message */
+        protected int length;
+
+        /** Flags as bits of {@link FlagUtilities}, {@link SegmentFolderData#RECENT} and {@link SegmentFolderData#EXPUNGED} */
+        protected int flags;
+
+        /** Internal date */
+        protected long date;
+
+        /** Position of record in index file */
+        protected int position;
+
+        /**
+         * Returns UID
+         * @return UID
+         */
+        public long getUID() {
+            return uid;
+        }
+
+        /**
+         * Returns segment number
+         * @return segment number
+         */
+        public int getSegment() {
+            return segment;
+        }
+
+        /**
+         * Returns offset of message in segment
+         * @return offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns length of message
+         * @return length
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns flags
+         * @return flags
+         */
+        public int getFlags() {
+            return flags;
+        }
+
+        /**
+         * Returns internal date
+         * @return internal date
+         */
+        public long getDate() {
+            return date;
+        }
+
+        /**
+         * Returns <code>true</code> if message is expunged
+         * @return <code>true</code> if message is expunged
+         */
+        public boolean isExpunged() {
+            return (flags & EXPUNGED) != 0;
+        }
+    }
+}
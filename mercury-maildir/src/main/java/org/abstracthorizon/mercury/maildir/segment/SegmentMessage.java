@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.segment;
+
+import java.io.File;
+import java.util.Date;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.event.MessageChangedEvent;
+
+import org.abstracthorizon.mercury.maildir.FlagUtilities;
+import org.abstracthorizon.mercury.maildir.file.FileProvider;
+import org.abstracthorizon.mercury.maildir.uid.UID;
+import org.abstracthorizon.mercury.maildir.uid.UIDMessage;
+import org.abstracthorizon.mercury.maildir.util.LazyParsingMessage;
+
+/**
+ * Message of {@link SegmentFolder}. Its content is read lazily from the part of
+ * segment file its record points to. Flags are kept in the record only so
+ * changes made by other sessions are seen immediately.
+ *
+ * @author Daniel Sendula
+ */
+public class SegmentMessage extends LazyParsingMessage implements UIDMessage, FileProvider {
+
+    /** Folder */
+    protected SegmentFolder segmentFolder;
+
+    /** Message's record */
+    protected SegmentFolderData.Record record;
+
+    /** Cached UID */
+    protected UID uid;
+
+    /**
+     * Constructor
+     * @param folder folder
+     * @param record message's record
+     * @param msgnum message number
+     * @throws MessagingException
+     */
+    protected SegmentMessage(SegmentFolder folder, SegmentFolderData.Record record, int msgnum) throws MessagingException {
+        super(folder, msgnum);
+        this.segmentFolder = folder;
+        this.record = record;
+        uid = new UID(record.getUID());
+        parse(folder.getSegmentStore().getSharedInputStreamPool().newStream(this, record.getOffset(), record.getOffset() + record.getLength()));
+    }
+
+    /**
+     * Returns message's record
+     * @return record
+     */
+    public SegmentFolderData.Record getRecord() {
+        return record;
+    }
+
+    /**
+     * Returns segment file message is stored in
+     * @return segment file
+     */
+    public File getFile() {
+        return segmentFolder.getFolderData().getSegmentFile(record.getSegment());
+    }
+
+    /**
+     * Returns end of message in the segment file
+     * @return end of message
+     */
+    public long getFileSize() {
+        return record.getOffset() + record.getLength();
+    }
+
+    /**
+     * Returns UID
+     * @return UID
+     */
+    public UID getUID() {
+        return uid;
+    }
+
+    /**
+     * Returns date message is appended at
+     * @return received date
+     */
+    public Date getReceivedDate() {
+        return new Date(record.getDate());
+    }
+
+    /**
+     * Returns flags from message's record
+     * @return flags
+     */
+    public synchronized Flags getFlags() {
+        Flags flags = FlagUtilities.fromBits(record.getFlags());
+        if (segmentFolder.isRecent(record)) {
+            flags.add(Flags.Flag.RECENT);
+        }
+        return flags;
+    }
+
+    /**
+     * Returns <code>true</code> if flag is set
+     * @param flag flag
+     * @return <code>true</code> if flag is set
+     */
+    public boolean isSet(Flags.Flag flag) {
+        return getFlags().contains(flag);
+    }
+
+    /**
+     * Sets or clears flags and writes them to the index. Recent flag cannot be changed.
+     * @param flags flags
+     * @param set are flags set or cleared
+     * @throws MessagingException
+     */
+    public synchronized void setFlags(Flags flags, boolean set) throws MessagingException {
+        int current = record.getFlags();
+        int bits = FlagUtilities.toBits(flags);
+        int newBits = set ? (current | bits) : (current & ~bits);
+        if (newBits != current) {
+            segmentFolder.getFolderData().setFlags(record, newBits);
+            segmentFolder.notifyMessageChangedListeners(MessageChangedEvent.FLAGS_CHANGED, this);
+        }
+    }
+
+    /**
+     * Sets expunged flag
+     * @param expunged expunged flag
+     */
+    protected void setExpunged(boolean expunged) {
+        super.setExpunged(expunged);
+    }
+}
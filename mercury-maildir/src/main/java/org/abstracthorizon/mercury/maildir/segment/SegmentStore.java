@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.segment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+
+import org.abstracthorizon.mercury.maildir.MaildirFolderTree;
+import org.abstracthorizon.mercury.maildir.MaildirStore;
+import org.abstracthorizon.mercury.maildir.file.SharedInputStreamPool;
+
+/**
+ * <p>Store that keeps messages of a folder appended in big segment files instead of
+ * file per message (see {@link SegmentFolderData}). Each folder is a subdirectory of store's
+ * base directory named as maildir folders are: with leading dot and hierarchy separator
+ * replaced with dot. Messages are read through {@link SharedInputStreamPool} as maildir
+ * messages are. Folders implement <code>UIDFolder</code>.
+ * </p>
+ * <p>Space of expunged messages is reclaimed in the background after folder is closed by
+ * all sessions (see {@link SegmentFolderData#compact()}). Existing maildirs can be converted
+ * with {@link SegmentMigration}.
+ * </p>
+ * <p>Store is registered under &quot;segment&quot; protocol. Base directory is taken from
+ * url name as with {@link MaildirStore}. It uses following session properties:</p>
+ * <table border="1">
+ * <tr><th>Name</th><th>Default</th><th>Description</th></tr>
+ * <tr>
+ *   <td><code>maildir.segmentSize</code></td>
+ *   <td>{@link #DEFAULT_SEGMENT_SIZE}</td>
+ *   <td>Size after which new segment file is started.</td>
+ * </tr>
+ * <tr>
+ *   <td><code>maildir.compactionRatio</code></td>
+ *   <td>{@link #DEFAULT_COMPACTION_RATIO}</td>
+ *   <td>Part of segment file that must be taken by expunged messages for segment to be compacted.</td>
+ * </tr>
+ * <tr>
+ *   <td><code>maildir.durability</code></td>
+ *   <td><code>none</code></td>
+ *   <td>With any value but <code>none</code> segments and index are synced after messages are appended.</td>
+ * </tr>
+ * <tr>
+ *   <td><code>maildir.maxOpenFiles</code></td>
+ *   <td>&nbsp;</td>
+ *   <td>If set store gets its own pool of streams that keeps at most given number of files open.</td>
+ * </tr>
+ * </table>
+ *
+ * @author Daniel Sendula
+ */
+public class SegmentStore extends Store {
+
+    /** Segment size session attribute name */
+    public static final String SEGMENT_SIZE = "maildir.segmentSize";
+
+    /** Compaction ratio session attribute name */
+    public static final String COMPACTION_RATIO = "maildir.compactionRatio";
+
+    /** Default maximum segment size */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Default part of segment that must be unused for segment to be compacted */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    /** Thread compactions are run on */
+    protected static ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Store's base directory file */
+    protected File base;
+
+    /** Cached segment size property */
+    protected long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /** Cached compaction ratio property */
+    protected double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    /** Are appended messages synced */
+    protected boolean durable;
+
+    /** Pool messages' streams are obtained from */
+    protected SharedInputStreamPool sharedInputStreamPool;
+
+    /**
+     * Constructor
+     * @param session mail session
+     * @param urlname url name
+     */
+    public SegmentStore(Session session, URLName urlname) {
+        super(session, urlname);
+
+        String segmentSizeString = session.getProperty(SEGMENT_SIZE);
+        if (segmentSizeString != null) {
+            try {
+                long size = Long.parseLong(segmentSizeString.trim());
+                if (size > 0) {
+                    segmentSize = size;
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        String compactionRatioString = session.getProperty(COMPACTION_RATIO);
+        if (compactionRatioString != null) {
+            try {
+                double ratio = Double.parseDouble(compactionRatioString.trim());
+                if ((ratio > 0) && (ratio <= 1)) {
+                    compactionRatio = ratio;
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        String durabilityString = session.getProperty(MaildirStore.DURABILITY);
+        if (durabilityString != null) {
+            durable = !MaildirStore.DURABILITY_NONE.equalsIgnoreCase(durabilityString.trim());
+        }
+
+        String baseFileName = urlname != null ? urlname.getFile() : null;
+        if ((baseFileName != null) && (baseFileName.length() > 0)) {
+            base = new File(baseFileName);
+        } else {
+            String homeString = session.getProperty(MaildirStore.HOME);
+            if (homeString != null) {
+                base = new File(homeString);
+            } else {
+                base = new File(new File(System.getProperty("user.home")), ".mail");
+            }
+        }
+
+        sharedInputStreamPool = SharedInputStreamPool.getDefaultInstance();
+        String maxOpenFilesString = session.getProperty(MaildirStore.MAX_OPEN_FILES);
+        if (maxOpenFilesString != null) {
+            try {
+                int max = Integer.parseInt(maxOpenFilesString.trim());
+                if (max > 0) {
+                    sharedInputStreamPool = new SharedInputStreamPool(max);
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Returns store's base directory
+     * @return base directory
+     */
+    public File getBaseFile() {
+        return base;
+    }
+
+    /**
+     * Returns pool messages' streams are obtained from
+     * @return shared input stream pool
+     */
+    public SharedInputStreamPool getSharedInputStreamPool() {
+        return sharedInputStreamPool;
+    }
+
+    /**
+     * Returns normalised folder's full name: with &quot;/&quot; as separator,
+     * without leading separator and with &quot;inbox&quot; in lower case.
+     * @param name folder's name
+     * @return full name
+     */
+    protected String normaliseName(String name) {
+        name = name.replace('\\', '/');
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        if ("inbox".equalsIgnoreCase(name)) {
+            name = "inbox";
+        }
+        return name;
+    }
+
+    /**
+     * Returns directory of folder with given full name
+     * @param fullName full name
+     * @return folder's directory
+     */
+    protected File getFolderFile(String fullName) {
+        if (fullName.length() == 0) {
+            return base;
+        }
+        return new File(base, '.' + fullName.replace('/', '.'));
+    }
+
+    /**
+     * Returns folder data of folder with given full name
+     * @param fullName full name
+     * @return folder data
+     */
+    protected SegmentFolderData getFolderData(String fullName) {
+        SegmentFolderData folderData = SegmentFolderData.getFolderData(getFolderFile(fullName));
+        folderData.configure(segmentSize, compactionRatio, durable);
+        return folderData;
+    }
+
+    /**
+     * Returns full names of folders that match given pattern. &quot;*&quot; matches any
+     * characters while &quot;%&quot; matches any characters but hierarchy separator.
+     * @param pattern pattern
+     * @return sorted full names
+     */
+    protected String[] listNames(String pattern) {
+        List<String> res = new ArrayList<String>();
+        File[] files = base.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.length() > 1) && name.startsWith(".") && file.isDirectory()) {
+                    name = name.substring(1).replace('.', '/');
+                    if (MaildirFolderTree.matches(pattern, 0, name, 0)) {
+                        res.add(name);
+                    }
+                }
+            }
+        }
+        Collections.sort(res);
+        return res.toArray(new String[res.size()]);
+    }
+
+    /**
+     * Compacts folder in the background if it is not opened and has enough unused space
+     * @param folderData folder data
+     */
+    protected void scheduleCompaction(final SegmentFolderData folderData) {
+        if ((folderData.getOpenCount() == 0) && folderData.needsCompaction()) {
+            compactor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        folderData.compact();
+                    } catch (MessagingException ignore) {
+                        // Old segments are still in place; it will be tried again next time
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns default folder
+     * @return default folder
+     * @throws MessagingException
+     */
+    public Folder getDefaultFolder() throws MessagingException {
+        return getFolder("");
+    }
+
+    /**
+     * Returns folder of given full name
+     * @param name full folder's name
+     * @return folder
+     * @throws MessagingException
+     */
+    public Folder getFolder(String name) throws MessagingException {
+        if (!isConnected()) {
+            throw new IllegalStateException("Store is not connected");
+        }
+        name = normaliseName(name);
+        return new SegmentFolder(this, name, getFolderData(name));
+    }
+
+    /**
+     * Returns folder from url name's ref
+     * @param urlName url name
+     * @return folder
+     * @throws MessagingException
+     */
+    public Folder getFolder(URLName urlName) throws MessagingException {
+        return getFolder(urlName.getRef());
+    }
+
+    /**
+     * This method returns <code>true</code> always.
+     * @param host ignored
+     * @param port ignored
+     * @param user ignored
+     * @param password ignored
+     * @return <code>true</code>
+     * @throws MessagingException never
+     */
+    protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        return true;
+    }
+}
@@ -0,0 +1,973 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.uid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+
+/**
+ * <p>Persistent mod-sequences (RFC 7162) of one folder. Each change of messages - messages
+ * being added, their flags changed or messages being expunged - gets next mod-sequence
+ * of the folder. Changes are appended to &quot;.modseq&quot; file as fixed size records
+ * so they are never rewritten one by one. All changes written together (for instance flags
+ * of all messages of one STORE command) share the same mod-sequence.</p>
+ * <p>Messages that existed when file was created, and were not changed since, have file's
+ * base mod-sequence. Other messages have mod-sequence of their last change. Expunged UIDs are
+ * kept as ranges of consecutive UIDs, each with mod-sequence of the last expunge in it, so
+ * history of expunges takes little space. Only the most recent {@link #MAX_EXPUNGED_RANGES}
+ * ranges are kept; questions about expunges older than that cannot be answered
+ * (see {@link #getExpungedUIDs(long)}).</p>
+ * <p>Mod-sequences are handed out under a lock of &quot;.nextmodseq&quot; file which holds
+ * reserved ceiling of mod-sequences, the same way &quot;.nextuid&quot; does for UIDs. Ceiling
+ * is forced to the disk before any mod-sequence below it is used so, even if &quot;.modseq&quot;
+ * file loses its last records or is lost altogether, mod-sequences never go back. Other stores
+ * changing the same folder are noticed by file's length and modification time and their records
+ * are read before next mod-sequence is handed out. When file gets more than twice as many records
+ * as are needed to describe current state it is rewritten.</p>
+ *
+ * @author Daniel Sendula
+ */
+public class ModSeqLog {
+
+    /** File's magic number */
+    public static final int MAGIC = 0x4d4f4453;
+
+    /** File's version */
+    public static final int VERSION = 1;
+
+    /** Header size: magic, version, generation, base mod-sequence, base UID and expunge horizon */
+    public static final int HEADER_SIZE = 40;
+
+    /** Record size: mod-sequence, UID and last UID of expunged range (0 for changed message) */
+    public static final int RECORD_SIZE = 24;
+
+    /** Number of mod-sequences reserved at once */
+    public static final int MODSEQ_RESERVATION = 1024;
+
+    /** Maximal number of expunged UID ranges kept */
+    public static final int MAX_EXPUNGED_RANGES = 16384;
+
+    /** Number of records read at once */
+    protected static final int READ_RECORDS = 2048;
+
+    /** Locks of folders within this JVM so file locks do not overlap */
+    protected static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    /** &quot;.modseq&quot; file */
+    protected File file;
+
+    /** &quot;.nextmodseq&quot; file */
+    protected File nextFile;
+
+    /** Should written records be forced to the disk */
+    protected boolean force;
+
+    /** Is file read */
+    protected boolean loaded;
+
+    /** Generation of the file; it changes each time file is rewritten */
+    protected long generation;
+
+    /** Mod-sequence of messages that are not changed since file was created */
+    protected long baseModSeq;
+
+    /** Highest UID when file was created */
+    protected long baseUID;
+
+    /** Expunges with mod-sequence up to this one are not all known */
+    protected long expungeHorizon;
+
+    /** Highest mod-sequence */
+    protected long highestModSeq;
+
+    /** All mod-sequences handed out from now on are greater than this */
+    protected long floorModSeq;
+
+    /** Number of records in the file */
+    protected long recordCount;
+
+    /** Position up to which file is read */
+    protected long position;
+
+    /** Length of the file when last read */
+    protected long knownLength = -1;
+
+    /** Modification time of the file when last read */
+    protected long knownModified = -1;
+
+    /** UIDs of changed messages in ascending order */
+    protected long[] uids = new long[16];
+
+    /** Mod-sequences of changed messages */
+    protected long[] modSeqs = new long[16];
+
+    /** Number of changed messages */
+    protected int size;
+
+    /** First UIDs of expunged ranges in ascending order */
+    protected long[] rangeFrom = new long[16];
+
+    /** Last UIDs of expunged ranges */
+    protected long[] rangeTo = new long[16];
+
+    /** Mod-sequences of expunged ranges */
+    protected long[] rangeModSeq = new long[16];
+
+    /** Number of expunged ranges */
+    protected int rangeCount;
+
+    /** UIDs of added messages waiting to be written */
+    protected long[] pendingAdded = new long[16];
+
+    /** Number of UIDs of added messages waiting to be written */
+    protected int pendingAddedCount;
+
+    /** UIDs of changed messages waiting to be written */
+    protected long[] pendingChanged = new long[16];
+
+    /** Number of UIDs of changed messages waiting to be written */
+    protected int pendingChangedCount;
+
+    /** Expunged UIDs waiting to be written */
+    protected long[] pendingExpunged = new long[16];
+
+    /** Number of expunged UIDs waiting to be written */
+    protected int pendingExpungedCount;
+
+    /**
+     * Constructor
+     * @param folderFile folder's directory
+     * @param force should written records be forced to the disk
+     */
+    public ModSeqLog(File folderFile, boolean force) {
+        this.file = new File(folderFile, UIDMaildirStore.MODSEQ_FILE);
+        this.nextFile = new File(folderFile, UIDMaildirStore.NEXT_MODSEQ_FILE);
+        this.force = force;
+    }
+
+    /**
+     * Returns <code>true</code> if file is read
+     * @return <code>true</code> if file is read
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Reads the file. If it doesn't exist, or cannot be read, it is created and
+     * all current messages get base mod-sequence.
+     * @param maxUID highest UID of folder's messages, used only if file is created
+     * @throws MessagingException if file cannot be read nor created
+     */
+    public synchronized void load(long maxUID) throws MessagingException {
+        if (loaded) {
+            return;
+        }
+        try {
+            ReentrantLock jvmLock = jvmLock();
+            jvmLock.lock();
+            try {
+                FileChannel nextChannel = FileChannel.open(nextFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                try {
+                    FileLock lock = nextChannel.lock();
+                    try {
+                        long ceiling = readCeiling(nextChannel);
+                        if (!readFile()) {
+                            // Mod-sequences handed out before (if any) are all below ceiling
+                            create(ceiling + 1, Math.max(maxUID, 0));
+                            ceiling = baseModSeq;
+                            writeCeiling(nextChannel, ceiling);
+                        }
+                        floorModSeq = Math.max(highestModSeq, ceiling);
+                        loaded = true;
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    nextChannel.close();
+                }
+            } finally {
+                jvmLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot read " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns highest mod-sequence of the folder
+     * @return highest mod-sequence
+     * @throws MessagingException if file cannot be read
+     */
+    public synchronized long getHighestModSeq() throws MessagingException {
+        refresh();
+        return highestModSeq;
+    }
+
+    /**
+     * Returns mod-sequence of the message as of when file was last read.
+     * @param uid message's UID
+     * @return mod-sequence
+     */
+    public synchronized long getModSeq(long uid) {
+        int i = Arrays.binarySearch(uids, 0, size, uid);
+        if (i >= 0) {
+            return modSeqs[i];
+        }
+        return baseModSeq;
+    }
+
+    /**
+     * Returns UIDs of messages changed after given mod-sequence. Returned UIDs
+     * may include UIDs of messages that are already expunged.
+     * @param modSeq mod-sequence
+     * @return UIDs in ascending order or <code>null</code> if all messages
+     * are changed after given mod-sequence
+     * @throws MessagingException if file cannot be read
+     */
+    public synchronized long[] getChangedUIDs(long modSeq) throws MessagingException {
+        refresh();
+        if (modSeq < baseModSeq) {
+            return null;
+        }
+        long[] res = new long[16];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (modSeqs[i] > modSeq) {
+                if (count == res.length) {
+                    res = Arrays.copyOf(res, count * 2);
+                }
+                res[count] = uids[i];
+                count++;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Returns UIDs expunged after given mod-sequence
+     * @param modSeq mod-sequence
+     * @return pairs of first and last UID of expunged ranges in ascending order
+     * or <code>null</code> if expunges that old are not known
+     * @throws MessagingException if file cannot be read
+     */
+    public synchronized long[] getExpungedUIDs(long modSeq) throws MessagingException {
+        refresh();
+        if (modSeq < expungeHorizon) {
+            return null;
+        }
+        long[] res = new long[16];
+        int count = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            if (rangeModSeq[i] > modSeq) {
+                if (count + 2 > res.length) {
+                    res = Arrays.copyOf(res, res.length * 2);
+                }
+                res[count] = rangeFrom[i];
+                res[count + 1] = rangeTo[i];
+                count = count + 2;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Notes added messages. Only messages that are not already known get mod-sequence
+     * on next {@link #flush()} so the same messages can be noted more than once.
+     * @param added UIDs of added messages
+     */
+    public synchronized void added(long[] added) {
+        pendingAdded = append(pendingAdded, pendingAddedCount, added);
+        pendingAddedCount = pendingAddedCount + added.length;
+    }
+
+    /**
+     * Notes message whose flags are changed. It gets mod-sequence on next {@link #flush()}.
+     * @param uid message's UID
+     */
+    public synchronized void changed(long uid) {
+        if (pendingChangedCount == pendingChanged.length) {
+            pendingChanged = Arrays.copyOf(pendingChanged, pendingChangedCount * 2);
+        }
+        pendingChanged[pendingChangedCount] = uid;
+        pendingChangedCount++;
+    }
+
+    /**
+     * Notes expunged messages. They are recorded on next {@link #flush()}.
+     * @param expunged expunged UIDs
+     */
+    public synchronized void expunged(long[] expunged) {
+        pendingExpunged = append(pendingExpunged, pendingExpungedCount, expunged);
+        pendingExpungedCount = pendingExpungedCount + expunged.length;
+    }
+
+    /**
+     * Writes noted changes with one new mod-sequence. If they cannot be written
+     * they are kept and written with the next ones.
+     * @return new mod-sequence or 0 if there was nothing to write
+     * @throws MessagingException if changes cannot be written
+     */
+    public synchronized long flush() throws MessagingException {
+        if (!loaded) {
+            return 0;
+        }
+        refresh();
+        if (filterAdded() + pendingChangedCount + pendingExpungedCount == 0) {
+            return 0;
+        }
+        try {
+            ReentrantLock jvmLock = jvmLock();
+            jvmLock.lock();
+            try {
+                FileChannel nextChannel = FileChannel.open(nextFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                try {
+                    FileLock lock = nextChannel.lock();
+                    try {
+                        if (!readFile()) {
+                            create(readCeiling(nextChannel) + 1, baseUID);
+                            writeCeiling(nextChannel, baseModSeq);
+                        }
+                        return write(nextChannel);
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    nextChannel.close();
+                }
+            } finally {
+                jvmLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot write " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Writes pending changes as records with next mod-sequence. Must be called
+     * with file lock held and after file is read to its end.
+     * @param nextChannel channel of &quot;.nextmodseq&quot; file
+     * @return new mod-sequence or 0 if there was nothing to write
+     * @throws IOException
+     */
+    protected long write(FileChannel nextChannel) throws IOException {
+        int addedCount = filterAdded();
+        int expungedCount = filterExpunged();
+        if (addedCount + pendingChangedCount + expungedCount == 0) {
+            pendingExpungedCount = 0;
+            return 0;
+        }
+        long modSeq = Math.max(highestModSeq, floorModSeq) + 1;
+        long ceiling = readCeiling(nextChannel);
+        if (modSeq > ceiling) {
+            writeCeiling(nextChannel, modSeq + MODSEQ_RESERVATION - 1);
+        }
+
+        long[] expunged = Arrays.copyOf(pendingExpunged, expungedCount);
+        Arrays.sort(expunged);
+        int records = addedCount + pendingChangedCount + countRanges(expunged);
+        ByteBuffer buf = ByteBuffer.allocate(records * RECORD_SIZE);
+        for (int i = 0; i < addedCount; i++) {
+            buf.putLong(modSeq).putLong(pendingAdded[i]).putLong(0);
+        }
+        for (int i = 0; i < pendingChangedCount; i++) {
+            buf.putLong(modSeq).putLong(pendingChanged[i]).putLong(0);
+        }
+        int i = 0;
+        while (i < expunged.length) {
+            int j = i;
+            while ((j + 1 < expunged.length) && (expunged[j + 1] <= expunged[j] + 1)) {
+                j++;
+            }
+            buf.putLong(modSeq).putLong(expunged[i]).putLong(expunged[j]);
+            i = j + 1;
+        }
+        buf.flip();
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // Record left half written by a crash is overwritten
+            channel.truncate(position);
+            long pos = position;
+            while (buf.hasRemaining()) {
+                pos = pos + channel.write(buf, pos);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+        buf.flip();
+        apply(buf, records);
+        position = position + records * RECORD_SIZE;
+        recordCount = recordCount + records;
+        knownLength = file.length();
+        knownModified = file.lastModified();
+        pendingAddedCount = 0;
+        pendingChangedCount = 0;
+        pendingExpungedCount = 0;
+
+        if (recordCount > 2L * (size + rangeCount) + READ_RECORDS) {
+            rewrite();
+        }
+        return modSeq;
+    }
+
+    /**
+     * Reads records written since file was last read, unless file's length
+     * and modification time are the same as then.
+     * @throws MessagingException if file cannot be read
+     */
+    protected void refresh() throws MessagingException {
+        if (loaded && ((file.length() != knownLength) || (file.lastModified() != knownModified))) {
+            try {
+                if (!readFile()) {
+                    // File is gone; it is created again on next write
+                    knownLength = -1;
+                    knownModified = -1;
+                }
+            } catch (IOException e) {
+                throw new MessagingException("Cannot read " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads records written since file was last read. If file was rewritten
+     * in the meantime it is read from the start.
+     * @return <code>false</code> if file doesn't exist or is not valid
+     * @throws IOException
+     */
+    protected boolean readFile() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            long length = file.length();
+            long modified = file.lastModified();
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            read(channel, header, 0);
+            header.flip();
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+                return false;
+            }
+            long fileGeneration = header.getLong();
+            if (!loaded || (fileGeneration != generation) || (fileSize < position)) {
+                generation = fileGeneration;
+                baseModSeq = header.getLong();
+                baseUID = header.getLong();
+                expungeHorizon = header.getLong();
+                highestModSeq = baseModSeq;
+                size = 0;
+                rangeCount = 0;
+                recordCount = 0;
+                position = HEADER_SIZE;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE);
+            long records = (fileSize - position) / RECORD_SIZE;
+            while (records > 0) {
+                int n = (int)Math.min(records, READ_RECORDS);
+                buf.clear();
+                buf.limit(n * RECORD_SIZE);
+                read(channel, buf, position);
+                buf.flip();
+                apply(buf, n);
+                position = position + n * RECORD_SIZE;
+                recordCount = recordCount + n;
+                records = records - n;
+            }
+            knownLength = length;
+            knownModified = modified;
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Creates new file. Its messages are all going to have given base mod-sequence.
+     * @param base base mod-sequence
+     * @param maxUID highest UID of messages in the folder
+     * @throws IOException
+     */
+    protected void create(long base, long maxUID) throws IOException {
+        generation = generation + 1;
+        baseModSeq = base;
+        baseUID = maxUID;
+        // Expunges before the file was created are not known
+        expungeHorizon = base;
+        highestModSeq = base;
+        size = 0;
+        rangeCount = 0;
+        store();
+    }
+
+    /**
+     * Rewrites file so it has only records that describe current state
+     * @throws IOException
+     */
+    protected void rewrite() throws IOException {
+        generation = generation + 1;
+        store();
+    }
+
+    /**
+     * Writes current state to temporary file and moves it over the file
+     * @throws IOException
+     */
+    protected void store() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE);
+            buf.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(baseModSeq).putLong(baseUID).putLong(expungeHorizon);
+            for (int i = 0; i < size; i++) {
+                if (buf.remaining() < RECORD_SIZE) {
+                    writeBuffer(channel, buf);
+                }
+                buf.putLong(modSeqs[i]).putLong(uids[i]).putLong(0);
+            }
+            for (int i = 0; i < rangeCount; i++) {
+                if (buf.remaining() < RECORD_SIZE) {
+                    writeBuffer(channel, buf);
+                }
+                buf.putLong(rangeModSeq[i]).putLong(rangeFrom[i]).putLong(rangeTo[i]);
+            }
+            writeBuffer(channel, buf);
+            if (force) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        recordCount = size + rangeCount;
+        position = HEADER_SIZE + recordCount * RECORD_SIZE;
+        knownLength = file.length();
+        knownModified = file.lastModified();
+    }
+
+    /**
+     * Applies records from the buffer. Changes are applied before expunges
+     * so each message is changed with one pass over known messages.
+     * @param buf buffer
+     * @param n number of records
+     */
+    protected void apply(ByteBuffer buf, int n) {
+        long[] changedUIDs = new long[n];
+        long[] changedModSeqs = new long[n];
+        int changedCount = 0;
+        int start = buf.position();
+        for (int i = 0; i < n; i++) {
+            long modSeq = buf.getLong();
+            long uid = buf.getLong();
+            long lastUid = buf.getLong();
+            if (modSeq > highestModSeq) {
+                highestModSeq = modSeq;
+            }
+            if (lastUid == 0) {
+                changedUIDs[changedCount] = uid;
+                changedModSeqs[changedCount] = modSeq;
+                changedCount++;
+            }
+        }
+        if (changedCount > 0) {
+            applyChanges(changedUIDs, changedModSeqs, changedCount);
+        }
+        buf.position(start);
+        for (int i = 0; i < n; i++) {
+            long modSeq = buf.getLong();
+            long uid = buf.getLong();
+            long lastUid = buf.getLong();
+            if (lastUid != 0) {
+                applyExpunge(uid, lastUid, modSeq);
+            }
+        }
+        if (rangeCount > MAX_EXPUNGED_RANGES) {
+            pruneRanges();
+        }
+    }
+
+    /**
+     * Sets mod-sequences of changed messages. Messages that are already known are updated
+     * in place and new messages with UIDs above all known are appended; only otherwise
+     * known messages are merged with new ones.
+     * @param changedUIDs UIDs
+     * @param changedModSeqs mod-sequences
+     * @param n number of changed messages
+     */
+    protected void applyChanges(long[] changedUIDs, long[] changedModSeqs, int n) {
+        long[] newUIDs = new long[n];
+        long[] newModSeqs = new long[n];
+        int newCount = 0;
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            long uid = changedUIDs[i];
+            int j = Arrays.binarySearch(uids, 0, size, uid);
+            if (j >= 0) {
+                modSeqs[j] = Math.max(modSeqs[j], changedModSeqs[i]);
+            } else {
+                if ((newCount > 0) && (uid <= newUIDs[newCount - 1])) {
+                    sorted = false;
+                }
+                newUIDs[newCount] = uid;
+                newModSeqs[newCount] = changedModSeqs[i];
+                newCount++;
+            }
+        }
+        if (newCount == 0) {
+            return;
+        }
+        if (!sorted) {
+            sortPairs(newUIDs, newModSeqs, newCount);
+        }
+        if ((size == 0) || (newUIDs[0] > uids[size - 1])) {
+            ensureCapacity(size + newCount);
+            System.arraycopy(newUIDs, 0, uids, size, newCount);
+            System.arraycopy(newModSeqs, 0, modSeqs, size, newCount);
+            size = size + newCount;
+            return;
+        }
+        int capacity = Math.max(16, (size + newCount) * 3 / 2);
+        long[] mergedUIDs = new long[capacity];
+        long[] mergedModSeqs = new long[capacity];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while ((i < size) || (j < newCount)) {
+            if ((j >= newCount) || ((i < size) && (uids[i] < newUIDs[j]))) {
+                mergedUIDs[k] = uids[i];
+                mergedModSeqs[k] = modSeqs[i];
+                i++;
+            } else if ((k > 0) && (mergedUIDs[k - 1] == newUIDs[j])) {
+                // Same UID changed more than once in the batch
+                mergedModSeqs[k - 1] = Math.max(mergedModSeqs[k - 1], newModSeqs[j]);
+                j++;
+                continue;
+            } else {
+                mergedUIDs[k] = newUIDs[j];
+                mergedModSeqs[k] = newModSeqs[j];
+                j++;
+            }
+            k++;
+        }
+        uids = mergedUIDs;
+        modSeqs = mergedModSeqs;
+        size = k;
+    }
+
+    /**
+     * Records expunged range of UIDs. Messages in the range are forgotten and
+     * range is merged with ranges it touches.
+     * @param from first UID
+     * @param to last UID
+     * @param modSeq mod-sequence
+     */
+    protected void applyExpunge(long from, long to, long modSeq) {
+        int lo = Arrays.binarySearch(uids, 0, size, from);
+        if (lo < 0) {
+            lo = -lo - 1;
+        }
+        int hi = Arrays.binarySearch(uids, 0, size, to);
+        if (hi < 0) {
+            hi = -hi - 1;
+        } else {
+            hi = hi + 1;
+        }
+        if (hi > lo) {
+            System.arraycopy(uids, hi, uids, lo, size - hi);
+            System.arraycopy(modSeqs, hi, modSeqs, lo, size - hi);
+            size = size - (hi - lo);
+        }
+
+        // First range that ends at or after from - 1
+        int l = 0;
+        int h = rangeCount;
+        while (l < h) {
+            int m = (l + h) >>> 1;
+            if (rangeTo[m] < from - 1) {
+                l = m + 1;
+            } else {
+                h = m;
+            }
+        }
+        int i = l;
+        int j = i;
+        while ((j < rangeCount) && (rangeFrom[j] <= to + 1)) {
+            from = Math.min(from, rangeFrom[j]);
+            to = Math.max(to, rangeTo[j]);
+            modSeq = Math.max(modSeq, rangeModSeq[j]);
+            j++;
+        }
+        if (j == i) {
+            if (rangeCount == rangeFrom.length) {
+                rangeFrom = Arrays.copyOf(rangeFrom, rangeCount * 2);
+                rangeTo = Arrays.copyOf(rangeTo, rangeCount * 2);
+                rangeModSeq = Arrays.copyOf(rangeModSeq, rangeCount * 2);
+            }
+            System.arraycopy(rangeFrom, i, rangeFrom, i + 1, rangeCount - i);
+            System.arraycopy(rangeTo, i, rangeTo, i + 1, rangeCount - i);
+            System.arraycopy(rangeModSeq, i, rangeModSeq, i + 1, rangeCount - i);
+            rangeCount++;
+        } else if (j > i + 1) {
+            System.arraycopy(rangeFrom, j, rangeFrom, i + 1, rangeCount - j);
+            System.arraycopy(rangeTo, j, rangeTo, i + 1, rangeCount - j);
+            System.arraycopy(rangeModSeq, j, rangeModSeq, i + 1, rangeCount - j);
+            rangeCount = rangeCount - (j - i - 1);
+        }
+        rangeFrom[i] = from;
+        rangeTo[i] = to;
+        rangeModSeq[i] = modSeq;
+    }
+
+    /**
+     * Drops older half of expunged ranges and moves expunge horizon after them
+     */
+    protected void pruneRanges() {
+        long[] sorted = Arrays.copyOf(rangeModSeq, rangeCount);
+        Arrays.sort(sorted);
+        long threshold = sorted[rangeCount / 2];
+        int j = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            if (rangeModSeq[i] > threshold) {
+                rangeFrom[j] = rangeFrom[i];
+                rangeTo[j] = rangeTo[i];
+                rangeModSeq[j] = rangeModSeq[i];
+                j++;
+            }
+        }
+        rangeCount = j;
+        expungeHorizon = Math.max(expungeHorizon, threshold);
+    }
+
+    /**
+     * Removes UIDs of added messages that are already known or were in the
+     * folder when file was created. Remaining UIDs are moved to the start of pending UIDs.
+     * @return number of remaining UIDs
+     */
+    protected int filterAdded() {
+        int count = 0;
+        for (int i = 0; i < pendingAddedCount; i++) {
+            long uid = pendingAdded[i];
+            if ((uid > baseUID) && (Arrays.binarySearch(uids, 0, size, uid) < 0) && !isExpunged(uid)) {
+                pendingAdded[count] = uid;
+                count++;
+            }
+        }
+        pendingAddedCount = count;
+        return count;
+    }
+
+    /**
+     * Removes expunged UIDs that are already recorded (for instance by other store
+     * that expunged them). Remaining UIDs are moved to the start of pending UIDs.
+     * @return number of remaining UIDs
+     */
+    protected int filterExpunged() {
+        int count = 0;
+        for (int i = 0; i < pendingExpungedCount; i++) {
+            long uid = pendingExpunged[i];
+            if ((uid > 0) && !isExpunged(uid)) {
+                pendingExpunged[count] = uid;
+                count++;
+            }
+        }
+        pendingExpungedCount = count;
+        return count;
+    }
+
+    /**
+     * Returns <code>true</code> if UID is in one of expunged ranges
+     * @param uid UID
+     * @return <code>true</code> if UID is known to be expunged
+     */
+    protected boolean isExpunged(long uid) {
+        int l = 0;
+        int h = rangeCount;
+        while (l < h) {
+            int m = (l + h) >>> 1;
+            if (rangeTo[m] < uid) {
+                l = m + 1;
+            } else {
+                h = m;
+            }
+        }
+        return (l < rangeCount) && (rangeFrom[l] <= uid);
+    }
+
+    /**
+     * Makes sure arrays of changed messages can hold given number of messages
+     * @param capacity capacity
+     */
+    protected void ensureCapacity(int capacity) {
+        if (capacity > uids.length) {
+            int newCapacity = Math.max(capacity, uids.length * 2);
+            uids = Arrays.copyOf(uids, newCapacity);
+            modSeqs = Arrays.copyOf(modSeqs, newCapacity);
+        }
+    }
+
+    /**
+     * Returns lock of this folder within this JVM
+     * @return lock
+     */
+    protected ReentrantLock jvmLock() {
+        return LOCKS[(file.getAbsolutePath().hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    /**
+     * Reads reserved ceiling of mod-sequences
+     * @param nextChannel channel of &quot;.nextmodseq&quot; file
+     * @return ceiling or 0 if file is empty or not valid
+     * @throws IOException
+     */
+    protected static long readCeiling(FileChannel nextChannel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(nextChannel.size(), 64));
+        while (buf.hasRemaining() && (nextChannel.read(buf, buf.position()) > 0)) {
+        }
+        try {
+            return Long.parseLong(new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes reserved ceiling of mod-sequences and forces it to the disk
+     * @param nextChannel channel of &quot;.nextmodseq&quot; file
+     * @param ceiling ceiling
+     * @throws IOException
+     */
+    protected static void writeCeiling(FileChannel nextChannel, long ceiling) throws IOException {
+        byte[] bytes = Long.toString(ceiling).getBytes(StandardCharsets.US_ASCII);
+        nextChannel.write(ByteBuffer.wrap(bytes), 0);
+        nextChannel.truncate(bytes.length);
+        nextChannel.force(true);
+    }
+
+    /**
+     * Returns number of ranges of consecutive UIDs
+     * @param sorted UIDs in ascending order
+     * @return number of ranges
+     */
+    protected static int countRanges(long[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if ((i == 0) || (sorted[i] > sorted[i - 1] + 1)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sorts UIDs along with their mod-sequences
+     * @param keys UIDs
+     * @param values mod-sequences
+     * @param n number of elements
+     */
+    protected static void sortPairs(long[] keys, long[] values, int n) {
+        Long[] order = new Long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = Long.valueOf(i);
+        }
+        final long[] k = keys;
+        Arrays.sort(order, new Comparator<Long>() {
+            public int compare(Long a, Long b) {
+                long x = k[a.intValue()];
+                long y = k[b.intValue()];
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        long[] sortedKeys = new long[n];
+        long[] sortedValues = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedKeys[i] = keys[order[i].intValue()];
+            sortedValues[i] = values[order[i].intValue()];
+        }
+        System.arraycopy(sortedKeys, 0, keys, 0, n);
+        System.arraycopy(sortedValues, 0, values, 0, n);
+    }
+
+    /**
+     * Appends values to array growing it if needed
+     * @param array array
+     * @param count number of used elements
+     * @param values values
+     * @return array with values appended
+     */
+    protected static long[] append(long[] array, int count, long[] values) {
+        if (count + values.length > array.length) {
+            array = Arrays.copyOf(array, Math.max(count + values.length, array.length * 2));
+        }
+        System.arraycopy(values, 0, array, count, values.length);
+        return array;
+    }
+
+    /**
+     * Reads buffer fully from given position
+     * @param channel channel
+     * @param buf buffer
+     * @param pos position
+     * @throws IOException if file ends before buffer is full
+     */
+    protected static void read(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int r = channel.read(buf, pos);
+            if (r < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            pos = pos + r;
+        }
+    }
+
+    /**
+     * Writes buffer's content to channel's current position and clears buffer
+     * @param channel channel
+     * @param buf buffer
+     * @throws IOException
+     */
+    protected static void writeBuffer(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+}
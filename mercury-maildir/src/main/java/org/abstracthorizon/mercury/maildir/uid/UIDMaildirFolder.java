@@ -13,28 +13,29 @@
 package org.abstracthorizon.mercury.maildir.uid;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
+import javax.mail.Flags;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.UIDFolder;
-import javax.mail.internet.MimeMessage;
 
+import org.abstracthorizon.mercury.api.ModSeqFolder;
 import org.abstracthorizon.mercury.maildir.MaildirFolder;
 import org.abstracthorizon.mercury.maildir.MaildirFolderData;
+import org.abstracthorizon.mercury.maildir.MaildirMessage;
 import org.abstracthorizon.mercury.maildir.util.MessageWrapper;
 
 
 /**
- * This class implements UID maildir folder.
+ * This class implements UID maildir folder. Messages are found by UID
+ * through UID column of folder's messages using binary search.
+ * Mod-sequences of messages are obtained from folder data's {@link ModSeqLog}.
  *
  * @author Daniel Sendula
  */
-public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
-
-    /** Map that maps uids to messages */
-    protected Map<UID, UIDMessageWrapper> uids;
+public class UIDMaildirFolder extends MaildirFolder implements ModSeqFolder {
 
     /**
      * Constructor.
@@ -45,26 +46,6 @@ public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
         super(store, folderData);
     }
 
-    /**
-     * This implementation creates uids map and calls super class' open method.
-     * @param mode mode
-     * @throws MessagingException
-     */
-    public void open(int mode) throws MessagingException {
-        uids = new HashMap<UID, UIDMessageWrapper>();
-        super.open(mode);
-    }
-
-    /**
-     * This implementation releases uids map and calls superclass' close method.
-     * @param expunge
-     * @throws MessagingException
-     */
-    public void close(boolean expunge) throws MessagingException {
-        super.close(expunge);
-        uids = null;
-    }
-
     /**
      * Appends messages to this folder.
      * @param messages messages to be appended.
@@ -76,49 +57,48 @@ public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
     }
 
     /**
-     * Adds message to folder's internal storage. This method wraps message as well.
+     * Wraps folder data's message in UID message wrapper.
      * @param msg folder data message
      * @param num message number
      * @return wrapped message
      * @throws MessagingException
      */
-    protected MessageWrapper addMessage(MimeMessage msg, int num) throws MessagingException {
-        UIDMessageWrapper wrapper = new UIDMessageWrapper(this, (UIDMaildirMessage)msg, num);
-        UID uid = wrapper.getUID();
-        // if (uid.getUID() > maxUid) {
-        //     maxUid = uid.getUID();
-        // }
-        uids.put(uid, wrapper);
-        map.put(msg, wrapper);
-        return wrapper;
+    protected MessageWrapper createMessageWrapper(MaildirMessage msg, int num) throws MessagingException {
+        return new UIDMessageWrapper(this, (UIDMaildirMessage)msg, num);
     }
 
     /**
-     * This medhod removes message. Argument could be folder's message or folder data's message.
-     * @param msg message to be removed
-     * @return wrapped message that is removed
+     * This method obtains message by given uid number.
+     * @param uid uid number
+     * @return message
      * @throws MessagingException
      */
-    protected MessageWrapper removeMessage(MimeMessage msg) throws MessagingException {
-        UIDMessageWrapper wrapper = (UIDMessageWrapper)super.removeMessage(msg);
-        if (wrapper != null) {
-            uids.remove(wrapper.getUID());
+    public Message getMessageByUID(long uid) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        return wrapper;
+        int index = messages.indexOfUID(uid);
+        if (index < 0) {
+            return null;
+        }
+        return messages.getMessage(index);
     }
 
     /**
-     * This method obtains message by given uid number.
+     * This method returns message number of message with given uid
+     * without creating the message.
      * @param uid uid number
-     * @return message
-     * @throws MessagingException
+     * @return message number or -1 if there is no such message
      */
-    public Message getMessageByUID(long uid) throws MessagingException {
+    public int getMessageNumberByUID(long uid) {
         if (!opened) {
             throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        UID uidx = new UID(uid);
-        return (Message)uids.get(uidx);
+        int index = messages.indexOfUID(uid);
+        if (index < 0) {
+            return -1;
+        }
+        return index + 1;
     }
 
     /**
@@ -131,14 +111,11 @@ public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
         if (!opened) {
             throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        long maxUid = ((UIDMaildirFolderData)folderData).getMaxUID();
-        ArrayList<Message> list = new ArrayList<Message>();
+        ArrayList<Message> list = new ArrayList<Message>(uids.length);
         for (int i = 0; i < uids.length; i++) {
-            if (uids[i] <= maxUid) {
-                Message msg = getMessageByUID(uids[i]);
-                if (msg != null) {
-                    list.add(msg);
-                }
+            Message msg = getMessageByUID(uids[i]);
+            if (msg != null) {
+                list.add(msg);
             }
         }
         Message[] res = new Message[list.size()];
@@ -153,26 +130,27 @@ public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
      * @throws MessagingException
      */
     public Message[] getMessagesByUID(long start, long end) throws MessagingException {
+        List<? extends Message> list = getMessageListByUID(start, end);
+        Message[] res = new Message[list.size()];
+        return list.toArray(res);
+    }
+
+    /**
+     * This method returns messages from given uid range as a view of folder's messages.
+     * Messages are created only when they are accessed. View is valid until messages
+     * are added to or removed from the folder.
+     * @param start start uid
+     * @param end end uid or {@link UIDFolder#LASTUID}
+     * @return messages
+     */
+    public List<? extends Message> getMessageListByUID(long start, long end) {
         if (!opened) {
             throw new IllegalStateException("Folder is not opened; "+getFullName());
         }
-        long maxUid = ((UIDMaildirFolderData)folderData).getMaxUID();
-        if ((maxUid < 0) && (messages != null) && (messages.size() > 0)) {
-            UIDMessage uid = (UIDMessage)messages.get(messages.size()-1);
-            maxUid = uid.getUID().getUID();
+        if (end == LASTUID) {
+            end = Long.MAX_VALUE;
         }
-        if (end > maxUid) {
-            end = maxUid;
-        }
-        ArrayList<Message> list = new ArrayList<Message>();
-        for (long i = start; i <= end; i++) {
-            Message msg = getMessageByUID(i);
-            if (msg != null) {
-                list.add(msg);
-            }
-        }
-        Message[] res = new Message[list.size()];
-        return (Message[])list.toArray(res);
+        return messages.getMessagesByUID(start, end);
     }
 
     /**
@@ -189,6 +167,115 @@ public class UIDMaildirFolder extends MaildirFolder implements UIDFolder {
         return msg.getUID().getUID();
     }
 
+    /**
+     * Returns highest mod-sequence of the folder
+     * @return highest mod-sequence
+     * @throws MessagingException
+     */
+    public long getHighestModSeq() throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
+        }
+        return ((UIDMaildirFolderData)folderData).getModSeqLog().getHighestModSeq();
+    }
+
+    /**
+     * Returns mod-sequence of the message
+     * @param message message
+     * @return mod-sequence
+     * @throws MessagingException
+     */
+    public long getModSeq(Message message) throws MessagingException {
+        return ((UIDMaildirFolderData)folderData).getModSeqLog().getModSeq(getUID(message));
+    }
+
+    /**
+     * Changes flags of messages whose mod-sequence is not greater than given one
+     * through {@link UIDMaildirFolderData#setFlags(UIDMaildirFolder, Message[], Flags, Flags, long)}.
+     * @param msgs messages
+     * @param remove flags to be removed or <code>null</code>
+     * @param add flags to be added or <code>null</code>
+     * @param unchangedSince mod-sequence
+     * @return messages that are not changed as their mod-sequence is greater
+     * @throws MessagingException if flags or mod-sequences cannot be written
+     */
+    public Message[] setFlags(Message[] msgs, Flags remove, Flags add, long unchangedSince) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
+        }
+        return ((UIDMaildirFolderData)folderData).setFlags(this, msgs, remove, add, unchangedSince);
+    }
+
+    /**
+     * Returns UIDs of folder's messages changed after given mod-sequence
+     * @param modSeq mod-sequence
+     * @return UIDs in ascending order
+     * @throws MessagingException
+     */
+    public long[] getChangedUIDs(long modSeq) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
+        }
+        long[] changed = ((UIDMaildirFolderData)folderData).getModSeqLog().getChangedUIDs(modSeq);
+        long[] uids = messages.getUIDs();
+        if (changed == null) {
+            return uids;
+        }
+        // Only messages of this folder
+        int count = 0;
+        int i = 0;
+        for (long uid : changed) {
+            while ((i < uids.length) && (uids[i] < uid)) {
+                i++;
+            }
+            if ((i < uids.length) && (uids[i] == uid)) {
+                changed[count] = uid;
+                count++;
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    /**
+     * Returns UIDs expunged after given mod-sequence. If expunges that old are no longer
+     * known all UIDs up to the highest are returned except those of folder's messages.
+     * @param modSeq mod-sequence
+     * @return pairs of first and last UID of expunged ranges in ascending order
+     * @throws MessagingException
+     */
+    public long[] getExpungedUIDs(long modSeq) throws MessagingException {
+        if (!opened) {
+            throw new IllegalStateException("Folder is not opened; "+getFullName());
+        }
+        long[] expunged = ((UIDMaildirFolderData)folderData).getModSeqLog().getExpungedUIDs(modSeq);
+        if (expunged != null) {
+            return expunged;
+        }
+        long[] uids = messages.getUIDs();
+        long max = ((UIDMaildirFolderData)folderData).getMaxUID();
+        if (uids.length > 0) {
+            max = Math.max(max, uids[uids.length - 1]);
+        }
+        long[] res = new long[16];
+        int count = 0;
+        long from = 1;
+        for (int i = 0; i <= uids.length; i++) {
+            long to = (i < uids.length) ? uids[i] - 1 : max;
+            if (to >= from) {
+                if (count + 2 > res.length) {
+                    res = Arrays.copyOf(res, res.length * 2);
+                }
+                res[count] = from;
+                res[count + 1] = to;
+                count = count + 2;
+            }
+            if (i < uids.length) {
+                from = uids[i] + 1;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
     /**
      * Returns UID validity for the folder
      * @return UID validity for the folder
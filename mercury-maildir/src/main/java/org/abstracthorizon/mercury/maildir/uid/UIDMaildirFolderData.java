@@ -15,32 +15,83 @@ package org.abstracthorizon.mercury.maildir.uid;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
+import javax.mail.Flags;
+import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import org.abstracthorizon.mercury.maildir.MaildirFolder;
 import org.abstracthorizon.mercury.maildir.MaildirFolderData;
+import org.abstracthorizon.mercury.maildir.MaildirFolderIndex;
 import org.abstracthorizon.mercury.maildir.MaildirMessage;
+import org.abstracthorizon.mercury.maildir.MaildirMessageTable;
 import org.abstracthorizon.mercury.maildir.MaildirStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * UID implementation of maildir folder model.
+ * <p>UID implementation of maildir folder model.</p>
+ * <p>UIDs are not read from and written to &quot;.nextuid&quot; for each message. Instead,
+ * a range of UIDs is reserved under a file lock and UIDs are then handed out from memory.
+ * File always holds the last reserved UID and is forced to the disk before any UID from
+ * the range is used, so after a crash unused UIDs of the range are skipped but never
+ * reused. If some other store changed &quot;.nextuid&quot; rest of the range is dropped and
+ * a new one is reserved after other store's range so UIDs keep growing in order
+ * messages are added.</p>
+ * <p>Mod-sequences of messages are kept in {@link ModSeqLog}. Added messages, messages
+ * whose flags are changed and expunged messages are written to it before opened folders
+ * are notified of them.</p>
  *
  * @author Daniel Sendula
  */
 public class UIDMaildirFolderData extends MaildirFolderData /* implements UIDFolder TODO: nice to have */{
 
+    /** Logger */
+    protected static final Logger logger = LoggerFactory.getLogger(UIDMaildirFolderData.class);
 
     /** Number of retries for .nextuid file to be read */
     public static final int MAX_RETRIES = 30;
 
 
-    /** Current maxUID (last read) */
+    /** Current maxUID (last handed out) */
     protected long maxUid = -1;
 
+    /** Next UID to be handed out from reserved range or -1 if nothing is reserved */
+    protected long nextUid = -1;
+
+    /** Last reserved UID */
+    protected long reservedUid = -1;
+
+    /** Modification time of &quot;.nextuid&quot; after last reservation */
+    protected long reservedModified = -1;
+
+    /** Length of &quot;.nextuid&quot; after last reservation */
+    protected long reservedLength = -1;
+
+    /** Next of UIDs obtained for messages being delivered or -1 */
+    protected long appendUid = -1;
+
+    /** Last of UIDs obtained for messages being delivered */
+    protected long appendUidEnd = -1;
+
     /** UID validity of this folder */
     protected long uidValidity = -1;
 
+    /** Mod-sequences of folder's messages */
+    protected ModSeqLog modSeqLog;
+
     /**
      * Constructor.
      * @param store store
@@ -48,6 +99,55 @@ public class UIDMaildirFolderData extends MaildirFolderData /* implements UIDFol
      */
     protected UIDMaildirFolderData(MaildirStore store, File file) {
         super(store, file);
+        modSeqLog = new ModSeqLog(file, !MaildirStore.DURABILITY_NONE.equals(store.getDurability()));
+    }
+
+    /**
+     * Returns mod-sequences of folder's messages. They are read when asked for the first time.
+     * @return mod-sequences
+     * @throws MessagingException if mod-sequences cannot be read
+     */
+    public ModSeqLog getModSeqLog() throws MessagingException {
+        if (!modSeqLog.isLoaded()) {
+            long max = Math.max(maxUid, 0);
+            MaildirMessageTable table = getTable();
+            if (table != null) {
+                for (int row : table.getRows()) {
+                    max = Math.max(max, table.getUID(row));
+                }
+            }
+            modSeqLog.load(max);
+        }
+        return modSeqLog;
+    }
+
+    /**
+     * Notes message whose flags are changed. Its mod-sequence is written with {@link #flushModSeqs()}.
+     * @param uid message's UID
+     */
+    protected void messageChanged(long uid) {
+        modSeqLog.changed(uid);
+    }
+
+    /**
+     * Writes noted changes of messages with new mod-sequence. Changes that
+     * cannot be written are kept and written with the next ones.
+     * @throws MessagingException if changes cannot be written
+     */
+    protected void flushModSeqs() throws MessagingException {
+        getModSeqLog().flush();
+    }
+
+    /**
+     * Writes noted changes of messages where failure cannot be reported back.
+     * Failure is only logged and changes are written with the next ones.
+     */
+    protected void flushModSeqsOrWarn() {
+        try {
+            flushModSeqs();
+        } catch (MessagingException e) {
+            logger.warn("Cannot write mod-sequences of " + getFolderFile(), e);
+        }
     }
 
     /**
@@ -68,11 +168,24 @@ public class UIDMaildirFolderData extends MaildirFolderData /* implements UIDFol
      * @throws IOException
      * @throws MessagingException
      */
-    protected synchronized MaildirMessage createNewMaildirMessage(MimeMessage message, int num) throws IOException, MessagingException {
+    protected MaildirMessage createNewMaildirMessage(MimeMessage message, int num) throws IOException, MessagingException {
         UIDMaildirMessage msg = new UIDMaildirMessage(this, message, num);
         return msg;
     }
 
+    /**
+     * This method creates new UID maildir message as a copy of existing maildir message.
+     * @param source maildir message whose file will be linked or copied
+     * @param num message number
+     * @return new maildir message this folder will keep for its folder data
+     * @throws IOException
+     * @throws MessagingException
+     */
+    protected MaildirMessage createCopiedMaildirMessage(MaildirMessage source, int num) throws IOException, MessagingException {
+        UIDMaildirMessage msg = new UIDMaildirMessage(this, source, num);
+        return msg;
+    }
+
     /**
      * This method creates new maildir message object for existing file in folder data's directory.
      * @param file file message object is going to be created
@@ -86,48 +199,298 @@ public class UIDMaildirFolderData extends MaildirFolderData /* implements UIDFol
         return msg;
     }
 
+    /**
+     * This method creates new maildir message object for existing file whose details are
+     * already recorded in folder data's table.
+     * @param file file message object is going to be created
+     * @param fileSize file size
+     * @param internalDate internal date or -1
+     * @param num message number
+     * @return new maildir message
+     * @throws MessagingException
+     */
+    protected MaildirMessage createKnownMaildirMessage(File file, long fileSize, long internalDate, int num) throws MessagingException {
+        UIDMaildirMessage msg = new UIDMaildirMessage(this, file, fileSize, internalDate, num);
+        return msg;
+    }
 
     /**
-     * This method obtains next UID
-     * @return next UID number
+     * Returns <code>true</code> only if index entry has message's UID.
+     * @param entry index entry
+     * @return <code>true</code> if entry can be used
+     */
+    protected boolean isIndexEntryUsable(MaildirFolderIndex.Entry entry) {
+        return entry.getUID() >= 0;
+    }
+
+    /**
+     * Returns message's UID to be stored in the index.
+     * @param message message
+     * @return UID
      * @throws MessagingException
      */
-    protected synchronized UID getNextUID() throws MessagingException {
-        RandomAccessFile uidFile = null;
-        File file = new File(getFolderFile(), UIDMaildirStore.NEXT_UID_FILE);
-        int retry = 0;
-        while ((uidFile == null) && (retry < MAX_RETRIES)) {
-            try {
-                uidFile = new RandomAccessFile(file, "rw");
-            } catch (IOException ignore) {
+    protected long getIndexedUID(MaildirMessage message) throws MessagingException {
+        return ((UIDMaildirMessage)message).getUID().getUID();
+    }
+
+
+    /**
+     * Delivers appended messages obtaining all their UIDs at once.
+     * @param folder folder messages are appended through or <code>null</code>
+     * @param messages written messages
+     * @return delivered messages
+     * @throws MessagingException
+     */
+    protected synchronized List<MaildirMessage> deliverMessages(MaildirFolder folder, List<MaildirMessage> messages) throws MessagingException {
+        if (messages.size() > 1) {
+            long first = getNextUIDs(messages.size());
+            appendUid = first;
+            appendUidEnd = first + messages.size() - 1;
+        }
+        try {
+            return super.deliverMessages(folder, messages);
+        } finally {
+            // UIDs left from failed deliveries are dropped
+            appendUid = -1;
+        }
+    }
+
+    /**
+     * Gives mod-sequence to added messages before folders are notified of them.
+     * @param folder folder that is not to be notified or <code>null</code>
+     * @param rows rows in ascending order
+     * @throws MessagingException
+     */
+    protected void addMessages(MaildirFolder folder, int[] rows) throws MessagingException {
+        MaildirMessageTable table = getTable();
+        if ((table != null) && (rows.length > 0)) {
+            modSeqLog.added(table.getUIDs(rows));
+            flushModSeqsOrWarn();
+        }
+        super.addMessages(folder, rows);
+    }
+
+    /**
+     * Records expunged messages before folders are notified of them.
+     * @param folder folder that is not to be notified
+     * @param messages removed messages
+     * @throws MessagingException
+     */
+    protected void removeMessages(MaildirFolder folder, Collection<? extends MimeMessage> messages) throws MessagingException {
+        long[] uids = new long[messages.size()];
+        int count = 0;
+        for (MimeMessage message : messages) {
+            if (message instanceof UIDMaildirMessage) {
+                uids[count] = ((UIDMaildirMessage)message).getUID().getUID();
+                count++;
             }
-            if (uidFile == null) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ignore) {
+        }
+        if (count > 0) {
+            modSeqLog.expunged(Arrays.copyOf(uids, count));
+            flushModSeqsOrWarn();
+        }
+        super.removeMessages(folder, messages);
+    }
+
+    /**
+     * Sets or resets flags of given messages at once. All changed messages get the same mod-sequence.
+     * Flags are changed in folder data's write section so mod-sequences can be compared
+     * with them atomically (see {@link #setFlags(UIDMaildirFolder, Message[], Flags, Flags, long)}).
+     * If new mod-sequence cannot be written all messages are reported as failed.
+     * @param folder folder messages are changed through or <code>null</code>
+     * @param messages folder data's messages
+     * @param flags flags to be set or reset
+     * @param set should flags be set or reset
+     * @return messages whose flags could not be changed with the reason; empty if all succeeded
+     */
+    public synchronized Map<MaildirMessage, MessagingException> setFlags(MaildirFolder folder, List<MaildirMessage> messages, Flags flags, boolean set) {
+        Map<MaildirMessage, MessagingException> failed = super.setFlags(folder, messages, flags, set);
+        try {
+            flushModSeqs();
+        } catch (MessagingException e) {
+            logger.warn("Cannot write mod-sequences of " + getFolderFile(), e);
+            for (MaildirMessage message : messages) {
+                if (!failed.containsKey(message)) {
+                    failed.put(message, e);
                 }
-                retry = retry + 1;
             }
         }
+        return failed;
+    }
+
+    /**
+     * Changes flags of messages whose mod-sequence is not greater than given one
+     * (<code>UNCHANGEDSINCE</code> of RFC 7162). Mod-sequences are compared and flags
+     * changed in folder data's write section so no other change of flags made through
+     * this folder data can come in between.
+     * @param folder folder messages are changed through
+     * @param msgs messages
+     * @param remove flags to be removed or <code>null</code>
+     * @param add flags to be added or <code>null</code>
+     * @param unchangedSince mod-sequence
+     * @return messages that are not changed as their mod-sequence is greater
+     * @throws MessagingException if flags or mod-sequences cannot be written
+     */
+    public synchronized Message[] setFlags(UIDMaildirFolder folder, Message[] msgs, Flags remove, Flags add, long unchangedSince) throws MessagingException {
+        // Picks up changes written by other processes
+        getModSeqLog().getHighestModSeq();
+        List<Message> unchanged = new ArrayList<Message>(msgs.length);
+        List<Message> modified = new ArrayList<Message>();
+        for (Message m : msgs) {
+            if (folder.getModSeq(m) > unchangedSince) {
+                modified.add(m);
+            } else {
+                unchanged.add(m);
+            }
+        }
+        if (!unchanged.isEmpty()) {
+            Message[] toChange = new Message[unchanged.size()];
+            toChange = unchanged.toArray(toChange);
+            if (remove != null) {
+                folder.setFlags(toChange, remove, false);
+            }
+            if (add != null) {
+                folder.setFlags(toChange, add, true);
+            }
+        }
+        Message[] res = new Message[modified.size()];
+        return modified.toArray(res);
+    }
+
+    /**
+     * Notes messages whose files are renamed by some other program as changed
+     * @param rows rows of messages
+     * @throws MessagingException
+     */
+    protected void messageFilesRenamed(int[] rows) throws MessagingException {
+        MaildirMessageTable table = getTable();
+        if (table != null) {
+            for (long uid : table.getUIDs(rows)) {
+                modSeqLog.changed(uid);
+            }
+            flushModSeqsOrWarn();
+        }
+    }
+
+    /**
+     * This method obtains next UID. UIDs obtained for messages being delivered are used first
+     * (see {@link #deliverMessages(MaildirFolder, List)}).
+     * @return next UID number
+     * @throws MessagingException
+     */
+    protected synchronized UID getNextUID() throws MessagingException {
+        if ((appendUid >= 0) && (appendUid <= appendUidEnd)) {
+            long uid = appendUid;
+            appendUid = appendUid + 1;
+            return new UID(uid);
+        }
+        return new UID(getNextUIDs(1));
+    }
+
+    /**
+     * Hands out given number of consecutive UIDs. They are taken from reserved range and
+     * only if range doesn't have enough of them (or &quot;.nextuid&quot; was changed by
+     * some other store) new range is reserved.
+     * @param n number of UIDs
+     * @return first of obtained UIDs
+     * @throws MessagingException if new range cannot be reserved
+     */
+    public synchronized long getNextUIDs(int n) throws MessagingException {
+        File file = new File(getFolderFile(), UIDMaildirStore.NEXT_UID_FILE);
+        if ((nextUid < 0)
+                || (nextUid + n - 1 > reservedUid)
+                || (file.lastModified() != reservedModified)
+                || (file.length() != reservedLength)) {
+            reserveUIDs(file, n);
+        }
+        long first = nextUid;
+        nextUid = nextUid + n;
+        maxUid = nextUid - 1;
+        return first;
+    }
+
+    /**
+     * Returns number of UIDs reserved at once
+     * @return store's UID reservation or {@link UIDMaildirStore#DEFAULT_UID_RESERVATION}
+     */
+    protected int getUIDReservation() {
+        if (getMaildirStore() instanceof UIDMaildirStore) {
+            return ((UIDMaildirStore)getMaildirStore()).getUIDReservation();
+        }
+        return UIDMaildirStore.DEFAULT_UID_RESERVATION;
+    }
+
+    /**
+     * Reserves new range of UIDs big enough for given number of UIDs. Range continues
+     * current one if &quot;.nextuid&quot; still holds last reserved UID. Otherwise it starts
+     * after UID stored in the file. New end of the range is written and forced to the disk
+     * while file is locked.
+     * @param file &quot;.nextuid&quot; file
+     * @param n number of UIDs needed
+     * @throws MessagingException if file cannot be locked, read or written
+     */
+    protected void reserveUIDs(File file, int n) throws MessagingException {
         try {
-            String old = uidFile.readLine();
-            long uid = 0;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
             try {
-                uid = Long.parseLong(old);
-            } catch (NumberFormatException ignore) {
+                FileLock lock = lock(channel);
+                try {
+                    ByteBuffer buf = ByteBuffer.allocate((int)Math.min(channel.size(), 64));
+                    while (buf.hasRemaining() && (channel.read(buf, buf.position()) > 0)) {
+                    }
+                    long stored = 0;
+                    try {
+                        stored = Long.parseLong(new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII).trim());
+                    } catch (NumberFormatException ignore) {
+                    }
+                    long start;
+                    if ((nextUid >= 0) && (stored == reservedUid)) {
+                        start = nextUid;
+                    } else {
+                        start = Math.max(stored + 1, nextUid);
+                    }
+                    long end = start + Math.max(n, getUIDReservation()) - 1;
+                    byte[] bytes = Long.toString(end).getBytes(StandardCharsets.US_ASCII);
+                    channel.write(ByteBuffer.wrap(bytes), 0);
+                    channel.truncate(bytes.length);
+                    channel.force(true);
+
+                    nextUid = start;
+                    reservedUid = end;
+                    reservedModified = file.lastModified();
+                    reservedLength = file.length();
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
             }
-            uid = uid + 1;
-            uidFile.seek(0);
-            uidFile.writeBytes(Long.toString(uid));
-            uidFile.close();
-            maxUid = uid;
-            return new UID(uid);
         } catch (IOException e) {
             throw new MessagingException("Cannot obtain next uid", e);
-        } finally {
+        }
+    }
+
+    /**
+     * Locks &quot;.nextuid&quot; file. Lock held by other store of this JVM
+     * is retried up to {@link #MAX_RETRIES} times.
+     * @param channel file's channel
+     * @return file lock
+     * @throws IOException if file cannot be locked
+     */
+    protected FileLock lock(FileChannel channel) throws IOException {
+        int retry = 0;
+        while (true) {
             try {
-                uidFile.close();
-            } catch (IOException ignore) {
+                return channel.lock();
+            } catch (OverlappingFileLockException e) {
+                retry = retry + 1;
+                if (retry >= MAX_RETRIES) {
+                    throw new IOException("Cannot lock " + UIDMaildirStore.NEXT_UID_FILE, e);
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignore) {
+                }
             }
         }
     }
@@ -15,6 +15,7 @@ package org.abstracthorizon.mercury.maildir.uid;
 import java.io.File;
 import java.io.IOException;
 
+import javax.mail.Flags;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
@@ -61,6 +62,18 @@ public class UIDMaildirMessage extends MaildirMessage implements UIDMessage {
         super(folder, message, msgnum);
     }
 
+    /**
+     * Creates new message as a copy of another maildir message. File is hard linked (or copied) to supplied folder.
+     * @param folder folder this message belongs to
+     * @param source maildir message to be copied
+     * @param msgnum message number
+     * @throws MessagingException
+     * @throws IOException
+     */
+    protected UIDMaildirMessage(MaildirFolderData folder, MaildirMessage source, int msgnum) throws MessagingException, IOException {
+        super(folder, source, msgnum);
+    }
+
     /**
      * This constructor creates new message from supplied file. If supplied file doesn't
      * match appropriate format than it is renamed.
@@ -71,7 +84,33 @@ public class UIDMaildirMessage extends MaildirMessage implements UIDMessage {
      */
     public UIDMaildirMessage(MaildirFolderData folder, File file, int msgnum) throws MessagingException {
         super(folder, file, msgnum, false);
+        obtainUID(file);
+        initialise();
+    }
 
+    /**
+     * This constructor creates new message from supplied file whose details are already known
+     * from folder's index. If supplied file doesn't match appropriate format than it is renamed.
+     * @param folder folder this message belongs to
+     * @param file file
+     * @param fileSize file size
+     * @param internalDate internal date
+     * @param msgnum message number
+     * @throws MessagingException
+     */
+    protected UIDMaildirMessage(MaildirFolderData folder, File file, long fileSize, long internalDate, int msgnum) throws MessagingException {
+        super(folder, file, fileSize, internalDate, msgnum, false);
+        obtainUID(file);
+        initialise();
+    }
+
+    /**
+     * Obtains UID from the file name. If file name doesn't contain UID file is renamed
+     * so it does.
+     * @param file file
+     * @throws MessagingException
+     */
+    protected void obtainUID(File file) throws MessagingException {
         String name = file.getName();
 
         int i = name.indexOf('.');
@@ -111,7 +150,6 @@ public class UIDMaildirMessage extends MaildirMessage implements UIDMessage {
                 this.file.setLastModified(oldDate);
             }
         }
-        initialise();
     }
 
     /**
@@ -136,6 +174,47 @@ public class UIDMaildirMessage extends MaildirMessage implements UIDMessage {
         }
     }
 
+    /**
+     * Obtains UID for appended message when it is delivered so messages get their UIDs
+     * in the order they are added to folder data.
+     * @return base name with newly obtained UID
+     * @throws MessagingException
+     */
+    protected String getDeliveryName() throws MessagingException {
+        return createFileName(null);
+    }
+
+    /**
+     * Sets flags to the message and writes message's new mod-sequence. Flags of message
+     * in folder data's table are changed in folder data's write section.
+     * @param flags flags that are applied
+     * @param set are flags set or removed
+     * @throws MessagingException if flags or mod-sequence cannot be written
+     */
+    public void setFlags(Flags flags, boolean set) throws MessagingException {
+        if (table != null) {
+            synchronized (folder) {
+                super.setFlags(flags, set);
+                ((UIDMaildirFolderData)folder).flushModSeqs();
+            }
+        } else {
+            super.setFlags(flags, set);
+        }
+    }
+
+    /**
+     * Updates message after its file is renamed and notes it as changed for folder's
+     * mod-sequences. Messages that are not in folder data's table yet get their
+     * mod-sequence when they are added.
+     * @param newFile new file
+     */
+    protected void flagsFileMoved(File newFile) {
+        super.flagsFileMoved(newFile);
+        if ((table != null) && (uid != null)) {
+            ((UIDMaildirFolderData)folder).messageChanged(uid.getUID());
+        }
+    }
+
     /**
      * Returns message's UID object.
      * @return message's UID object.
@@ -36,7 +36,11 @@ import org.abstracthorizon.mercury.maildir.MaildirStore;
  * </p>
  * <p>Only two files that this store needs are &quot;.nextuid&quot; where the last
  * uid number is stored and &quot;.uidvalidity&quot; where folder's uid validity is
- * stored.</p>
+ * stored. UIDs are reserved in ranges of <code>maildir.uidReservation</code> session
+ * property (default {@link #DEFAULT_UID_RESERVATION}) so &quot;.nextuid&quot; holds the last
+ * reserved uid (see {@link UIDMaildirFolderData#getNextUIDs(int)}).</p>
+ * <p>Mod-sequences of messages (RFC 7162) are kept in &quot;.modseq&quot; and
+ * &quot;.nextmodseq&quot; files (see {@link ModSeqLog}).</p>
  *
  * @author Daniel Sendula
  */
@@ -48,6 +52,21 @@ public class UIDMaildirStore extends MaildirStore {
     /** Name of a file storing folder's uid validity */
     public static final String UID_VALIDITY_FILE = ".uidvalidity";
 
+    /** Name of a file storing folder's mod-sequences (see {@link ModSeqLog}) */
+    public static final String MODSEQ_FILE = ".modseq";
+
+    /** Name of a file storing reserved ceiling of folder's mod-sequences */
+    public static final String NEXT_MODSEQ_FILE = ".nextmodseq";
+
+    /** UID reservation session attribute name */
+    public static final String UID_RESERVATION = "maildir.uidReservation";
+
+    /** Default number of UIDs reserved at once */
+    public static final int DEFAULT_UID_RESERVATION = 256;
+
+    /** Cached number of UIDs reserved at once */
+    protected int uidReservation = DEFAULT_UID_RESERVATION;
+
     /**
      * Constructor
      * @param session mail session
@@ -55,6 +74,25 @@ public class UIDMaildirStore extends MaildirStore {
      */
     public UIDMaildirStore(Session session, URLName urlname) {
         super(session, urlname);
+
+        String uidReservationString = session.getProperty(UID_RESERVATION);
+        if (uidReservationString != null) {
+            try {
+                int reservation = Integer.parseInt(uidReservationString.trim());
+                if (reservation > 0) {
+                    uidReservation = reservation;
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Returns number of UIDs folders reserve at once
+     * @return number of UIDs reserved at once
+     */
+    public int getUIDReservation() {
+        return uidReservation;
     }
 
     /**
@@ -31,6 +31,8 @@ import javax.mail.search.SearchTerm;
 /**
  * This message implementation keeps input stream received through
  * <code>parse</code> method and calls superclass <code>parse</code> on demand only.
+ * Getters that need only headers do not parse message if subclass can answer
+ * them without parsing (see {@link #isHeaderCached(String)}).
  *
  * @author Daniel Sendula
  */
@@ -69,6 +71,25 @@ public class LazyParsingMessage extends MessageBase {
         return parsed;
     }
 
+    /**
+     * Returns <code>true</code> if header with given name can be obtained through
+     * <code>getHeader</code> methods without parsing message. This implementation
+     * returns <code>false</code>.
+     * @param name header name
+     * @return <code>true</code> if header is available without parsing
+     */
+    protected boolean isHeaderCached(String name) {
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if all recipient headers can be obtained without parsing message
+     * @return <code>true</code> if recipient headers are available without parsing
+     */
+    protected boolean isRecipientsCached() {
+        return isHeaderCached("To") && isHeaderCached("Cc") && isHeaderCached("Bcc") && isHeaderCached("Newsgroups");
+    }
+
     /**
      * Stores input stream for later invoking of superclass' parse method
      * @param is input stream
@@ -181,7 +202,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Address[] getAllRecipients() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isRecipientsCached()) { parseImpl(); }
         return super.getAllRecipients();
     }
 
@@ -242,7 +263,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public String getContentType() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached("Content-Type")) { parseImpl(); }
         return super.getContentType();
     }
 
@@ -302,7 +323,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Address[] getFrom() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !(isHeaderCached("From") && isHeaderCached("Sender"))) { parseImpl(); }
         return super.getFrom();
     }
 
@@ -313,7 +334,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public String[] getHeader(String name) throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached(name)) { parseImpl(); }
         return super.getHeader(name);
     }
 
@@ -325,7 +346,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public String getHeader(String name, String delimiter) throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached(name)) { parseImpl(); }
         return super.getHeader(name, delimiter);
     }
 
@@ -378,7 +399,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public String getMessageID() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached("Message-ID")) { parseImpl(); }
         return super.getMessageID();
     }
 
@@ -421,7 +442,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Address[] getRecipients(Message.RecipientType type) throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isRecipientsCached()) { parseImpl(); }
         return super.getRecipients(type);
     }
 
@@ -431,7 +452,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Address[] getReplyTo() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !(isHeaderCached("Reply-To") && isHeaderCached("From") && isHeaderCached("Sender"))) { parseImpl(); }
         return super.getReplyTo();
     }
 
@@ -441,7 +462,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Address getSender() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached("Sender")) { parseImpl(); }
         return super.getSender();
     }
 
@@ -451,7 +472,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public Date getSentDate() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached("Date")) { parseImpl(); }
         return super.getSentDate();
     }
 
@@ -471,7 +492,7 @@ public class LazyParsingMessage extends MessageBase {
      * @throws MessagingException
      */
     public String getSubject() throws MessagingException {
-        if (!parsed) { parseImpl(); }
+        if (!parsed && !isHeaderCached("Subject")) { parseImpl(); }
         return super.getSubject();
     }
 
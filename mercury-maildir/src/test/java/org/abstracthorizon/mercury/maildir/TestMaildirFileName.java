@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.Flags;
+
+import org.junit.Test;
+
+public class TestMaildirFileName {
+
+    @Test
+    public void testParse() {
+        String name = "1600000000.M123P45R6.host,S=2048,I=abc:2,FS";
+        assertEquals(name.indexOf(":2,") + 1, MaildirFileName.infoIndex(name));
+        assertEquals("1600000000.M123P45R6.host,S=2048,I=abc", MaildirFileName.baseName(name));
+        assertEquals(FlagUtilities.FLAGGED | FlagUtilities.SEEN, MaildirFileName.flagBits(name));
+        assertEquals(2048, MaildirFileName.size(name));
+
+        StringBuilder buf = new StringBuilder(name);
+        assertEquals(MaildirFileName.baseLength(name), MaildirFileName.baseLength(buf));
+        assertEquals(MaildirFileName.flagBits(name), MaildirFileName.flagBits(buf));
+        assertEquals(2048, MaildirFileName.size(buf));
+
+        String plain = "1600000000.M123P45R6.host";
+        assertSame(plain, MaildirFileName.baseName(plain));
+        assertEquals(-1, MaildirFileName.infoIndex(plain));
+        assertEquals(0, MaildirFileName.flagBits(plain));
+        assertEquals(-1, MaildirFileName.size(plain));
+        assertEquals(-1, MaildirFileName.size("1600000000.host,S=:2,S"));
+        assertEquals(plain, MaildirFileName.baseName(plain + ":2,"));
+        assertEquals(plain, MaildirMessage.baseNameFromName(plain + "!2,T"));
+    }
+
+    @Test
+    public void testFlagBits() {
+        for (int bits = 0; bits <= FlagUtilities.ALL; bits++) {
+            String str = FlagUtilities.toMaildirString(bits);
+            assertSame(str, FlagUtilities.toMaildirString(bits));
+            assertEquals(bits, FlagUtilities.bitsFromMaildirString(str, 0));
+            Flags flags = FlagUtilities.fromBits(bits);
+            assertEquals(bits, FlagUtilities.toBits(flags));
+            assertEquals(str, FlagUtilities.toMaildirString(flags));
+            assertEquals(flags, FlagUtilities.fromMaildirString(str));
+        }
+        assertEquals("DFRST", FlagUtilities.toMaildirString(FlagUtilities.ALL));
+        assertEquals(FlagUtilities.SEEN | FlagUtilities.DELETED, FlagUtilities.bitsFromMaildirString("ts", 0));
+        assertTrue(FlagUtilities.fromMaildirString(null).getSystemFlags().length == 0);
+    }
+}
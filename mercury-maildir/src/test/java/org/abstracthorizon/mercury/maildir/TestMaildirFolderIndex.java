@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMaildirFolderIndex {
+
+    protected File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("maildir-index", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    protected MaildirFolderIndex createIndex() {
+        MaildirFolderIndex index = new MaildirFolderIndex(1000L, 2000L);
+        index.addEntry(new MaildirFolderIndex.Entry("1600000000.V1U1.host:2,S", false, 100, 1600000000000L, 1));
+        index.addEntry(new MaildirFolderIndex.Entry("1600000001.V1U2.host:2,RT", false, 200, 1600000001000L, 2));
+        index.addEntry(new MaildirFolderIndex.Entry("1600000002.V1U3.host", true, 300, 1600000002000L, 3));
+        return index;
+    }
+
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        createIndex().store(dir);
+
+        MaildirFolderIndex index = MaildirFolderIndex.load(dir);
+        assertNotNull(index);
+        assertEquals(3, index.getTotal());
+        assertEquals(1, index.getRecent());
+        assertEquals(2, index.getUnseen());
+        assertTrue(index.isCurrent(1000L, 2000L));
+        assertFalse(index.isCurrent(1001L, 2000L));
+
+        MaildirFolderIndex.Entry entry = index.getEntry("1600000001.V1U2.host:2,RT");
+        assertNotNull(entry);
+        assertEquals("1600000001.V1U2.host", entry.getBaseName());
+        assertEquals("RT", entry.getFlags());
+        assertEquals(200, entry.getSize());
+        assertEquals(1600000001000L, entry.getInternalDate());
+        assertEquals(2, entry.getUID());
+
+        assertEquals(2, index.getNames(false).length);
+        assertEquals(1, index.getNames(true).length);
+
+        MaildirFolderIndex summary = MaildirFolderIndex.loadSummary(dir);
+        assertNotNull(summary);
+        assertEquals(3, summary.getTotal());
+        assertEquals(1, summary.getRecent());
+    }
+
+    @Test
+    public void testCorruptIndexIsRemoved() throws IOException {
+        createIndex().store(dir);
+        File file = new File(dir, MaildirFolderIndex.INDEX_FILE);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 20);
+            raf.write(raf.read() ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(MaildirFolderIndex.load(dir));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testRecentlyModifiedDirectoryIsNotTrusted() {
+        long now = System.currentTimeMillis();
+        assertEquals(0, MaildirFolderIndex.trustedModified(now - 100, now));
+        assertEquals(now - 10000, MaildirFolderIndex.trustedModified(now - 10000, now));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMaildirHeaderCache {
+
+    protected File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("maildir-headers", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    protected MaildirHeaderCache createCache() {
+        MaildirHeaderCache cache = new MaildirHeaderCache(MaildirHeaderCache.DEFAULT_HEADERS);
+        cache.putEntry("1600000000.V1U1.host", new MaildirHeaderCache.Entry(1000, 120, new String[]{
+            "From: someone@example.com",
+            "To: first@example.com",
+            "Subject: Hello\r\n there",
+            "To: second@example.com"
+        }));
+        cache.putEntry("1600000001.V1U2.host", new MaildirHeaderCache.Entry(2000, 220, new String[]{
+            "Subject: Second"
+        }));
+        return cache;
+    }
+
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        MaildirHeaderCache cache = createCache();
+        assertTrue(cache.isDirty());
+        cache.store(dir);
+        assertFalse(cache.isDirty());
+
+        cache = MaildirHeaderCache.load(dir, MaildirHeaderCache.DEFAULT_HEADERS);
+        assertEquals(2, cache.size());
+        assertFalse(cache.isDirty());
+
+        MaildirHeaderCache.Entry entry = cache.getEntry("1600000000.V1U1.host");
+        assertNotNull(entry);
+        assertEquals(1000, entry.getFileSize());
+        assertEquals(120, entry.getHeaderLength());
+        assertEquals("Hello\r\n there", entry.getHeader("subject", null));
+        assertEquals("first@example.com,second@example.com", entry.getHeader("To", ","));
+        assertEquals(2, entry.getHeader("TO").length);
+        assertNull(entry.getHeader("Cc"));
+
+        Enumeration<String> lines = entry.getMatchingHeaderLines(new String[]{"Subject", "From"});
+        assertEquals("From: someone@example.com", lines.nextElement());
+        assertEquals("Subject: Hello\r\n there", lines.nextElement());
+        assertFalse(lines.hasMoreElements());
+    }
+
+    @Test
+    public void testCachedNames() {
+        MaildirHeaderCache cache = new MaildirHeaderCache(new String[]{"Subject", "Message-ID"});
+        assertTrue(cache.isCached("subject"));
+        assertTrue(cache.isCached(new String[]{"SUBJECT", "message-id"}));
+        assertFalse(cache.isCached(new String[]{"Subject", "X-Mailer"}));
+    }
+
+    @Test
+    public void testDifferentHeadersInvalidateCache() throws IOException {
+        createCache().store(dir);
+
+        MaildirHeaderCache cache = MaildirHeaderCache.load(dir, new String[]{"Subject"});
+        assertEquals(0, cache.size());
+        assertTrue(cache.isDirty());
+    }
+
+    @Test
+    public void testRetain() {
+        MaildirHeaderCache cache = createCache();
+        Set<String> existing = new HashSet<String>(Collections.singleton("1600000001.V1U2.host"));
+        cache.retain(existing);
+        assertEquals(1, cache.size());
+        assertNull(cache.getEntry("1600000000.V1U1.host"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestGroupCommit {
+
+    protected File dir;
+
+    protected File tmp;
+
+    protected File target;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("maildir-commit", "");
+        dir.delete();
+        tmp = new File(dir, "tmp");
+        target = new File(dir, "new");
+        tmp.mkdirs();
+        target.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    protected void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testEveryCommitIsDoneWhenMoreCommittersThanBatch() throws Exception {
+        final GroupCommit commit = new GroupCommit(2, 4);
+        final int threads = 64;
+        final int commits = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < commits; i++) {
+                            String name = thread + "-" + i;
+                            File file = new File(tmp, name);
+                            FileOutputStream out = new FileOutputStream(file);
+                            try {
+                                out.write(name.getBytes());
+                            } finally {
+                                out.close();
+                            }
+                            File to = new File(target, name);
+                            commit.commit(file, to);
+                            if (!to.exists()) {
+                                throw new AssertionError("Commit returned before " + to + " exists");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, tmp.list().length);
+        assertEquals(threads * commits, target.list().length);
+        assertEquals(threads * commits, commit.getFiles());
+        assertTrue(commit.getBatches() >= threads * commits / 4);
+    }
+}
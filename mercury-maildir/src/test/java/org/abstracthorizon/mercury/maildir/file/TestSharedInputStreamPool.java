@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSharedInputStreamPool {
+
+    protected static final int SIZE = 4 * SharedInputStreamImpl.BUFFER_SIZE;
+
+    protected static final int CHUNK = SharedInputStreamImpl.BUFFER_SIZE;
+
+    protected File dir;
+
+    protected FileProvider[] providers = new FileProvider[3];
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("maildir-pool", "");
+        dir.delete();
+        dir.mkdirs();
+        for (int i = 0; i < providers.length; i++) {
+            final File file = new File(dir, "msg" + i);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buf = new byte[SIZE];
+                Arrays.fill(buf, (byte) ('0' + i));
+                out.write(buf);
+            } finally {
+                out.close();
+            }
+            providers[i] = new FileProvider() {
+                public File getFile() {
+                    return file;
+                }
+                public long getFileSize() {
+                    return file.length();
+                }
+            };
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    protected void read(InputStream in, int len, int expected) throws IOException {
+        byte[] buf = new byte[len];
+        assertEquals(len, in.read(buf));
+        for (byte b : buf) {
+            assertEquals('0' + expected, b);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        SharedInputStreamPool pool = new SharedInputStreamPool(2);
+        InputStream[] streams = new InputStream[3];
+        streams[0] = pool.newStream(providers[0], 0, -1);
+        streams[1] = pool.newStream(providers[1], 0, -1);
+        streams[2] = pool.newStream(providers[2], 0, -1);
+
+        read(streams[0], CHUNK, 0);
+        read(streams[1], CHUNK, 1);
+        // Touch first stream so second becomes least recently used
+        read(streams[0], CHUNK, 0);
+        read(streams[2], CHUNK, 2);
+
+        assertEquals(2, pool.getOpenFiles());
+        assertEquals(1, pool.getEvictions());
+        assertNotNull(((SharedInputStreamImpl)streams[0]).raf);
+        assertNull(((SharedInputStreamImpl)streams[1]).raf);
+
+        read(streams[1], CHUNK, 1);
+        assertEquals(1, pool.getReopens());
+        assertEquals(4, pool.getMisses());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getOpenFiles());
+    }
+
+    @Test
+    public void testCloseWithProvider() throws IOException {
+        SharedInputStreamPool pool = new SharedInputStreamPool(10);
+        InputStream first = pool.newStream(providers[0], 0, -1);
+        InputStream second = pool.newStream(providers[0], 50, -1);
+        InputStream other = pool.newStream(providers[1], 0, -1);
+        read(first, CHUNK, 0);
+        read(second, CHUNK, 0);
+        read(other, CHUNK, 1);
+        assertEquals(3, pool.getOpenFiles());
+
+        pool.closeWithProvider(providers[0]);
+        assertEquals(1, pool.getOpenFiles());
+        assertNull(((SharedInputStreamImpl)first).raf);
+        assertNull(((SharedInputStreamImpl)second).raf);
+        assertEquals(0, pool.getEvictions());
+    }
+
+    @Test
+    public void testChannelPoolEviction() throws IOException {
+        FileChannelSharedInputStreamPool pool = new FileChannelSharedInputStreamPool(2);
+        InputStream[] streams = new InputStream[3];
+        for (int i = 0; i < 3; i++) {
+            streams[i] = pool.newStream(providers[i], 0, -1);
+            read(streams[i], CHUNK, i);
+        }
+        assertEquals(2, pool.getOpenFiles());
+        assertEquals(1, pool.getEvictions());
+        assertEquals(3, pool.getMisses());
+
+        InputStream again = pool.newStream(providers[0], 0, -1);
+        read(again, CHUNK, 0);
+        assertEquals(2, pool.getOpenFiles());
+        assertEquals(2, pool.getEvictions());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.abstracthorizon.mercury.maildir.file.FileChannelSharedInputStreamPool;
+import org.abstracthorizon.mercury.maildir.file.FileProvider;
+import org.abstracthorizon.mercury.maildir.file.SharedInputStreamPool;
+
+/**
+ * Benchmark comparing <code>SharedInputStreamPool</code> (random access file)
+ * and <code>FileChannelSharedInputStreamPool</code> (file channel and mapped files)
+ * on 1KB, 100KB and 20MB messages. For each size it measures sequential read of
+ * whole message, byte by byte read of first part of message (as headers are parsed)
+ * and concurrent reads of sections of the same message from several threads.
+ *
+ * @author Daniel Sendula
+ */
+public class LTest4 {
+
+    /** Number of threads reading sections concurrently */
+    public static final int THREADS = 8;
+
+    /** Amount of data each case reads in total */
+    public static final long TOTAL = 256L * 1024 * 1024;
+
+    /**
+     * Runs benchmark
+     * @param args optional directory for temporary files
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = args.length > 0 ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+        int[] sizes = new int[]{1024, 100 * 1024, 20 * 1024 * 1024};
+        SharedInputStreamPool[] pools = new SharedInputStreamPool[]{
+            new SharedInputStreamPool(),
+            new FileChannelSharedInputStreamPool()
+        };
+        String[] names = new String[]{"file", "channel"};
+
+        for (int size : sizes) {
+            final File file = File.createTempFile("ltest4", ".eml", dir);
+            try {
+                write(file, size);
+                FileProvider provider = new FileProvider() {
+                    public File getFile() {
+                        return file;
+                    }
+                    public long getFileSize() {
+                        return file.length();
+                    }
+                };
+                int iterations = (int) Math.max(10, TOTAL / size);
+                for (int round = 0; round < 2; round++) {
+                    // first round is warm up
+                    for (int i = 0; i < pools.length; i++) {
+                        long sequential = sequential(pools[i], provider, size, iterations);
+                        long headers = headers(pools[i], provider, size, iterations);
+                        long concurrent = concurrent(pools[i], provider, size, iterations);
+                        pools[i].closeWithProvider(provider);
+                        if (round == 1) {
+                            System.out.println(size + " bytes, " + names[i]
+                                + ": sequential " + sequential + "ms, headers " + headers
+                                + "ms, concurrent sections " + concurrent + "ms");
+                        }
+                    }
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates message file of given size
+     * @param file file
+     * @param size size
+     * @throws IOException
+     */
+    protected static void write(File file, int size) throws IOException {
+        byte[] line = "The quick brown fox jumps over the lazy dog 0123456789 ABCDEFGHIJ\r\n".getBytes();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            int written = 0;
+            while (written < size) {
+                int l = Math.min(line.length, size - written);
+                out.write(line, 0, l);
+                written = written + l;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads whole message through the new stream
+     * @param pool pool
+     * @param provider file provider
+     * @param size message size
+     * @param iterations number of iterations
+     * @return time in milliseconds
+     * @throws IOException
+     */
+    protected static long sequential(SharedInputStreamPool pool, FileProvider provider, int size, int iterations) throws IOException {
+        byte[] buf = new byte[4096];
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = pool.newStream(provider, 0, size);
+            while (in.read(buf) > 0) {
+            }
+            in.close();
+        }
+        return System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Reads first 4KB of message byte by byte
+     * @param pool pool
+     * @param provider file provider
+     * @param size message size
+     * @param iterations number of iterations
+     * @return time in milliseconds
+     * @throws IOException
+     */
+    protected static long headers(SharedInputStreamPool pool, FileProvider provider, int size, int iterations) throws IOException {
+        int len = Math.min(size, 4096);
+        iterations = (int) Math.min(iterations, TOTAL / 16 / len);
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = pool.newStream(provider, 0, len);
+            while (in.read() >= 0) {
+            }
+            in.close();
+        }
+        return System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Reads random sections of the same message from several threads. All section streams
+     * are created from one message stream as <code>MimeMultipart</code> does.
+     * @param pool pool
+     * @param provider file provider
+     * @param size message size
+     * @param iterations total number of section reads
+     * @return time in milliseconds
+     * @throws Exception
+     */
+    protected static long concurrent(SharedInputStreamPool pool, FileProvider provider, final int size, int iterations) throws Exception {
+        final SharedInputStream message = (SharedInputStream) pool.newStream(provider, 0, size);
+        final int perThread = Math.max(1, iterations / THREADS);
+        Thread[] threads = new Thread[THREADS];
+        long started = System.currentTimeMillis();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                public void run() {
+                    byte[] buf = new byte[4096];
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            int start = random.nextInt(size);
+                            InputStream in = message.newStream(start, size);
+                            while (in.read(buf) > 0) {
+                            }
+                            in.close();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.currentTimeMillis() - started;
+    }
+}
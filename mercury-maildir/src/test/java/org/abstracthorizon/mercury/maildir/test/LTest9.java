@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2005-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.maildir.test;
+
+import javax.mail.Flags;
+
+import org.abstracthorizon.mercury.maildir.FlagUtilities;
+import org.abstracthorizon.mercury.maildir.MaildirFileName;
+
+/**
+ * Benchmark of maildir file name and flag codec. File names are parsed (base name,
+ * size and flags) and new flags' strings are produced once with substrings and
+ * <code>javax.mail.Flags</code> as it used to be done and once with {@link MaildirFileName}
+ * and flag bits. Each round is run several times so JIT has warmed up for the last ones.
+ *
+ * @author Daniel Sendula
+ */
+public class LTest9 {
+
+    /** Sink for results so work is not optimised away */
+    protected static long sink;
+
+    /**
+     * Runs benchmark
+     * @param args optional number of file names and number of rounds
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            String flags = FlagUtilities.toMaildirString(i % (FlagUtilities.ALL + 1));
+            names[i] = (1600000000 + i) + ".M" + (i % 1000) + "P" + i + "R" + (i * 31 % 131072) + ".host,S=" + (i * 7 % 65536)
+                + ":2," + flags;
+        }
+
+        for (int r = 1; r <= rounds; r++) {
+            long started = System.nanoTime();
+            for (String name : names) {
+                legacy(name);
+            }
+            long legacyTime = System.nanoTime() - started;
+
+            started = System.nanoTime();
+            for (String name : names) {
+                codec(name);
+            }
+            long codecTime = System.nanoTime() - started;
+
+            System.out.println("round " + r + ": strings and Flags " + (legacyTime / count) + "ns/name, codec "
+                + (codecTime / count) + "ns/name");
+        }
+        System.out.println(sink);
+    }
+
+    /**
+     * Parses file name and works out file name with SEEN flag added as it used to be done
+     * @param name file name
+     */
+    protected static void legacy(String name) {
+        String baseName = name;
+        Flags flags;
+        int i = name.lastIndexOf("2,");
+        if (i > 0) {
+            baseName = name.substring(0, i - 1);
+            flags = FlagUtilities.fromMaildirString(name.substring(i + 2));
+        } else {
+            flags = new Flags();
+        }
+        long size = -1;
+        int j = baseName.lastIndexOf(",S=");
+        if (j >= 0) {
+            size = Long.parseLong(baseName.substring(j + 3));
+        }
+        flags.add(Flags.Flag.SEEN);
+        String newName = baseName + ':' + "2," + FlagUtilities.toMaildirString(flags);
+        sink = sink + size + newName.length();
+    }
+
+    /**
+     * Parses file name and works out file name with SEEN flag added using codec
+     * @param name file name
+     */
+    protected static void codec(String name) {
+        int baseLength = MaildirFileName.baseLength(name);
+        int bits = MaildirFileName.flagBits(name);
+        long size = MaildirFileName.size(name);
+        String flags = FlagUtilities.toMaildirString(bits | FlagUtilities.SEEN);
+        sink = sink + size + baseLength + 3 + flags.length();
+    }
+}
@@ -49,6 +49,12 @@ public class SMTPResponses {
     /** Mailbox unavailable response */
     public static final SMTPResponse MAILBOX_UNAVAILABLE_RESPONSE = new SMTPResponse(550, "Requested action not taken: mailbox unavailable");
 
+    /** Insufficient storage response - mailbox is full */
+    public static final SMTPResponse INSUFFICIENT_STORAGE_RESPONSE = new SMTPResponse(452, "Requested action not taken: insufficient system storage");
+
+    /** Exceeded storage allocation response - message doesn't fit in mailboxes */
+    public static final SMTPResponse EXCEEDED_STORAGE_RESPONSE = new SMTPResponse(552, "Requested mail action aborted: exceeded storage allocation");
+
     /** Authentication Succeeded */
     public static final SMTPResponse AUTHENTICATION_SUCCEEDED = new SMTPResponse(235, "Authentication Succeeded");
 
@@ -37,11 +37,13 @@ import javax.mail.internet.MimeMessage;
 
 import org.abstracthorizon.mercury.common.command.CommandException;
 import org.abstracthorizon.mercury.common.io.TempStorage;
+import org.abstracthorizon.mercury.smtp.SMTPResponse;
 import org.abstracthorizon.mercury.smtp.SMTPResponses;
 import org.abstracthorizon.mercury.smtp.SMTPScanner;
 import org.abstracthorizon.mercury.smtp.SMTPSession;
 import org.abstracthorizon.mercury.smtp.exception.ParserException;
 import org.abstracthorizon.mercury.smtp.util.Path;
+import org.abstracthorizon.mercury.smtp.util.Quotas;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -305,6 +307,11 @@ public class DataCommand extends SMTPCommand {
      */
     protected void processMail(SMTPSession connection, MimeMessage message) throws IOException {
         if (postcheck(connection)) {
+            SMTPResponse quotaResponse = checkQuota(connection, message);
+            if (quotaResponse != null) {
+                connection.sendResponse(quotaResponse);
+                return;
+            }
             boolean hasSuccesfuls = false;
             List<Path> externals = new ArrayList<Path>();
             Iterator<Path> it = connection.getMailSessionData().getDestinationMailboxes().iterator();
@@ -327,6 +334,43 @@ public class DataCommand extends SMTPCommand {
         }
     }
 
+    /**
+     * Checks quota of all local mailboxes before message is stored to any of them.
+     * There is only one reply to DATA for all recipients, so message is stored either to
+     * all local mailboxes or to none: if it doesn't fit in some mailboxes transaction is
+     * rejected temporarily (452) and if it doesn't fit in any it is rejected (552).
+     *
+     * @param connection SMTP session
+     * @param message message
+     * @return <code>null</code> if message fits in all local mailboxes or response
+     * transaction is rejected with
+     */
+    protected SMTPResponse checkQuota(SMTPSession connection, MimeMessage message) {
+        int local = 0;
+        int over = 0;
+        for (Path path : connection.getMailSessionData().getDestinationMailboxes()) {
+            if (path.isLocalMailbox()) {
+                local = local + 1;
+                try {
+                    if (!isWithinQuota(path.getFolder(), message)) {
+                        logger.info("Mailbox over quota; " + path);
+                        over = over + 1;
+                    }
+                } catch (MessagingException e) {
+                    logger.error("Quota problem", e);
+                    return SMTPResponses.GENERIC_ERROR_RESPONSE;
+                }
+            }
+        }
+        if (over == 0) {
+            return null;
+        } else if (over == local) {
+            return SMTPResponses.EXCEEDED_STORAGE_RESPONSE;
+        } else {
+            return SMTPResponses.INSUFFICIENT_STORAGE_RESPONSE;
+        }
+    }
+
     /**
      * Processes local storage mails.
      *
@@ -361,6 +405,19 @@ public class DataCommand extends SMTPCommand {
         return false;
     }
 
+    /**
+     * Checks if message can be stored to the folder without going over quota of folder's store.
+     *
+     * @param folder folder message is going to be stored to
+     * @param message message
+     * @return <code>true</code> if message fits in the quota
+     * @throws MessagingException
+     * @see Quotas#isWithinQuota(Folder, long)
+     */
+    protected boolean isWithinQuota(Folder folder, MimeMessage message) throws MessagingException {
+        return Quotas.isWithinQuota(folder, Math.max(message.getSize(), 0));
+    }
+
     /**
      * Processes external mails - invokes transport protocol in sending mail
      * further or caching it localing for delayed send.
@@ -25,6 +25,7 @@ import org.abstracthorizon.mercury.smtp.SMTPScanner;
 import org.abstracthorizon.mercury.smtp.SMTPSession;
 import org.abstracthorizon.mercury.smtp.exception.ParserException;
 import org.abstracthorizon.mercury.smtp.util.Path;
+import org.abstracthorizon.mercury.smtp.util.Quotas;
 
 /**
  * RCPT command
@@ -84,7 +85,7 @@ public class RcptCommand extends SMTPCommand {
     }
 
     /**
-     * Processes path
+     * Processes path. Local mailbox that is already over quota is rejected.
      * @param connection smtp session
      * @param path path
      * @throws IOException
@@ -98,8 +99,13 @@ public class RcptCommand extends SMTPCommand {
                 // Store store = manager.getLocalMailbox(path.getMailbox(), path.getDomain());
                 // path.setStore(store);
                 path.setFolder(manager.findInbox(path.getMailbox(), path.getDomain(), null));
-                connection.getMailSessionData().getDestinationMailboxes().add(path);
-                connection.sendResponse(SMTPResponses.OK_RESPONSE);
+                if (Quotas.isWithinQuota(path.getFolder(), 0)) {
+                    connection.getMailSessionData().getDestinationMailboxes().add(path);
+                    connection.sendResponse(SMTPResponses.OK_RESPONSE);
+                } else {
+                    // Mailbox is already full; sender may try again later
+                    connection.sendResponse(SMTPResponses.INSUFFICIENT_STORAGE_RESPONSE);
+                }
             } catch (MessagingException e) {
                 connection.sendResponse(SMTPResponses.GENERIC_ERROR_RESPONSE);
             } catch (UnknownUserException e) {
@@ -19,6 +19,7 @@ import org.abstracthorizon.mercury.common.exception.UnknownUserException;
 import org.abstracthorizon.mercury.common.exception.UserRejectedException;
 import org.abstracthorizon.mercury.smtp.SMTPResponses;
 import org.abstracthorizon.mercury.smtp.util.Path;
+import org.abstracthorizon.mercury.smtp.util.Quotas;
 
 
 /**
@@ -56,6 +57,9 @@ public class FindStorageFilter implements Filter {
                 // Store store = manager.getLocalMailbox(path.getMailbox(), path.getDomain());
                 // path.setStore(store);
                 path.setFolder(manager.findInbox(path.getMailbox(), path.getDomain(), null));
+                if (!Quotas.isWithinQuota(path.getFolder(), 0)) {
+                    return SMTPResponses.INSUFFICIENT_STORAGE_RESPONSE.toString().substring(4); // TODO not nice
+                }
                 data.getDestinationMailboxes().add(path);
                 return Filter.POSITIVE_RESPONSE; // STOP with processing here
             } catch (MessagingException e) {
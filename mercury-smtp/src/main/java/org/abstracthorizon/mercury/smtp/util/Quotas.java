@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2004-2020 Creative Sphere Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.abstracthorizon.mercury.smtp.util;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Quota;
+import javax.mail.QuotaAwareStore;
+
+/**
+ * Quota checks of local mailboxes.
+ *
+ * @author Daniel Sendula
+ */
+public class Quotas {
+
+    /**
+     * Checks if message of given size can be stored to the folder without going over quota
+     * of folder's store. Stores that are not <code>QuotaAwareStore</code> have no quota.
+     * &quot;STORAGE&quot; resource is compared in kilobytes and &quot;MESSAGE&quot; resource
+     * in number of messages.
+     *
+     * @param folder folder message is going to be stored to
+     * @param size message size in bytes; 0 when it is not known yet
+     * @return <code>true</code> if message fits in the quota
+     * @throws MessagingException
+     */
+    public static boolean isWithinQuota(Folder folder, long size) throws MessagingException {
+        if (!(folder.getStore() instanceof QuotaAwareStore)) {
+            return true;
+        }
+        Quota[] quotas = ((QuotaAwareStore)folder.getStore()).getQuota(folder.getFullName());
+        for (Quota quota : quotas) {
+            if (quota.resources != null) {
+                for (Quota.Resource resource : quota.resources) {
+                    if ("STORAGE".equalsIgnoreCase(resource.name)) {
+                        if (resource.usage + (size + 1023) / 1024 > resource.limit) {
+                            return false;
+                        }
+                    } else if ("MESSAGE".equalsIgnoreCase(resource.name)) {
+                        if (resource.usage + 1 > resource.limit) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}